@@ -2,6 +2,8 @@
  * @author Yuen Hsi Chang
  */
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class BMTester
 {
@@ -161,6 +163,753 @@ public class BMTester
     }
 
 
+    //-----------------------------------------------------------
+    // test 3
+    //      Pages written through a compressed file read back the
+    //      same, also after growing past their slots, and a plain
+    //      file compressed in place keeps its pages, unless
+    //      compressing stopped part way, when it is not opened
+    //------------------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            String packed = filename + ".z";
+            int numPages = 5 * bufMgr.poolSize();
+            CompressedDBFile file = new CompressedDBFile(packed, numPages);
+            bufMgr.newPage(numPages, packed);
+            bufMgr.unpinPage(0, packed, false);
+            for (int round = 0; round < 2; round++)
+            {
+                for (int i = 0; i < numPages; i++)
+                {
+                    Page page = bufMgr.pinPage(i, packed, false);
+                    fillText(page, i, round);
+                    bufMgr.unpinPage(i, packed, true);
+                }
+                bufMgr.flushAllPages();
+                for (int i = 0; i < numPages; i++)
+                {
+                    Page page = bufMgr.pinPage((i * 7) % numPages, packed,
+                                               false);
+                    if (!hasText(page, (i * 7) % numPages, round))
+                        throw new TestFailedException("Compressed page " +
+                                                      "content incorrect");
+                    bufMgr.unpinPage((i * 7) % numPages, packed, false);
+                }
+            }
+            System.out.println(numPages + " pages stored in " +
+                               file.getStoredSize() + " bytes");
+            if (file.getStoredSize() * 2 > (long)numPages * Page.PAGESIZE)
+                throw new TestFailedException("Pages barely compressed");
+
+            DBFile plain = new DBFile(filename);
+            plain.allocatePages(10);
+            for (int i = 0; i < 10; i++)
+            {
+                Page page = new Page();
+                fillText(page, i, 0);
+                plain.writePage(i, page);
+            }
+            CompressedDBFile.compress(filename);
+            for (int i = 0; i < 10; i++)
+            {
+                Page page = new Page();
+                DBFile.open(filename).readPage(i, page);
+                if (!hasText(page, i, 0))
+                    throw new TestFailedException("Page lost compressing");
+            }
+            System.out.println("Plain file compressed in place");
+
+            // A translation map still pending is what compress leaves
+            // if it stops part way, and the file must not be opened.
+            File pending = new File(
+                filename + CompressedDBFile.PENDING_TRANSLATION_SUFFIX);
+            pending.createNewFile();
+            try
+            {
+                DBFile.open(filename);
+                throw new TestFailedException("Half compressed file " +
+                                              "opened");
+            }
+            catch (CompressedDBFile.IncompleteCompressionException e)
+            {
+            }
+            finally
+            {
+                pending.delete();
+            }
+            System.out.println("Half compressed file refused");
+            DBFile.erase(packed);
+
+            // Slots freed by deallocated pages are used again, and
+            // threads writing pages of one file never share a slot.
+            CompressedDBFile slots = new CompressedDBFile(packed, numPages);
+            slots.allocatePages(numPages);
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = new Page();
+                fillText(page, i, 1);
+                slots.writePage(i, page);
+            }
+            long full = slots.getStoredSize();
+            slots.deallocatePages(0, numPages / 2);
+            if (slots.getFreeSize() == 0 && slots.getStoredSize() == full)
+                throw new TestFailedException("Freed slots not kept");
+            slots.allocatePages(numPages / 2);
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++)
+            {
+                int first = t;
+                writers[t] = new Thread(() -> {
+                        try
+                        {
+                            DBFile db = DBFile.open(packed);
+                            for (int i = first; i < numPages;
+                                 i += writers.length)
+                            {
+                                Page page = new Page();
+                                fillText(page, i, 2);
+                                db.writePage(i, page);
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                writers[t].start();
+            }
+            for (Thread writer : writers)
+                writer.join();
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = new Page();
+                slots.readPage(i, page);
+                if (!hasText(page, i, 2))
+                    throw new TestFailedException("Pages written at once " +
+                                                  "overlap");
+            }
+            System.out.println("Stored size " + full + " after first " +
+                               "writes, " + slots.getStoredSize() +
+                               " after rewriting");
+            if (slots.getStoredSize() > full + full / 4)
+                throw new TestFailedException("Freed slots not reused");
+            DBFile.erase(packed);
+        }
+
+        // Fills a page with lines of text naming the page and round.
+        private static void fillText(Page page, int pageNum, int round)
+        {
+            byte[] line = ("page " + pageNum + " round " + round +
+                           " of some cold text; ").getBytes();
+            for (int i = 0; i < page.data.length; i++)
+                page.data[i] = line[i % line.length];
+            if (round > 0)
+                for (int i = 0; i < page.data.length; i += 13)
+                    page.data[i] = (byte)(i * 31 + pageNum);
+        }
+
+        private static boolean hasText(Page page, int pageNum, int round)
+        {
+            Page expected = new Page();
+            fillText(expected, pageNum, round);
+            return Arrays.equals(page.data, expected.data);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 4
+    //      Pages evicted from a pool backed by a page cache are read
+    //      back from the cache, and the cache never serves a page
+    //      that has since been changed or freed
+    //------------------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            String cacheName = filename + ".cache";
+            int numPages = 5 * bufMgr.poolSize();
+            PageCache cache = new PageCache(cacheName, 2 * numPages);
+            bufMgr = new BufferManager(bufMgr.poolSize(), cache);
+            bufMgr.newPage(numPages + bufMgr.poolSize(), filename);
+            bufMgr.unpinPage(0, filename, false);
+
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                fill(page, i, 0);
+                bufMgr.unpinPage(i, filename, true);
+            }
+            bufMgr.flushAllPages();
+            for (int round = 0; round < 2; round++)
+                for (int i = 0; i < numPages; i++)
+                {
+                    Page page = bufMgr.pinPage(i, filename, false);
+                    if (!has(page, i, 0))
+                        throw new TestFailedException("Page content " +
+                                                      "incorrect");
+                    bufMgr.unpinPage(i, filename, false);
+                }
+            System.out.println(cache.getNumHits() + " cache hits, " +
+                               cache.getNumMisses() + " misses");
+            if (cache.getNumHits() == 0)
+                throw new TestFailedException("Evicted pages not cached");
+
+            // Change a page, and make sure the copy cached before is
+            // not read back once the new one is evicted.
+            Page page = bufMgr.pinPage(0, filename, false);
+            fill(page, 0, 1);
+            bufMgr.unpinPage(0, filename, true);
+            evict(bufMgr, filename, numPages);
+            page = bufMgr.pinPage(0, filename, false);
+            if (!has(page, 0, 1))
+                throw new TestFailedException("Stale page read from cache");
+            bufMgr.unpinPage(0, filename, false);
+            evict(bufMgr, filename, numPages);
+            if (!cache.contains(filename, 0))
+                throw new TestFailedException("Changed page not cached");
+
+            // Free a cached page; it must come back empty when reused.
+            bufMgr.freePage(0, filename);
+            if (cache.contains(filename, 0))
+                throw new TestFailedException("Freed page still cached");
+            Pair<Integer,Page> run = bufMgr.newPage(1, filename);
+            bufMgr.unpinPage(run.first, filename, false);
+            evict(bufMgr, filename, numPages);
+            page = bufMgr.pinPage(run.first, filename, false);
+            if (run.first == 0 && has(page, 0, 1))
+                throw new TestFailedException("Freed page read from cache");
+            bufMgr.unpinPage(run.first, filename, false);
+
+            cache.close();
+            if (new File(cacheName).exists())
+                throw new TestFailedException("Cache file not deleted");
+        }
+
+        // Reads enough other pages to push the whole pool out.
+        private static void evict(BufferManager bufMgr, String filename,
+                                  int numPages)
+            throws IOException
+        {
+            for (int i = numPages; i < numPages + bufMgr.poolSize(); i++)
+            {
+                bufMgr.pinPage(i, filename, false);
+                bufMgr.unpinPage(i, filename, false);
+            }
+        }
+
+        private static void fill(Page page, int pageNum, int version)
+        {
+            for (int i = 0; i < page.data.length; i++)
+                page.data[i] = (byte)(pageNum * 7 + version * 3 + i);
+        }
+
+        private static boolean has(Page page, int pageNum, int version)
+        {
+            Page expected = new Page();
+            fill(expected, pageNum, version);
+            return Arrays.equals(page.data, expected.data);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 5
+    //      Resident pages saved by one buffer manager are loaded by
+    //      another, unpinned and with their content, skipping pages
+    //      freed since and stopping once the pool is full
+    //------------------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            String saveName = filename + ".warm";
+            int poolSize = bufMgr.poolSize();
+            int numPages = 3 * poolSize;
+            bufMgr.newPage(numPages, filename);
+            bufMgr.unpinPage(0, filename, false);
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                Arrays.fill(page.data, (byte)i);
+                bufMgr.unpinPage(i, filename, true);
+            }
+            // Leave every other page of the second third resident.
+            for (int i = poolSize; i < 2 * poolSize; i += 2)
+            {
+                bufMgr.pinPage(i, filename, false);
+                bufMgr.unpinPage(i, filename, false);
+            }
+            bufMgr.flushAllPages();
+            bufMgr.startSaving(saveName, 10);
+            Thread.sleep(100);
+            bufMgr.stopSaving();
+            if (!new File(saveName).exists())
+                throw new TestFailedException("Resident pages not saved");
+            bufMgr.saveResidentPages(saveName);
+            bufMgr.freePage(poolSize, filename);
+
+            BufferManager warm = new BufferManager(poolSize);
+            warm.startWarmUp(saveName).join();
+            int loaded = 0;
+            for (int i = 0; i < numPages; i++)
+            {
+                boolean saved = bufMgr.findFrame(i, filename) >= 0;
+                if (warm.findFrame(i, filename) < 0)
+                    continue;
+                if (!saved || i == poolSize)
+                    throw new TestFailedException("Page " + i +
+                                                  " loaded but not saved");
+                loaded++;
+                Page page = warm.pinPage(i, filename, false);
+                if (page.data[0] != (byte)i ||
+                    page.data[Page.PAGESIZE - 1] != (byte)i)
+                    throw new TestFailedException("Loaded page content " +
+                                                  "incorrect");
+                warm.unpinPage(i, filename, false);
+            }
+            System.out.println(loaded + " pages loaded");
+            if (loaded != poolSize - 1)
+                throw new TestFailedException("Expected " + (poolSize - 1) +
+                                              " pages loaded");
+            if (warm.getNumUnpinned() != poolSize)
+                throw new TestFailedException("Loaded pages left pinned");
+
+            BufferManager small = new BufferManager(poolSize / 2);
+            if (small.loadResidentPages(saveName) != poolSize / 2)
+                throw new TestFailedException("Small pool not filled");
+            if (new BufferManager(poolSize).loadResidentPages(
+                    saveName + ".missing") != 0)
+                throw new TestFailedException("Pages loaded from nowhere");
+            new File(saveName).delete();
+        }
+    }
+
+    //-----------------------------------------------------------
+    // test 6
+    //      Shrinking the pool waits for pinned pages in the frames
+    //      given up while other pages are still used, loses no
+    //      writes, and growing it makes the new frames usable at once
+    //------------------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 6 -------");
+            int poolSize = bufMgr.poolSize();
+            int half = poolSize / 2;
+            int numPages = 3 * poolSize;
+            bufMgr.newPage(numPages, filename);
+            bufMgr.unpinPage(0, filename, false);
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                Arrays.fill(page.data, (byte)i);
+                bufMgr.unpinPage(i, filename, true);
+            }
+
+            // Pin two pages in frames the pool is about to give up.
+            ArrayList<Integer> pinned = new ArrayList<Integer>();
+            for (int i = 0; i < numPages && pinned.size() < 2; i++)
+                if (bufMgr.findFrame(i, filename) >= half)
+                {
+                    bufMgr.pinPage(i, filename, false);
+                    pinned.add(i);
+                }
+            final BufferManager shrinking = bufMgr;
+            Thread resizer = new Thread(() -> {
+                    try
+                    {
+                        shrinking.resize(half);
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                });
+            resizer.start();
+            Thread.sleep(100);
+            if (!resizer.isAlive())
+                throw new TestFailedException("Shrank with pages pinned");
+            for (int i = 0; i < numPages; i++)
+            {
+                if (pinned.contains(i))
+                    continue;
+                Page page = bufMgr.pinPage(i, filename, false);
+                if (page == null || bufMgr.findFrame(i, filename) >= half)
+                    throw new TestFailedException("Page put in a frame " +
+                                                  "given up");
+                bufMgr.unpinPage(i, filename, false);
+            }
+            for (int i : pinned)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                page.data[1] = (byte)-i;
+                bufMgr.unpinPage(i, filename, true);
+                bufMgr.unpinPage(i, filename, false);
+            }
+            resizer.join(5000);
+            if (resizer.isAlive() || bufMgr.poolSize() != half)
+                throw new TestFailedException("Pool did not shrink");
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                byte second = pinned.contains(i) ? (byte)-i : (byte)i;
+                if (page.data[0] != (byte)i || page.data[1] != second)
+                    throw new TestFailedException("Write lost shrinking");
+                bufMgr.unpinPage(i, filename, false);
+            }
+            System.out.println("Shrank from " + poolSize + " to " + half +
+                               " frames");
+
+            int grown = poolSize + half;
+            bufMgr.resize(grown);
+            for (int i = 0; i < grown; i++)
+                if (bufMgr.pinPage(i, filename, false) == null)
+                    throw new TestFailedException("Added frame not usable");
+            if (bufMgr.pinPage(grown, filename, false) != null)
+                throw new TestFailedException("Pool larger than resized");
+            for (int i = 0; i < grown; i++)
+                bufMgr.unpinPage(i, filename, false);
+            System.out.println("Grew to " + grown + " frames");
+
+            try
+            {
+                bufMgr.resize(0);
+                throw new TestFailedException("Resized to no frames");
+            }
+            catch (BufferManager.BadPoolSizeException e)
+            {
+            }
+        }
+    }
+
+    //-----------------------------------------------------------
+    // test 7
+    //      A partitioned pool keeps pages through eviction, lends
+    //      frames to a partition whose own are all pinned, and
+    //      loads saved pages into the partitions they hash to
+    //------------------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+            int poolSize = bufMgr.poolSize();
+            int numPartitions = 4;
+            PartitionedBufferManager pool =
+                new PartitionedBufferManager(poolSize, numPartitions);
+            int numPages = 5 * poolSize;
+            pool.newPage(numPages, filename);
+            pool.unpinPage(0, filename, false);
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = pool.pinPage(i, filename, false);
+                Arrays.fill(page.data, (byte)i);
+                pool.unpinPage(i, filename, true);
+            }
+            for (int i = numPages - 1; i >= 0; i--)
+            {
+                Page page = pool.pinPage(i, filename, false);
+                if (page.data[0] != (byte)i)
+                    throw new TestFailedException("Page content incorrect");
+                pool.unpinPage(i, filename, false);
+            }
+
+            // Pages numPartitions apart hash to the same partition.
+            for (int i = 0; i < poolSize; i++)
+                if (pool.pinPage(i * numPartitions, filename, false) == null)
+                    throw new TestFailedException("Frame not stolen");
+            if (pool.pinPage(1, filename, false) != null)
+                throw new TestFailedException("Pinned more than pool size");
+            int largest = 0;
+            for (int p = 0; p < numPartitions; p++)
+                largest = Math.max(largest, pool.getPartitionSize(p));
+            System.out.println("Largest partition grew to " + largest +
+                               " of " + poolSize + " frames");
+            if (largest != poolSize || pool.poolSize() != poolSize)
+                throw new TestFailedException("Frames lost stealing");
+            for (int i = 0; i < poolSize; i++)
+                pool.unpinPage(i * numPartitions, filename, false);
+
+            String saveName = filename + ".warm";
+            pool.saveResidentPages(saveName);
+            PartitionedBufferManager warm =
+                new PartitionedBufferManager(poolSize, numPartitions + 1);
+            int loaded = warm.loadResidentPages(saveName);
+            new File(saveName).delete();
+            System.out.println(loaded + " pages loaded into " +
+                               (numPartitions + 1) + " partitions");
+            if (loaded == 0)
+                throw new TestFailedException("No pages loaded");
+            for (int i = 0; i < numPages; i++)
+            {
+                if (warm.findFrame(i, filename) < 0)
+                    continue;
+                Page page = warm.pinPage(i, filename, false);
+                if (page.data[0] != (byte)i)
+                    throw new TestFailedException("Loaded page content " +
+                                                  "incorrect");
+                warm.unpinPage(i, filename, false);
+            }
+            if (warm.getNumUnpinned() != poolSize)
+                throw new TestFailedException("Loaded pages left pinned");
+
+            // Threads stealing frames for the same partition at once
+            // must not lose any.
+            PartitionedBufferManager stealing =
+                new PartitionedBufferManager(poolSize, numPartitions);
+            Thread[] stealers = new Thread[2];
+            for (int t = 0; t < stealers.length; t++)
+            {
+                int first = t;
+                stealers[t] = new Thread(() -> {
+                        try
+                        {
+                            for (int i = first; i < poolSize; i += 2)
+                                if (stealing.pinPage(i * numPartitions,
+                                                     filename, false) == null)
+                                    throw new TestFailedException(
+                                        "Frame not stolen");
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                stealers[t].start();
+            }
+            for (Thread stealer : stealers)
+                stealer.join();
+            if (stealing.poolSize() != poolSize ||
+                stealing.getNumUnpinned() != 0)
+                throw new TestFailedException("Frames lost stealing");
+
+            // Partitions allocating pages of one file at once must
+            // never be handed the same page.
+            String shared = filename + ".alloc";
+            DBFile.erase(shared);
+            new DBFile(shared, 400);
+            Set<Integer> allocated =
+                Collections.synchronizedSet(new HashSet<Integer>());
+            Thread[] workers = new Thread[4];
+            for (int t = 0; t < workers.length; t++)
+            {
+                workers[t] = new Thread(() -> {
+                        try
+                        {
+                            for (int i = 0; i < 50; i++)
+                            {
+                                int pageNum = pool.newPage(1, shared).first;
+                                pool.unpinPage(pageNum, shared, false);
+                                allocated.add(pageNum);
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            DBFile.erase(shared);
+            if (allocated.size() != 200)
+                throw new TestFailedException("Page allocated twice");
+        }
+    }
+
+    //-----------------------------------------------------------
+    // test 8
+    //      Pages pinned asynchronously read back correctly from many
+    //      threads, pins of a page being read share one read, a
+    //      page cannot be unpinned until it is read, and a failed
+    //      read leaves nothing pinned
+    //------------------------------------------------------------
+    public static class Test8 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 8 -------");
+            int poolSize = bufMgr.poolSize();
+            int numPages = 3 * poolSize;
+            bufMgr.newPage(numPages + 1, filename);
+            bufMgr.unpinPage(0, filename, false);
+            for (int i = 0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i, filename, false);
+                Arrays.fill(page.data, (byte)i);
+                bufMgr.unpinPage(i, filename, true);
+            }
+            bufMgr.flushAllPages();
+
+            // Every read of a missing page asks the cache first, so its
+            // misses count the reads.
+            String cacheName = filename + ".cache";
+            PageCache cache = new PageCache(cacheName, 1);
+            BufferManager counting = new BufferManager(poolSize, cache);
+            ArrayList<CompletableFuture<Page>> pins =
+                new ArrayList<CompletableFuture<Page>>();
+            for (int i = 0; i < 100; i++)
+                pins.add(counting.pinPageAsync(7, filename));
+            for (CompletableFuture<Page> pin : pins)
+                if (pin.join().data[0] != 7)
+                    throw new TestFailedException("Page content incorrect");
+            if (cache.getNumMisses() != 1)
+                throw new TestFailedException("Page read " +
+                                              cache.getNumMisses() +
+                                              " times");
+            for (int i = 0; i < 100; i++)
+                counting.unpinPage(7, filename, false);
+            try
+            {
+                counting.unpinPage(7, filename, false);
+                throw new TestFailedException("Unpinned more than pinned");
+            }
+            catch (BufferManager.PageNotPinnedException e)
+            {
+            }
+            cache.close();
+
+            // A page still being read may not be unpinned, or its frame
+            // could go to another page under the reader.
+            CountDownLatch gate = new CountDownLatch(1);
+            PageCache gated = new PageCache(cacheName, 1) {
+                    public boolean read(String fileName, int pageNum,
+                                        Page page)
+                        throws IOException
+                    {
+                        try
+                        {
+                            gate.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new InterruptedIOException();
+                        }
+                        return super.read(fileName, pageNum, page);
+                    }
+                };
+            BufferManager slow = new BufferManager(poolSize, gated);
+            try
+            {
+                CompletableFuture<Page> pin = slow.pinPageAsync(9, filename);
+                try
+                {
+                    slow.unpinPage(9, filename, false);
+                    throw new TestFailedException("Page unpinned while " +
+                                                  "being read");
+                }
+                catch (BufferManager.PageNotPinnedException e)
+                {
+                }
+                gate.countDown();
+                if (pin.join().data[0] != 9)
+                    throw new TestFailedException("Page content incorrect");
+                slow.unpinPage(9, filename, false);
+            }
+            finally
+            {
+                gate.countDown();
+                gated.close();
+            }
+            System.out.println("Page being read kept pinned");
+            BufferManager async = new BufferManager(poolSize);
+
+            // Fill the pool with pages being read at once.
+            pins.clear();
+            for (int i = 0; i < poolSize; i++)
+                pins.add(async.pinPageAsync(poolSize + i, filename));
+            if (async.pinPageAsync(0, filename) != null)
+                throw new TestFailedException("Pinned more than pool size");
+            Page page = async.pinPage(poolSize, filename, false);
+            if (page.data[0] != (byte)poolSize)
+                throw new TestFailedException("Page content incorrect");
+            async.unpinPage(poolSize, filename, false);
+            for (int i = 0; i < poolSize; i++)
+            {
+                if (pins.get(i).join().data[0] != (byte)(poolSize + i))
+                    throw new TestFailedException("Page content incorrect");
+                async.unpinPage(poolSize + i, filename, false);
+            }
+
+            BufferManager partitioned = new PartitionedBufferManager(poolSize,
+                                                                     4);
+            for (BufferManager pool : new BufferManager[] { async,
+                                                            partitioned })
+            {
+                Thread[] workers = new Thread[4];
+                ArrayList<Exception> failures = new ArrayList<Exception>();
+                for (int t = 0; t < workers.length; t++)
+                {
+                    Random random = new Random(t);
+                    workers[t] = new Thread(() -> {
+                            try
+                            {
+                                for (int i = 0; i < 500; i++)
+                                {
+                                    int pageNum = random.nextInt(numPages);
+                                    Page p = pool.pinPageAsync(pageNum,
+                                                               filename)
+                                        .join();
+                                    if (p.data[0] != (byte)pageNum)
+                                        throw new TestFailedException(
+                                            "Page content incorrect");
+                                    pool.unpinPage(pageNum, filename,
+                                                   false);
+                                }
+                            }
+                            catch (Exception e)
+                            {
+                                synchronized (failures)
+                                {
+                                    failures.add(e);
+                                }
+                            }
+                        });
+                    workers[t].start();
+                }
+                for (Thread worker : workers)
+                    worker.join();
+                if (!failures.isEmpty())
+                    throw failures.get(0);
+                if (pool.getNumUnpinned() != poolSize)
+                    throw new TestFailedException("Pages left pinned");
+            }
+            System.out.println("Concurrent asynchronous pins read " +
+                               "correctly");
+
+            DBFile.open(filename).deallocatePages(numPages, 1);
+            try
+            {
+                async.pinPageAsync(numPages, filename).join();
+                throw new TestFailedException("Freed page read");
+            }
+            catch (CompletionException e)
+            {
+                if (!(e.getCause() instanceof DBFile.PageNotAllocatedException))
+                    throw e;
+            }
+            if (async.findFrame(numPages, filename) >= 0 ||
+                async.getNumUnpinned() != poolSize)
+                throw new TestFailedException("Failed read left page " +
+                                              "pinned");
+            System.out.println("Read of a freed page reported");
+        }
+    }
+
     public static final String FILENAME = "__testing";
     public static final int NUMBUF = 20;
 
@@ -196,6 +945,12 @@ public class BMTester
         // Run the tests.
         runTest(new Test1());
         runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
         
         // Clean up
         DBFile.erase(FILENAME);
@@ -0,0 +1,89 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures how pins and unpins scale with the number of threads, on a
+ * single buffer pool and on one split into partitions. Each thread pins
+ * and unpins pages of a file chosen at random, nine in ten from a hot
+ * set that fits in the pool, so most pins are hits and the buffer
+ * manager's monitors are what the threads contend for.
+ * Usage: java BufferBenchmark [maxThreads] [millis] [numPartitions]
+ */
+public class BufferBenchmark
+{
+    public static final String FILENAME = "__bufbench";
+    public static final int POOL_SIZE = 1024;
+    public static final int NUM_PAGES = 4 * POOL_SIZE;
+    public static final int HOT_PAGES = POOL_SIZE / 2;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int millis = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int numPartitions = args.length > 2 ? Integer.parseInt(args[2]) :
+            2 * Runtime.getRuntime().availableProcessors();
+
+        DBFile.erase(FILENAME);
+        DBFile file = new DBFile(FILENAME, NUM_PAGES);
+        file.allocatePages(NUM_PAGES);
+        Page page = new Page();
+        for (int i = 0; i < NUM_PAGES; i++)
+            file.writePage(i, page);
+
+        System.out.println("threads  1 pool pins/s  " + numPartitions +
+                           " partitions pins/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            long single = run(new BufferManager(POOL_SIZE), threads, millis);
+            long split = run(new PartitionedBufferManager(POOL_SIZE,
+                                                          numPartitions),
+                             threads, millis);
+            System.out.printf("%7d %17d %24d%n", threads,
+                              single * 1000 / millis, split * 1000 / millis);
+        }
+        DBFile.erase(FILENAME);
+    }
+
+    // Pins and unpins pages on the given number of threads for a
+    // while, and returns how many pins there were.
+    private static long run(BufferManager bufMgr, int threads, int millis)
+        throws InterruptedException
+    {
+        AtomicLong pins = new AtomicLong(0);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                    long done = 0;
+                    try
+                    {
+                        while (!stop.get())
+                        {
+                            int pageNum = random.nextInt(10) > 0 ?
+                                random.nextInt(HOT_PAGES) :
+                                random.nextInt(NUM_PAGES);
+                            bufMgr.pinPage(pageNum, FILENAME, false);
+                            bufMgr.unpinPage(pageNum, FILENAME, false);
+                            done++;
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    pins.addAndGet(done);
+                });
+            workers[t].start();
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        return pins.get();
+    }
+}
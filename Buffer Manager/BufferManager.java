@@ -1,8 +1,31 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
- * Buffer manager. Manages a memory-based buffer pool of pages.
+ * Buffer manager. Manages a memory-based buffer pool of pages. All
+ * public methods are synchronized on the buffer manager, so a single
+ * instance can be shared by several scanning threads.
+ *
+ * A buffer manager may be given a PageCache on faster storage than the
+ * database files. Pages evicted from the pool are then copied there
+ * once they match their database file, and a page missing from the
+ * pool is looked for there before its database file is read. A cached
+ * copy is dropped when the page is written to its file or freed.
+ *
+ * So that a restarted buffer manager need not start cold, the list of
+ * resident pages can be saved, once or periodically, and loaded again
+ * later, in the background while the pool is in use.
+ *
+ * The pool can be resized while in use. Frames added are used at once;
+ * pages in frames taken away are written back or dropped, and resizing
+ * waits for pinned ones to be unpinned, with other threads free to use
+ * the buffer manager meanwhile.
+ *
+ * Besides pinPage, which reads a missing page before returning,
+ * pinPageAsync returns at once with a future for the page, read by a
+ * pool of reader threads without holding the buffer manager. Pins of a
+ * page that is still being read share that read.
  * @author Yuen Hsi Chang, with considerable material reused from the
  * UW-Madison Minibase project
  */
@@ -11,12 +34,31 @@ public class BufferManager
     public static class PageNotPinnedException
         extends RuntimeException {};
     public static class PagePinnedException extends RuntimeException {};
+    public static class BadPoolSizeException extends RuntimeException {};
 
     /**
      * Value to use for an invalid page id.
      */
     public static final int INVALID_PAGE = -1;
 
+    /**
+     * Most pages read at once when loading saved resident pages.
+     */
+    public static final int WARM_UP_RUN = 32;
+
+    /**
+     * Number of threads reading pages for pinPageAsync, shared by all
+     * buffer managers.
+     */
+    public static final int NUM_READERS = 8;
+
+    private static final ExecutorService READERS =
+        Executors.newFixedThreadPool(NUM_READERS, r -> {
+                Thread thread = new Thread(r, "page reader");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private static class FrameDescriptor
     {
         private int pageNum;
@@ -24,6 +66,8 @@ public class BufferManager
         private String fileName;
         private boolean dirty;
         private boolean reference;
+        // while the page is read by pinPageAsync, the future for it
+        private CompletableFuture<Page> loading;
         
         public FrameDescriptor()
         {
@@ -36,32 +80,153 @@ public class BufferManager
 
     }
 
-    // Here are some private variables to get you started. You'll
-    // probably need more.
+    /**
+     * Key of the page table: a page is identified by both the file it
+     * lives in and its page id within that file.
+     */
+    static class PageKey
+    {
+        private final String fileName;
+        private final int pageNum;
+
+        public PageKey(String fileName, int pageNum)
+        {
+            this.fileName = fileName;
+            this.pageNum = pageNum;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof PageKey))
+                return false;
+            PageKey other = (PageKey)o;
+            return pageNum == other.pageNum &&
+                fileName.equals(other.fileName);
+        }
+
+        public int hashCode()
+        {
+            return 31 * fileName.hashCode() + pageNum;
+        }
+    }
+
     private Page[] bufferPool;
     private FrameDescriptor[] frameTable;
     int clockPointer;
-    private HashMap<Integer, Integer> map;
+    private HashMap<PageKey, Integer> map;
+    private PageCache cache;
+
+    // Counts writes to and frees of pages in database files, so that
+    // pages read outside the monitor can be checked for being stale.
+    private long numFileChanges;
+    private Thread saveThread;
+
+    // Frames in use: the first numFrames of the arrays. While the pool
+    // shrinks, the frames past them still hold pages until unpinned.
+    private int numFrames;
+    private boolean resizing;
 
     /**
      * Creates a buffer manager with the specified size.
      * @param poolSize the number of pages that the buffer pool can hold.
      */
     public BufferManager(int poolSize)
+    {
+    	this(poolSize, null);
+    }
+
+    /**
+     * Creates a buffer manager with the specified size, backed by a
+     * second tier of page cache.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param cache where to keep pages evicted from the pool, or null
+     * to read them from their database files again.
+     */
+    public BufferManager(int poolSize, PageCache cache)
     {
     	bufferPool = new Page[poolSize];
     	frameTable = new FrameDescriptor[poolSize];
     	clockPointer = 0;
-    	map = new HashMap<Integer, Integer>();
+    	map = new HashMap<PageKey, Integer>();
+    	this.cache = cache;
+    	numFrames = poolSize;
+    }
+
+    /**
+     * Returns the second tier of page cache.
+     * @return the cache, or null if there is none.
+     */
+    public PageCache getCache()
+    {
+    	return cache;
     }
 
     /**
      * Returns the pool size.
      * @return the pool size.
      */
-    public int poolSize()
+    public synchronized int poolSize()
     {
-    	return bufferPool.length;
+    	return numFrames;
+    }
+
+    /**
+     * Grows or shrinks the buffer pool. Frames added are free to use
+     * at once. No new page is put in a frame being taken away; the
+     * pages there are written back if dirty and dropped, and when some
+     * are pinned this waits, without holding the buffer manager, until
+     * they are unpinned. Resizes happen one at a time.
+     * @param newSize the number of pages that the buffer pool can hold.
+     * @throws BadPoolSizeException if newSize is not positive.
+     * @throws InterruptedException if interrupted while waiting; the
+     * pool then keeps its old frames, but may have fewer pages in them.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void resize(int newSize)
+        throws IOException, InterruptedException
+    {
+    	if (newSize <= 0)
+    		throw new BadPoolSizeException();
+    	while (resizing)
+    		wait();
+    	int oldSize = numFrames;
+    	if (newSize >= oldSize) {
+    		bufferPool = Arrays.copyOf(bufferPool, newSize);
+    		frameTable = Arrays.copyOf(frameTable, newSize);
+    		numFrames = newSize;
+    		return;
+    	}
+
+    	resizing = true;
+    	numFrames = newSize;
+    	clockPointer = clockPointer % newSize;
+    	try {
+    		while (true) {
+    			boolean pinned = false;
+    			for (int i = newSize; i < oldSize; i++) {
+    				if (frameTable[i] == null || frameTable[i].fileName == null)
+    					continue;
+    				if (frameTable[i].pinCount > 0)
+    					pinned = true;
+    				else
+    					evict(i);
+    			}
+    			if (!pinned)
+    				break;
+    			// unpinPage wakes this up
+    			wait();
+    		}
+    		bufferPool = Arrays.copyOf(bufferPool, newSize);
+    		frameTable = Arrays.copyOf(frameTable, newSize);
+    	}
+    	catch (InterruptedException e) {
+    		numFrames = oldSize;
+    		throw e;
+    	}
+    	finally {
+    		resizing = false;
+    		notifyAll();
+    	}
     }
 
     /**
@@ -79,13 +244,125 @@ public class BufferManager
      * pool is full, null is returned.
      * @throws IOException passed through from underlying file system.
      */
-    public Page pinPage(int pinPageId, String fileName, boolean emptyPage)
+    public synchronized Page pinPage(int pinPageId, String fileName,
+                                     boolean emptyPage)
+        throws IOException
+    {
+    	// wait for a page pinPageAsync is reading
+    	PageKey key = new PageKey(fileName, pinPageId);
+    	while (map.get(key) != null &&
+    	       frameTable[map.get(key)].loading != null) {
+    		try {
+    			wait();
+    		}
+    		catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new InterruptedIOException();
+    		}
+    	}
+    	return pinFrame(pinPageId, fileName, emptyPage, true);
+    }
+
+    /**
+     * Pins a page like pinPage, but without waiting for it to be read.
+     * If the page is in the buffer pool, the future returned is already
+     * complete. If not, a frame is found for it and pinned at once, and
+     * the page is read into it by a reader thread, without holding the
+     * buffer manager; the future completes when it has been read. Pins
+     * of a page still being read share the read, and its future. If the
+     * read fails, the future completes exceptionally and the page is
+     * not pinned. A page may not be unpinned before its future
+     * completes.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @return a future for the page in the buffer pool. If the buffer
+     * pool is full, null is returned.
+     * @throws IOException passed through from underlying file system,
+     * when writing back the page in the frame taken.
+     */
+    public CompletableFuture<Page> pinPageAsync(int pinPageId,
+                                                String fileName)
+        throws IOException
+    {
+    	PageKey key = new PageKey(fileName, pinPageId);
+    	Page page;
+    	CompletableFuture<Page> load;
+    	synchronized (this) {
+    		Integer frame = map.get(key);
+    		if (frame != null && frameTable[frame].loading != null) {
+    			frameTable[frame].pinCount++;
+    			frameTable[frame].reference = true;
+    			return frameTable[frame].loading;
+    		}
+    		page = pinFrame(pinPageId, fileName, false, false);
+    		if (page == null)
+    			return null;
+    		load = frameTable[map.get(key)].loading;
+    		if (load == null)
+    			return CompletableFuture.completedFuture(page);
+    	}
+    	READERS.execute(() -> finishLoad(key, page, load));
+    	return load;
+    }
+
+    // Reads a page for pinPageAsync into the frame pinned for it, then
+    // lets everyone waiting for it have it.
+    private void finishLoad(PageKey key, Page page,
+                            CompletableFuture<Page> load)
+    {
+    	Exception failure = null;
+    	try {
+    		readPage(key.pageNum, key.fileName, page);
+    	}
+    	catch (IOException | RuntimeException e) {
+    		failure = e;
+    	}
+    	synchronized (this) {
+    		// the frame may have moved, but not to another page, as it
+    		// cannot be unpinned until now; should it be gone all the
+    		// same, the waiters must still hear of the read
+    		Integer frame = map.get(key);
+    		if (frame != null && frameTable[frame].loading == load) {
+    			FrameDescriptor f = frameTable[frame];
+    			f.loading = null;
+    			if (failure != null) {
+    				map.remove(key);
+    				f.pageNum = INVALID_PAGE;
+    				f.fileName = null;
+    				f.pinCount = 0;
+    			}
+    		}
+    		notifyAll();
+    	}
+    	if (failure != null)
+    		load.completeExceptionally(failure);
+    	else
+    		load.complete(page);
+    }
+
+    // Finds the frame for a page and pins it, as pinPage does. If read
+    // is false, a page missing from the pool is not read: its frame is
+    // marked as loading, and the caller must read it.
+    private synchronized Page pinFrame(int pinPageId, String fileName,
+                                       boolean emptyPage, boolean read)
         throws IOException
-    {    	
+    {
+    	PageKey key = new PageKey(fileName, pinPageId);
+    	// An unpinned page in a frame being taken away by resize is
+    	// evicted, written back if dirty, and then read back below like
+    	// any missing page into a frame the pool keeps, so resize need
+    	// not wait on it
+    	Integer frame = map.get(key);
+    	if (frame != null && frame >= numFrames &&
+    	    frameTable[frame].pinCount == 0) {
+    		evict(frame);
+    	}
     	// If page exists in bufferpool, return a pointer and pin it
-    	if (map.get(pinPageId) != null){
-    		int i = map.get(pinPageId);
+    	if (map.get(key) != null){
+    		int i = map.get(key);
     		frameTable[i].pinCount++;
+    		frameTable[i].reference = true;
     		return bufferPool[i];
 		}		
 		// If the page does not exists in the bufferpool
@@ -109,14 +386,20 @@ public class BufferManager
 				// if the page to be added is empty
 				if (emptyPage) {
 					bufferPool[index] = new Page();
+					forgetCached(pinPageId, fileName);
 				}
 				// if the page to be added is not empty
-				else {							
+				else if (read) {							
 					bufferPool[index] = new Page();
 					// copy data from disk to the buffer pool
-					new DBFile(fileName).readPage(pinPageId, bufferPool[index]);
+					readPage(pinPageId, fileName, bufferPool[index]);
 				}
-				map.put(pinPageId, index);
+				// if the caller reads the page
+				else {
+					bufferPool[index] = new Page();
+					temp.loading = new CompletableFuture<Page>();
+				}
+				map.put(key, index);
 				return bufferPool[index];
 			}
 			// if we get here, the bufferpool is full as at least one item is not null
@@ -129,29 +412,35 @@ public class BufferManager
     			}
     			// if the current page is not pinned and the reference bit is not set, replace page
     			else {
-					// if the page is dirty, flush it first
-    				if (frameTable[index].dirty){
-    					flushPage(frameTable[index].pageNum, frameTable[index].fileName);
-    					map.remove(frameTable[index].pageNum);
+    				// a freed frame is no longer in the page table;
+    				// a dirty page is written back first
+    				if (frameTable[index].fileName != null) {
+    					evict(index);
     				}
     				// update the frame descriptor in the frame table
     				FrameDescriptor temp = frameTable[index];
     				temp.pageNum = pinPageId;
 					temp.pinCount = 1;
 					temp.fileName = fileName;
+					temp.dirty = false;
 					temp.reference = true;
 					frameTable[index] = temp;
 					// if the page to be added is empty
 					if (emptyPage) {
 						bufferPool[index] = new Page();
+						forgetCached(pinPageId, fileName);
 					}
 					// if the page to be added is not empty
-					else {
+					else if (read) {
 						// read the page contents in the database and copies them to the buffer pool
-						new DBFile(fileName).readPage(pinPageId, bufferPool[index]);
+						readPage(pinPageId, fileName, bufferPool[index]);
+					}
+					// if the caller reads the page
+					else {
+						temp.loading = new CompletableFuture<Page>();
 					}
 					clockPointer = (i + 1) % poolSize();
-					map.put(pinPageId, index);
+					map.put(key, index);
 					return bufferPool[index];
     			}
     		}
@@ -169,19 +458,31 @@ public class BufferManager
      * to be unpinned
      * @param dirty if false, then the page does not actually need to
      * be written back to disk.
-     * @throws PageNotPinnedException if the page is not pinned, or if
-     * the page id is invalid in some other way.
+     * @throws PageNotPinnedException if the page is not pinned, or is
+     * still being read for pinPageAsync, or if the page id is invalid in
+     * some other way.
      */
-    public void unpinPage(int unpinPageId, String fileName, boolean dirty)
+    public synchronized void unpinPage(int unpinPageId, String fileName,
+                                       boolean dirty)
     // The list of pinned and unpinned pages is recorded in our hash map, such 
     // that we don't need to read from the underlying file system. Therefore, 
     // we don't throw an IOException here. 
     {
-    	if (map.get(unpinPageId) != null){
-    		int i = map.get(unpinPageId);
+    	PageKey key = new PageKey(fileName, unpinPageId);
+    	if (map.get(key) != null){
+    		int i = map.get(key);
+    		// a frame left unpinned while it is read into could be
+    		// given to another page under the reader
+    		if (frameTable[i].loading != null) {
+    			throw new PageNotPinnedException();
+    		}
     		if (frameTable[i].pinCount > 0) {
     			frameTable[i].pinCount--;
-    			frameTable[i].dirty = dirty;
+    			// a clean unpin must not hide an earlier dirty one
+    			frameTable[i].dirty = frameTable[i].dirty || dirty;
+    			// a shrinking pool may be waiting for this frame
+    			if (resizing && frameTable[i].pinCount == 0)
+    				notifyAll();
     			return;
     		}
     		else {
@@ -206,11 +507,12 @@ public class BufferManager
      * @throws DBFile.FileFullException if there are not enough free pages.
      * @throws IOException passed through from underlying file system.
      */
-    public Pair<Integer,Page> newPage(int numPages, String fileName)
+    public synchronized Pair<Integer,Page> newPage(int numPages,
+                                                   String fileName)
         throws IOException
     {
     	// find a page in page[] to write to. Throws IOException. 
-    	DBFile db = new DBFile(fileName);
+    	DBFile db = DBFile.open(fileName);
     	
     	// throws FileFullException
     	int index = db.allocatePages(numPages);
@@ -228,16 +530,29 @@ public class BufferManager
      * @throws PagePinnedException if the page is pinned
      * @throws IOException passed through from underlying file system.
      */
-    public void freePage(int pageId, String fileName) throws IOException
+    public synchronized void freePage(int pageId, String fileName)
+        throws IOException
 	{
-    	if (map.get(pageId) == null) {
+    	PageKey key = new PageKey(fileName, pageId);
+    	if (map.get(key) == null) {
+    		// not resident, so nothing can be pinning it
+    		DBFile.open(fileName).deallocatePages(pageId, 1);
+    		forgetCached(pageId, fileName);
+    		numFileChanges++;
     		return;
     	}
-    	int index = map.get(pageId);
+    	int index = map.get(key);
     	
     	if (frameTable[index].pinCount == 0){
     		// throws IOException
-    		new DBFile(fileName).deallocatePages(frameTable[index].pageNum, 1);
+    		DBFile.open(fileName).deallocatePages(frameTable[index].pageNum, 1);
+    		// forget the frame so a stale copy is never served again
+    		map.remove(key);
+    		forgetCached(pageId, fileName);
+    		numFileChanges++;
+    		frameTable[index].pageNum = INVALID_PAGE;
+    		frameTable[index].fileName = null;
+    		frameTable[index].dirty = false;
     	}
     	else {
     		throw new PagePinnedException();
@@ -256,13 +571,20 @@ public class BufferManager
      * be flushed.
      * @throws IOException passed through from underlying file system.
      */
-    public void flushPage(int pageId, String fileName) throws IOException
+    public synchronized void flushPage(int pageId, String fileName)
+        throws IOException
     {
     	Page toWrite = null;
-    	if (map.get(pageId) != null){
-    		int i = map.get(pageId);
+    	PageKey key = new PageKey(fileName, pageId);
+    	if (map.get(key) != null){
+    		int i = map.get(key);
+    		if (!frameTable[i].dirty)
+    			return;
     		toWrite = bufferPool[i];
-    		new DBFile(fileName).writePage(pageId, toWrite); //throws IOException
+    		DBFile.open(fileName).writePage(pageId, toWrite); //throws IOException
+    		frameTable[i].dirty = false;
+    		forgetCached(pageId, fileName);
+    		numFileChanges++;
     	}
     }
 
@@ -273,13 +595,428 @@ public class BufferManager
      * database has been erased.
      * @throws IOException passed through from underlying file system.
      */
-    public void flushAllPages() throws IOException
+    public synchronized void flushAllPages() throws IOException
     {
     	for (FrameDescriptor f: frameTable){
+    		if (f == null || f.fileName == null)
+    			continue;
     		flushPage(f.pageNum, f.fileName); //flushPage throws IOException
     	}
     }
         
+    /**
+     * Returns the number of frames that nobody has pinned, which is
+     * how many pages an operator can hold at once without taking
+     * frames away from others.
+     * @return the number of unpinned frames, including unused ones.
+     */
+    public synchronized int getNumUnpinned()
+    {
+    	int count = 0;
+    	for (int i = 0; i < numFrames; i++){
+    		if (frameTable[i] == null || frameTable[i].pinCount == 0)
+    			count++;
+    	}
+    	return count;
+    }
+
+    /**
+     * Saves the list of pages in the buffer pool, with their reference
+     * bits, so that they can be loaded again with loadResidentPages.
+     * The list is written to a new file that then replaces the old
+     * one, so a crash while saving leaves the previous list in place.
+     * @param saveFileName the file to save the list in.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void saveResidentPages(String saveFileName) throws IOException
+    {
+    	saveResidentPages(saveFileName, new BufferManager[] { this });
+    }
+
+    // Saves the pages in several buffer pools in one list.
+    static void saveResidentPages(String saveFileName, BufferManager[] pools)
+        throws IOException
+    {
+    	ArrayList<FrameDescriptor> resident = new ArrayList<FrameDescriptor>();
+    	for (BufferManager pool : pools) {
+    		synchronized (pool) {
+    			for (FrameDescriptor f : pool.frameTable) {
+    				if (f != null && f.fileName != null) {
+    					FrameDescriptor copy = new FrameDescriptor();
+    					copy.fileName = f.fileName;
+    					copy.pageNum = f.pageNum;
+    					copy.reference = f.reference;
+    					resident.add(copy);
+    				}
+    			}
+    		}
+    	}
+    	File temp = new File(saveFileName + ".tmp");
+    	DataOutputStream out = new DataOutputStream(
+    		new BufferedOutputStream(new FileOutputStream(temp)));
+    	try {
+    		out.writeInt(resident.size());
+    		for (FrameDescriptor f : resident) {
+    			out.writeUTF(f.fileName);
+    			out.writeInt(f.pageNum);
+    			out.writeBoolean(f.reference);
+    		}
+    	}
+    	finally {
+    		out.close();
+    	}
+    	if (!temp.renameTo(new File(saveFileName)))
+    		throw new IOException("Cannot replace " + saveFileName);
+    }
+
+    /**
+     * Loads pages saved with saveResidentPages into free frames of the
+     * buffer pool, unpinned and with their saved reference bits. The
+     * pages of each file are read in page order, a run of consecutive
+     * pages at a time, without holding the buffer manager, so it can
+     * be used meanwhile. Pages already in the pool, or no longer
+     * allocated, are skipped, and no page is evicted to make room.
+     * @param saveFileName the file the list was saved in.
+     * @return the number of pages loaded; 0 if there is no saved list.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int loadResidentPages(String saveFileName) throws IOException
+    {
+    	return loadSavedPages(readSavedPages(saveFileName),
+    	                      new BufferManager[] { this });
+    }
+
+    // Reads a list saved with saveResidentPages: the saved pages of
+    // each file, in page order, with their reference bits. The list is
+    // empty if there is no such file.
+    static TreeMap<String, TreeMap<Integer, Boolean>> readSavedPages(
+        String saveFileName)
+        throws IOException
+    {
+    	TreeMap<String, TreeMap<Integer, Boolean>> saved =
+    		new TreeMap<String, TreeMap<Integer, Boolean>>();
+    	if (!new File(saveFileName).exists())
+    		return saved;
+    	DataInputStream in = new DataInputStream(
+    		new BufferedInputStream(new FileInputStream(saveFileName)));
+    	try {
+    		int count = in.readInt();
+    		for (int i = 0; i < count; i++) {
+    			String fileName = in.readUTF();
+    			int pageNum = in.readInt();
+    			boolean reference = in.readBoolean();
+    			saved.computeIfAbsent(fileName,
+    			                      f -> new TreeMap<Integer, Boolean>())
+    			     .put(pageNum, reference);
+    		}
+    	}
+    	finally {
+    		in.close();
+    	}
+    	return saved;
+    }
+
+    // Loads saved pages into several buffer pools, each taking the
+    // pages it holds. Each run of consecutive pages is read once for
+    // all of them, and loading stops once none has a free frame.
+    static int loadSavedPages(TreeMap<String, TreeMap<Integer, Boolean>> saved,
+                              BufferManager[] pools)
+        throws IOException
+    {
+    	int loaded = 0;
+    	for (Map.Entry<String, TreeMap<Integer, Boolean>> file :
+    	         saved.entrySet()) {
+    		String fileName = file.getKey();
+    		ArrayList<Integer> run = new ArrayList<Integer>();
+    		Iterator<Integer> pageNums = file.getValue().keySet().iterator();
+    		while (pageNums.hasNext() || !run.isEmpty()) {
+    			int pageNum = pageNums.hasNext() ? pageNums.next() : -1;
+    			if (!run.isEmpty() &&
+    			    (pageNum != run.get(run.size() - 1) + 1 ||
+    			     run.size() == WARM_UP_RUN)) {
+    				loaded += loadRun(fileName, run, file.getValue(), pools);
+    				boolean room = false;
+    				for (BufferManager pool : pools)
+    					room = room || pool.hasFreeFrame();
+    				if (!room)
+    					return loaded;
+    				run.clear();
+    			}
+    			if (pageNum >= 0)
+    				run.add(pageNum);
+    		}
+    	}
+    	return loaded;
+    }
+
+    /**
+     * Loads saved resident pages on a background thread.
+     * @param saveFileName the file the list was saved in.
+     * @return the thread, which can be joined to wait for loading to
+     * end.
+     * @see #loadResidentPages
+     */
+    public Thread startWarmUp(String saveFileName)
+    {
+    	Thread thread = new Thread(() -> {
+    			try {
+    				loadResidentPages(saveFileName);
+    			}
+    			catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		}, "warm up " + saveFileName);
+    	thread.setDaemon(true);
+    	thread.start();
+    	return thread;
+    }
+
+    /**
+     * Saves the list of resident pages on a background thread,
+     * repeatedly, until stopSaving is called.
+     * @param saveFileName the file to save the list in.
+     * @param periodMillis how long to wait between saves.
+     * @see #saveResidentPages
+     */
+    public synchronized void startSaving(String saveFileName,
+                                         long periodMillis)
+    {
+    	if (saveThread != null)
+    		return;
+    	saveThread = new Thread(() -> {
+    			try {
+    				while (true) {
+    					Thread.sleep(periodMillis);
+    					saveResidentPages(saveFileName);
+    				}
+    			}
+    			catch (InterruptedException e) {
+    			}
+    			catch (IOException e) {
+    				throw new UncheckedIOException(e);
+    			}
+    		}, "save " + saveFileName);
+    	saveThread.setDaemon(true);
+    	saveThread.start();
+    }
+
+    /**
+     * Stops saving the list of resident pages in the background,
+     * waiting for a save under way to end.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void stopSaving() throws InterruptedException
+    {
+    	Thread thread;
+    	synchronized (this) {
+    		thread = saveThread;
+    		saveThread = null;
+    	}
+    	if (thread == null)
+    		return;
+    	thread.interrupt();
+    	thread.join();
+    }
+
+    // Reads a run of consecutive saved pages and puts the ones not in
+    // the pools yet into free frames of the pools that hold them, as
+    // long as there are any. Returns how many were added.
+    private static int loadRun(String fileName, ArrayList<Integer> run,
+                               Map<Integer, Boolean> reference,
+                               BufferManager[] pools)
+        throws IOException
+    {
+    	long[] changes = new long[pools.length];
+    	for (int p = 0; p < pools.length; p++) {
+    		synchronized (pools[p]) {
+    			changes[p] = pools[p].numFileChanges;
+    		}
+    	}
+    	Page[] pages = new Page[run.size()];
+    	boolean[] read = readRun(fileName, run.get(0), pages);
+    	int added = 0;
+    	for (int p = 0; p < pools.length; p++)
+    		added += pools[p].installRun(fileName, run, pages, read,
+    		                             reference, changes[p]);
+    	return added;
+    }
+
+    // Puts the pages of a run read for loadRun that this pool holds into
+    // its free frames. If a page was written or freed here since the
+    // run was read, as the count of such changes shows, it may have
+    // been read before it changed, so the run is read again.
+    private synchronized int installRun(String fileName,
+                                        ArrayList<Integer> run, Page[] pages,
+                                        boolean[] read,
+                                        Map<Integer, Boolean> reference,
+                                        long changes)
+        throws IOException
+    {
+    	if (changes != numFileChanges) {
+    		pages = new Page[run.size()];
+    		read = readRun(fileName, run.get(0), pages);
+    	}
+    	int added = 0;
+    	int frame = 0;
+    	for (int i = 0; i < pages.length; i++) {
+    		PageKey key = new PageKey(fileName, run.get(i));
+    		if (!read[i] || !holds(fileName, run.get(i)) ||
+    		    map.get(key) != null)
+    			continue;
+    		while (frame < poolSize() && frameTable[frame] != null &&
+    		       frameTable[frame].fileName != null)
+    			frame++;
+    		if (frame == poolSize())
+    			break;
+    		if (frameTable[frame] == null)
+    			frameTable[frame] = new FrameDescriptor();
+    		FrameDescriptor f = frameTable[frame];
+    		f.pageNum = run.get(i);
+    		f.pinCount = 0;
+    		f.fileName = fileName;
+    		f.dirty = false;
+    		f.reference = reference.get(run.get(i));
+    		bufferPool[frame] = pages[i];
+    		map.put(key, frame);
+    		added++;
+    	}
+    	return added;
+    }
+
+    // Whether a frame holds no page.
+    private synchronized boolean hasFreeFrame()
+    {
+    	for (int i = 0; i < numFrames; i++)
+    		if (frameTable[i] == null || frameTable[i].fileName == null)
+    			return true;
+    	return false;
+    }
+
+    // Reads a run of pages with one read if it can, and one page at a
+    // time if some are no longer allocated, noting which were read.
+    private static boolean[] readRun(String fileName, int startPageNum,
+                                     Page[] pages)
+        throws IOException
+    {
+    	boolean[] read = new boolean[pages.length];
+    	for (int i = 0; i < pages.length; i++)
+    		pages[i] = new Page();
+    	DBFile db = DBFile.open(fileName);
+    	try {
+    		db.readPages(startPageNum, pages);
+    		Arrays.fill(read, true);
+    	}
+    	catch (RuntimeException e) {
+    		for (int i = 0; i < pages.length; i++) {
+    			try {
+    				db.readPage(startPageNum + i, pages[i]);
+    				read[i] = true;
+    			}
+    			catch (RuntimeException e2) {
+    			}
+    		}
+    	}
+    	return read;
+    }
+
+    // Whether pages of the file with the given number are kept here.
+    // Every page is, unless this is one partition of a larger pool.
+    boolean holds(String fileName, int pageNum)
+    {
+    	return true;
+    }
+
+    // Gives up one frame, for another pool to take: an unpinned one,
+    // preferably empty or not referenced lately, whose page is taken
+    // out first. The last frame is moved into its place; a pinned page
+    // can be moved, as it is the same Page object wherever it is.
+    // Returns false, without waiting, if every frame is pinned or the
+    // pool is being resized. A pool left with no frames pins nothing
+    // until it is given one back.
+    synchronized boolean releaseFrame() throws IOException
+    {
+    	if (resizing)
+    		return false;
+    	int victim = -1;
+    	for (int i = 0; i < numFrames; i++) {
+    		FrameDescriptor f = frameTable[i];
+    		if (f == null || f.fileName == null) {
+    			victim = i;
+    			break;
+    		}
+    		if (f.pinCount == 0 && (victim < 0 || !f.reference))
+    			victim = i;
+    	}
+    	if (victim < 0)
+    		return false;
+    	if (frameTable[victim] != null && frameTable[victim].fileName != null)
+    		evict(victim);
+
+    	int last = numFrames - 1;
+    	if (victim != last) {
+    		frameTable[victim] = frameTable[last];
+    		bufferPool[victim] = bufferPool[last];
+    		FrameDescriptor moved = frameTable[victim];
+    		if (moved != null && moved.fileName != null)
+    			map.put(new PageKey(moved.fileName, moved.pageNum), victim);
+    	}
+    	numFrames = last;
+    	bufferPool = Arrays.copyOf(bufferPool, last);
+    	frameTable = Arrays.copyOf(frameTable, last);
+    	clockPointer = last == 0 ? 0 : clockPointer % last;
+    	return true;
+    }
+
+    // Adds frames to the pool, free to use at once, waiting for a
+    // resize under way to end first. Unlike resize, the size grown from
+    // is read under the same monitor, so frames added by several
+    // threads at once are all kept.
+    synchronized void grow(int moreFrames) throws InterruptedException
+    {
+    	while (resizing)
+    		wait();
+    	int newSize = numFrames + moreFrames;
+    	bufferPool = Arrays.copyOf(bufferPool, newSize);
+    	frameTable = Arrays.copyOf(frameTable, newSize);
+    	numFrames = newSize;
+    }
+
+    // Takes the page out of an unpinned frame, writing it back first
+    // if it is dirty.
+    private void evict(int index) throws IOException
+    {
+    	FrameDescriptor f = frameTable[index];
+    	if (f.dirty) {
+    		flushPage(f.pageNum, f.fileName);
+    	}
+    	map.remove(new PageKey(f.fileName, f.pageNum));
+    	// the page now matches its file, so it can be kept in the
+    	// second tier
+    	if (cache != null && !cache.contains(f.fileName, f.pageNum)) {
+    		cache.write(f.fileName, f.pageNum, bufferPool[index]);
+    	}
+    	f.pageNum = INVALID_PAGE;
+    	f.fileName = null;
+    	f.dirty = false;
+    }
+
+    // Reads a page missing from the pool, from the second tier if it
+    // is there and from its database file if not.
+    private void readPage(int pageId, String fileName, Page page)
+        throws IOException
+    {
+    	if (cache == null || !cache.read(fileName, pageId, page))
+    		DBFile.open(fileName).readPage(pageId, page);
+    }
+
+    // Drops the second tier's copy of a page whose file no longer
+    // matches it.
+    private void forgetCached(int pageId, String fileName)
+    {
+    	if (cache != null)
+    		cache.invalidate(fileName, pageId);
+    }
+
     /**
      * Returns buffer pool location for a particular pageId. This
      * method is just used for testing purposes: it probably doesn't
@@ -289,8 +1026,9 @@ public class BufferManager
      * @return the frame location for the page of interested. Returns
      * -1 if the page is not in the pool.
     */
-    public int findFrame(int pageId, String fileName)
+    public synchronized int findFrame(int pageId, String fileName)
     {
-    	return map.get(pageId);
+    	Integer frame = map.get(new PageKey(fileName, pageId));
+    	return frame == null ? -1 : frame;
     }
 }
@@ -0,0 +1,511 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A database file whose pages are stored compressed, for cold data that
+ * is read far more than it is written. Each page is deflated when it is
+ * written and inflated when it is read, so the file takes less space on
+ * disk and reading a page reads fewer bytes from it.
+ *
+ * Compressed pages vary in size, so the data file holds them in slots
+ * of their own, and a page translation map, kept in a file of its own
+ * next to the space map, gives the offset and length of each page's
+ * slot. Slots are rounded up to SLOT_UNIT bytes, so a page that grows a
+ * little when rewritten still fits where it was; one that outgrows its
+ * slot is moved to a free slot large enough for it, or to the end of
+ * the file. Slots that are outgrown or whose pages are deallocated are
+ * kept in a list of free slots after the entries of the translation
+ * map, merged with free neighbours, and cut off the file when they end
+ * it. Slots are handed out under the database's lock, so pages of one
+ * file written from several threads never share a slot. A page that
+ * was allocated but never written reads as zeros,
+ * as it would from a plain DBFile, and a page that does not get smaller
+ * when compressed is stored as it is.
+ *
+ * The buffer manager opens files through DBFile.open, which finds the
+ * translation map, so a compressed file is used just like a plain one.
+ * @author Yuen Hsi Chang
+ */
+public class CompressedDBFile extends DBFile
+{
+    public static class IncompleteCompressionException
+        extends RuntimeException {};
+
+    /**
+     * Appended to the database name to name its page translation map.
+     */
+    public static final String TRANSLATION_SUFFIX = ".ptm";
+
+    /**
+     * Appended to the database name to name the translation map that
+     * compress writes before it replaces the data file.
+     */
+    public static final String PENDING_TRANSLATION_SUFFIX =
+        TRANSLATION_SUFFIX + ".tmp";
+
+    /**
+     * Slots are a multiple of this many bytes.
+     */
+    public static final int SLOT_UNIT = 64;
+
+    // Layout of a translation map entry, in bytes: the offset of the
+    // page's slot, then the length of the page in it, 0 if the page has
+    // never been written.
+    private static final int ENTRY_OFFSET = 0;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int ENTRY_SIZE = 12;
+
+    private String dataFileName;
+    private String translationFileName;
+
+    /**
+     * Creates an empty compressed database with the specified number
+     * of pages. The number of pages in the database can never be
+     * increased.
+     * @param name name to be given to database.
+     * @param numPages maximum number of pages in database.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public CompressedDBFile(String name, int numPages) throws IOException
+    {
+        super(name, numPages);
+        this.dataFileName = name;
+        this.translationFileName = name + TRANSLATION_SUFFIX;
+
+        // The plain file laid out by DBFile starts out empty here, and
+        // grows a slot at a time.
+        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"rw");
+        dataFile.setLength(0);
+        dataFile.close();
+        RandomAccessFile mapFile =
+            new RandomAccessFile(translationFileName,"rw");
+        mapFile.setLength(0);
+        mapFile.write(new byte[getNumPages() * ENTRY_SIZE]);
+        mapFile.close();
+    }
+
+    /**
+     * Opens the compressed database with the given name.
+     * @param name name of the database.
+     * @throws IOException passed through from underlying file system.
+     */
+    public CompressedDBFile(String name) throws IOException
+    {
+        super(name);
+        this.dataFileName = name;
+        this.translationFileName = name + TRANSLATION_SUFFIX;
+    }
+
+    /**
+     * Whether the database with the given name is compressed.
+     * @param name name of the database.
+     * @return true if it has a page translation map.
+     * @throws IncompleteCompressionException if compress stopped part
+     * way, so the data file may hold compressed pages with no map to
+     * find them by.
+     */
+    public static boolean isCompressed(String name)
+    {
+        if (new File(name + PENDING_TRANSLATION_SUFFIX).exists())
+            throw new IncompleteCompressionException();
+        return new File(name + TRANSLATION_SUFFIX).exists();
+    }
+
+    /**
+     * Compresses a plain database in place. None of its pages may be in
+     * a buffer pool while this runs, as pages held there would no longer
+     * match the file.
+     *
+     * The compressed pages and their translation map are both written
+     * to files of their own first. The data file is then replaced, and
+     * the map renamed into place last, so that until the database is
+     * whole the pending map is left behind and isCompressed refuses it.
+     * @param name name of the database.
+     * @throws IOException passed through from underlying file system.
+     */
+    public static void compress(String name) throws IOException
+    {
+        if (isCompressed(name))
+            return;
+        int numPages = new DBFile(name).getNumPages();
+        RandomAccessFile spaceMap = new RandomAccessFile(name + ".map","r");
+        byte[] allocated = new byte[numPages];
+        spaceMap.readFully(allocated);
+        spaceMap.close();
+
+        String tempName = name + ".tmp";
+        String pendingName = name + PENDING_TRANSLATION_SUFFIX;
+        byte[] entries = new byte[numPages * ENTRY_SIZE];
+        Page page = new Page();
+        byte[] buffer = new byte[Page.PAGESIZE];
+        try
+        {
+            RandomAccessFile plain = new RandomAccessFile(name,"r");
+            RandomAccessFile packed = new RandomAccessFile(tempName,"rw");
+            try
+            {
+                packed.setLength(0);
+                for (int i = 0; i < numPages; i++)
+                {
+                    if (allocated[i] == 0)
+                        continue;
+                    plain.seek((long)i * Page.PAGESIZE);
+                    plain.readFully(page.data);
+                    int length = deflate(page, buffer);
+                    long offset = packed.length();
+                    packed.seek(offset);
+                    packed.write(buffer, 0, length);
+                    packed.setLength(offset + slotSize(length));
+                    putLong(entries, i * ENTRY_SIZE + ENTRY_OFFSET, offset,
+                            8);
+                    putLong(entries, i * ENTRY_SIZE + ENTRY_LENGTH, length,
+                            4);
+                }
+            }
+            finally
+            {
+                plain.close();
+                packed.close();
+            }
+            RandomAccessFile mapFile = new RandomAccessFile(pendingName,"rw");
+            try
+            {
+                mapFile.setLength(0);
+                mapFile.write(entries);
+            }
+            finally
+            {
+                mapFile.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // The plain file is still whole, so drop what was written.
+            new File(tempName).delete();
+            new File(pendingName).delete();
+            throw e;
+        }
+
+        Files.move(Paths.get(tempName), Paths.get(name),
+                   StandardCopyOption.REPLACE_EXISTING);
+        Files.move(Paths.get(pendingName),
+                   Paths.get(name + TRANSLATION_SUFFIX),
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns how many bytes the compressed pages take on disk,
+     * including slack at the end of slots and free slots.
+     * @return the size of the data file.
+     */
+    public long getStoredSize()
+    {
+        return new File(dataFileName).length();
+    }
+
+    /**
+     * Deallocates a set of pages, forgetting their slots.
+     * @see DBFile#deallocatePages
+     */
+    public void deallocatePages(int startPageNum, int runSize)
+        throws IOException
+    {
+        synchronized (lockFor(dataFileName))
+        {
+            super.deallocatePages(startPageNum, runSize);
+            ArrayList<long[]> free = readFreeSlots();
+            RandomAccessFile dataFile =
+                new RandomAccessFile(dataFileName,"rw");
+            try
+            {
+                for (int i = 0; i < runSize; i++)
+                {
+                    byte[] entry = readEntry(startPageNum + i);
+                    int length = (int)getLong(entry, ENTRY_LENGTH, 4);
+                    if (length > 0)
+                        freeSlot(free, getLong(entry, ENTRY_OFFSET, 8),
+                                 slotSize(length), dataFile);
+                }
+            }
+            finally
+            {
+                dataFile.close();
+            }
+            RandomAccessFile mapFile =
+                new RandomAccessFile(translationFileName,"rw");
+            mapFile.seek((long)startPageNum * ENTRY_SIZE);
+            mapFile.write(new byte[runSize * ENTRY_SIZE]);
+            mapFile.close();
+            writeFreeSlots(free);
+        }
+    }
+
+    /**
+     * Reads and inflates the specified page.
+     * @see DBFile#readPage
+     */
+    public void readPage(int pageNum, Page page) throws IOException
+    {
+        checkAllocated(pageNum);
+        byte[] entry = readEntry(pageNum);
+        int length = (int)getLong(entry, ENTRY_LENGTH, 4);
+        if (length == 0)
+        {
+            Arrays.fill(page.data, (byte)0);
+            return;
+        }
+
+        byte[] buffer = new byte[length];
+        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"r");
+        dataFile.seek(getLong(entry, ENTRY_OFFSET, 8));
+        dataFile.readFully(buffer);
+        dataFile.close();
+        if (length == Page.PAGESIZE)
+        {
+            System.arraycopy(buffer, 0, page.data, 0, length);
+            return;
+        }
+
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(buffer);
+            if (inflater.inflate(page.data) != Page.PAGESIZE)
+                throw new IOException("Corrupt compressed page " + pageNum);
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Corrupt compressed page " + pageNum, e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads and inflates a run of pages one at a time, since they are
+     * not stored next to each other.
+     * @see DBFile#readPages
+     */
+    public void readPages(int startPageNum, Page[] pages) throws IOException
+    {
+        for (int i = 0; i < pages.length; i++)
+            checkAllocated(startPageNum + i);
+        for (int i = 0; i < pages.length; i++)
+            readPage(startPageNum + i, pages[i]);
+    }
+
+    /**
+     * Deflates and writes the specified page, in its old slot if it
+     * still fits there.
+     * @see DBFile#writePage
+     */
+    public void writePage(int pageNum, Page page) throws IOException
+    {
+        checkAllocated(pageNum);
+        byte[] buffer = new byte[Page.PAGESIZE];
+        int length = deflate(page, buffer);
+
+        synchronized (lockFor(dataFileName))
+        {
+            byte[] entry = readEntry(pageNum);
+            long offset = getLong(entry, ENTRY_OFFSET, 8);
+            int oldLength = (int)getLong(entry, ENTRY_LENGTH, 4);
+            RandomAccessFile dataFile =
+                new RandomAccessFile(dataFileName,"rw");
+            ArrayList<long[]> free = null;
+            try
+            {
+                if (oldLength == 0 || slotSize(length) > slotSize(oldLength))
+                {
+                    free = readFreeSlots();
+                    if (oldLength > 0)
+                        freeSlot(free, offset, slotSize(oldLength),
+                                 dataFile);
+                    offset = takeSlot(free, slotSize(length), dataFile);
+                }
+                dataFile.seek(offset);
+                dataFile.write(buffer, 0, length);
+            }
+            finally
+            {
+                dataFile.close();
+            }
+
+            putLong(entry, ENTRY_OFFSET, offset, 8);
+            putLong(entry, ENTRY_LENGTH, length, 4);
+            RandomAccessFile mapFile =
+                new RandomAccessFile(translationFileName,"rw");
+            mapFile.seek((long)pageNum * ENTRY_SIZE);
+            mapFile.write(entry);
+            mapFile.close();
+            if (free != null)
+                writeFreeSlots(free);
+        }
+    }
+
+    /**
+     * Returns how many bytes of the data file are in free slots.
+     * @return the size of the free slots.
+     * @throws IOException passed through from underlying file system.
+     */
+    public long getFreeSize() throws IOException
+    {
+        synchronized (lockFor(dataFileName))
+        {
+            long size = 0;
+            for (long[] slot : readFreeSlots())
+                size += slot[1];
+            return size;
+        }
+    }
+
+    // Reads the free slots, each an offset and a size, in offset order.
+    private ArrayList<long[]> readFreeSlots() throws IOException
+    {
+        ArrayList<long[]> free = new ArrayList<long[]>();
+        RandomAccessFile mapFile =
+            new RandomAccessFile(translationFileName,"r");
+        long start = (long)getNumPages() * ENTRY_SIZE;
+        byte[] entries = new byte[(int)(mapFile.length() - start)];
+        mapFile.seek(start);
+        mapFile.readFully(entries);
+        mapFile.close();
+        for (int i = 0; i < entries.length; i += ENTRY_SIZE)
+            free.add(new long[] { getLong(entries, i + ENTRY_OFFSET, 8),
+                                  getLong(entries, i + ENTRY_LENGTH, 4) });
+        return free;
+    }
+
+    private void writeFreeSlots(ArrayList<long[]> free) throws IOException
+    {
+        byte[] entries = new byte[free.size() * ENTRY_SIZE];
+        for (int i = 0; i < free.size(); i++)
+        {
+            long[] slot = free.get(i);
+            putLong(entries, i * ENTRY_SIZE + ENTRY_OFFSET, slot[0], 8);
+            putLong(entries, i * ENTRY_SIZE + ENTRY_LENGTH, slot[1], 4);
+        }
+        RandomAccessFile mapFile =
+            new RandomAccessFile(translationFileName,"rw");
+        long start = (long)getNumPages() * ENTRY_SIZE;
+        mapFile.setLength(start + entries.length);
+        mapFile.seek(start);
+        mapFile.write(entries);
+        mapFile.close();
+    }
+
+    // Adds a slot to the free list, merged with free slots next to it;
+    // a free slot at the end of the data file is cut off it instead.
+    private static void freeSlot(ArrayList<long[]> free, long offset,
+                                 long size, RandomAccessFile dataFile)
+        throws IOException
+    {
+        int i = 0;
+        while (i < free.size() && free.get(i)[0] < offset)
+            i++;
+        free.add(i, new long[] { offset, size });
+        if (i + 1 < free.size() && offset + size == free.get(i + 1)[0])
+        {
+            free.get(i)[1] += free.get(i + 1)[1];
+            free.remove(i + 1);
+        }
+        if (i > 0 && free.get(i - 1)[0] + free.get(i - 1)[1] == offset)
+        {
+            free.get(i - 1)[1] += free.get(i)[1];
+            free.remove(i);
+            i--;
+        }
+        long[] slot = free.get(i);
+        if (slot[0] + slot[1] == dataFile.length())
+        {
+            dataFile.setLength(slot[0]);
+            free.remove(i);
+        }
+    }
+
+    // Takes the smallest free slot large enough for size bytes, leaving
+    // the rest of it free, or else a new slot at the end of the data
+    // file, and returns its offset.
+    private static long takeSlot(ArrayList<long[]> free, int size,
+                                 RandomAccessFile dataFile)
+        throws IOException
+    {
+        int best = -1;
+        for (int i = 0; i < free.size(); i++)
+            if (free.get(i)[1] >= size &&
+                (best < 0 || free.get(i)[1] < free.get(best)[1]))
+                best = i;
+        if (best < 0)
+        {
+            long offset = dataFile.length();
+            dataFile.setLength(offset + size);
+            return offset;
+        }
+        long[] slot = free.get(best);
+        long offset = slot[0];
+        slot[0] += size;
+        slot[1] -= size;
+        if (slot[1] == 0)
+            free.remove(best);
+        return offset;
+    }
+
+    // Deflates a page into a buffer of PAGESIZE bytes and returns the
+    // length, which is PAGESIZE if the page was copied as it is.
+    private static int deflate(Page page, byte[] buffer)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(page.data);
+            deflater.finish();
+            int length = deflater.deflate(buffer);
+            if (deflater.finished() && length < Page.PAGESIZE)
+                return length;
+        }
+        finally
+        {
+            deflater.end();
+        }
+        System.arraycopy(page.data, 0, buffer, 0, Page.PAGESIZE);
+        return Page.PAGESIZE;
+    }
+
+    private static int slotSize(int length)
+    {
+        return (length + SLOT_UNIT - 1) / SLOT_UNIT * SLOT_UNIT;
+    }
+
+    private byte[] readEntry(int pageNum) throws IOException
+    {
+        byte[] entry = new byte[ENTRY_SIZE];
+        RandomAccessFile mapFile =
+            new RandomAccessFile(translationFileName,"r");
+        mapFile.seek((long)pageNum * ENTRY_SIZE);
+        mapFile.readFully(entry);
+        mapFile.close();
+        return entry;
+    }
+
+    private static long getLong(byte[] data, int offset, int size)
+    {
+        long value = 0;
+        for (int i = 0; i < size; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+        return value;
+    }
+
+    private static void putLong(byte[] data, int offset, long value,
+                                int size)
+    {
+        for (int i = size - 1; i >= 0; i--)
+        {
+            data[offset + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.concurrent.*;
 
 /**
  * Low level database file. This abstraction allows the user to treat
@@ -19,6 +20,12 @@ public class DBFile
     private String dataFileName;
     private String mapFileName;
     private int numPages;
+
+    // One lock per database, shared by every DBFile opened on it, so
+    // that changes to its space map never interleave, whichever buffer
+    // manager or thread makes them.
+    private static final ConcurrentHashMap<String,Object> locks =
+        new ConcurrentHashMap<String,Object>();
     
     /**
      * Creates a database with the specified number of pages. The
@@ -78,6 +85,22 @@ public class DBFile
             numPages = 0;
     }
 
+    /**
+     * Opens the database with the given name, as a CompressedDBFile if
+     * it has been compressed.
+     * @param name name of the database.
+     * @return the database.
+     * @throws IOException passed through from underlying file system.
+     * @throws CompressedDBFile.IncompleteCompressionException if the
+     * database was left part way through being compressed.
+     */
+    public static DBFile open(String name) throws IOException
+    {
+        if (CompressedDBFile.isCompressed(name))
+            return new CompressedDBFile(name);
+        return new DBFile(name);
+    }
+
     /**
      * Erases the database entirely from the filesystem. Dangerous to
      * do if still have a DBFile object that refers to this file. 
@@ -90,11 +113,51 @@ public class DBFile
         success = (new File(name)).delete();
         if (success)
             success = (new File(name + ".map")).delete();
+        (new File(name + CompressedDBFile.TRANSLATION_SUFFIX)).delete();
+        (new File(name +
+                  CompressedDBFile.PENDING_TRANSLATION_SUFFIX)).delete();
         return success;
     }
 
     /**
-     * Allocates a set of pages.
+     * Returns the number of pages the database can hold.
+     * @return the number of pages.
+     */
+    public int getNumPages()
+    {
+        return numPages;
+    }
+
+    // Returns the lock that guards the space map of the database with
+    // the given name.
+    static Object lockFor(String name)
+    {
+        return locks.computeIfAbsent(new File(name).getAbsolutePath(),
+                                     n -> new Object());
+    }
+
+    // Checks that a page can be read or written, as readPage and
+    // writePage do.
+    void checkAllocated(int pageNum) throws IOException
+    {
+        if (numPages == 0)
+            throw new EmptyFileException();
+
+        if (pageNum < 0 || pageNum > numPages-1)
+            throw new BadPageNumberException();
+
+        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
+        mapFile.seek(pageNum);
+        byte[] map = new byte[1];
+        mapFile.readFully(map);
+        mapFile.close();
+        if (map[0] == 0)
+            throw new PageNotAllocatedException();
+    }
+
+    /**
+     * Allocates a set of pages. Allocations and deallocations in the
+     * same database are done one at a time.
      * @param runSize number of pages to be allocated in the run.
      * @return page number of the first page of the allocated run.
      * @throws NonPositiveRunSizeException if the run size is less
@@ -107,46 +170,49 @@ public class DBFile
         if (runSize <= 0)
             throw new NonPositiveRunSizeException();
 
-        // Load the space map into memory to look for runs of the
-        // necessary size. Technically, should do this a page at a
-        // time (since might not have enough memory). Going with a
-        // simpler approach here for expediency.
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(0);
-        byte[] map = new byte[numPages];
-        mapFile.readFully(map);
-
-        // Loop over run starting positions
-        for (int i=0; i < mapFile.length() - (runSize-1); i++)
+        synchronized (lockFor(dataFileName))
         {
-            // Loop over entire possible run: give up if any spot in
-            // the possible run already has a 1 (page is taken).
-            int currentRunSize = 0;
-            for (int j=i; j < i + runSize; j++)
-            {
-                if (map[j] == 1)
-                    break;
-                else
-                    currentRunSize++;
-            }
+            // Load the space map into memory to look for runs of the
+            // necessary size. Technically, should do this a page at a
+            // time (since might not have enough memory). Going with a
+            // simpler approach here for expediency.
+            RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
+            mapFile.seek(0);
+            byte[] map = new byte[numPages];
+            mapFile.readFully(map);
 
-            // Found a run.
-            if (currentRunSize == runSize)
+            // Loop over run starting positions
+            for (int i=0; i < mapFile.length() - (runSize-1); i++)
             {
-                // Indicate pages are now used
-                byte[] mapUpdate = new byte[runSize];
-                for (int j=0; j < runSize; j++)
-                    mapUpdate[j] = 1;
-                mapFile.seek(i);
-                mapFile.write(mapUpdate);
-                mapFile.close();
-                return i;
+                // Loop over entire possible run: give up if any spot in
+                // the possible run already has a 1 (page is taken).
+                int currentRunSize = 0;
+                for (int j=i; j < i + runSize; j++)
+                {
+                    if (map[j] == 1)
+                        break;
+                    else
+                        currentRunSize++;
+                }
+
+                // Found a run.
+                if (currentRunSize == runSize)
+                {
+                    // Indicate pages are now used
+                    byte[] mapUpdate = new byte[runSize];
+                    for (int j=0; j < runSize; j++)
+                        mapUpdate[j] = 1;
+                    mapFile.seek(i);
+                    mapFile.write(mapUpdate);
+                    mapFile.close();
+                    return i;
+                }
             }
-        }
 
-        // If made it to here, then no run was found.
-        mapFile.close();
-        throw new FileFullException();
+            // If made it to here, then no run was found.
+            mapFile.close();
+            throw new FileFullException();
+        }
     }
 
     /**
@@ -174,10 +240,13 @@ public class DBFile
         byte[] mapUpdate = new byte[runSize];
         for (int i=0; i < runSize; i++)
             mapUpdate[i] = 0;
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(startPageNum);
-        mapFile.write(mapUpdate);
-        mapFile.close();
+        synchronized (lockFor(dataFileName))
+        {
+            RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
+            mapFile.seek(startPageNum);
+            mapFile.write(mapUpdate);
+            mapFile.close();
+        }
     }
 
     /**
@@ -210,6 +279,44 @@ public class DBFile
         dataFile.close();
     }
 
+    /**
+     * Reads a run of consecutive pages from disk with a single read,
+     * into the page objects provided.
+     * @param startPageNum the page number of the first page of the run.
+     * @param pages already allocated Page objects, one for each page of
+     * the run.
+     * @throws BadPageNumberException if the run is not in the file.
+     * @throws IOException passed through from underlying file system.
+     * @throws PageNotAllocatedException if any page of the run is not
+     * allocated.
+     */
+    public void readPages(int startPageNum, Page[] pages) throws IOException
+    {
+        int runSize = pages.length;
+        if (startPageNum < 0 || startPageNum + runSize - 1 > numPages-1)
+            throw new BadPageNumberException();
+
+        // Make sure that every page has actually been allocated
+        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
+        mapFile.seek(startPageNum);
+        byte[] map = new byte[runSize];
+        mapFile.readFully(map);
+        mapFile.close();
+        for (int i=0; i < runSize; i++)
+            if (map[i] == 0)
+                throw new PageNotAllocatedException();
+
+        // Read the whole run, then split it into pages
+        byte[] run = new byte[runSize * Page.PAGESIZE];
+        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"r");
+        dataFile.seek((long)startPageNum * Page.PAGESIZE);
+        dataFile.readFully(run);
+        dataFile.close();
+        for (int i=0; i < runSize; i++)
+            System.arraycopy(run, i * Page.PAGESIZE, pages[i].data, 0,
+                             Page.PAGESIZE);
+    }
+
     /**
      * Writes the contents of the specified page to disk.
      * @param pageNum the page number to be written.
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Second tier of page cache, kept in a file on fast local storage such
+ * as an SSD, for database files that live on slower storage. The
+ * buffer manager writes clean pages it evicts here, and looks here on
+ * a miss before reading the database file, so many more pages are
+ * cached than fit in memory.
+ *
+ * The cache file is a fixed number of page-sized slots. An index in
+ * memory maps each cached page to its slot, free slots are handed out
+ * first, and once none are left the slot to reuse is picked by the
+ * clock algorithm, with a slot's reference bit set whenever its page
+ * is read. The cache only ever holds copies of pages as they are in
+ * their database file, so it can be dropped at any time; it is
+ * emptied when opened, and its file is deleted when closed.
+ * @author Yuen Hsi Chang
+ */
+public class PageCache
+{
+    private String cacheFileName;
+    private RandomAccessFile file;
+
+    // Page held in each slot, or null if the slot is free.
+    private BufferManager.PageKey[] slots;
+    private boolean[] reference;
+    private HashMap<BufferManager.PageKey,Integer> index;
+    private ArrayDeque<Integer> freeSlots;
+    private int clockPointer;
+
+    private long numHits;
+    private long numMisses;
+    private long numWrites;
+
+    /**
+     * Creates an empty cache in a new file, replacing any file of the
+     * same name.
+     * @param cacheFileName the file to keep cached pages in.
+     * @param numSlots how many pages the cache holds.
+     * @throws IOException passed through from underlying file system.
+     */
+    public PageCache(String cacheFileName, int numSlots) throws IOException
+    {
+        this.cacheFileName = cacheFileName;
+        this.file = new RandomAccessFile(cacheFileName, "rw");
+        file.setLength((long)numSlots * Page.PAGESIZE);
+        this.slots = new BufferManager.PageKey[numSlots];
+        this.reference = new boolean[numSlots];
+        this.index = new HashMap<BufferManager.PageKey,Integer>();
+        this.freeSlots = new ArrayDeque<Integer>();
+        for (int i = 0; i < numSlots; i++)
+            freeSlots.add(i);
+        this.clockPointer = 0;
+    }
+
+    /**
+     * Returns how many pages the cache can hold.
+     * @return the number of slots.
+     */
+    public int getNumSlots()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns how many pages the cache holds.
+     * @return the number of pages.
+     */
+    public synchronized int getNumPages()
+    {
+        return index.size();
+    }
+
+    /**
+     * Returns how many reads found their page in the cache.
+     * @return the number of hits.
+     */
+    public synchronized long getNumHits()
+    {
+        return numHits;
+    }
+
+    /**
+     * Returns how many reads did not find their page in the cache.
+     * @return the number of misses.
+     */
+    public synchronized long getNumMisses()
+    {
+        return numMisses;
+    }
+
+    /**
+     * Returns how many pages have been written to the cache.
+     * @return the number of writes.
+     */
+    public synchronized long getNumWrites()
+    {
+        return numWrites;
+    }
+
+    /**
+     * Whether a page is in the cache.
+     * @param fileName the database file of the page.
+     * @param pageNum the page.
+     * @return true if it is cached.
+     */
+    public synchronized boolean contains(String fileName, int pageNum)
+    {
+        return index.containsKey(new BufferManager.PageKey(fileName,
+                                                           pageNum));
+    }
+
+    /**
+     * Reads a page from the cache, if it is there.
+     * @param fileName the database file of the page.
+     * @param pageNum the page.
+     * @param page the page to read into.
+     * @return true if the page was cached and has been read, false if
+     * it must be read from its database file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean read(String fileName, int pageNum, Page page)
+        throws IOException
+    {
+        Integer slot = index.get(new BufferManager.PageKey(fileName, pageNum));
+        if (slot == null)
+        {
+            numMisses++;
+            return false;
+        }
+        file.seek((long)slot * Page.PAGESIZE);
+        file.readFully(page.data);
+        reference[slot] = true;
+        numHits++;
+        return true;
+    }
+
+    /**
+     * Caches a copy of a page, which must be the same as in its
+     * database file. A copy already cached is overwritten; otherwise a
+     * free slot is used, or the page in the slot the clock picks is
+     * dropped.
+     * @param fileName the database file of the page.
+     * @param pageNum the page.
+     * @param page the page.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void write(String fileName, int pageNum, Page page)
+        throws IOException
+    {
+        BufferManager.PageKey key = new BufferManager.PageKey(fileName,
+                                                              pageNum);
+        Integer slot = index.get(key);
+        if (slot == null)
+        {
+            slot = freeSlots.isEmpty() ? victim() : freeSlots.poll();
+            if (slots[slot] != null)
+                index.remove(slots[slot]);
+            slots[slot] = key;
+            index.put(key, slot);
+        }
+        file.seek((long)slot * Page.PAGESIZE);
+        file.write(page.data);
+        // A page just written has not been read from here yet; giving
+        // it no second chance keeps pages that are evicted once and
+        // never read again from pushing out ones that are.
+        reference[slot] = false;
+        numWrites++;
+    }
+
+    /**
+     * Drops a page from the cache, if it is there, because it has
+     * changed in its database file or been freed.
+     * @param fileName the database file of the page.
+     * @param pageNum the page.
+     */
+    public synchronized void invalidate(String fileName, int pageNum)
+    {
+        Integer slot = index.remove(new BufferManager.PageKey(fileName,
+                                                              pageNum));
+        if (slot == null)
+            return;
+        slots[slot] = null;
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Closes the cache and deletes its file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void close() throws IOException
+    {
+        file.close();
+        new File(cacheFileName).delete();
+        index.clear();
+    }
+
+    // Picks a slot to reuse by the clock algorithm.
+    private int victim()
+    {
+        while (reference[clockPointer])
+        {
+            reference[clockPointer] = false;
+            clockPointer = (clockPointer + 1) % slots.length;
+        }
+        int slot = clockPointer;
+        clockPointer = (clockPointer + 1) % slots.length;
+        return slot;
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Buffer manager whose pool is split into partitions, each a buffer
+ * manager of its own with its own frames, page table and clock, so
+ * that threads working on different pages seldom wait for the same
+ * monitor. A page always goes to the partition picked by hashing its
+ * file and page id.
+ *
+ * A partition whose frames are all pinned takes a frame from another
+ * one that has an unpinned frame to give, so a pool that is not full
+ * as a whole never turns a pin down. Frames move between partitions
+ * one at a time, and no partition is ever held while another is.
+ * @author Yuen Hsi Chang
+ */
+public class PartitionedBufferManager extends BufferManager
+{
+    private Partition[] partitions;
+
+    // One partition of the pool, holding only the pages that hash to
+    // it.
+    private static class Partition extends BufferManager
+    {
+        private PartitionedBufferManager owner;
+        private int number;
+
+        Partition(PartitionedBufferManager owner, int number, int poolSize,
+                  PageCache cache)
+        {
+            super(poolSize, cache);
+            this.owner = owner;
+            this.number = number;
+        }
+
+        boolean holds(String fileName, int pageNum)
+        {
+            return owner.partitionOf(pageNum, fileName) == this;
+        }
+    }
+
+    /**
+     * Creates a buffer manager with the specified size, split into
+     * partitions of nearly equal size.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param numPartitions how many partitions to split it into.
+     * @throws BadPoolSizeException if there are not at least as many
+     * pages as partitions.
+     */
+    public PartitionedBufferManager(int poolSize, int numPartitions)
+    {
+        this(poolSize, numPartitions, null);
+    }
+
+    /**
+     * Creates a buffer manager with the specified size, split into
+     * partitions of nearly equal size that share a second tier of page
+     * cache.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param numPartitions how many partitions to split it into.
+     * @param cache where to keep pages evicted from the pool, or null
+     * to read them from their database files again.
+     * @throws BadPoolSizeException if there are not at least as many
+     * pages as partitions.
+     */
+    public PartitionedBufferManager(int poolSize, int numPartitions,
+                                    PageCache cache)
+    {
+        super(0, cache);
+        if (numPartitions <= 0 || poolSize < numPartitions)
+            throw new BadPoolSizeException();
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++)
+            partitions[i] = new Partition(this, i,
+                                          share(poolSize, numPartitions, i),
+                                          cache);
+    }
+
+    /**
+     * Returns how many partitions the pool is split into.
+     * @return the number of partitions.
+     */
+    public int getNumPartitions()
+    {
+        return partitions.length;
+    }
+
+    /**
+     * Returns how many frames a partition has now.
+     * @param partition the partition, from 0.
+     * @return the number of frames.
+     */
+    public int getPartitionSize(int partition)
+    {
+        return partitions[partition].poolSize();
+    }
+
+    /**
+     * Returns the number of frames in all partitions.
+     * @see BufferManager#poolSize
+     */
+    public int poolSize()
+    {
+        int size = 0;
+        for (Partition p : partitions)
+            size += p.poolSize();
+        return size;
+    }
+
+    /**
+     * Grows or shrinks the buffer pool, making the partitions nearly
+     * equal in size again.
+     * @see BufferManager#resize
+     * @throws BadPoolSizeException if there are fewer pages than
+     * partitions.
+     */
+    public synchronized void resize(int newSize)
+        throws IOException, InterruptedException
+    {
+        if (newSize < partitions.length)
+            throw new BadPoolSizeException();
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i].resize(share(newSize, partitions.length, i));
+    }
+
+    /**
+     * Pins a page in its partition, taking a frame from another
+     * partition if all of its own are pinned.
+     * @see BufferManager#pinPage
+     */
+    public Page pinPage(int pinPageId, String fileName, boolean emptyPage)
+        throws IOException
+    {
+        Partition home = partitionOf(pinPageId, fileName);
+        while (true)
+        {
+            Page page = home.pinPage(pinPageId, fileName, emptyPage);
+            if (page != null)
+                return page;
+            if (!steal(home))
+                return null;
+        }
+    }
+
+    /**
+     * Pins a page in its partition without waiting for it to be read,
+     * taking a frame from another partition if all of its own are
+     * pinned.
+     * @see BufferManager#pinPageAsync
+     */
+    public CompletableFuture<Page> pinPageAsync(int pinPageId,
+                                                String fileName)
+        throws IOException
+    {
+        Partition home = partitionOf(pinPageId, fileName);
+        while (true)
+        {
+            CompletableFuture<Page> page = home.pinPageAsync(pinPageId,
+                                                             fileName);
+            if (page != null)
+                return page;
+            if (!steal(home))
+                return null;
+        }
+    }
+
+    /**
+     * Unpins a page in its partition.
+     * @see BufferManager#unpinPage
+     */
+    public void unpinPage(int unpinPageId, String fileName, boolean dirty)
+    {
+        partitionOf(unpinPageId, fileName).unpinPage(unpinPageId, fileName,
+                                                     dirty);
+    }
+
+    /**
+     * Allocates a run of pages and pins the first in its partition.
+     * @see BufferManager#newPage
+     */
+    public Pair<Integer,Page> newPage(int numPages, String fileName)
+        throws IOException
+    {
+        // No monitor is held here: DBFile makes allocations in the same
+        // file one at a time, whichever partition or thread asks.
+        int index = DBFile.open(fileName).allocatePages(numPages);
+        Page toReturn = pinPage(index, fileName, true);
+        return new Pair<Integer, Page>(index, toReturn);
+    }
+
+    /**
+     * Frees a page in its partition.
+     * @see BufferManager#freePage
+     */
+    public void freePage(int pageId, String fileName) throws IOException
+    {
+        partitionOf(pageId, fileName).freePage(pageId, fileName);
+    }
+
+    /**
+     * Flushes a page in its partition.
+     * @see BufferManager#flushPage
+     */
+    public void flushPage(int pageId, String fileName) throws IOException
+    {
+        partitionOf(pageId, fileName).flushPage(pageId, fileName);
+    }
+
+    /**
+     * Flushes the pages of every partition.
+     * @see BufferManager#flushAllPages
+     */
+    public void flushAllPages() throws IOException
+    {
+        for (Partition p : partitions)
+            p.flushAllPages();
+    }
+
+    /**
+     * Returns the number of unpinned frames in all partitions.
+     * @see BufferManager#getNumUnpinned
+     */
+    public int getNumUnpinned()
+    {
+        int count = 0;
+        for (Partition p : partitions)
+            count += p.getNumUnpinned();
+        return count;
+    }
+
+    /**
+     * Returns where a page is in the pool, numbering the frames of
+     * each partition after those of the partitions before it. Frames
+     * moving between partitions change these numbers.
+     * @see BufferManager#findFrame
+     */
+    public int findFrame(int pageId, String fileName)
+    {
+        Partition home = partitionOf(pageId, fileName);
+        int frame = home.findFrame(pageId, fileName);
+        if (frame < 0)
+            return -1;
+        for (int i = 0; i < home.number; i++)
+            frame += partitions[i].poolSize();
+        return frame;
+    }
+
+    /**
+     * Saves the pages of every partition in one list.
+     * @see BufferManager#saveResidentPages
+     */
+    public void saveResidentPages(String saveFileName) throws IOException
+    {
+        BufferManager.saveResidentPages(saveFileName, partitions);
+    }
+
+    /**
+     * Loads saved pages, each into its own partition. Each run of
+     * consecutive pages is read once, for all partitions.
+     * @see BufferManager#loadResidentPages
+     */
+    public int loadResidentPages(String saveFileName) throws IOException
+    {
+        return BufferManager.loadSavedPages(
+            BufferManager.readSavedPages(saveFileName), partitions);
+    }
+
+    // Picks the partition of a page.
+    private Partition partitionOf(int pageId, String fileName)
+    {
+        return partitions[Math.floorMod(new PageKey(fileName, pageId)
+                                        .hashCode(), partitions.length)];
+    }
+
+    // Moves a frame to a partition from the next one that can give
+    // one up. Returns false if none can.
+    private boolean steal(Partition to)
+        throws IOException
+    {
+        for (int i = 1; i < partitions.length; i++)
+        {
+            Partition from = partitions[(to.number + i) % partitions.length];
+            if (from.releaseFrame())
+            {
+                // The frame has left the donor, so it must be added
+                // here even if interrupted, or the pool loses it.
+                boolean interrupted = false;
+                while (true)
+                {
+                    try
+                    {
+                        to.grow(1);
+                        break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Size of partition i when size frames are split among n.
+    private static int share(int size, int n, int i)
+    {
+        return size / n + (i < size % n ? 1 : 0);
+    }
+}
@@ -0,0 +1,445 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class HFTester
+{
+    public static interface Testable
+    {
+        void test(BufferManager bufMgr, String filename) throws Exception;
+    }
+
+    public static class TestFailedException extends RuntimeException
+    {
+        public TestFailedException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    // Builds a record holding its key followed by some padding.
+    public static byte[] makeRecord(int key, int length)
+    {
+        byte[] record = new byte[length];
+        ByteBuffer.wrap(record).putInt(0, key);
+        for (int i = 4; i < length; i++)
+            record[i] = (byte)(key + i);
+        return record;
+    }
+
+    public static int keyOf(byte[] record)
+    {
+        return ByteBuffer.wrap(record).getInt(0);
+    }
+
+    //----------------------------------------------------
+    // test 1
+    //      Insert records across many pages, read them back by
+    //      RID and by sequential scan, then delete some
+    //----------------------------------------------------
+    public static class Test1 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 1 -------");
+            int numRecords = 500;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            RID[] rids = new RID[numRecords];
+            for (int i = 0; i < numRecords; i++)
+                rids[i] = hf.insertRecord(makeRecord(i, 30));
+            System.out.println("Inserted " + numRecords + " records on " +
+                               hf.getPageIds().length + " pages");
+
+            for (int i = 0; i < numRecords; i++)
+                if (keyOf(hf.getRecord(rids[i])) != i)
+                    throw new TestFailedException("Wrong record for RID");
+
+            long sum = hf.stream().mapToLong(r -> keyOf(r)).sum();
+            if (sum != (long)numRecords * (numRecords - 1) / 2)
+                throw new TestFailedException("Scan returned wrong records");
+
+            for (int i = 0; i < numRecords; i += 2)
+                if (!hf.deleteRecord(rids[i]))
+                    throw new TestFailedException("Unable to delete record");
+            if (hf.deleteRecord(rids[0]))
+                throw new TestFailedException("Deleted a record twice");
+
+            long count = hf.stream().filter(r -> keyOf(r) % 2 == 0).count();
+            if (count != 0)
+                throw new TestFailedException("Deleted records still scanned");
+            System.out.println("Scan after deletes saw " +
+                               hf.stream().count() + " records");
+
+            int scanned = 0;
+            for (HeapFileScan scan = hf.scan(); scan.hasNext(); scanned++)
+            {
+                Pair<RID,byte[]> entry = scan.next();
+                if (keyOf(hf.getRecord(entry.first)) != keyOf(entry.second))
+                    throw new TestFailedException("Scan returned wrong RID");
+            }
+            if (scanned != numRecords / 2)
+                throw new TestFailedException("RID scan count wrong");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 2
+    //      Parallel scan agrees with a sequential scan, also
+    //      after flushing and reopening the file
+    //----------------------------------------------------
+    public static class Test2 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 2 -------");
+            int numRecords = 3000;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            for (int i = 0; i < numRecords; i++)
+                hf.insertRecord(makeRecord(i, 12 + i % 40));
+
+            long sequential = hf.stream().mapToLong(r -> keyOf(r)).sum();
+            long parallel =
+                hf.parallelStream().mapToLong(r -> keyOf(r)).sum();
+            System.out.println("Sequential sum " + sequential +
+                               ", parallel sum " + parallel);
+            if (sequential != parallel)
+                throw new TestFailedException("Parallel scan disagrees");
+
+            bufMgr.flushAllPages();
+            HeapFile reopened = new HeapFile(filename, bufMgr);
+            long count = reopened.parallelStream()
+                .filter(r -> keyOf(r) % 3 == 0).count();
+            if (count != (numRecords + 2) / 3)
+                throw new TestFailedException("Reopened file scan wrong");
+            System.out.println("Reopened file has " + count +
+                               " records with key divisible by 3");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 3
+    //      Records stored column by column read back by RID,
+    //      also after flushing and reopening the file
+    //----------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            int numRecords = 5000;
+            Schema schema = new Schema(
+                new String[] { "key", "big" },
+                new Schema.Type[] { Schema.Type.INT, Schema.Type.LONG });
+            TupleEncoder encoder = new TupleEncoder(schema);
+            PaxFile pf = new PaxFile(filename, NUMPAGES, schema, bufMgr);
+            RID[] rids = new RID[numRecords];
+            for (int i = 0; i < numRecords; i++)
+            {
+                encoder.reset();
+                encoder.setInt(0, i);
+                if (i % 7 != 0)
+                    encoder.setLong(1, (long)i * i);
+                rids[i] = pf.insertRecord(encoder);
+            }
+            System.out.println("Inserted " + numRecords + " records on " +
+                               pf.getPageIds().length + " pages");
+
+            bufMgr.flushAllPages();
+            PaxFile reopened = new PaxFile(filename, schema, bufMgr);
+            reopened.insertRecord(encoder);
+            TupleDecoder decoder = new TupleDecoder(schema);
+            for (int i = 0; i < numRecords; i++)
+            {
+                reopened.getRecord(rids[i], encoder);
+                encoder.encode();
+                decoder.wrap(encoder.getBuffer(), 0);
+                if (decoder.getInt(0) != i ||
+                    decoder.isNull(1) != (i % 7 == 0) ||
+                    (i % 7 != 0 && decoder.getLong(1) != (long)i * i))
+                    throw new TestFailedException("Wrong record for RID");
+            }
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Pages left pinned");
+            System.out.println("Reopened column file reads back correctly");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 4
+    //      Zone maps let a range scan of an append-only file
+    //      skip pages, count short records as null, shrink on
+    //      delete, and survive reopening the file
+    //----------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            int numRecords = 4000;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr,
+                                       new int[] { 0, 8 });
+            RID[] rids = new RID[numRecords];
+            for (int i = 0; i < numRecords; i++)
+            {
+                byte[] record = makeRecord(i, i % 10 == 0 ? 6 : 24);
+                if (record.length > 8)
+                    ByteBuffer.wrap(record).putInt(8, i % 50);
+                rids[i] = hf.insertRecord(record);
+            }
+
+            int[] all = hf.getPageIds();
+            int[] some = hf.getPageIds(0, 1000, 1099);
+            long expected = hf.stream()
+                .filter(r -> keyOf(r) >= 1000 && keyOf(r) < 1100).count();
+            long found = 0;
+            for (HeapFileScan scan = hf.scan(0, 1000, 1099); scan.hasNext(); )
+            {
+                int key = keyOf(scan.next().second);
+                if (key >= 1000 && key < 1100)
+                    found++;
+            }
+            System.out.println("Range scan reads " + some.length + " of " +
+                               all.length + " pages");
+            if (found != expected || some.length * 10 > all.length)
+                throw new TestFailedException("Range scan wrong");
+            if (hf.getPageIds(1, 50, 100).length != 0 ||
+                hf.getPageIds(1, 0, 49).length != all.length)
+                throw new TestFailedException("Second zone column wrong");
+
+            int[] map = hf.getZoneMap(rids[0].pageId, 1);
+            int nulls = 0;
+            for (int i = 0; i < numRecords && rids[i].pageId == rids[0].pageId;
+                 i++)
+                if (i % 10 == 0)
+                    nulls++;
+            if (map[2] != nulls)
+                throw new TestFailedException("Null count wrong");
+
+            int pageId = rids[numRecords - 1].pageId;
+            int max = hf.getZoneMap(pageId, 0)[1];
+            hf.deleteRecord(rids[numRecords - 1]);
+            bufMgr.flushAllPages();
+            HeapFile reopened = new HeapFile(filename, bufMgr);
+            if (reopened.getNumZoneColumns() != 2 ||
+                reopened.getZoneMap(pageId, 0)[1] != max - 1)
+                throw new TestFailedException("Zone map not shrunk on delete");
+            reopened.insertRecord(makeRecord(numRecords + 500, 24));
+            if (reopened.getPageIds(0, numRecords + 500,
+                                    numRecords + 500).length != 1)
+                throw new TestFailedException("Reopened file zone map wrong");
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Pages left pinned");
+            System.out.println("Zone maps correct");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 5
+    //      Update and delete records of a versioned heap file under
+    //      snapshots, vacuum dead versions, and scan snapshots while a
+    //      writer and the background vacuum run
+    //----------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            int numRecords = 300;
+            VersionedHeapFile vf =
+                new VersionedHeapFile(filename, NUMPAGES, bufMgr);
+            RID[] rids = new RID[numRecords];
+            for (int i = 0; i < numRecords; i++)
+                rids[i] = vf.insertRecord(makeRecord(i, 24));
+            Snapshot before = vf.snapshot();
+            for (int i = 0; i < numRecords; i++)
+                vf.updateRecord(rids[i], versionOf(i, 1));
+            for (int i = 0; i < numRecords; i += 10)
+                vf.deleteRecord(rids[i]);
+            Snapshot after = vf.snapshot();
+
+            for (int i = 0; i < numRecords; i++)
+            {
+                byte[] old = vf.getRecord(before, rids[i]);
+                byte[] now = vf.getRecord(after, rids[i]);
+                if (old == null || old.length != 24 || keyOf(old) != i ||
+                    (i % 10 == 0 ? now != null :
+                     now == null || roundOf(now) != 1 || keyOf(now) != i))
+                    throw new TestFailedException("Wrong version of " + i);
+            }
+            if (count(vf.scan(before)) != numRecords ||
+                count(vf.scan(after)) != numRecords * 9 / 10)
+                throw new TestFailedException("Snapshot scans wrong");
+            try
+            {
+                vf.updateRecord(rids[0], versionOf(0, 2));
+                throw new TestFailedException("Deleted record updated");
+            }
+            catch (VersionedHeapFile.RecordDeletedException e)
+            {
+            }
+
+            if (vf.vacuum() != 0)
+                throw new TestFailedException("Vacuum took live versions");
+            before.release();
+            int reclaimed = vf.vacuum();
+            if (reclaimed != numRecords + numRecords / 10)
+                throw new TestFailedException("Vacuum reclaimed " + reclaimed);
+            if (count(vf.scan(after)) != numRecords * 9 / 10 ||
+                roundOf(vf.getRecord(after, rids[1])) != 1)
+                throw new TestFailedException("Vacuum lost live versions");
+            after.release();
+            System.out.println("Vacuum reclaimed " + reclaimed +
+                               " versions, " + vf.getNumVersions() +
+                               " left");
+
+            bufMgr.flushAllPages();
+            vf = new VersionedHeapFile(filename, bufMgr);
+            Snapshot reopened = vf.snapshot();
+            if (count(vf.scan(reopened)) != numRecords * 9 / 10 ||
+                vf.getCommitted() < 2 * numRecords)
+                throw new TestFailedException("Reopened file wrong");
+            reopened.release();
+
+            // One writer bumps every live record a round at a time while
+            // snapshots are scanned twice each; both scans of a snapshot
+            // must agree, and it must see the rounds in order.
+            VersionedHeapFile file = vf;
+            int rounds = 30;
+            Thread writer = new Thread(() -> {
+                    try
+                    {
+                        for (int round = 2; round < 2 + rounds; round++)
+                            for (int i = 1; i < numRecords; i++)
+                                if (i % 10 != 0)
+                                    file.updateRecord(rids[i],
+                                                      versionOf(i, round));
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            vf.startVacuum(1);
+            writer.start();
+            int scans = 0;
+            while (writer.isAlive() || scans == 0)
+            {
+                Snapshot snapshot = vf.snapshot();
+                HashMap<Integer,Integer> first = rounds(vf.scan(snapshot));
+                HashMap<Integer,Integer> second = rounds(vf.scan(snapshot));
+                snapshot.release();
+                if (!first.equals(second) ||
+                    first.size() != numRecords * 9 / 10)
+                    throw new TestFailedException("Snapshot not consistent");
+                int previous = Integer.MAX_VALUE;
+                for (int i = 1; i < numRecords; i++)
+                    if (i % 10 != 0)
+                    {
+                        int round = first.get(i);
+                        if (round > previous || round < previous - 1 &&
+                            previous != Integer.MAX_VALUE)
+                            throw new TestFailedException("Torn snapshot");
+                        previous = round;
+                    }
+                scans++;
+            }
+            writer.join();
+            vf.stopVacuum();
+            vf.vacuum();
+            System.out.println(scans + " snapshots consistent during " +
+                               rounds + " rounds of updates, " +
+                               vf.getNumVersions() + " versions left");
+            // Each live record is left with its version and at most a
+            // redirect to it.
+            if (vf.getNumVersions() > 2 * (numRecords * 9 / 10))
+                throw new TestFailedException("Vacuum fell behind");
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Pages left pinned");
+            System.out.println("Versioned heap file correct");
+        }
+
+        private static byte[] versionOf(int key, int round)
+        {
+            byte[] record = makeRecord(key, 60);
+            ByteBuffer.wrap(record).putInt(4, round);
+            return record;
+        }
+
+        private static int roundOf(byte[] record)
+        {
+            return ByteBuffer.wrap(record).getInt(4);
+        }
+
+        private static int count(SnapshotScan scan)
+        {
+            int n = 0;
+            for (; scan.hasNext(); scan.next())
+                n++;
+            return n;
+        }
+
+        private static HashMap<Integer,Integer> rounds(SnapshotScan scan)
+        {
+            HashMap<Integer,Integer> rounds = new HashMap<Integer,Integer>();
+            while (scan.hasNext())
+            {
+                byte[] record = scan.next().second;
+                rounds.put(keyOf(record), roundOf(record));
+            }
+            return rounds;
+        }
+    }
+
+
+    public static final String FILENAME = "__testing";
+    public static final int NUMBUF = 50;
+    public static final int NUMPAGES = 1000;
+
+
+    public static boolean runTest(Testable testObj)
+    {
+        boolean success = true;
+        try
+        {
+            BufferManager bufMgr = new BufferManager(NUMBUF);
+            testObj.test(bufMgr,FILENAME);
+        }
+        catch (Exception e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+
+        return success;
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running heap file tests.");
+
+        DBFile.erase(FILENAME);
+
+        // Run the tests.
+        runTest(new Test1());
+        runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+
+        // Clean up
+        DBFile.erase(FILENAME);
+    }
+}
@@ -0,0 +1,585 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Heap file. An unordered collection of records stored on slotted
+ * pages of a single database file, with all page accesses going
+ * through a buffer manager.
+ *
+ * The first page of the file is a directory page. A directory page
+ * holds the number of entries it contains, the page id of the next
+ * directory page (or INVALID_PAGE), the file's zone columns, and then
+ * an entry for each data page it describes. Directory pages are chained
+ * together when one fills up.
+ *
+ * A file can be given zone columns, 4 byte ints at fixed offsets in
+ * its records. The directory entry of a data page then holds, after
+ * the page id, a zone map for each: the smallest and largest value of
+ * the column on the page, and how many records are too short to have
+ * it, which count as null. Zone maps are widened as records are
+ * inserted, and worked out again from the page when one is deleted, so
+ * a scan for a range of values can leave out every page whose zone map
+ * shows it cannot match, without pinning it.
+ * @author Yuen Hsi Chang
+ */
+public class HeapFile
+{
+    public static class BufferFullException extends RuntimeException {};
+
+    /**
+     * Page id of the first directory page.
+     */
+    public static final int HEADER_PAGE = 0;
+
+    /**
+     * Most zone columns a file can have.
+     */
+    public static final int MAX_ZONE_COLUMNS = 16;
+
+    // Layout of a directory page, in ints. Entries follow the zone
+    // column offsets, and hold the page id then, for each zone column,
+    // the zone map's min, max and null count.
+    private static final int DIR_COUNT = 0;
+    private static final int DIR_NEXT = 1;
+    private static final int DIR_NUM_ZONES = 2;
+    private static final int DIR_ZONES = 3;
+    private static final int ZONE_MIN = 0;
+    private static final int ZONE_MAX = 1;
+    private static final int ZONE_NULLS = 2;
+    private static final int ZONE_SIZE = 3;
+
+    private BufferManager bufMgr;
+    private String fileName;
+    private int[] zoneOffsets;
+
+    // Data page most recently inserted into, tried first on insert,
+    // and the directory page and entry describing it, if known.
+    private int lastPageId;
+    private int lastDirPageId;
+    private int lastEntry;
+
+    /**
+     * Creates a new, empty heap file backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFile(String name, int numPages, BufferManager bufMgr)
+        throws IOException
+    {
+        this(name, numPages, bufMgr, new int[0]);
+    }
+
+    /**
+     * Creates a new, empty heap file that keeps zone maps.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param zoneOffsets byte offset within each record of the 4 byte
+     * int that makes each zone column.
+     * @throws IllegalArgumentException if there are more than
+     * MAX_ZONE_COLUMNS zone columns.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFile(String name, int numPages, BufferManager bufMgr,
+                    int[] zoneOffsets)
+        throws IOException
+    {
+        if (zoneOffsets.length > MAX_ZONE_COLUMNS)
+            throw new IllegalArgumentException("Too many zone columns");
+        new DBFile(name, numPages);
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+        this.zoneOffsets = zoneOffsets.clone();
+        this.lastPageId = SlottedPage.INVALID_PAGE;
+        this.lastDirPageId = SlottedPage.INVALID_PAGE;
+
+        Pair<Integer,Page> header = newPage();
+        initDirectoryPage(header.second);
+        bufMgr.unpinPage(header.first, fileName, true);
+    }
+
+    /**
+     * Opens an existing heap file.
+     * @param name the name of the database file holding the heap file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFile(String name, BufferManager bufMgr) throws IOException
+    {
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+        IntBuffer dir = ByteBuffer.wrap(pin(HEADER_PAGE).data).asIntBuffer();
+        this.zoneOffsets = new int[dir.get(DIR_NUM_ZONES)];
+        for (int z = 0; z < zoneOffsets.length; z++)
+            zoneOffsets[z] = dir.get(DIR_ZONES + z);
+        bufMgr.unpinPage(HEADER_PAGE, fileName, false);
+        this.lastDirPageId = SlottedPage.INVALID_PAGE;
+        int[] pageIds = getPageIds();
+        this.lastPageId = pageIds.length == 0 ?
+            SlottedPage.INVALID_PAGE : pageIds[pageIds.length - 1];
+    }
+
+    /**
+     * Returns the name of the underlying database file.
+     * @return the file name.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Returns the buffer manager this heap file pins pages through.
+     * @return the buffer manager.
+     */
+    public BufferManager getBufferManager()
+    {
+        return bufMgr;
+    }
+
+    /**
+     * Returns the number of zone columns the file keeps zone maps for.
+     * @return the number of zone columns.
+     */
+    public int getNumZoneColumns()
+    {
+        return zoneOffsets.length;
+    }
+
+    /**
+     * Inserts a record into the heap file, adding a new data page if
+     * the last page used does not have room for it.
+     * @param record the record to be inserted.
+     * @return the RID of the new record.
+     * @throws SlottedPage.PageFullException if the record does not fit
+     * even on an empty page.
+     * @throws BufferFullException if every frame in the buffer pool is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized RID insertRecord(byte[] record) throws IOException
+    {
+        if (lastPageId != SlottedPage.INVALID_PAGE)
+        {
+            Page page = pin(lastPageId);
+            SlottedPage sp = wrap(page, lastPageId);
+            if (sp.getAvailableSpace() >= record.length)
+            {
+                RID rid = sp.insertRecord(record);
+                bufMgr.unpinPage(lastPageId, fileName, true);
+                widenZones(record);
+                return rid;
+            }
+            bufMgr.unpinPage(lastPageId, fileName, false);
+        }
+
+        Pair<Integer,Page> fresh = newPage();
+        SlottedPage sp = wrap(fresh.second, fresh.first);
+        sp.init();
+        if (sp.getAvailableSpace() < record.length)
+        {
+            bufMgr.unpinPage(fresh.first, fileName, false);
+            bufMgr.freePage(fresh.first, fileName);
+            throw new SlottedPage.PageFullException();
+        }
+        RID rid = sp.insertRecord(record);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        addToDirectory(fresh.first);
+        lastPageId = fresh.first;
+        widenZones(record);
+        return rid;
+    }
+
+    /**
+     * Returns a copy of the record with the given RID.
+     * @param rid the RID of the record.
+     * @return the record.
+     * @throws SlottedPage.BadSlotIdException if there is no such record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public byte[] getRecord(RID rid) throws IOException
+    {
+        Page page = pin(rid.pageId);
+        try
+        {
+            return wrap(page, rid.pageId).getRecord(rid);
+        }
+        finally
+        {
+            bufMgr.unpinPage(rid.pageId, fileName, false);
+        }
+    }
+
+    /**
+     * Deletes the record with the given RID. Data pages are kept in
+     * the directory even when they become empty.
+     * @param rid the RID of the record.
+     * @return true if the record was deleted, false if it was not found.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean deleteRecord(RID rid) throws IOException
+    {
+        Page page = pin(rid.pageId);
+        boolean deleted = false;
+        try
+        {
+            deleted = wrap(page, rid.pageId).deleteRecord(rid);
+        }
+        finally
+        {
+            bufMgr.unpinPage(rid.pageId, fileName, deleted);
+        }
+        if (deleted && zoneOffsets.length > 0)
+            recomputeZones(rid.pageId);
+        return deleted;
+    }
+
+    /**
+     * Returns the ids of all data pages, in directory order.
+     * @return the data page ids.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int[] getPageIds() throws IOException
+    {
+        return getPageIds(-1, 0, 0);
+    }
+
+    /**
+     * Returns the ids of the data pages that may hold a record whose
+     * zone column lies in a range, in directory order. Pages whose zone
+     * map shows otherwise are left out, without being pinned.
+     * @param zone the zone column, as an index into the zone offsets.
+     * @param low the smallest value in the range.
+     * @param high the largest value in the range.
+     * @return the data page ids.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int[] getPageIds(int zone, int low, int high) throws IOException
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        int dirPageId = HEADER_PAGE;
+        while (dirPageId != SlottedPage.INVALID_PAGE)
+        {
+            IntBuffer dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+            int count = dir.get(DIR_COUNT);
+            for (int i = 0; i < count; i++)
+            {
+                int entry = entryPos(i);
+                int map = entry + 1 + zone * ZONE_SIZE;
+                if (zone < 0 || (dir.get(map + ZONE_MIN) <= high &&
+                                 dir.get(map + ZONE_MAX) >= low))
+                    ids.add(dir.get(entry));
+            }
+            int next = dir.get(DIR_NEXT);
+            bufMgr.unpinPage(dirPageId, fileName, false);
+            dirPageId = next;
+        }
+
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    /**
+     * Returns a sequential stream over copies of all records.
+     * @return the stream.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Stream<byte[]> stream() throws IOException
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream over copies of all records. The data
+     * pages are split into ranges, and each worker pins the pages of
+     * its own range, so the buffer pool must have at least one frame
+     * per worker.
+     * @return the stream.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Stream<byte[]> parallelStream() throws IOException
+    {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Returns a spliterator covering every data page of the file.
+     * @return the spliterator.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFileSpliterator spliterator() throws IOException
+    {
+        int[] pageIds = getPageIds();
+        return new HeapFileSpliterator(this, pageIds, 0, pageIds.length);
+    }
+
+    /**
+     * Returns a scan over copies of all records together with their
+     * RIDs, in directory order.
+     * @return the scan.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFileScan scan() throws IOException
+    {
+        return new HeapFileScan(this, getPageIds());
+    }
+
+    /**
+     * Returns a scan over the records of the pages whose zone maps
+     * show they may hold a value of a zone column in a range. Records
+     * are not filtered, so the scan also returns others on those pages.
+     * @param zone the zone column, as an index into the zone offsets.
+     * @param low the smallest value in the range.
+     * @param high the largest value in the range.
+     * @return the scan.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HeapFileScan scan(int zone, int low, int high) throws IOException
+    {
+        return new HeapFileScan(this, getPageIds(zone, low, high));
+    }
+
+    /**
+     * Returns the zone map of a zone column for a data page.
+     * @param pageId the data page.
+     * @param zone the zone column, as an index into the zone offsets.
+     * @return the smallest value, the largest value and the number of
+     * records without the column; the smallest is greater than the
+     * largest if no record on the page has it.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int[] getZoneMap(int pageId, int zone) throws IOException
+    {
+        int[] where = findEntry(pageId);
+        IntBuffer dir = ByteBuffer.wrap(pin(where[0]).data).asIntBuffer();
+        int map = entryPos(where[1]) + 1 + zone * ZONE_SIZE;
+        int[] result = { dir.get(map + ZONE_MIN), dir.get(map + ZONE_MAX),
+                         dir.get(map + ZONE_NULLS) };
+        bufMgr.unpinPage(where[0], fileName, false);
+        return result;
+    }
+
+    /**
+     * Pins a page of this file, failing rather than returning null
+     * when the buffer pool has no unpinned frame.
+     * @param pageId the page to pin.
+     * @return the pinned page.
+     * @throws BufferFullException if every frame is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    Page pin(int pageId) throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        return page;
+    }
+
+    /**
+     * Wraps a pinned page as a slotted page with the given id.
+     * @param page the pinned page.
+     * @param pageId the id of the page.
+     * @return the slotted page.
+     */
+    static SlottedPage wrap(Page page, int pageId)
+    {
+        SlottedPage sp = new SlottedPage(page);
+        sp.setPageId(pageId);
+        return sp;
+    }
+
+    private Pair<Integer,Page> newPage() throws IOException
+    {
+        Pair<Integer,Page> fresh = bufMgr.newPage(1, fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first, 1);
+            throw new BufferFullException();
+        }
+        return fresh;
+    }
+
+    private void initDirectoryPage(Page page)
+    {
+        IntBuffer dir = ByteBuffer.wrap(page.data).asIntBuffer();
+        dir.put(DIR_COUNT, 0);
+        dir.put(DIR_NEXT, SlottedPage.INVALID_PAGE);
+        dir.put(DIR_NUM_ZONES, zoneOffsets.length);
+        for (int z = 0; z < zoneOffsets.length; z++)
+            dir.put(DIR_ZONES + z, zoneOffsets[z]);
+    }
+
+    // Where the entry for the i-th data page of a directory page starts.
+    private int entryPos(int i)
+    {
+        return DIR_ZONES + zoneOffsets.length +
+            i * (1 + zoneOffsets.length * ZONE_SIZE);
+    }
+
+    private int dirCapacity()
+    {
+        return (Page.PAGESIZE / SlottedPage.SIZE_OF_INT - DIR_ZONES -
+                zoneOffsets.length) / (1 + zoneOffsets.length * ZONE_SIZE);
+    }
+
+    // Writes a new entry for a data page, with empty zone maps.
+    private void putEntry(IntBuffer dir, int i, int dataPageId)
+    {
+        int entry = entryPos(i);
+        dir.put(entry, dataPageId);
+        for (int z = 0; z < zoneOffsets.length; z++)
+        {
+            int map = entry + 1 + z * ZONE_SIZE;
+            dir.put(map + ZONE_MIN, Integer.MAX_VALUE);
+            dir.put(map + ZONE_MAX, Integer.MIN_VALUE);
+            dir.put(map + ZONE_NULLS, 0);
+        }
+    }
+
+    // Finds the directory page and entry number describing a data page.
+    private int[] findEntry(int dataPageId) throws IOException
+    {
+        if (dataPageId == lastPageId &&
+            lastDirPageId != SlottedPage.INVALID_PAGE)
+            return new int[] { lastDirPageId, lastEntry };
+        int dirPageId = HEADER_PAGE;
+        while (dirPageId != SlottedPage.INVALID_PAGE)
+        {
+            IntBuffer dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+            int count = dir.get(DIR_COUNT);
+            int found = -1;
+            for (int i = 0; i < count && found < 0; i++)
+                if (dir.get(entryPos(i)) == dataPageId)
+                    found = i;
+            int next = dir.get(DIR_NEXT);
+            bufMgr.unpinPage(dirPageId, fileName, false);
+            if (found >= 0)
+            {
+                if (dataPageId == lastPageId)
+                {
+                    lastDirPageId = dirPageId;
+                    lastEntry = found;
+                }
+                return new int[] { dirPageId, found };
+            }
+            dirPageId = next;
+        }
+        throw new SlottedPage.BadPageIdException();
+    }
+
+    // Widens the zone maps of the last data page to take in a record
+    // just inserted there.
+    private void widenZones(byte[] record) throws IOException
+    {
+        if (zoneOffsets.length == 0)
+            return;
+        int[] where = findEntry(lastPageId);
+        IntBuffer dir = ByteBuffer.wrap(pin(where[0]).data).asIntBuffer();
+        int entry = entryPos(where[1]);
+        ByteBuffer fields = ByteBuffer.wrap(record);
+        for (int z = 0; z < zoneOffsets.length; z++)
+        {
+            int map = entry + 1 + z * ZONE_SIZE;
+            if (record.length < zoneOffsets[z] + 4)
+                dir.put(map + ZONE_NULLS, dir.get(map + ZONE_NULLS) + 1);
+            else
+            {
+                int value = fields.getInt(zoneOffsets[z]);
+                dir.put(map + ZONE_MIN, Math.min(dir.get(map + ZONE_MIN),
+                                                 value));
+                dir.put(map + ZONE_MAX, Math.max(dir.get(map + ZONE_MAX),
+                                                 value));
+            }
+        }
+        bufMgr.unpinPage(where[0], fileName, true);
+    }
+
+    // Works out the zone maps of a data page afresh from its records.
+    private void recomputeZones(int dataPageId) throws IOException
+    {
+        int[] where = findEntry(dataPageId);
+        Page page = pin(dataPageId);
+        IntBuffer dir;
+        try
+        {
+            dir = ByteBuffer.wrap(pin(where[0]).data).asIntBuffer();
+        }
+        catch (BufferFullException e)
+        {
+            bufMgr.unpinPage(dataPageId, fileName, false);
+            throw e;
+        }
+        putEntry(dir, where[1], dataPageId);
+        int entry = entryPos(where[1]);
+        SlottedPage sp = wrap(page, dataPageId);
+        int numSlots = sp.getNumSlots();
+        for (int slot = 1; slot <= numSlots; slot++)
+        {
+            int offset = sp.getRecordOffset(slot);
+            if (offset == 0)
+                continue;
+            int length = sp.getRecordLength(slot);
+            for (int z = 0; z < zoneOffsets.length; z++)
+            {
+                int map = entry + 1 + z * ZONE_SIZE;
+                if (length < zoneOffsets[z] + 4)
+                    dir.put(map + ZONE_NULLS, dir.get(map + ZONE_NULLS) + 1);
+                else
+                {
+                    int value = ByteBuffer.wrap(page.data)
+                        .getInt(offset + zoneOffsets[z]);
+                    dir.put(map + ZONE_MIN,
+                            Math.min(dir.get(map + ZONE_MIN), value));
+                    dir.put(map + ZONE_MAX,
+                            Math.max(dir.get(map + ZONE_MAX), value));
+                }
+            }
+        }
+        bufMgr.unpinPage(dataPageId, fileName, false);
+        bufMgr.unpinPage(where[0], fileName, true);
+    }
+
+    // Appends a data page id to the last directory page, chaining on a
+    // new directory page if the last one is full.
+    private void addToDirectory(int dataPageId) throws IOException
+    {
+        int dirPageId = HEADER_PAGE;
+        IntBuffer dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+        while (dir.get(DIR_NEXT) != SlottedPage.INVALID_PAGE)
+        {
+            int next = dir.get(DIR_NEXT);
+            bufMgr.unpinPage(dirPageId, fileName, false);
+            dirPageId = next;
+            dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+        }
+
+        int count = dir.get(DIR_COUNT);
+        if (count < dirCapacity())
+        {
+            putEntry(dir, count, dataPageId);
+            dir.put(DIR_COUNT, count + 1);
+            bufMgr.unpinPage(dirPageId, fileName, true);
+            lastDirPageId = dirPageId;
+            lastEntry = count;
+            return;
+        }
+
+        Pair<Integer,Page> fresh = newPage();
+        IntBuffer newDir = ByteBuffer.wrap(fresh.second.data).asIntBuffer();
+        initDirectoryPage(fresh.second);
+        putEntry(newDir, 0, dataPageId);
+        newDir.put(DIR_COUNT, 1);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        lastDirPageId = fresh.first;
+        lastEntry = 0;
+
+        dir.put(DIR_NEXT, fresh.first);
+        bufMgr.unpinPage(dirPageId, fileName, true);
+    }
+}
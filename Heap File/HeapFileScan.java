@@ -0,0 +1,76 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Scan over every record of a heap file together with its RID, for
+ * callers such as index builders that need to know where each record
+ * lives. Records are read a data page at a time, and a page is only
+ * pinned while its records are being copied out.
+ * @author Yuen Hsi Chang
+ */
+public class HeapFileScan implements Iterator<Pair<RID,byte[]>>
+{
+    private HeapFile file;
+    private int[] pageIds;
+    private int index;
+
+    // Records of the page last read that have not been returned yet.
+    private ArrayList<Pair<RID,byte[]>> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a scan over the given data pages.
+     * @param file the heap file the pages belong to.
+     * @param pageIds data page ids of the file, in scan order.
+     */
+    public HeapFileScan(HeapFile file, int[] pageIds)
+    {
+        this.file = file;
+        this.pageIds = pageIds;
+        this.index = 0;
+        this.buffered = new ArrayList<Pair<RID,byte[]>>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean hasNext()
+    {
+        while (bufferedPos == buffered.size() && index < pageIds.length)
+            readPage(pageIds[index++]);
+        return bufferedPos < buffered.size();
+    }
+
+    public Pair<RID,byte[]> next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.get(bufferedPos++);
+    }
+
+    private void readPage(int pageId)
+    {
+        buffered.clear();
+        bufferedPos = 0;
+        Page page;
+        try
+        {
+            page = file.pin(pageId);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        try
+        {
+            SlottedPage sp = HeapFile.wrap(page, pageId);
+            for (RID rid = sp.firstRecord(); rid != null;
+                 rid = sp.nextRecord(rid))
+                buffered.add(new Pair<RID,byte[]>(rid, sp.getRecord(rid)));
+        }
+        finally
+        {
+            file.getBufferManager().unpinPage(pageId, file.getFileName(),
+                                              false);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Spliterator over the records of a range of heap file data pages.
+ * Splitting halves the remaining page range, so a parallel stream
+ * hands each worker its own set of pages to pin. Records are handed
+ * out as copies, and a page is only pinned while its records are
+ * being read.
+ * @author Yuen Hsi Chang
+ */
+public class HeapFileSpliterator implements Spliterator<byte[]>
+{
+    private HeapFile file;
+    private int[] pageIds;
+    private int index;
+    private int fence;
+
+    // Records of the page last read by tryAdvance, not yet handed out.
+    private ArrayList<byte[]> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a spliterator over pageIds[index] up to, but not
+     * including, pageIds[fence].
+     * @param file the heap file the pages belong to.
+     * @param pageIds data page ids of the file.
+     * @param index first position in pageIds covered.
+     * @param fence one past the last position in pageIds covered.
+     */
+    public HeapFileSpliterator(HeapFile file, int[] pageIds, int index,
+                               int fence)
+    {
+        this.file = file;
+        this.pageIds = pageIds;
+        this.index = index;
+        this.fence = fence;
+        this.buffered = new ArrayList<byte[]>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean tryAdvance(Consumer<? super byte[]> action)
+    {
+        while (bufferedPos == buffered.size())
+        {
+            if (index >= fence)
+                return false;
+            buffered.clear();
+            bufferedPos = 0;
+            readPage(pageIds[index++], buffered::add);
+        }
+        action.accept(buffered.get(bufferedPos++));
+        return true;
+    }
+
+    public void forEachRemaining(Consumer<? super byte[]> action)
+    {
+        while (bufferedPos < buffered.size())
+            action.accept(buffered.get(bufferedPos++));
+        while (index < fence)
+            readPage(pageIds[index++], action);
+    }
+
+    /**
+     * Hands the first half of the remaining pages to a new
+     * spliterator. Does not split once this one has started handing
+     * out the records of a page, since those come before either half.
+     */
+    public Spliterator<byte[]> trySplit()
+    {
+        if (bufferedPos < buffered.size())
+            return null;
+        int mid = (index + fence) >>> 1;
+        if (mid <= index)
+            return null;
+        HeapFileSpliterator prefix =
+            new HeapFileSpliterator(file, pageIds, index, mid);
+        index = mid;
+        return prefix;
+    }
+
+    /**
+     * Estimates the remaining size in pages, since the number of
+     * records on a page is not known until it is pinned.
+     */
+    public long estimateSize()
+    {
+        return (fence - index) + (buffered.size() - bufferedPos);
+    }
+
+    public int characteristics()
+    {
+        return ORDERED | NONNULL;
+    }
+
+    // Pins a page, passes copies of its records to the action, and
+    // unpins it again even if the action fails.
+    private void readPage(int pageId, Consumer<? super byte[]> action)
+    {
+        BufferManager bufMgr = file.getBufferManager();
+        Page page;
+        try
+        {
+            page = file.pin(pageId);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        try
+        {
+            SlottedPage sp = HeapFile.wrap(page, pageId);
+            for (RID rid = sp.firstRecord(); rid != null;
+                 rid = sp.nextRecord(rid))
+                action.accept(sp.getRecord(rid));
+        }
+        finally
+        {
+            bufMgr.unpinPage(pageId, file.getFileName(), false);
+        }
+    }
+}
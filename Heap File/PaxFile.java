@@ -0,0 +1,261 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A file of records stored column by column on PaxPages, for tables
+ * that are mostly scanned a few columns at a time. Records are tuples
+ * of a schema with only fixed length columns, and are only ever
+ * appended.
+ *
+ * The file is laid out like a HeapFile: its first page is a directory
+ * page holding the number of entries, the next directory page, and the
+ * ids of the data pages, chained on to further directory pages as they
+ * fill. The RID of a record is its data page and its row number on the
+ * page, from 0.
+ * @author Yuen Hsi Chang
+ */
+public class PaxFile
+{
+    public static class BufferFullException extends RuntimeException {};
+
+    /**
+     * Page id of the first directory page.
+     */
+    public static final int HEADER_PAGE = 0;
+
+    // Layout of a directory page, in ints.
+    private static final int DIR_COUNT = 0;
+    private static final int DIR_NEXT = 1;
+    private static final int DIR_FIRST_ENTRY = 2;
+    private static final int DIR_CAPACITY =
+        Page.PAGESIZE / SlottedPage.SIZE_OF_INT - DIR_FIRST_ENTRY;
+
+    private BufferManager bufMgr;
+    private String fileName;
+    private Schema schema;
+
+    // Last data page, the only one with room.
+    private int lastPageId;
+
+    /**
+     * Creates a new, empty file backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param schema the schema of the records.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws Schema.BadSchemaException if a column is of variable
+     * length.
+     * @throws IOException passed through from underlying file system.
+     */
+    public PaxFile(String name, int numPages, Schema schema,
+                   BufferManager bufMgr) throws IOException
+    {
+        PaxPage.capacityOf(schema);
+        new DBFile(name, numPages);
+        this.fileName = name;
+        this.schema = schema;
+        this.bufMgr = bufMgr;
+        this.lastPageId = SlottedPage.INVALID_PAGE;
+
+        Pair<Integer,Page> header = newPage();
+        initDirectoryPage(header.second);
+        bufMgr.unpinPage(header.first, fileName, true);
+    }
+
+    /**
+     * Opens an existing file.
+     * @param name the name of the database file holding the file.
+     * @param schema the schema the file was created with.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public PaxFile(String name, Schema schema, BufferManager bufMgr)
+        throws IOException
+    {
+        this.fileName = name;
+        this.schema = schema;
+        this.bufMgr = bufMgr;
+        int[] pageIds = getPageIds();
+        this.lastPageId = pageIds.length == 0 ?
+            SlottedPage.INVALID_PAGE : pageIds[pageIds.length - 1];
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public BufferManager getBufferManager()
+    {
+        return bufMgr;
+    }
+
+    /**
+     * Appends a record, adding a new data page if the last one is full.
+     * @param tuple array holding the record, encoded by a TupleEncoder
+     * for this file's schema.
+     * @param offset where the record starts in the array.
+     * @return the RID of the new record.
+     * @throws BufferFullException if every frame in the buffer pool is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized RID insertRecord(byte[] tuple, int offset)
+        throws IOException
+    {
+        if (lastPageId != SlottedPage.INVALID_PAGE)
+        {
+            PaxPage pp = new PaxPage(pin(lastPageId), schema);
+            if (!pp.isFull())
+            {
+                int row = pp.insert(tuple, offset);
+                bufMgr.unpinPage(lastPageId, fileName, true);
+                return new RID(lastPageId, row);
+            }
+            bufMgr.unpinPage(lastPageId, fileName, false);
+        }
+
+        Pair<Integer,Page> fresh = newPage();
+        PaxPage pp = new PaxPage(fresh.second, schema);
+        pp.init();
+        int row = pp.insert(tuple, offset);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        addToDirectory(fresh.first);
+        lastPageId = fresh.first;
+        return new RID(fresh.first, row);
+    }
+
+    /**
+     * Appends the record last finished by an encoder.
+     * @param encoder an encoder for this file's schema.
+     * @return the RID of the new record.
+     * @throws BufferFullException if every frame in the buffer pool is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public RID insertRecord(TupleEncoder encoder) throws IOException
+    {
+        encoder.encode();
+        return insertRecord(encoder.getBuffer(), 0);
+    }
+
+    /**
+     * Reads a record back into an encoder.
+     * @param rid the RID of the record.
+     * @param encoder an encoder for this file's schema, which is reset
+     * and left holding the record's fields.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void getRecord(RID rid, TupleEncoder encoder) throws IOException
+    {
+        PaxPage pp = new PaxPage(pin(rid.pageId), schema);
+        try
+        {
+            pp.getTuple(rid.slotNum, encoder);
+        }
+        finally
+        {
+            bufMgr.unpinPage(rid.pageId, fileName, false);
+        }
+    }
+
+    /**
+     * Returns the ids of all data pages, in directory order.
+     * @return the data page ids.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int[] getPageIds() throws IOException
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        int dirPageId = HEADER_PAGE;
+        while (dirPageId != SlottedPage.INVALID_PAGE)
+        {
+            IntBuffer dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+            int count = dir.get(DIR_COUNT);
+            for (int i = 0; i < count; i++)
+                ids.add(dir.get(DIR_FIRST_ENTRY + i));
+            int next = dir.get(DIR_NEXT);
+            bufMgr.unpinPage(dirPageId, fileName, false);
+            dirPageId = next;
+        }
+
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    /**
+     * Pins a page of this file, failing rather than returning null
+     * when the buffer pool has no unpinned frame.
+     * @param pageId the page to pin.
+     * @return the pinned page.
+     * @throws BufferFullException if every frame is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    Page pin(int pageId) throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        return page;
+    }
+
+    private Pair<Integer,Page> newPage() throws IOException
+    {
+        Pair<Integer,Page> fresh = bufMgr.newPage(1, fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first, 1);
+            throw new BufferFullException();
+        }
+        return fresh;
+    }
+
+    private static void initDirectoryPage(Page page)
+    {
+        IntBuffer dir = ByteBuffer.wrap(page.data).asIntBuffer();
+        dir.put(DIR_COUNT, 0);
+        dir.put(DIR_NEXT, SlottedPage.INVALID_PAGE);
+    }
+
+    // Appends a data page id to the last directory page, chaining on a
+    // new directory page if the last one is full.
+    private void addToDirectory(int dataPageId) throws IOException
+    {
+        int dirPageId = HEADER_PAGE;
+        IntBuffer dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+        while (dir.get(DIR_NEXT) != SlottedPage.INVALID_PAGE)
+        {
+            int next = dir.get(DIR_NEXT);
+            bufMgr.unpinPage(dirPageId, fileName, false);
+            dirPageId = next;
+            dir = ByteBuffer.wrap(pin(dirPageId).data).asIntBuffer();
+        }
+
+        int count = dir.get(DIR_COUNT);
+        if (count < DIR_CAPACITY)
+        {
+            dir.put(DIR_FIRST_ENTRY + count, dataPageId);
+            dir.put(DIR_COUNT, count + 1);
+            bufMgr.unpinPage(dirPageId, fileName, true);
+            return;
+        }
+
+        Pair<Integer,Page> fresh = newPage();
+        IntBuffer newDir = ByteBuffer.wrap(fresh.second.data).asIntBuffer();
+        initDirectoryPage(fresh.second);
+        newDir.put(DIR_FIRST_ENTRY, dataPageId);
+        newDir.put(DIR_COUNT, 1);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+
+        dir.put(DIR_NEXT, fresh.first);
+        bufMgr.unpinPage(dirPageId, fileName, true);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Measures how a filtered aggregate over a heap file scales with the
+ * number of threads scanning it. The buffer pool is large enough to
+ * hold the whole file, so after a warm-up pass the scan is CPU bound.
+ * Usage: java ScanBenchmark [numRecords] [maxThreads]
+ */
+public class ScanBenchmark
+{
+    public static final String FILENAME = "__scanbench";
+    public static final int RECORD_LENGTH = 40;
+    public static final int REPEATS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) :
+            Runtime.getRuntime().availableProcessors();
+
+        // About 20 records fit on a page.
+        int numPages = numRecords / 15 + 100;
+        DBFile.erase(FILENAME);
+        BufferManager bufMgr = new BufferManager(numPages);
+        HeapFile hf = new HeapFile(FILENAME, numPages, bufMgr);
+        for (int i = 0; i < numRecords; i++)
+            hf.insertRecord(HFTester.makeRecord(i, RECORD_LENGTH));
+        System.out.println(numRecords + " records on " +
+                           hf.getPageIds().length + " pages");
+
+        long expected = scan(hf, 1);
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < REPEATS; r++)
+            {
+                long start = System.nanoTime();
+                long result = scan(hf, threads);
+                best = Math.min(best, System.nanoTime() - start);
+                if (result != expected)
+                    throw new IllegalStateException("Scan result differs");
+            }
+            double ms = best / 1e6;
+            if (threads == 1)
+                baseline = ms;
+            System.out.printf("%2d threads: %8.2f ms  speed-up %.2fx%n",
+                              threads, ms, baseline / ms);
+        }
+
+        DBFile.erase(FILENAME);
+    }
+
+    // Checksums every record whose key is not a multiple of 7, running
+    // the parallel stream inside a pool of the given size.
+    private static long scan(HeapFile hf, int threads) throws Exception
+    {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            return pool.submit(() -> hf.parallelStream()
+                               .filter(r -> HFTester.keyOf(r) % 7 != 0)
+                               .mapToLong(r -> {
+                                       CRC32 crc = new CRC32();
+                                       crc.update(r);
+                                       return crc.getValue();
+                                   })
+                               .sum()).get();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * A consistent view of a versioned heap file as of one moment. Reads
+ * through a snapshot see every change committed before it was taken
+ * and none made after, however long the reader takes. A snapshot
+ * holds back the vacuum from reclaiming versions it may still read,
+ * so it should be released as soon as the reader is done, and not
+ * used after that.
+ * @author Yuen Hsi Chang
+ */
+public class Snapshot
+{
+    private VersionedHeapFile file;
+    private long timestamp;
+    private boolean released;
+
+    Snapshot(VersionedHeapFile file, long timestamp)
+    {
+        this.file = file;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the timestamp of the last change the snapshot sees.
+     * @return the timestamp.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Releases the snapshot, letting the vacuum reclaim versions only
+     * it could still see. Releasing it again does nothing.
+     */
+    public synchronized void release()
+    {
+        if (released)
+            return;
+        released = true;
+        file.release(timestamp);
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Scan over the records of a versioned heap file that a snapshot sees,
+ * together with their RIDs. Records are read a data page of heads at a
+ * time, without locks, and each page is read again if a write moved
+ * records while it was being read.
+ * @author Yuen Hsi Chang
+ */
+public class SnapshotScan implements Iterator<Pair<RID,byte[]>>
+{
+    private VersionedHeapFile file;
+    private long timestamp;
+    private int[] pageIds;
+    private int index;
+
+    // Records of the page last read that have not been returned yet.
+    private ArrayList<Pair<RID,byte[]>> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a scan over the heads on the given data pages.
+     * @param file the versioned heap file the pages belong to.
+     * @param timestamp the timestamp of the snapshot to read.
+     * @param pageIds data page ids of the file, in scan order.
+     */
+    public SnapshotScan(VersionedHeapFile file, long timestamp, int[] pageIds)
+    {
+        this.file = file;
+        this.timestamp = timestamp;
+        this.pageIds = pageIds;
+        this.index = 0;
+        this.buffered = new ArrayList<Pair<RID,byte[]>>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean hasNext()
+    {
+        while (bufferedPos == buffered.size() && index < pageIds.length)
+        {
+            buffered.clear();
+            bufferedPos = 0;
+            try
+            {
+                file.readPage(pageIds[index++], timestamp, buffered);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return bufferedPos < buffered.size();
+    }
+
+    public Pair<RID,byte[]> next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.get(bufferedPos++);
+    }
+}
@@ -0,0 +1,705 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Heap file that keeps several versions of each record, so readers see
+ * a consistent snapshot of the file without holding locks that would
+ * stall writers, and writers never wait for readers.
+ *
+ * Every stored version starts with a header of HEADER_SIZE bytes: the
+ * timestamp of the change that wrote it (begin), the timestamp of the
+ * change that replaced or deleted it (end, INFINITY while it is
+ * current), a link RID and flags. A version is seen by a snapshot
+ * taken at timestamp t when begin <= t < end.
+ *
+ * A record is known by the RID of its head, the version it was
+ * inserted as, and that RID never changes. The head always holds the
+ * newest version, replaced in its slot on each update, and links to
+ * the version before it, which links to the one before that, so a
+ * reader of recent data finds it in one step and only older snapshots
+ * walk the chain. An update copies the head out to a slot of its own
+ * as the older version, then writes the new version over the head.
+ * When the new version does not fit on the head's page, it is stored
+ * elsewhere and the head becomes a short redirect to it, which the
+ * vacuum moves back into the head once there is room.
+ *
+ * Writes are serialized and each is committed as it is made, with the
+ * next timestamp. Readers take no locks: each read remembers the
+ * version of the file's write latch before it starts and checks it is
+ * unchanged when it is done, starting over if a write moved records
+ * under it, and only falls back to sharing the latch after a few
+ * attempts that each overlapped a write.
+ *
+ * Versions whose end is no later than the oldest snapshot still in use
+ * can never be read again. The vacuum, run by hand or on a background
+ * thread, unlinks and deletes them a page of heads at a time, and the
+ * slotted pages compact themselves as they do. Older versions are kept
+ * on their head's page when there is room, so the space the vacuum
+ * frees there is taken up again by later updates of the same records.
+ * @author Yuen Hsi Chang
+ */
+public class VersionedHeapFile
+{
+    public static class RecordDeletedException extends RuntimeException {};
+
+    /**
+     * End timestamp of a version that has not been replaced or deleted.
+     */
+    public static final long INFINITY = Long.MAX_VALUE;
+
+    /**
+     * Bytes of header stored in front of each version.
+     */
+    public static final int HEADER_SIZE = 28;
+
+    // Layout of a version's header, in bytes.
+    private static final int BEGIN = 0;
+    private static final int END = 8;
+    private static final int LINK_PAGE = 16;
+    private static final int LINK_SLOT = 20;
+    private static final int FLAGS = 24;
+
+    // Set on the version a record is known by.
+    private static final int HEAD = 1;
+    // Set on a head holding no data, whose link is the newest version.
+    private static final int REDIRECT = 2;
+
+    // Optimistic attempts a reader makes before sharing the latch.
+    private static final int OPTIMISTIC_TRIES = 3;
+
+    private HeapFile heap;
+    private StampedLock latch;
+    private volatile long committed;
+
+    // Timestamps of the snapshots in use, each with how many there are.
+    private TreeMap<Long,Integer> active;
+
+    private Thread vacuumThread;
+
+    // A read that may be started over if a write overlapped it.
+    private interface Read<T>
+    {
+        T run() throws IOException;
+    }
+
+    /**
+     * Creates a new, empty versioned heap file backed by a new database
+     * file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public VersionedHeapFile(String name, int numPages, BufferManager bufMgr)
+        throws IOException
+    {
+        this.heap = new HeapFile(name, numPages, bufMgr);
+        this.latch = new StampedLock();
+        this.active = new TreeMap<Long,Integer>();
+        this.committed = 0;
+    }
+
+    /**
+     * Opens an existing versioned heap file, carrying on from the latest
+     * timestamp stored in it.
+     * @param name the name of the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public VersionedHeapFile(String name, BufferManager bufMgr)
+        throws IOException
+    {
+        this.heap = new HeapFile(name, bufMgr);
+        this.latch = new StampedLock();
+        this.active = new TreeMap<Long,Integer>();
+        long latest = 0;
+        HeapFileScan scan = heap.scan();
+        while (scan.hasNext())
+        {
+            ByteBuffer version = ByteBuffer.wrap(scan.next().second);
+            latest = Math.max(latest, version.getLong(BEGIN));
+            if (version.getLong(END) != INFINITY)
+                latest = Math.max(latest, version.getLong(END));
+        }
+        this.committed = latest;
+    }
+
+    /**
+     * Returns the name of the underlying database file.
+     * @return the file name.
+     */
+    public String getFileName()
+    {
+        return heap.getFileName();
+    }
+
+    /**
+     * Returns the timestamp of the last change committed.
+     * @return the timestamp.
+     */
+    public long getCommitted()
+    {
+        return committed;
+    }
+
+    /**
+     * Takes a snapshot of the file as it is now. It must be released
+     * when no longer needed.
+     * @return the snapshot.
+     */
+    public Snapshot snapshot()
+    {
+        synchronized (active)
+        {
+            long timestamp = committed;
+            active.merge(timestamp, 1, Integer::sum);
+            return new Snapshot(this, timestamp);
+        }
+    }
+
+    void release(long timestamp)
+    {
+        synchronized (active)
+        {
+            if (active.merge(timestamp, -1, Integer::sum) == 0)
+                active.remove(timestamp);
+        }
+    }
+
+    /**
+     * Returns the timestamp below which versions can no longer be read:
+     * that of the oldest snapshot in use, or of the last change if none
+     * is. A version whose end is no later than this is dead.
+     * @return the timestamp.
+     */
+    public long getHorizon()
+    {
+        synchronized (active)
+        {
+            return active.isEmpty() ? committed : active.firstKey();
+        }
+    }
+
+    /**
+     * Inserts a record.
+     * @param record the record to be inserted.
+     * @return the RID the record is known by from now on.
+     * @throws SlottedPage.PageFullException if the record and its header
+     * do not fit even on an empty page.
+     * @throws HeapFile.BufferFullException if every frame in the buffer
+     * pool is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized RID insertRecord(byte[] record) throws IOException
+    {
+        long timestamp = committed + 1;
+        long stamp = latch.writeLock();
+        try
+        {
+            RID rid = heap.insertRecord(version(timestamp, INFINITY, null,
+                                                HEAD, record));
+            committed = timestamp;
+            return rid;
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces a record with a new version. Snapshots taken before keep
+     * seeing the old one.
+     * @param rid the RID of the record.
+     * @param record the new contents of the record.
+     * @throws RecordDeletedException if the record has been deleted.
+     * @throws SlottedPage.BadSlotIdException if rid does not name a
+     * record.
+     * @throws SlottedPage.PageFullException if the new version does not
+     * fit even on an empty page.
+     * @throws HeapFile.BufferFullException if every frame in the buffer
+     * pool is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void updateRecord(RID rid, byte[] record)
+        throws IOException
+    {
+        long timestamp = committed + 1;
+        long stamp = latch.writeLock();
+        try
+        {
+            byte[] head = readHead(rid);
+            RID older;
+            if ((flags(head) & REDIRECT) != 0)
+            {
+                older = link(head);
+                if (!endVersion(older, timestamp))
+                    throw new RecordDeletedException();
+            }
+            else
+            {
+                if (getLong(head, END) != INFINITY)
+                    throw new RecordDeletedException();
+                putLong(head, END, timestamp);
+                putInt(head, FLAGS, 0);
+                older = insertNear(rid.pageId, head);
+            }
+
+            if (!replace(rid, version(timestamp, INFINITY, older, HEAD,
+                                      record)))
+            {
+                RID newest = heap.insertRecord(
+                    version(timestamp, INFINITY, older, 0, record));
+                // No version is shorter than a redirect, so it fits.
+                replace(rid, version(0, 0, newest, HEAD | REDIRECT,
+                                     new byte[0]));
+            }
+            committed = timestamp;
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Deletes a record. Snapshots taken before keep seeing it until the
+     * vacuum reclaims it after they are released.
+     * @param rid the RID of the record.
+     * @return true if the record was deleted, false if it already was.
+     * @throws SlottedPage.BadSlotIdException if rid does not name a
+     * record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean deleteRecord(RID rid) throws IOException
+    {
+        long timestamp = committed + 1;
+        long stamp = latch.writeLock();
+        try
+        {
+            byte[] head = readHead(rid);
+            RID newest = (flags(head) & REDIRECT) != 0 ? link(head) : rid;
+            if (!endVersion(newest, timestamp))
+                return false;
+            committed = timestamp;
+            return true;
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns a copy of a record as a snapshot sees it.
+     * @param snapshot the snapshot to read.
+     * @param rid the RID of the record.
+     * @return the record, or null if it did not exist or had been
+     * deleted when the snapshot was taken.
+     * @throws SlottedPage.BadSlotIdException if rid does not name a
+     * record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public byte[] getRecord(Snapshot snapshot, RID rid) throws IOException
+    {
+        long timestamp = snapshot.getTimestamp();
+        return optimistic(() -> visible(readHead(rid), timestamp));
+    }
+
+    /**
+     * Returns a scan over copies of the records a snapshot sees,
+     * together with their RIDs.
+     * @param snapshot the snapshot to read.
+     * @return the scan.
+     * @throws IOException passed through from underlying file system.
+     */
+    public SnapshotScan scan(Snapshot snapshot) throws IOException
+    {
+        return new SnapshotScan(this, snapshot.getTimestamp(),
+                                optimistic(() -> heap.getPageIds()));
+    }
+
+    /**
+     * Adds the records of a data page that a snapshot sees to a list.
+     * @param pageId the data page.
+     * @param timestamp the timestamp of the snapshot.
+     * @param out the list to add records to.
+     * @throws IOException passed through from underlying file system.
+     */
+    void readPage(int pageId, long timestamp, List<Pair<RID,byte[]>> out)
+        throws IOException
+    {
+        int mark = out.size();
+        optimistic(() -> {
+                out.subList(mark, out.size()).clear();
+                for (RID rid : heads(pageId))
+                {
+                    byte[] record = visible(read(rid), timestamp);
+                    if (record != null)
+                        out.add(new Pair<RID,byte[]>(rid, record));
+                }
+                return null;
+            });
+    }
+
+    /**
+     * Returns how many versions, counting redirects, are stored.
+     * @return the number of versions.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized int getNumVersions() throws IOException
+    {
+        int count = 0;
+        HeapFileScan scan = heap.scan();
+        for (; scan.hasNext(); scan.next())
+            count++;
+        return count;
+    }
+
+    /**
+     * Reclaims every version no snapshot can read any more. Records are
+     * vacuumed a page of heads at a time, so writers only wait for one
+     * page.
+     * @return the number of versions deleted, not counting redirects.
+     * @throws HeapFile.BufferFullException if every frame in the buffer
+     * pool is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int vacuum() throws IOException
+    {
+        long horizon = getHorizon();
+        int[] pageIds;
+        synchronized (this)
+        {
+            pageIds = heap.getPageIds();
+        }
+        int reclaimed = 0;
+        for (int pageId : pageIds)
+            reclaimed += vacuumPage(pageId, horizon);
+        return reclaimed;
+    }
+
+    /**
+     * Starts vacuuming on a background thread, repeatedly, until
+     * stopVacuum is called.
+     * @param periodMillis how long to wait between passes.
+     */
+    public synchronized void startVacuum(long periodMillis)
+    {
+        if (vacuumThread != null)
+            return;
+        vacuumThread = new Thread(() -> {
+                try
+                {
+                    while (true)
+                    {
+                        vacuum();
+                        Thread.sleep(periodMillis);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }, "vacuum " + getFileName());
+        vacuumThread.setDaemon(true);
+        vacuumThread.start();
+    }
+
+    /**
+     * Stops background vacuuming, waiting for a pass under way to end.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void stopVacuum() throws InterruptedException
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            thread = vacuumThread;
+            vacuumThread = null;
+        }
+        if (thread == null)
+            return;
+        thread.interrupt();
+        thread.join();
+    }
+
+    // Runs a read without the latch, starting over while a write
+    // overlaps it, and sharing the latch once it has tried long enough.
+    private <T> T optimistic(Read<T> read) throws IOException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            long stamp = attempt < OPTIMISTIC_TRIES ?
+                latch.tryOptimisticRead() : latch.readLock();
+            try
+            {
+                T result = read.run();
+                if (latch.validate(stamp))
+                    return result;
+            }
+            catch (RuntimeException e)
+            {
+                // A torn read of a page being written fails its check
+                // too; anything else is real.
+                if (latch.validate(stamp))
+                    throw e;
+            }
+            finally
+            {
+                if (StampedLock.isReadLockStamp(stamp))
+                    latch.unlockRead(stamp);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Deletes the dead versions of the records whose heads are on a
+    // page, and moves redirected versions back into their heads.
+    private synchronized int vacuumPage(int pageId, long horizon)
+        throws IOException
+    {
+        long stamp = latch.writeLock();
+        try
+        {
+            int reclaimed = 0;
+            for (RID rid : heads(pageId))
+                reclaimed += vacuumRecord(rid, horizon);
+            return reclaimed;
+        }
+        finally
+        {
+            latch.unlockWrite(stamp);
+        }
+    }
+
+    private int vacuumRecord(RID rid, long horizon) throws IOException
+    {
+        byte[] head = read(rid);
+        boolean redirected = (flags(head) & REDIRECT) != 0;
+        ArrayList<RID> chain = new ArrayList<RID>();
+        ArrayList<byte[]> versions = new ArrayList<byte[]>();
+        for (RID at = redirected ? link(head) : rid; at != null; )
+        {
+            byte[] version = at == rid ? head : read(at);
+            chain.add(at);
+            versions.add(version);
+            at = link(version);
+        }
+
+        // Ends only get earlier down the chain, so the dead versions
+        // are its tail, or all of it once a deletion is old enough.
+        int live = 0;
+        while (live < chain.size() &&
+               getLong(versions.get(live), END) > horizon)
+            live++;
+        for (int i = live; i < chain.size(); i++)
+            heap.deleteRecord(chain.get(i));
+        int reclaimed = chain.size() - live;
+        if (live == 0)
+        {
+            if (redirected)
+                heap.deleteRecord(rid);
+            return reclaimed;
+        }
+        if (live < chain.size())
+            setLink(chain.get(live - 1), null);
+
+        if (redirected)
+        {
+            byte[] newest = read(chain.get(0));
+            putInt(newest, FLAGS, HEAD);
+            if (replace(rid, newest))
+                heap.deleteRecord(chain.get(0));
+        }
+        return reclaimed;
+    }
+
+    // Returns the data of the version of a record a snapshot sees,
+    // starting from its head.
+    private byte[] visible(byte[] version, long timestamp) throws IOException
+    {
+        if ((flags(version) & REDIRECT) != 0)
+            version = read(link(version));
+        while (true)
+        {
+            if (getLong(version, END) <= timestamp)
+                return null;
+            if (getLong(version, BEGIN) <= timestamp)
+                return Arrays.copyOfRange(version, HEADER_SIZE,
+                                          version.length);
+            RID older = link(version);
+            if (older == null)
+                return null;
+            version = read(older);
+        }
+    }
+
+    // The RIDs of the heads stored on a data page.
+    private ArrayList<RID> heads(int pageId) throws IOException
+    {
+        ArrayList<RID> rids = new ArrayList<RID>();
+        Page page = heap.pin(pageId);
+        try
+        {
+            SlottedPage sp = HeapFile.wrap(page, pageId);
+            ByteBuffer data = ByteBuffer.wrap(page.data);
+            int numSlots = sp.getNumSlots();
+            for (int slot = 1; slot <= numSlots; slot++)
+            {
+                int offset = sp.getRecordOffset(slot);
+                if (offset != 0 && (data.getInt(offset + FLAGS) & HEAD) != 0)
+                    rids.add(new RID(pageId, slot));
+            }
+        }
+        finally
+        {
+            heap.getBufferManager().unpinPage(pageId, heap.getFileName(),
+                                              false);
+        }
+        return rids;
+    }
+
+    private byte[] readHead(RID rid) throws IOException
+    {
+        byte[] head = read(rid);
+        if ((flags(head) & HEAD) == 0)
+            throw new SlottedPage.BadSlotIdException();
+        return head;
+    }
+
+    private byte[] read(RID rid) throws IOException
+    {
+        return heap.getRecord(rid);
+    }
+
+    // Sets the end of a current version.
+    private boolean endVersion(RID rid, long timestamp) throws IOException
+    {
+        Page page = heap.pin(rid.pageId);
+        boolean current = false;
+        try
+        {
+            int offset = HeapFile.wrap(page, rid.pageId)
+                .getRecordOffset(rid.slotNum);
+            ByteBuffer data = ByteBuffer.wrap(page.data);
+            current = data.getLong(offset + END) == INFINITY;
+            if (current)
+                data.putLong(offset + END, timestamp);
+        }
+        finally
+        {
+            heap.getBufferManager().unpinPage(rid.pageId, heap.getFileName(),
+                                              current);
+        }
+        return current;
+    }
+
+    private void setLink(RID rid, RID link) throws IOException
+    {
+        Page page = heap.pin(rid.pageId);
+        try
+        {
+            int offset = HeapFile.wrap(page, rid.pageId)
+                .getRecordOffset(rid.slotNum);
+            ByteBuffer data = ByteBuffer.wrap(page.data);
+            data.putInt(offset + LINK_PAGE,
+                        link == null ? SlottedPage.INVALID_PAGE : link.pageId);
+            data.putInt(offset + LINK_SLOT, link == null ? 0 : link.slotNum);
+        }
+        finally
+        {
+            heap.getBufferManager().unpinPage(rid.pageId, heap.getFileName(),
+                                              true);
+        }
+    }
+
+    // Inserts a version on the given page if it fits, or wherever the
+    // heap file puts it if not.
+    private RID insertNear(int pageId, byte[] version) throws IOException
+    {
+        Page page = heap.pin(pageId);
+        RID rid = null;
+        try
+        {
+            SlottedPage sp = HeapFile.wrap(page, pageId);
+            if (sp.getAvailableSpace() >= version.length)
+                rid = sp.insertRecord(version);
+        }
+        finally
+        {
+            heap.getBufferManager().unpinPage(pageId, heap.getFileName(),
+                                              rid != null);
+        }
+        return rid != null ? rid : heap.insertRecord(version);
+    }
+
+    // Writes a version over a record in its slot, if it fits there.
+    private boolean replace(RID rid, byte[] version) throws IOException
+    {
+        Page page = heap.pin(rid.pageId);
+        boolean replaced = false;
+        try
+        {
+            HeapFile.wrap(page, rid.pageId).updateRecord(rid, version);
+            replaced = true;
+        }
+        catch (SlottedPage.PageFullException e)
+        {
+        }
+        finally
+        {
+            heap.getBufferManager().unpinPage(rid.pageId, heap.getFileName(),
+                                              replaced);
+        }
+        return replaced;
+    }
+
+    private static byte[] version(long begin, long end, RID link, int flags,
+                                  byte[] record)
+    {
+        byte[] version = new byte[HEADER_SIZE + record.length];
+        putLong(version, BEGIN, begin);
+        putLong(version, END, end);
+        ByteBuffer.wrap(version)
+            .putInt(LINK_PAGE,
+                    link == null ? SlottedPage.INVALID_PAGE : link.pageId)
+            .putInt(LINK_SLOT, link == null ? 0 : link.slotNum);
+        putInt(version, FLAGS, flags);
+        System.arraycopy(record, 0, version, HEADER_SIZE, record.length);
+        return version;
+    }
+
+    private static RID link(byte[] version)
+    {
+        ByteBuffer data = ByteBuffer.wrap(version);
+        int pageId = data.getInt(LINK_PAGE);
+        return pageId == SlottedPage.INVALID_PAGE ?
+            null : new RID(pageId, data.getInt(LINK_SLOT));
+    }
+
+    private static int flags(byte[] version)
+    {
+        return ByteBuffer.wrap(version).getInt(FLAGS);
+    }
+
+    private static long getLong(byte[] version, int offset)
+    {
+        return ByteBuffer.wrap(version).getLong(offset);
+    }
+
+    private static void putLong(byte[] version, int offset, long value)
+    {
+        ByteBuffer.wrap(version).putLong(offset, value);
+    }
+
+    private static void putInt(byte[] version, int offset, int value)
+    {
+        ByteBuffer.wrap(version).putInt(offset, value);
+    }
+}
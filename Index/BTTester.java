@@ -0,0 +1,657 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class BTTester
+{
+    public static interface Testable
+    {
+        void test(BufferManager bufMgr, String filename) throws Exception;
+    }
+
+    public static class TestFailedException extends RuntimeException
+    {
+        public TestFailedException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    // Checks that a full scan returns entries in strictly increasing
+    // (key, rid) order and returns how many there were.
+    public static int checkOrder(BTreeFile tree) throws IOException
+    {
+        BTreeScan scan = tree.rangeScan(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        Pair<Integer,RID> prev = null;
+        int count = 0;
+        while (scan.hasNext())
+        {
+            Pair<Integer,RID> cur = scan.next();
+            if (prev != null &&
+                BTreePage.compare(prev.first, prev.second.pageId,
+                                  prev.second.slotNum, cur.first,
+                                  cur.second.pageId, cur.second.slotNum) >= 0)
+                throw new TestFailedException("Scan out of order");
+            prev = cur;
+            count++;
+        }
+        return count;
+    }
+
+    //----------------------------------------------------
+    // test 1
+    //      Insert keys in random order, look each one up and
+    //      scan ranges
+    //----------------------------------------------------
+    public static class Test1 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 1 -------");
+            int numKeys = 20000;
+            BTreeFile tree = new BTreeFile(filename, NUMPAGES, bufMgr);
+            List<Integer> keys = new ArrayList<Integer>();
+            for (int i = 0; i < numKeys; i++)
+                keys.add(i);
+            Collections.shuffle(keys, new Random(1));
+            for (int key : keys)
+                tree.insert(key, new RID(key / 10, key % 10));
+            System.out.println("Inserted " + numKeys + " keys, height " +
+                               tree.getHeight());
+
+            for (int key = 0; key < numKeys; key++)
+            {
+                List<RID> rids = tree.search(key);
+                if (rids.size() != 1 || rids.get(0).pageId != key / 10 ||
+                    rids.get(0).slotNum != key % 10)
+                    throw new TestFailedException("Lookup failed for " + key);
+            }
+            if (!tree.search(numKeys).isEmpty())
+                throw new TestFailedException("Found a key never inserted");
+
+            BTreeScan scan = tree.rangeScan(500, 1499);
+            int expected = 500;
+            while (scan.hasNext())
+                if (scan.next().first != expected++)
+                    throw new TestFailedException("Range scan wrong");
+            if (expected != 1500)
+                throw new TestFailedException("Range scan stopped early");
+            if (checkOrder(tree) != numKeys)
+                throw new TestFailedException("Full scan count wrong");
+            System.out.println("Lookups and range scans correct");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 2
+    //      Duplicate keys spread over several leaves
+    //----------------------------------------------------
+    public static class Test2 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 2 -------");
+            BTreeFile tree = new BTreeFile(filename, NUMPAGES, bufMgr);
+            for (int slot = 0; slot < 300; slot++)
+                for (int key = 0; key < 20; key++)
+                    tree.insert(key, new RID(slot, key));
+
+            for (int key = 0; key < 20; key++)
+                if (tree.search(key).size() != 300)
+                    throw new TestFailedException("Lost a duplicate key");
+            try
+            {
+                tree.insert(3, new RID(7, 3));
+                throw new TestFailedException("Inserted an entry twice");
+            }
+            catch (BTreeFile.DuplicateEntryException e)
+            {
+                System.out.println("Correctly refused duplicate entry");
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // test 3
+    //      Delete entries in random order until the tree is
+    //      empty, checking it after each batch
+    //----------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            int numKeys = 10000;
+            BTreeFile tree = new BTreeFile(filename, NUMPAGES, bufMgr);
+            List<Integer> keys = new ArrayList<Integer>();
+            for (int i = 0; i < numKeys; i++)
+            {
+                keys.add(i);
+                tree.insert(i, new RID(i, 0));
+            }
+            int fullHeight = tree.getHeight();
+
+            Collections.shuffle(keys, new Random(2));
+            for (int i = 0; i < numKeys; i++)
+            {
+                int key = keys.get(i);
+                if (!tree.delete(key, new RID(key, 0)))
+                    throw new TestFailedException("Unable to delete " + key);
+                if (i % 1000 == 999 &&
+                    checkOrder(tree) != numKeys - i - 1)
+                    throw new TestFailedException("Wrong count after delete");
+            }
+            if (tree.delete(keys.get(0), new RID(keys.get(0), 0)))
+                throw new TestFailedException("Deleted an entry twice");
+            System.out.println("Height went from " + fullHeight + " to " +
+                               tree.getHeight() + " after deleting all");
+            if (tree.getHeight() != 1)
+                throw new TestFailedException("Empty tree not collapsed");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 4
+    //      Index a heap file and fetch records through it
+    //----------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            String heapName = filename + ".heap";
+            HeapFile hf = new HeapFile(heapName, NUMPAGES, bufMgr);
+            BTreeFile tree = new BTreeFile(filename, NUMPAGES, bufMgr);
+            for (int i = 0; i < 2000; i++)
+            {
+                int key = (i * 7919) % 2000;
+                RID rid = hf.insertRecord(HFTester.makeRecord(key, 24));
+                tree.insert(key, rid);
+            }
+            bufMgr.flushAllPages();
+
+            BTreeFile reopened = new BTreeFile(filename, bufMgr);
+            for (int key = 0; key < 2000; key += 37)
+            {
+                RID rid = reopened.search(key).get(0);
+                if (HFTester.keyOf(hf.getRecord(rid)) != key)
+                    throw new TestFailedException("Index points at wrong " +
+                                                  "record");
+            }
+            System.out.println("Fetched heap records through the index");
+            DBFile.erase(heapName);
+        }
+    }
+
+    //----------------------------------------------------
+    // test 5
+    //      Bulk load sorted entries, then keep using the tree
+    //      with ordinary inserts and deletes
+    //----------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            int numKeys = 30000;
+            List<Pair<Integer,RID>> entries =
+                new ArrayList<Pair<Integer,RID>>();
+            for (int i = 0; i < numKeys; i++)
+                entries.add(new Pair<Integer,RID>(2 * i, new RID(i, 1)));
+
+            BTreeBulkLoader loader = new BTreeBulkLoader(bufMgr, 0.7);
+            BTreeFile tree = loader.load(filename, NUMPAGES,
+                                         entries.iterator());
+            System.out.println("Bulk loaded " + numKeys + " keys, height " +
+                               tree.getHeight());
+            if (checkOrder(tree) != numKeys)
+                throw new TestFailedException("Bulk loaded count wrong");
+            for (int i = 0; i < numKeys; i += 101)
+                if (tree.search(2 * i).get(0).pageId != i)
+                    throw new TestFailedException("Bulk loaded lookup wrong");
+
+            // Odd keys fall between the loaded ones.
+            for (int i = 0; i < numKeys; i += 3)
+                tree.insert(2 * i + 1, new RID(i, 2));
+            for (int i = 0; i < numKeys; i += 2)
+                if (!tree.delete(2 * i, new RID(i, 1)))
+                    throw new TestFailedException("Unable to delete " + 2 * i);
+            int expected = numKeys / 3 + numKeys / 2;
+            if (checkOrder(tree) != expected)
+                throw new TestFailedException("Count wrong after updates");
+
+            try
+            {
+                Collections.swap(entries, 10, 11);
+                DBFile.erase(filename);
+                loader.load(filename, NUMPAGES, entries.iterator());
+                throw new TestFailedException("Loaded unsorted input");
+            }
+            catch (BTreeBulkLoader.UnsortedInputException e)
+            {
+                System.out.println("Correctly refused unsorted input");
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // test 6
+    //      Stress the concurrent tree with writer threads
+    //      inserting and deleting while readers look up and
+    //      scan
+    //----------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        public void test(final BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test " + number() + " -------");
+            final int writers = 4;
+            final int readers = 3;
+            final int perWriter = 5000;
+            final BTreeFile tree = makeTree(filename, bufMgr);
+            final int[] progress = new int[writers];
+            final List<Throwable> failures =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+            final AtomicBoolean done = new AtomicBoolean(false);
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int w = 0; w < writers; w++)
+            {
+                final int id = w;
+                threads.add(new Thread(() -> {
+                    try
+                    {
+                        // Keys of different writers interleave, so they
+                        // keep landing in the same leaves.
+                        for (int i = 0; i < perWriter; i++)
+                        {
+                            tree.insert(i * writers + id, new RID(id, i));
+                            synchronized (progress)
+                            {
+                                progress[id] = i + 1;
+                            }
+                        }
+                        for (int i = 0; i < perWriter; i += 10)
+                            if (!tree.delete(i * writers + id,
+                                             new RID(id, i)))
+                                throw new TestFailedException("Lost key");
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }));
+            }
+            for (int r = 0; r < readers; r++)
+            {
+                final Random rand = new Random(r);
+                threads.add(new Thread(() -> {
+                    try
+                    {
+                        while (!done.get())
+                        {
+                            int id = rand.nextInt(writers);
+                            int seen;
+                            synchronized (progress)
+                            {
+                                seen = progress[id];
+                            }
+                            // Keys that are never deleted must be found
+                            // once their writer has inserted them.
+                            if (seen > 1)
+                            {
+                                int i = rand.nextInt(seen);
+                                if (i % 10 != 0 &&
+                                    tree.search(i * writers + id).size() != 1)
+                                    throw new TestFailedException(
+                                        "Inserted key not found");
+                            }
+                            int low = rand.nextInt(perWriter * writers);
+                            BTreeScan scan = tree.rangeScan(low, low + 500);
+                            int prev = Integer.MIN_VALUE;
+                            while (scan.hasNext())
+                            {
+                                int key = scan.next().first;
+                                if (key <= prev)
+                                    throw new TestFailedException(
+                                        "Concurrent scan out of order");
+                                prev = key;
+                            }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }));
+            }
+
+            for (Thread t : threads)
+                t.start();
+            for (int i = 0; i < writers; i++)
+                threads.get(i).join();
+            done.set(true);
+            for (Thread t : threads)
+                t.join();
+
+            if (!failures.isEmpty())
+            {
+                failures.get(0).printStackTrace();
+                throw new TestFailedException("Concurrent operation failed");
+            }
+            int expected = writers * (perWriter - perWriter / 10);
+            if (checkOrder(tree) != expected)
+                throw new TestFailedException("Wrong count after stress");
+            System.out.println(writers + " writers and " + readers +
+                               " readers left " + expected +
+                               " entries, height " + tree.getHeight());
+        }
+
+        int number()
+        {
+            return 6;
+        }
+
+        BTreeFile makeTree(String filename, BufferManager bufMgr)
+            throws IOException
+        {
+            return new ConcurrentBTreeFile(filename, NUMPAGES, bufMgr);
+        }
+    }
+
+    //----------------------------------------------------
+    // test 7
+    //      Build string indexes over keys with long shared
+    //      prefixes, with and without compression, and check
+    //      that compression gives fewer leaves and the same
+    //      answers
+    //----------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+            int numKeys = 5000;
+            String plainName = filename + "_plain";
+            DBFile.erase(plainName);
+            try
+            {
+                StringBTreeFile packed =
+                    new StringBTreeFile(filename, NUMPAGES, bufMgr, true);
+                StringBTreeFile plain =
+                    new StringBTreeFile(plainName, NUMPAGES, bufMgr, false);
+                List<String> keys = new ArrayList<String>();
+                for (int i = 0; i < numKeys; i++)
+                    keys.add("https://www.example.com/catalog/products/item-" +
+                             String.format("%06d", i * 7) + "/reviews");
+                Collections.shuffle(keys, new Random(7));
+                for (int i = 0; i < numKeys; i++)
+                {
+                    packed.insert(keys.get(i), new RID(i, 0));
+                    plain.insert(keys.get(i), new RID(i, 0));
+                }
+                // Duplicates with a different RID are allowed.
+                packed.insert(keys.get(0), new RID(numKeys, 0));
+                plain.insert(keys.get(0), new RID(numKeys, 0));
+
+                for (StringBTreeFile tree : Arrays.asList(packed, plain))
+                {
+                    for (int i = 0; i < numKeys; i++)
+                    {
+                        List<RID> rids = tree.search(keys.get(i));
+                        if (rids.size() != (i == 0 ? 2 : 1) ||
+                            rids.get(0).pageId != i)
+                            throw new TestFailedException(
+                                "Lookup failed for " + keys.get(i));
+                    }
+                    if (!tree.search("https://www.example.com/").isEmpty())
+                        throw new TestFailedException("Found a missing key");
+
+                    Iterator<Pair<String,RID>> scan =
+                        tree.rangeScan("", "\uffff");
+                    String prev = null;
+                    int count = 0;
+                    while (scan.hasNext())
+                    {
+                        String key = scan.next().first;
+                        if (prev != null && key.compareTo(prev) < 0)
+                            throw new TestFailedException("Scan out of order");
+                        prev = key;
+                        count++;
+                    }
+                    if (count != numKeys + 1)
+                        throw new TestFailedException("Full scan count wrong");
+                }
+
+                int packedLeaves = packed.getNumLeaves();
+                int plainLeaves = plain.getNumLeaves();
+                if (packedLeaves >= plainLeaves)
+                    throw new TestFailedException(
+                        "Compression did not save leaves");
+                System.out.println("Compressed: " + packedLeaves +
+                                   " leaves, height " + packed.getHeight() +
+                                   "; plain: " + plainLeaves +
+                                   " leaves, height " + plain.getHeight());
+
+                for (int i = 0; i < numKeys; i += 2)
+                    if (!packed.delete(keys.get(i), new RID(i, 0)))
+                        throw new TestFailedException("Unable to delete " +
+                                                      keys.get(i));
+                if (packed.delete(keys.get(2), new RID(2, 0)))
+                    throw new TestFailedException("Deleted an entry twice");
+                for (int i = 1; i < numKeys; i += 2)
+                    if (packed.search(keys.get(i)).size() != 1)
+                        throw new TestFailedException("Lost a key on delete");
+
+                packed = new StringBTreeFile(filename, bufMgr);
+                if (packed.search(keys.get(1)).size() != 1)
+                    throw new TestFailedException("Reopened index wrong");
+            }
+            finally
+            {
+                DBFile.erase(plainName);
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // test 8
+    //      Extendible hash index: random keys, a key with
+    //      many RIDs, deletes and reopening
+    //----------------------------------------------------
+    public static class Test8 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 8 -------");
+            int numKeys = 20000;
+            HashIndexFile index = new HashIndexFile(filename, NUMPAGES, bufMgr);
+            Random random = new Random(8);
+            HashSet<Integer> used = new HashSet<Integer>();
+            int[] keys = new int[numKeys];
+            for (int i = 0; i < numKeys; i++)
+            {
+                do
+                    keys[i] = random.nextInt();
+                while (!used.add(keys[i]));
+                index.insert(keys[i], new RID(i, 0));
+            }
+            for (int slot = 1; slot <= 300; slot++)
+                index.insert(keys[0], new RID(0, slot));
+            System.out.println("Inserted " + numKeys + " keys, global depth " +
+                               index.getGlobalDepth());
+
+            for (int i = 1; i < numKeys; i++)
+            {
+                List<RID> rids = index.search(keys[i]);
+                if (rids.size() != 1 || rids.get(0).pageId != i)
+                    throw new TestFailedException("Lookup failed for " +
+                                                  keys[i]);
+            }
+            if (index.search(keys[0]).size() != 301)
+                throw new TestFailedException("Lost a duplicate key");
+            try
+            {
+                index.insert(keys[5], new RID(5, 0));
+                throw new TestFailedException("Inserted an entry twice");
+            }
+            catch (HashIndexFile.DuplicateEntryException e)
+            {
+            }
+
+            for (int i = 0; i < numKeys; i += 2)
+                if (!index.delete(keys[i], new RID(i, 0)))
+                    throw new TestFailedException("Unable to delete " +
+                                                  keys[i]);
+            for (int slot = 1; slot <= 300; slot++)
+                if (!index.delete(keys[0], new RID(0, slot)))
+                    throw new TestFailedException("Unable to delete " +
+                                                  "duplicate");
+            if (index.delete(keys[2], new RID(2, 0)))
+                throw new TestFailedException("Deleted an entry twice");
+            bufMgr.flushAllPages();
+
+            HashIndexFile reopened = new HashIndexFile(filename, bufMgr);
+            for (int i = 0; i < numKeys; i++)
+                if (reopened.search(keys[i]).size() != i % 2)
+                    throw new TestFailedException("Wrong entries after " +
+                                                  "delete");
+            System.out.println("Lookups, duplicates and deletes correct");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 9
+    //      Bloom filters: no false negatives, few false
+    //      positives, and an index that keeps one answers
+    //      lookups of missing keys from it, also when reopened
+    //----------------------------------------------------
+    public static class Test9 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 9 -------");
+            int numKeys = 10000;
+            BloomFilter memory = new BloomFilter(numKeys);
+            for (int i = 0; i < numKeys; i++)
+                memory.set(i * 2);
+            int falsePositives = 0;
+            for (int i = 0; i < numKeys; i++)
+            {
+                if (!memory.mightContain(i * 2))
+                    throw new TestFailedException("False negative");
+                if (memory.mightContain(i * 2 + 1))
+                    falsePositives++;
+            }
+            System.out.println(falsePositives + " false positives in " +
+                               numKeys + " with " + memory.getNumBlocks() +
+                               " blocks");
+            if (falsePositives * 50 > numKeys)
+                throw new TestFailedException("Too many false positives");
+
+            HashIndexFile index =
+                new HashIndexFile(filename, NUMPAGES, bufMgr, numKeys);
+            for (int i = 0; i < numKeys; i++)
+                index.insert(i * 2, new RID(i, 1));
+            bufMgr.flushAllPages();
+            HashIndexFile reopened = new HashIndexFile(filename, bufMgr);
+            int skipped = 0;
+            for (int i = 0; i < numKeys; i++)
+            {
+                if (reopened.search(i * 2).size() != 1)
+                    throw new TestFailedException("Lookup failed for " +
+                                                  i * 2);
+                if (!reopened.mightContain(i * 2 + 1))
+                    skipped++;
+                if (reopened.search(i * 2 + 1).size() != 0)
+                    throw new TestFailedException("Found a missing key");
+            }
+            System.out.println(skipped + " of " + numKeys +
+                               " missing keys answered by the filter");
+            if (skipped * 50 < numKeys * 49)
+                throw new TestFailedException("Filter not used");
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Pages left pinned");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 10
+    //      The same stress on the plain tree, whose readers
+    //      synchronize with its writers
+    //----------------------------------------------------
+    public static class Test10 extends Test6
+    {
+        int number()
+        {
+            return 10;
+        }
+
+        BTreeFile makeTree(String filename, BufferManager bufMgr)
+            throws IOException
+        {
+            return new BTreeFile(filename, NUMPAGES, bufMgr);
+        }
+    }
+
+
+    public static final String FILENAME = "__testing";
+    public static final int NUMBUF = 50;
+    public static final int NUMPAGES = 2000;
+
+
+    public static boolean runTest(Testable testObj)
+    {
+        boolean success = true;
+        try
+        {
+            BufferManager bufMgr = new BufferManager(NUMBUF);
+            testObj.test(bufMgr,FILENAME);
+        }
+        catch (Exception e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+
+        return success;
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running B+-tree tests.");
+
+        DBFile.erase(FILENAME);
+
+        // Run the tests.
+        runTest(new Test1());
+        runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
+        runTest(new Test9());
+        runTest(new Test10());
+
+        // Clean up
+        DBFile.erase(FILENAME);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures throughput of a mixed lookup, range scan and insert
+ * workload as threads are added, comparing the optimistic
+ * ConcurrentBTreeFile with the same tree behind one global lock. The
+ * buffer pool holds the whole index so the run is CPU bound.
+ * Usage: java BTreeBenchmark [numKeys] [maxThreads] [millis]
+ */
+public class BTreeBenchmark
+{
+    public static final String FILENAME = "__btbench";
+
+    /**
+     * One index operation, with the key chosen by the caller.
+     */
+    private static interface Workload
+    {
+        void run(int op, int key) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) :
+            Runtime.getRuntime().availableProcessors();
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+        System.out.println("threads  optimistic ops/s  global lock ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            final ConcurrentBTreeFile tree = build(numKeys);
+            double optimistic = measure(threads, millis, numKeys,
+                                        (op, key) -> operate(tree, op, key));
+            DBFile.erase(FILENAME);
+
+            final ConcurrentBTreeFile locked = build(numKeys);
+            double global = measure(threads, millis, numKeys,
+                                    (op, key) -> {
+                                        synchronized (locked)
+                                        {
+                                            operate(locked, op, key);
+                                        }
+                                    });
+            DBFile.erase(FILENAME);
+            System.out.printf("%7d  %17.0f  %18.0f%n", threads, optimistic,
+                              global);
+        }
+    }
+
+    // Bulk loads the even keys so that inserts can use the odd ones.
+    private static ConcurrentBTreeFile build(int numKeys) throws IOException
+    {
+        DBFile.erase(FILENAME);
+        int numPages = 4 * numKeys / BTreePage.LEAF_CAPACITY + 100;
+        BufferManager bufMgr = new BufferManager(numPages);
+        List<Pair<Integer,RID>> entries = new ArrayList<Pair<Integer,RID>>();
+        for (int i = 0; i < numKeys; i++)
+            entries.add(new Pair<Integer,RID>(2 * i, new RID(i, 0)));
+        new BTreeBulkLoader(bufMgr, 0.7).load(FILENAME, numPages,
+                                               entries.iterator());
+        return new ConcurrentBTreeFile(FILENAME, bufMgr);
+    }
+
+    // 80% lookups, 10% short range scans and 10% inserts.
+    private static void operate(ConcurrentBTreeFile tree, int op, int key)
+        throws IOException
+    {
+        if (op < 8)
+            tree.search(2 * key);
+        else if (op < 9)
+        {
+            BTreeScan scan = tree.rangeScan(2 * key, 2 * key + 100);
+            while (scan.hasNext())
+                scan.next();
+        }
+        else
+        {
+            try
+            {
+                tree.insert(2 * key + 1, new RID(key, 1));
+            }
+            catch (BTreeFile.DuplicateEntryException e)
+            {
+                // Another thread drew the same key.
+            }
+        }
+    }
+
+    private static double measure(int threads, long millis, int numKeys,
+                                  Workload workload)
+        throws Exception
+    {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong ops = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++)
+        {
+            final long seed = t;
+            futures.add(pool.submit(() -> {
+                        SplittableRandom rand = new SplittableRandom(seed);
+                        long count = 0;
+                        while (!stop.get())
+                        {
+                            workload.run(rand.nextInt(10),
+                                         rand.nextInt(numKeys));
+                            count++;
+                        }
+                        ops.addAndGet(count);
+                        return null;
+                    }));
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Future<?> f : futures)
+            f.get();
+        pool.shutdown();
+        return ops.get() * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Builds a BTreeFile bottom-up from entries that are already sorted,
+ * instead of inserting them one at a time from the root. Leaves are
+ * filled left to right to a fill factor and written to contiguous runs
+ * of pages, and then each internal level is built from the first
+ * entries of the level below, so every page is written exactly once.
+ * @author Yuen Hsi Chang
+ */
+public class BTreeBulkLoader
+{
+    public static class UnsortedInputException extends RuntimeException {};
+
+    /**
+     * Number of pages requested from the database at a time.
+     */
+    public static final int DEFAULT_RUN_SIZE = 32;
+
+    /**
+     * First entry and page id of each node on one level, used to build
+     * the level above it.
+     */
+    private static class Level
+    {
+        private ArrayList<Integer> keys = new ArrayList<Integer>();
+        private ArrayList<Integer> ridPages = new ArrayList<Integer>();
+        private ArrayList<Integer> ridSlots = new ArrayList<Integer>();
+        private ArrayList<Integer> pageIds = new ArrayList<Integer>();
+
+        private void add(BTreePage node, int key, int ridPage, int ridSlot)
+        {
+            keys.add(key);
+            ridPages.add(ridPage);
+            ridSlots.add(ridSlot);
+            pageIds.add(node.getPageId());
+        }
+
+        private int size()
+        {
+            return pageIds.size();
+        }
+    }
+
+    private BufferManager bufMgr;
+    private double fillFactor;
+    private int runSize;
+
+    private String fileName;
+    private int runNext;
+    private int runEnd;
+
+    /**
+     * Creates a bulk loader.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param fillFactor fraction of each node to fill, between 0.5
+     * and 1.0. Leaving room lets later inserts avoid immediate splits.
+     */
+    public BTreeBulkLoader(BufferManager bufMgr, double fillFactor)
+    {
+        this(bufMgr, fillFactor, DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * Creates a bulk loader.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param fillFactor fraction of each node to fill, between 0.5
+     * and 1.0.
+     * @param runSize number of contiguous pages to allocate at a time.
+     */
+    public BTreeBulkLoader(BufferManager bufMgr, double fillFactor,
+                           int runSize)
+    {
+        this.bufMgr = bufMgr;
+        this.fillFactor = Math.max(0.5, Math.min(1.0, fillFactor));
+        this.runSize = Math.max(1, runSize);
+    }
+
+    /**
+     * Creates a new index holding the given entries.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param entries (key, RID) pairs in strictly increasing (key, RID)
+     * order.
+     * @return the new index.
+     * @throws UnsortedInputException if the entries are out of order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BTreeFile load(String name, int numPages,
+                          Iterator<Pair<Integer,RID>> entries)
+        throws IOException
+    {
+        new DBFile(name, numPages);
+        fileName = name;
+        runNext = 0;
+        runEnd = 0;
+
+        Pair<Integer,Page> header = allocate();
+        Level level = buildLeaves(entries);
+        int height = 1;
+        while (level.size() > 1)
+        {
+            level = buildInternalLevel(level);
+            height++;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(header.second.data);
+        buf.putInt(0, level.pageIds.get(0));
+        buf.putInt(4, height);
+        bufMgr.unpinPage(header.first, fileName, true);
+
+        // Give back whatever is left of the last run.
+        if (runNext < runEnd)
+            DBFile.open(fileName).deallocatePages(runNext, runEnd - runNext);
+        return new BTreeFile(name, bufMgr);
+    }
+
+    // Writes the leaf level, returning the first entry of each leaf.
+    private Level buildLeaves(Iterator<Pair<Integer,RID>> entries)
+        throws IOException
+    {
+        Level level = new Level();
+        int perLeaf = perNode(BTreePage.LEAF_CAPACITY);
+        Pair<Integer,Page> fresh = allocate();
+        BTreePage leaf = new BTreePage(fresh.second, fresh.first);
+        leaf.init(BTreePage.LEAF);
+        BTreePage prev = null;
+
+        int lastKey = 0, lastPage = 0, lastSlot = 0;
+        boolean first = true;
+        while (entries.hasNext())
+        {
+            Pair<Integer,RID> e = entries.next();
+            int key = e.first;
+            int ridPage = e.second.pageId;
+            int ridSlot = e.second.slotNum;
+            if (!first && BTreePage.compare(lastKey, lastPage, lastSlot,
+                                            key, ridPage, ridSlot) >= 0)
+                throw new UnsortedInputException();
+            first = false;
+            lastKey = key;
+            lastPage = ridPage;
+            lastSlot = ridSlot;
+
+            if (leaf.getNumKeys() == perLeaf)
+            {
+                // Leaves are chained as they are written; the previous
+                // one is only kept pinned until its successor exists.
+                if (prev != null)
+                    bufMgr.unpinPage(prev.getPageId(), fileName, true);
+                prev = leaf;
+                fresh = allocate();
+                leaf = new BTreePage(fresh.second, fresh.first);
+                leaf.init(BTreePage.LEAF);
+                leaf.setPrevPageId(prev.getPageId());
+                prev.setNextPageId(fresh.first);
+            }
+            if (leaf.getNumKeys() == 0)
+                level.add(leaf, key, ridPage, ridSlot);
+            leaf.insertLeafEntry(leaf.getNumKeys(), key, ridPage, ridSlot);
+        }
+
+        if (level.size() == 0)
+            level.add(leaf, 0, 0, 0);
+        boolean folded = false;
+        if (prev != null)
+        {
+            folded = fixLastLeaf(level, prev, leaf);
+            bufMgr.unpinPage(prev.getPageId(), fileName, true);
+        }
+        if (!folded)
+            bufMgr.unpinPage(leaf.getPageId(), fileName, true);
+        return level;
+    }
+
+    // The last leaf may be less than half full. Either fold it into its
+    // left neighbour, unpinning and freeing it and returning true, or
+    // even the two out.
+    private boolean fixLastLeaf(Level level, BTreePage prev, BTreePage last)
+        throws IOException
+    {
+        int min = BTreePage.LEAF_CAPACITY / 2;
+        if (last.getNumKeys() >= min)
+            return false;
+
+        int total = prev.getNumKeys() + last.getNumKeys();
+        int lastIndex = level.size() - 1;
+        if (total <= BTreePage.LEAF_CAPACITY)
+        {
+            prev.appendEntries(last, 0, last.getNumKeys());
+            prev.setNextPageId(BufferManager.INVALID_PAGE);
+            level.keys.remove(lastIndex);
+            level.ridPages.remove(lastIndex);
+            level.ridSlots.remove(lastIndex);
+            level.pageIds.remove(lastIndex);
+            bufMgr.unpinPage(last.getPageId(), fileName, false);
+            bufMgr.freePage(last.getPageId(), fileName);
+            return true;
+        }
+
+        int keep = total - total / 2;
+        for (int i = prev.getNumKeys() - 1; i >= keep; i--)
+            last.insertLeafEntry(0, prev.getKey(i), prev.getRidPage(i),
+                                 prev.getRidSlot(i));
+        prev.setNumKeys(keep);
+        level.keys.set(lastIndex, last.getKey(0));
+        level.ridPages.set(lastIndex, last.getRidPage(0));
+        level.ridSlots.set(lastIndex, last.getRidSlot(0));
+        return false;
+    }
+
+    // Writes one internal level over the nodes of the level below,
+    // returning the first entry of each new node.
+    private Level buildInternalLevel(Level below) throws IOException
+    {
+        Level level = new Level();
+        int[] groups = groupSizes(below.size());
+        int child = 0;
+        BTreePage prev = null;
+        for (int g = 0; g < groups.length; g++)
+        {
+            Pair<Integer,Page> fresh = allocate();
+            BTreePage node = new BTreePage(fresh.second, fresh.first);
+            node.init(BTreePage.INTERNAL);
+            level.add(node, below.keys.get(child), below.ridPages.get(child),
+                      below.ridSlots.get(child));
+            node.setChild(0, below.pageIds.get(child++));
+            for (int i = 1; i < groups[g]; i++, child++)
+                node.insertInternalEntry(node.getNumKeys(),
+                                         below.keys.get(child),
+                                         below.ridPages.get(child),
+                                         below.ridSlots.get(child),
+                                         below.pageIds.get(child));
+            if (prev != null)
+            {
+                prev.setNextPageId(fresh.first);
+                node.setPrevPageId(prev.getPageId());
+                bufMgr.unpinPage(prev.getPageId(), fileName, true);
+            }
+            prev = node;
+        }
+        bufMgr.unpinPage(prev.getPageId(), fileName, true);
+        return level;
+    }
+
+    // Splits numChildren children into internal nodes filled to the
+    // fill factor, evening out the last two so none is under half full.
+    private int[] groupSizes(int numChildren)
+    {
+        int per = perNode(BTreePage.INTERNAL_CAPACITY) + 1;
+        int minChildren = BTreePage.INTERNAL_CAPACITY / 2 + 1;
+        int numGroups = (numChildren + per - 1) / per;
+        int[] groups = new int[numGroups];
+        for (int g = 0; g < numGroups; g++)
+            groups[g] = Math.min(per, numChildren - g * per);
+
+        int last = numGroups - 1;
+        if (numGroups > 1 && groups[last] < minChildren)
+        {
+            int total = groups[last - 1] + groups[last];
+            if (total <= BTreePage.INTERNAL_CAPACITY + 1)
+            {
+                groups = Arrays.copyOf(groups, last);
+                groups[last - 1] = total;
+            }
+            else
+            {
+                groups[last - 1] = total - total / 2;
+                groups[last] = total / 2;
+            }
+        }
+        return groups;
+    }
+
+    private int perNode(int capacity)
+    {
+        return Math.max(capacity / 2, (int)(capacity * fillFactor));
+    }
+
+    // Hands out the next page of the current run, requesting a new run
+    // of contiguous pages when it is used up. Falls back to shorter
+    // runs when the file has no free run of the full size.
+    private Pair<Integer,Page> allocate() throws IOException
+    {
+        if (runNext == runEnd)
+        {
+            int size = runSize;
+            while (true)
+            {
+                try
+                {
+                    Pair<Integer,Page> fresh = bufMgr.newPage(size, fileName);
+                    if (fresh.second == null)
+                    {
+                        DBFile.open(fileName).deallocatePages(fresh.first,
+                                                              size);
+                        throw new BTreeFile.BufferFullException();
+                    }
+                    runNext = fresh.first + 1;
+                    runEnd = fresh.first + size;
+                    return fresh;
+                }
+                catch (DBFile.FileFullException e)
+                {
+                    if (size == 1)
+                        throw e;
+                    size = size / 2;
+                }
+            }
+        }
+
+        Page page = bufMgr.pinPage(runNext, fileName, true);
+        if (page == null)
+            throw new BTreeFile.BufferFullException();
+        return new Pair<Integer,Page>(runNext++, page);
+    }
+}
@@ -0,0 +1,605 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Disk-resident B+-tree index mapping integer keys to RIDs. Every node
+ * is a BTreePage pinned through a buffer manager, so a lookup reads
+ * one page per level of the tree. Leaves are linked to their siblings
+ * for range scans. Nodes split when full and borrow from or merge with
+ * a sibling when less than half full.
+ *
+ * The first page of the file is a header page holding the root page
+ * id and the height of the tree.
+ *
+ * Inserts and deletes are synchronized on the tree, and so is each
+ * descent to a leaf and each read of a leaf by a lookup or scan, so
+ * readers on other threads never see a node half way through a split
+ * or merge.
+ * @author Yuen Hsi Chang
+ */
+public class BTreeFile
+{
+    public static class BufferFullException extends RuntimeException {};
+    public static class DuplicateEntryException extends RuntimeException {};
+
+    /**
+     * Page id of the header page.
+     */
+    public static final int HEADER_PAGE = 0;
+
+    private static final int HEADER_ROOT = 0;
+    private static final int HEADER_HEIGHT = 4;
+
+    // Results of a recursive delete.
+    private static final int NOT_FOUND = 0;
+    private static final int DELETED = 1;
+    private static final int UNDERFLOW = 2;
+
+    /**
+     * Separator pushed up into the parent when a node splits.
+     */
+    static class Split
+    {
+        int key;
+        int ridPage;
+        int ridSlot;
+        int rightPageId;
+
+        public Split(int key, int ridPage, int ridSlot, int rightPageId)
+        {
+            this.key = key;
+            this.ridPage = ridPage;
+            this.ridSlot = ridSlot;
+            this.rightPageId = rightPageId;
+        }
+    }
+
+    private BufferManager bufMgr;
+    private String fileName;
+
+    // Pages freed by merges, so that a scan knows when the leaf it is
+    // about to read may be gone.
+    private long numFreed;
+
+    /**
+     * Creates a new, empty index backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BTreeFile(String name, int numPages, BufferManager bufMgr)
+        throws IOException
+    {
+        new DBFile(name, numPages);
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+
+        Pair<Integer,Page> header = newPage();
+        Pair<Integer,Page> root = newPage();
+        new BTreePage(root.second, root.first).init(BTreePage.LEAF);
+        unpin(root.first, true);
+        ByteBuffer buf = ByteBuffer.wrap(header.second.data);
+        buf.putInt(HEADER_ROOT, root.first);
+        buf.putInt(HEADER_HEIGHT, 1);
+        unpin(header.first, true);
+    }
+
+    /**
+     * Opens an existing index.
+     * @param name the name of the database file holding the index.
+     * @param bufMgr the buffer manager to pin pages through.
+     */
+    public BTreeFile(String name, BufferManager bufMgr)
+    {
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public BufferManager getBufferManager()
+    {
+        return bufMgr;
+    }
+
+    /**
+     * Returns the page id of the root node.
+     * @return the root page id.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int getRootPageId() throws IOException
+    {
+        return readHeader(HEADER_ROOT);
+    }
+
+    /**
+     * Returns the number of levels in the tree, which is the number of
+     * pages read by a lookup.
+     * @return the height; a tree holding only a root leaf has height 1.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int getHeight() throws IOException
+    {
+        return readHeader(HEADER_HEIGHT);
+    }
+
+    /**
+     * Inserts an entry into the index.
+     * @param key the key.
+     * @param rid the RID of the record with that key.
+     * @throws DuplicateEntryException if the exact (key, rid) pair is
+     * already indexed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void insert(int key, RID rid) throws IOException
+    {
+        int rootId = getRootPageId();
+        Split split = insert(rootId, key, rid.pageId, rid.slotNum);
+        if (split == null)
+            return;
+
+        // The root split, so the tree grows by one level.
+        Pair<Integer,Page> fresh = newPage();
+        BTreePage root = new BTreePage(fresh.second, fresh.first);
+        root.init(BTreePage.INTERNAL);
+        root.setChild(0, rootId);
+        root.insertInternalEntry(0, split.key, split.ridPage, split.ridSlot,
+                                 split.rightPageId);
+        unpin(fresh.first, true);
+        writeHeader(fresh.first, getHeight() + 1);
+    }
+
+    /**
+     * Deletes an entry from the index.
+     * @param key the key.
+     * @param rid the RID the key maps to.
+     * @return true if the entry was deleted, false if it was not found.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean delete(int key, RID rid) throws IOException
+    {
+        int rootId = getRootPageId();
+        if (delete(rootId, key, rid.pageId, rid.slotNum) == NOT_FOUND)
+            return false;
+
+        // An internal root left with a single child is replaced by it.
+        BTreePage root = pin(rootId);
+        if (!root.isLeaf() && root.getNumKeys() == 0)
+        {
+            int child = root.getChild(0);
+            unpin(rootId, false);
+            bufMgr.freePage(rootId, fileName);
+            numFreed++;
+            writeHeader(child, getHeight() - 1);
+        }
+        else
+            unpin(rootId, false);
+        return true;
+    }
+
+    /**
+     * Returns the RIDs of all entries with the given key.
+     * @param key the key.
+     * @return the RIDs, in RID order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public List<RID> search(int key) throws IOException
+    {
+        ArrayList<RID> result = new ArrayList<RID>();
+        BTreeScan scan = rangeScan(key, key);
+        while (scan.hasNext())
+            result.add(scan.next().second);
+        return result;
+    }
+
+    /**
+     * Opens a scan over all entries with lowKey <= key <= highKey, in
+     * key order, following the leaf sibling links.
+     * @param lowKey the smallest key returned.
+     * @param highKey the largest key returned.
+     * @return the scan.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BTreeScan rangeScan(int lowKey, int highKey) throws IOException
+    {
+        long freed = getNumFreed();
+        int pageId = findLeaf(lowKey, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        return new BTreeScan(this, pageId, lowKey, highKey, freed);
+    }
+
+    /**
+     * Returns how many pages deletes have freed so far.
+     */
+    synchronized long getNumFreed()
+    {
+        return numFreed;
+    }
+
+    /**
+     * Pins a node of this index, failing rather than returning null
+     * when the buffer pool has no unpinned frame.
+     */
+    BTreePage pin(int pageId) throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        return new BTreePage(page, pageId);
+    }
+
+    void unpin(int pageId, boolean dirty)
+    {
+        bufMgr.unpinPage(pageId, fileName, dirty);
+    }
+
+    /**
+     * Descends from the root to the leaf whose range covers the entry.
+     * @return the leaf page id.
+     */
+    synchronized int findLeaf(int key, int ridPage, int ridSlot)
+        throws IOException
+    {
+        int pageId = getRootPageId();
+        BTreePage node = pin(pageId);
+        while (!node.isLeaf())
+        {
+            int child = node.getChild(node.findChild(key, ridPage, ridSlot));
+            unpin(pageId, false);
+            pageId = child;
+            node = pin(pageId);
+        }
+        unpin(pageId, false);
+        return pageId;
+    }
+
+    // Inserts into the subtree rooted at pageId, returning the
+    // separator for the parent if that node split.
+    private Split insert(int pageId, int key, int ridPage, int ridSlot)
+        throws IOException
+    {
+        BTreePage node = pin(pageId);
+        boolean dirty = false;
+        try
+        {
+            if (node.isLeaf())
+            {
+                int pos = node.lowerBound(key, ridPage, ridSlot);
+                if (pos < node.getNumKeys() &&
+                    node.compareEntry(pos, key, ridPage, ridSlot) == 0)
+                    throw new DuplicateEntryException();
+                dirty = true;
+                if (node.getNumKeys() < node.capacity())
+                {
+                    node.insertLeafEntry(pos, key, ridPage, ridSlot);
+                    return null;
+                }
+                BTreePage scratch = node.copyWithRoom();
+                scratch.insertLeafEntry(pos, key, ridPage, ridSlot);
+                return split(node, scratch);
+            }
+
+            int c = node.findChild(key, ridPage, ridSlot);
+            Split childSplit = insert(node.getChild(c), key, ridPage, ridSlot);
+            if (childSplit == null)
+                return null;
+            dirty = true;
+            if (node.getNumKeys() < node.capacity())
+            {
+                node.insertInternalEntry(c, childSplit.key, childSplit.ridPage,
+                                         childSplit.ridSlot,
+                                         childSplit.rightPageId);
+                return null;
+            }
+            BTreePage scratch = node.copyWithRoom();
+            scratch.insertInternalEntry(c, childSplit.key, childSplit.ridPage,
+                                        childSplit.ridSlot,
+                                        childSplit.rightPageId);
+            return split(node, scratch);
+        }
+        finally
+        {
+            unpin(pageId, dirty);
+        }
+    }
+
+    /**
+     * Reads a leaf for a scan as readLeaf does, but first descends
+     * again to the leaf covering the bound if any page has been freed
+     * since the scan found pageId, as it may be one of them.
+     * @param freedBefore getNumFreed() as it was before pageId was
+     * found.
+     */
+    synchronized int readLeaf(int pageId, long freedBefore, int key,
+                              int ridPage, int ridSlot, boolean inclusive,
+                              int highKey, List<Pair<Integer,RID>> out)
+        throws IOException
+    {
+        if (freedBefore != numFreed)
+            pageId = findLeaf(key, ridPage, ridSlot);
+        return readLeaf(pageId, key, ridPage, ridSlot, inclusive, highKey,
+                        out);
+    }
+
+    /**
+     * Copies out the entries of a leaf that come after a bound and
+     * have keys no greater than highKey.
+     * @param pageId the leaf to read.
+     * @param key key of the bound.
+     * @param ridPage RID page of the bound.
+     * @param ridSlot RID slot of the bound.
+     * @param inclusive whether an entry equal to the bound is wanted.
+     * @param highKey the largest key wanted.
+     * @param out list the entries are added to.
+     * @return the next leaf to read, or INVALID_PAGE if the scan has
+     * passed highKey or the last leaf.
+     */
+    synchronized int readLeaf(int pageId, int key, int ridPage, int ridSlot,
+                              boolean inclusive, int highKey,
+                              List<Pair<Integer,RID>> out)
+        throws IOException
+    {
+        BTreePage leaf = pin(pageId);
+        try
+        {
+            return copyLeaf(leaf, key, ridPage, ridSlot, inclusive, highKey,
+                            out);
+        }
+        finally
+        {
+            unpin(pageId, false);
+        }
+    }
+
+    static int copyLeaf(BTreePage leaf, int key, int ridPage, int ridSlot,
+                        boolean inclusive, int highKey,
+                        List<Pair<Integer,RID>> out)
+    {
+        int n = leaf.getNumKeys();
+        int i = leaf.lowerBound(key, ridPage, ridSlot);
+        if (!inclusive && i < n && leaf.compareEntry(i, key, ridPage,
+                                                     ridSlot) == 0)
+            i++;
+        for (; i < n && leaf.getKey(i) <= highKey; i++)
+            out.add(new Pair<Integer,RID>(leaf.getKey(i), leaf.getRid(i)));
+        return i == n ? leaf.getNextPageId() : BufferManager.INVALID_PAGE;
+    }
+
+    /**
+     * Sets the previous page id of a node, used when a new node is
+     * linked in to its left.
+     */
+    void setPrevPageId(int pageId, int prevPageId) throws IOException
+    {
+        pin(pageId).setPrevPageId(prevPageId);
+        unpin(pageId, true);
+    }
+
+    /**
+     * Divides the overfull contents of scratch between node and a new
+     * right sibling. A leaf copies its first right entry up to the
+     * parent; an internal node moves its middle key up.
+     * @return the separator for the parent.
+     */
+    Split split(BTreePage node, BTreePage scratch) throws IOException
+    {
+        Pair<Integer,Page> fresh = newPage();
+        BTreePage right = new BTreePage(fresh.second, fresh.first);
+        int total = scratch.getNumKeys();
+        int mid = total / 2;
+        Split up;
+
+        if (node.isLeaf())
+        {
+            right.init(BTreePage.LEAF);
+            right.appendEntries(scratch, mid, total);
+            node.setNumKeys(0);
+            node.appendEntries(scratch, 0, mid);
+            up = new Split(right.getKey(0), right.getRidPage(0),
+                           right.getRidSlot(0), fresh.first);
+        }
+        else
+        {
+            right.init(BTreePage.INTERNAL);
+            right.setChild(0, scratch.getChild(mid + 1));
+            right.appendEntries(scratch, mid + 1, total);
+            node.setNumKeys(0);
+            node.appendEntries(scratch, 0, mid);
+            up = new Split(scratch.getKey(mid), scratch.getRidPage(mid),
+                           scratch.getRidSlot(mid), fresh.first);
+        }
+
+        // Link the new node in to the right of the old one.
+        int next = node.getNextPageId();
+        right.setNextPageId(next);
+        right.setPrevPageId(node.getPageId());
+        node.setNextPageId(fresh.first);
+        if (next != BufferManager.INVALID_PAGE)
+            setPrevPageId(next, fresh.first);
+        unpin(fresh.first, true);
+        return up;
+    }
+
+    // Deletes from the subtree rooted at pageId, reporting whether the
+    // node at pageId was left less than half full.
+    private int delete(int pageId, int key, int ridPage, int ridSlot)
+        throws IOException
+    {
+        BTreePage node = pin(pageId);
+        boolean dirty = false;
+        try
+        {
+            if (node.isLeaf())
+            {
+                int pos = node.lowerBound(key, ridPage, ridSlot);
+                if (pos == node.getNumKeys() ||
+                    node.compareEntry(pos, key, ridPage, ridSlot) != 0)
+                    return NOT_FOUND;
+                node.removeEntry(pos);
+                dirty = true;
+                return underfull(node) ? UNDERFLOW : DELETED;
+            }
+
+            int c = node.findChild(key, ridPage, ridSlot);
+            int result = delete(node.getChild(c), key, ridPage, ridSlot);
+            if (result != UNDERFLOW)
+                return result;
+            dirty = true;
+            rebalance(node, c);
+            return underfull(node) ? UNDERFLOW : DELETED;
+        }
+        finally
+        {
+            unpin(pageId, dirty);
+        }
+    }
+
+    private static boolean underfull(BTreePage node)
+    {
+        return node.getNumKeys() < node.capacity() / 2;
+    }
+
+    // Fixes up child c of parent after it fell below half full, by
+    // borrowing an entry from a sibling if the sibling can spare one
+    // and merging the two otherwise.
+    private void rebalance(BTreePage parent, int c) throws IOException
+    {
+        int sep = c > 0 ? c - 1 : c;
+        int leftId = parent.getChild(sep);
+        int rightId = parent.getChild(sep + 1);
+        BTreePage left = pin(leftId);
+        BTreePage right = pin(rightId);
+        BTreePage sibling = c > 0 ? left : right;
+        boolean merged = false;
+
+        if (sibling.getNumKeys() > sibling.capacity() / 2)
+        {
+            if (c > 0)
+                borrowFromLeft(parent, sep, left, right);
+            else
+                borrowFromRight(parent, sep, left, right);
+        }
+        else
+        {
+            merge(parent, sep, left, right);
+            merged = true;
+        }
+
+        unpin(leftId, true);
+        unpin(rightId, true);
+        if (merged)
+        {
+            bufMgr.freePage(rightId, fileName);
+            numFreed++;
+        }
+    }
+
+    private void borrowFromLeft(BTreePage parent, int sep, BTreePage left,
+                                BTreePage right)
+    {
+        int last = left.getNumKeys() - 1;
+        if (right.isLeaf())
+        {
+            right.insertLeafEntry(0, left.getKey(last), left.getRidPage(last),
+                                  left.getRidSlot(last));
+            parent.setEntry(sep, right.getKey(0), right.getRidPage(0),
+                            right.getRidSlot(0));
+        }
+        else
+        {
+            // Rotate through the parent: its separator comes down and
+            // the left node's last key goes up.
+            int oldFirst = right.getChild(0);
+            right.setChild(0, left.getChild(last + 1));
+            right.insertInternalEntry(0, parent.getKey(sep),
+                                      parent.getRidPage(sep),
+                                      parent.getRidSlot(sep), oldFirst);
+            parent.setEntry(sep, left.getKey(last), left.getRidPage(last),
+                            left.getRidSlot(last));
+        }
+        left.removeEntry(last);
+    }
+
+    private void borrowFromRight(BTreePage parent, int sep, BTreePage left,
+                                 BTreePage right)
+    {
+        int n = left.getNumKeys();
+        if (left.isLeaf())
+        {
+            left.insertLeafEntry(n, right.getKey(0), right.getRidPage(0),
+                                 right.getRidSlot(0));
+            right.removeEntry(0);
+            parent.setEntry(sep, right.getKey(0), right.getRidPage(0),
+                            right.getRidSlot(0));
+        }
+        else
+        {
+            left.insertInternalEntry(n, parent.getKey(sep),
+                                     parent.getRidPage(sep),
+                                     parent.getRidSlot(sep),
+                                     right.getChild(0));
+            parent.setEntry(sep, right.getKey(0), right.getRidPage(0),
+                            right.getRidSlot(0));
+            right.setChild(0, right.getChild(1));
+            right.removeEntry(0);
+        }
+    }
+
+    // Moves everything in right into left and drops right from the
+    // parent. The caller frees the right page.
+    private void merge(BTreePage parent, int sep, BTreePage left,
+                       BTreePage right) throws IOException
+    {
+        if (!left.isLeaf())
+            left.insertInternalEntry(left.getNumKeys(), parent.getKey(sep),
+                                     parent.getRidPage(sep),
+                                     parent.getRidSlot(sep),
+                                     right.getChild(0));
+        left.appendEntries(right, 0, right.getNumKeys());
+
+        int next = right.getNextPageId();
+        left.setNextPageId(next);
+        if (next != BufferManager.INVALID_PAGE)
+        {
+            pin(next).setPrevPageId(left.getPageId());
+            unpin(next, true);
+        }
+        parent.removeEntry(sep);
+    }
+
+    Pair<Integer,Page> newPage() throws IOException
+    {
+        Pair<Integer,Page> fresh = bufMgr.newPage(1, fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first, 1);
+            throw new BufferFullException();
+        }
+        return fresh;
+    }
+
+    private int readHeader(int offset) throws IOException
+    {
+        Page page = bufMgr.pinPage(HEADER_PAGE, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        int value = ByteBuffer.wrap(page.data).getInt(offset);
+        unpin(HEADER_PAGE, false);
+        return value;
+    }
+
+    void writeHeader(int rootPageId, int height) throws IOException
+    {
+        Page page = bufMgr.pinPage(HEADER_PAGE, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        ByteBuffer buf = ByteBuffer.wrap(page.data);
+        buf.putInt(HEADER_ROOT, rootPageId);
+        buf.putInt(HEADER_HEIGHT, height);
+        unpin(HEADER_PAGE, true);
+    }
+}
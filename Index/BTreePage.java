@@ -0,0 +1,329 @@
+import java.nio.*;
+
+/**
+ * B+-tree node page. This is a wrapper around a traditional Page that
+ * lays out either a leaf or an internal node of a BTreeFile.
+ *
+ * Every node starts with a 16 byte header: node type, number of keys,
+ * next (right sibling) page id and previous (left sibling) page id.
+ * A leaf then holds entries of (key, rid page, rid slot). An internal
+ * node holds its leftmost child page id, followed by entries of (key,
+ * rid page, rid slot, child page id), where the child of an entry
+ * holds everything at or after that entry. Entries are ordered by key
+ * and then by RID, which keeps every entry distinct even when the same
+ * key is indexed many times.
+ * @author Yuen Hsi Chang
+ */
+public class BTreePage
+{
+    public static final int LEAF = 1;
+    public static final int INTERNAL = 2;
+
+    public static final int SIZE_OF_INT = 4;
+    private static final int TYPE = 0;
+    private static final int NUM_KEYS = 4;
+    private static final int NEXT = 8;
+    private static final int PREV = 12;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int LEAF_ENTRY_SIZE = 3 * SIZE_OF_INT;
+    private static final int INTERNAL_ENTRY_SIZE = 4 * SIZE_OF_INT;
+    private static final int FIRST_CHILD = HEADER_SIZE;
+    private static final int INTERNAL_START = HEADER_SIZE + SIZE_OF_INT;
+
+    /**
+     * Number of entries that fit in a leaf page.
+     */
+    public static final int LEAF_CAPACITY =
+        (Page.PAGESIZE - HEADER_SIZE) / LEAF_ENTRY_SIZE;
+
+    /**
+     * Number of keys that fit in an internal page.
+     */
+    public static final int INTERNAL_CAPACITY =
+        (Page.PAGESIZE - INTERNAL_START) / INTERNAL_ENTRY_SIZE;
+
+    private byte[] data;
+    private ByteBuffer buf;
+    private int pageId;
+
+    /**
+     * Constructs a node by wrapping around a page object already
+     * provided.
+     * @param page the page to be wrapped.
+     * @param pageId the id of the page.
+     */
+    public BTreePage(Page page, int pageId)
+    {
+        this(page.data, pageId);
+    }
+
+    private BTreePage(byte[] data, int pageId)
+    {
+        this.data = data;
+        this.buf = ByteBuffer.wrap(data);
+        this.pageId = pageId;
+    }
+
+    /**
+     * Initializes an empty node of the given type with no siblings.
+     * @param type LEAF or INTERNAL.
+     */
+    public void init(int type)
+    {
+        buf.putInt(TYPE, type);
+        buf.putInt(NUM_KEYS, 0);
+        buf.putInt(NEXT, BufferManager.INVALID_PAGE);
+        buf.putInt(PREV, BufferManager.INVALID_PAGE);
+    }
+
+    public int getPageId()
+    {
+        return pageId;
+    }
+
+    public boolean isLeaf()
+    {
+        return buf.getInt(TYPE) == LEAF;
+    }
+
+    public int getNumKeys()
+    {
+        return buf.getInt(NUM_KEYS);
+    }
+
+    public void setNumKeys(int numKeys)
+    {
+        buf.putInt(NUM_KEYS, numKeys);
+    }
+
+    /**
+     * Returns the maximum number of keys a node of this type holds.
+     * @return the capacity.
+     */
+    public int capacity()
+    {
+        return isLeaf() ? LEAF_CAPACITY : INTERNAL_CAPACITY;
+    }
+
+    public int getNextPageId()
+    {
+        return buf.getInt(NEXT);
+    }
+
+    public void setNextPageId(int pageId)
+    {
+        buf.putInt(NEXT, pageId);
+    }
+
+    public int getPrevPageId()
+    {
+        return buf.getInt(PREV);
+    }
+
+    public void setPrevPageId(int pageId)
+    {
+        buf.putInt(PREV, pageId);
+    }
+
+    public int getKey(int i)
+    {
+        return buf.getInt(entryOffset(i));
+    }
+
+    public int getRidPage(int i)
+    {
+        return buf.getInt(entryOffset(i) + SIZE_OF_INT);
+    }
+
+    public int getRidSlot(int i)
+    {
+        return buf.getInt(entryOffset(i) + 2 * SIZE_OF_INT);
+    }
+
+    public RID getRid(int i)
+    {
+        return new RID(getRidPage(i), getRidSlot(i));
+    }
+
+    /**
+     * Overwrites the key and RID of entry i, leaving any child alone.
+     */
+    public void setEntry(int i, int key, int ridPage, int ridSlot)
+    {
+        int off = entryOffset(i);
+        buf.putInt(off, key);
+        buf.putInt(off + SIZE_OF_INT, ridPage);
+        buf.putInt(off + 2 * SIZE_OF_INT, ridSlot);
+    }
+
+    /**
+     * Returns the i-th child of an internal node, where child 0 is the
+     * leftmost child and child i (for i > 0) belongs to key i-1.
+     * @param i the child index, from 0 to getNumKeys().
+     * @return the child page id.
+     */
+    public int getChild(int i)
+    {
+        if (i == 0)
+            return buf.getInt(FIRST_CHILD);
+        return buf.getInt(entryOffset(i - 1) + 3 * SIZE_OF_INT);
+    }
+
+    public void setChild(int i, int childPageId)
+    {
+        if (i == 0)
+            buf.putInt(FIRST_CHILD, childPageId);
+        else
+            buf.putInt(entryOffset(i - 1) + 3 * SIZE_OF_INT, childPageId);
+    }
+
+    /**
+     * Compares entry i with the given (key, rid).
+     * @return negative, zero or positive as entry i is less than,
+     * equal to or greater than (key, ridPage, ridSlot).
+     */
+    public int compareEntry(int i, int key, int ridPage, int ridSlot)
+    {
+        return compare(getKey(i), getRidPage(i), getRidSlot(i),
+                       key, ridPage, ridSlot);
+    }
+
+    public static int compare(int key1, int ridPage1, int ridSlot1,
+                              int key2, int ridPage2, int ridSlot2)
+    {
+        if (key1 != key2)
+            return key1 < key2 ? -1 : 1;
+        if (ridPage1 != ridPage2)
+            return ridPage1 < ridPage2 ? -1 : 1;
+        if (ridSlot1 != ridSlot2)
+            return ridSlot1 < ridSlot2 ? -1 : 1;
+        return 0;
+    }
+
+    /**
+     * Binary searches for the first entry that is not less than the
+     * given (key, rid).
+     * @return the position of that entry, or getNumKeys() if there is
+     * none.
+     */
+    public int lowerBound(int key, int ridPage, int ridSlot)
+    {
+        int lo = 0;
+        int hi = getNumKeys();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key, ridPage, ridSlot) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Binary searches an internal node for the child whose subtree
+     * covers the given (key, rid).
+     * @return the child index.
+     */
+    public int findChild(int key, int ridPage, int ridSlot)
+    {
+        int lo = 0;
+        int hi = getNumKeys();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key, ridPage, ridSlot) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Inserts a leaf entry at the given position, shifting later
+     * entries right. The caller makes sure there is room.
+     */
+    public void insertLeafEntry(int pos, int key, int ridPage, int ridSlot)
+    {
+        openGap(pos);
+        int off = entryOffset(pos);
+        buf.putInt(off, key);
+        buf.putInt(off + SIZE_OF_INT, ridPage);
+        buf.putInt(off + 2 * SIZE_OF_INT, ridSlot);
+    }
+
+    /**
+     * Inserts key pos of an internal node together with child pos+1,
+     * shifting later entries right. The caller makes sure there is
+     * room.
+     */
+    public void insertInternalEntry(int pos, int key, int ridPage,
+                                    int ridSlot, int rightChild)
+    {
+        openGap(pos);
+        int off = entryOffset(pos);
+        buf.putInt(off, key);
+        buf.putInt(off + SIZE_OF_INT, ridPage);
+        buf.putInt(off + 2 * SIZE_OF_INT, ridSlot);
+        buf.putInt(off + 3 * SIZE_OF_INT, rightChild);
+    }
+
+    /**
+     * Removes entry pos, which for an internal node is key pos
+     * together with child pos+1.
+     */
+    public void removeEntry(int pos)
+    {
+        int n = getNumKeys();
+        int size = entrySize();
+        System.arraycopy(data, entryOffset(pos + 1), data, entryOffset(pos),
+                         (n - pos - 1) * size);
+        setNumKeys(n - 1);
+    }
+
+    /**
+     * Appends entries [from, to) of another node of the same type.
+     */
+    public void appendEntries(BTreePage src, int from, int to)
+    {
+        int n = getNumKeys();
+        System.arraycopy(src.data, src.entryOffset(from), data,
+                         entryOffset(n), (to - from) * entrySize());
+        setNumKeys(n + to - from);
+    }
+
+    /**
+     * Returns a copy of this node in a buffer with room for one more
+     * entry than a page can hold, used while splitting.
+     */
+    public BTreePage copyWithRoom()
+    {
+        byte[] copy = new byte[Page.PAGESIZE + INTERNAL_ENTRY_SIZE];
+        System.arraycopy(data, 0, copy, 0, Page.PAGESIZE);
+        return new BTreePage(copy, pageId);
+    }
+
+    private int entrySize()
+    {
+        return isLeaf() ? LEAF_ENTRY_SIZE : INTERNAL_ENTRY_SIZE;
+    }
+
+    private int entryOffset(int i)
+    {
+        if (isLeaf())
+            return HEADER_SIZE + i * LEAF_ENTRY_SIZE;
+        return INTERNAL_START + i * INTERNAL_ENTRY_SIZE;
+    }
+
+    private void openGap(int pos)
+    {
+        int n = getNumKeys();
+        int size = entrySize();
+        System.arraycopy(data, entryOffset(pos), data, entryOffset(pos + 1),
+                         (n - pos) * size);
+        setNumKeys(n + 1);
+    }
+}
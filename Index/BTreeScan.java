@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Scan over a key range of a BTreeFile. Entries are read a leaf at a
+ * time, following the sibling links, and a leaf is only pinned while
+ * its entries are being copied out. Each leaf is searched for the
+ * first entry after the last one returned, so the scan stays correct
+ * if a leaf splits between two reads, and descends from the root
+ * again if a merge may have freed the leaf it was going to read.
+ * @author Yuen Hsi Chang
+ */
+public class BTreeScan implements Iterator<Pair<Integer,RID>>
+{
+    private BTreeFile tree;
+    private int highKey;
+    private int nextLeaf;
+
+    // The tree's count of freed pages from before nextLeaf was found.
+    private long numFreed;
+
+    // Entries wanted from the next leaf come after this bound.
+    private int boundKey;
+    private int boundRidPage;
+    private int boundRidSlot;
+    private boolean inclusive;
+
+    // Entries of the leaf last read that have not been returned yet.
+    private ArrayList<Pair<Integer,RID>> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a scan starting in a leaf.
+     * @param tree the index being scanned.
+     * @param leafPageId the leaf covering lowKey.
+     * @param lowKey the smallest key returned.
+     * @param highKey the largest key returned.
+     * @param numFreed the tree's count of freed pages from before the
+     * leaf was found.
+     */
+    public BTreeScan(BTreeFile tree, int leafPageId, int lowKey, int highKey,
+                     long numFreed)
+    {
+        this.tree = tree;
+        this.highKey = highKey;
+        this.nextLeaf = leafPageId;
+        this.numFreed = numFreed;
+        this.boundKey = lowKey;
+        this.boundRidPage = Integer.MIN_VALUE;
+        this.boundRidSlot = Integer.MIN_VALUE;
+        this.inclusive = true;
+        this.buffered = new ArrayList<Pair<Integer,RID>>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean hasNext()
+    {
+        while (bufferedPos == buffered.size() &&
+               nextLeaf != BufferManager.INVALID_PAGE)
+            readLeaf();
+        return bufferedPos < buffered.size();
+    }
+
+    public Pair<Integer,RID> next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.get(bufferedPos++);
+    }
+
+    private void readLeaf()
+    {
+        buffered.clear();
+        bufferedPos = 0;
+        try
+        {
+            long freed = tree.getNumFreed();
+            nextLeaf = tree.readLeaf(nextLeaf, numFreed, boundKey,
+                                     boundRidPage, boundRidSlot, inclusive,
+                                     highKey, buffered);
+            numFreed = freed;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        if (!buffered.isEmpty())
+        {
+            Pair<Integer,RID> last = buffered.get(buffered.size() - 1);
+            boundKey = last.first;
+            boundRidPage = last.second.pageId;
+            boundRidSlot = last.second.slotNum;
+            inclusive = false;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Blocked Bloom filter over int keys. The bits are split into blocks
+ * of BLOCK_SIZE bytes, the size of a cache line, and a key sets and
+ * tests one bit in each of the eight longs of a single block, picked
+ * by its hash. A lookup so touches one cache line, and answers in a
+ * few instructions either that the key was never added or that it may
+ * have been.
+ *
+ * A filter lives in memory, and may also be kept in a run of pages of
+ * a database file, pinned through a buffer manager: the first page
+ * holds the number of blocks, and the blocks follow from the second,
+ * BLOCKS_PER_PAGE to a page. A kept filter writes each key's block to
+ * its page as the key is added, and is read back whole when opened.
+ * @author Yuen Hsi Chang
+ */
+public class BloomFilter
+{
+    public static class BufferFullException extends RuntimeException {};
+
+    /**
+     * Size of a block, in bytes.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    /**
+     * Number of blocks held by one page.
+     */
+    public static final int BLOCKS_PER_PAGE = Page.PAGESIZE / BLOCK_SIZE;
+
+    /**
+     * Bits per key given to a filter when its size is not chosen.
+     */
+    public static final int DEFAULT_BITS_PER_KEY = 12;
+
+    private static final int WORDS_PER_BLOCK = BLOCK_SIZE / 8;
+
+    // Odd constants that pick a different bit of each word from the
+    // same hash.
+    private static final int[] SALTS = {
+        0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d,
+        0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31 };
+
+    private long[] words;
+    private int numBlocks;
+
+    // Where the filter is kept, if it is.
+    private BufferManager bufMgr;
+    private String fileName;
+    private int firstPageId;
+
+    /**
+     * Creates an empty filter in memory with DEFAULT_BITS_PER_KEY bits
+     * for each key expected.
+     * @param expectedKeys how many distinct keys will be added.
+     */
+    public BloomFilter(int expectedKeys)
+    {
+        this(expectedKeys, DEFAULT_BITS_PER_KEY);
+    }
+
+    /**
+     * Creates an empty filter in memory.
+     * @param expectedKeys how many distinct keys will be added.
+     * @param bitsPerKey bits to spend on each key; 12 gives about one
+     * false positive in 200.
+     */
+    public BloomFilter(int expectedKeys, int bitsPerKey)
+    {
+        long bits = (long)Math.max(1, expectedKeys) * bitsPerKey;
+        this.numBlocks = (int)Math.max(1, (bits + BLOCK_SIZE * 8 - 1) /
+                                       (BLOCK_SIZE * 8));
+        this.words = new long[numBlocks * WORDS_PER_BLOCK];
+        this.firstPageId = BufferManager.INVALID_PAGE;
+    }
+
+    /**
+     * Creates an empty filter kept in new pages of a database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param fileName the database file.
+     * @param expectedKeys how many distinct keys will be added.
+     * @return the filter.
+     * @throws BufferFullException if every frame in the buffer pool is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public static BloomFilter create(BufferManager bufMgr, String fileName,
+                                     int expectedKeys)
+        throws IOException
+    {
+        BloomFilter filter = new BloomFilter(expectedKeys);
+        Pair<Integer,Page> fresh =
+            bufMgr.newPage(filter.getNumPages(), fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first,
+                                                  filter.getNumPages());
+            throw new BufferFullException();
+        }
+        ByteBuffer.wrap(fresh.second.data).putInt(0, filter.numBlocks);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        for (int p = 1; p < filter.getNumPages(); p++)
+        {
+            pin(bufMgr, fileName, fresh.first + p, true);
+            bufMgr.unpinPage(fresh.first + p, fileName, true);
+        }
+        filter.bufMgr = bufMgr;
+        filter.fileName = fileName;
+        filter.firstPageId = fresh.first;
+        return filter;
+    }
+
+    /**
+     * Reads a filter kept in a database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param fileName the database file.
+     * @param firstPageId the first page of the filter.
+     * @return the filter, which keeps adding keys to its pages.
+     * @throws BufferFullException if every frame in the buffer pool is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public static BloomFilter open(BufferManager bufMgr, String fileName,
+                                   int firstPageId)
+        throws IOException
+    {
+        Page first = pin(bufMgr, fileName, firstPageId, false);
+        int numBlocks = ByteBuffer.wrap(first.data).getInt(0);
+        bufMgr.unpinPage(firstPageId, fileName, false);
+
+        BloomFilter filter = new BloomFilter(1, 1);
+        filter.numBlocks = numBlocks;
+        filter.words = new long[numBlocks * WORDS_PER_BLOCK];
+        for (int p = 1; p < filter.getNumPages(); p++)
+        {
+            Page page = pin(bufMgr, fileName, firstPageId + p, false);
+            LongBuffer buf = ByteBuffer.wrap(page.data).asLongBuffer();
+            int from = (p - 1) * BLOCKS_PER_PAGE * WORDS_PER_BLOCK;
+            buf.get(filter.words, from,
+                    Math.min(buf.capacity(), filter.words.length - from));
+            bufMgr.unpinPage(firstPageId + p, fileName, false);
+        }
+        filter.bufMgr = bufMgr;
+        filter.fileName = fileName;
+        filter.firstPageId = firstPageId;
+        return filter;
+    }
+
+    /**
+     * Frees the pages the filter is kept in, if it is kept.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void free() throws IOException
+    {
+        if (firstPageId == BufferManager.INVALID_PAGE)
+            return;
+        for (int p = 0; p < getNumPages(); p++)
+            bufMgr.freePage(firstPageId + p, fileName);
+        firstPageId = BufferManager.INVALID_PAGE;
+    }
+
+    /**
+     * Returns the first page the filter is kept in.
+     * @return the page id, or BufferManager.INVALID_PAGE if the filter
+     * is only in memory.
+     */
+    public int getFirstPageId()
+    {
+        return firstPageId;
+    }
+
+    /**
+     * Returns the number of pages the filter takes when kept.
+     * @return the number of pages, counting the first.
+     */
+    public int getNumPages()
+    {
+        return 1 + (numBlocks + BLOCKS_PER_PAGE - 1) / BLOCKS_PER_PAGE;
+    }
+
+    public int getNumBlocks()
+    {
+        return numBlocks;
+    }
+
+    /**
+     * Adds a key, writing its block to its page if the filter is kept.
+     * @param key the key.
+     * @throws BufferFullException if the filter is kept and every frame
+     * in the buffer pool is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void add(int key) throws IOException
+    {
+        int block = set(key);
+        if (firstPageId == BufferManager.INVALID_PAGE)
+            return;
+        int pageId = firstPageId + 1 + block / BLOCKS_PER_PAGE;
+        Page page = pin(bufMgr, fileName, pageId, false);
+        LongBuffer buf = ByteBuffer.wrap(page.data).asLongBuffer();
+        int from = block * WORDS_PER_BLOCK;
+        int to = (block % BLOCKS_PER_PAGE) * WORDS_PER_BLOCK;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++)
+            buf.put(to + i, words[from + i]);
+        bufMgr.unpinPage(pageId, fileName, true);
+    }
+
+    /**
+     * Adds a key to the filter in memory only, for filters that are not
+     * kept.
+     * @param key the key.
+     * @return the block the key went into.
+     */
+    public int set(int key)
+    {
+        long h = hash(key);
+        int block = block(h);
+        int base = block * WORDS_PER_BLOCK;
+        int low = (int)h;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++)
+            words[base + i] |= 1L << ((low * SALTS[i]) >>> 26);
+        return block;
+    }
+
+    /**
+     * Tests a key.
+     * @param key the key.
+     * @return false if the key was never added; true if it may have been.
+     */
+    public boolean mightContain(int key)
+    {
+        long h = hash(key);
+        int base = block(h) * WORDS_PER_BLOCK;
+        int low = (int)h;
+        for (int i = 0; i < WORDS_PER_BLOCK; i++)
+            if ((words[base + i] & (1L << ((low * SALTS[i]) >>> 26))) == 0)
+                return false;
+        return true;
+    }
+
+    // The block of a hash, from its high bits, which the bit positions
+    // do not use.
+    private int block(long h)
+    {
+        return (int)(((h >>> 32) * numBlocks) >>> 32);
+    }
+
+    // Spreads a key over 64 bits.
+    private static long hash(int key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static Page pin(BufferManager bufMgr, String fileName,
+                            int pageId, boolean emptyPage)
+        throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, emptyPage);
+        if (page == null)
+            throw new BufferFullException();
+        return page;
+    }
+}
@@ -0,0 +1,436 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * B+-tree index that many threads can use at once, using optimistic
+ * lock coupling. Every node has an OptimisticLatch. Lookups, scans and
+ * descents only read versions and validate them after reading a node,
+ * so they never block anybody and never write to shared memory. An
+ * insert takes exclusive latches only on the leaf it changes, or on a
+ * full node and its parent while splitting them; full nodes are split
+ * on the way down, so a split never has to climb back up the tree.
+ *
+ * Deletes only remove the entry from its leaf, without borrowing or
+ * merging, so nodes are never freed while a reader may be looking at
+ * them. The on-disk format is the same as BTreeFile's, so a file built
+ * by BTreeFile or BTreeBulkLoader can be opened with this class.
+ * @author Yuen Hsi Chang
+ */
+public class ConcurrentBTreeFile extends BTreeFile
+{
+    /**
+     * State of one attempt at an operation: the pages it pinned, which
+     * are all unpinned together when the attempt finishes or restarts,
+     * and the version of the leaf it descended to.
+     */
+    private class Attempt
+    {
+        private ArrayList<Integer> pinned = new ArrayList<Integer>();
+        private HashSet<Integer> dirty = new HashSet<Integer>();
+        private long leafVersion;
+
+        private BTreePage pin(int pageId) throws IOException
+        {
+            BTreePage node = ConcurrentBTreeFile.this.pin(pageId);
+            pinned.add(pageId);
+            return node;
+        }
+
+        private void markDirty(int pageId)
+        {
+            dirty.add(pageId);
+        }
+
+        private void releaseAll()
+        {
+            for (int pageId : pinned)
+                unpin(pageId, dirty.contains(pageId));
+            pinned.clear();
+        }
+    }
+
+    private ConcurrentHashMap<Integer,OptimisticLatch> latches;
+    private volatile int rootPageId;
+    private volatile int height;
+
+    /**
+     * Creates a new, empty index backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public ConcurrentBTreeFile(String name, int numPages,
+                               BufferManager bufMgr)
+        throws IOException
+    {
+        super(name, numPages, bufMgr);
+        openHeader();
+    }
+
+    /**
+     * Opens an existing index.
+     * @param name the name of the database file holding the index.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public ConcurrentBTreeFile(String name, BufferManager bufMgr)
+        throws IOException
+    {
+        super(name, bufMgr);
+        openHeader();
+    }
+
+    public int getRootPageId()
+    {
+        return rootPageId;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Inserts an entry into the index.
+     * @param key the key.
+     * @param rid the RID of the record with that key.
+     * @throws DuplicateEntryException if the exact (key, rid) pair is
+     * already indexed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void insert(int key, RID rid) throws IOException
+    {
+        while (true)
+        {
+            Attempt attempt = new Attempt();
+            try
+            {
+                if (tryInsert(key, rid.pageId, rid.slotNum, attempt))
+                    return;
+            }
+            catch (OptimisticLatch.RestartException e)
+            {
+                Thread.onSpinWait();
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+                // A torn read of a node being written; its version
+                // check would fail too.
+            }
+            finally
+            {
+                attempt.releaseAll();
+            }
+        }
+    }
+
+    /**
+     * Deletes an entry from its leaf. The leaf is left as it is even
+     * if this makes it less than half full.
+     * @param key the key.
+     * @param rid the RID the key maps to.
+     * @return true if the entry was deleted, false if it was not found.
+     * @throws IOException passed through from underlying file system.
+     */
+    public boolean delete(int key, RID rid) throws IOException
+    {
+        while (true)
+        {
+            Attempt attempt = new Attempt();
+            try
+            {
+                int leafId = descend(key, rid.pageId, rid.slotNum, attempt);
+                BTreePage leaf = attempt.pin(leafId);
+                OptimisticLatch latch = latch(leafId);
+                latch.upgradeToWriteLockOrRestart(attempt.leafVersion);
+                try
+                {
+                    int pos = leaf.lowerBound(key, rid.pageId, rid.slotNum);
+                    if (pos == leaf.getNumKeys() ||
+                        leaf.compareEntry(pos, key, rid.pageId,
+                                          rid.slotNum) != 0)
+                        return false;
+                    leaf.removeEntry(pos);
+                    attempt.markDirty(leafId);
+                    return true;
+                }
+                finally
+                {
+                    latch.writeUnlock();
+                }
+            }
+            catch (OptimisticLatch.RestartException e)
+            {
+                Thread.onSpinWait();
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+                // A torn read of a node being written.
+            }
+            finally
+            {
+                attempt.releaseAll();
+            }
+        }
+    }
+
+    int findLeaf(int key, int ridPage, int ridSlot) throws IOException
+    {
+        while (true)
+        {
+            Attempt attempt = new Attempt();
+            try
+            {
+                return descend(key, ridPage, ridSlot, attempt);
+            }
+            catch (OptimisticLatch.RestartException e)
+            {
+                Thread.onSpinWait();
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+                // A torn read of a node being written.
+            }
+            finally
+            {
+                attempt.releaseAll();
+            }
+        }
+    }
+
+    // Nodes are never freed here, so a scan never has to look for its
+    // leaf again, and reads of leaves are not serialized.
+    int readLeaf(int pageId, long freedBefore, int key, int ridPage,
+                 int ridSlot, boolean inclusive, int highKey,
+                 List<Pair<Integer,RID>> out) throws IOException
+    {
+        return readLeaf(pageId, key, ridPage, ridSlot, inclusive, highKey,
+                        out);
+    }
+
+    int readLeaf(int pageId, int key, int ridPage, int ridSlot,
+                 boolean inclusive, int highKey,
+                 List<Pair<Integer,RID>> out) throws IOException
+    {
+        OptimisticLatch latch = latch(pageId);
+        int mark = out.size();
+        while (true)
+        {
+            try
+            {
+                long version = latch.readLockOrRestart();
+                BTreePage leaf = pin(pageId);
+                try
+                {
+                    int next = copyLeaf(leaf, key, ridPage, ridSlot,
+                                        inclusive, highKey, out);
+                    latch.checkOrRestart(version);
+                    return next;
+                }
+                finally
+                {
+                    unpin(pageId, false);
+                }
+            }
+            catch (OptimisticLatch.RestartException e)
+            {
+                Thread.onSpinWait();
+            }
+            catch (IndexOutOfBoundsException e)
+            {
+                // A torn read of a node being written.
+            }
+            out.subList(mark, out.size()).clear();
+        }
+    }
+
+    void setPrevPageId(int pageId, int prevPageId) throws IOException
+    {
+        // Called while holding the latch of the node to its left.
+        // Latches are only ever waited for from left to right, so this
+        // cannot deadlock.
+        OptimisticLatch latch = latch(pageId);
+        latch.writeLock();
+        try
+        {
+            super.setPrevPageId(pageId, prevPageId);
+        }
+        finally
+        {
+            latch.writeUnlock();
+        }
+    }
+
+    private OptimisticLatch latch(int pageId)
+    {
+        OptimisticLatch latch = latches.get(pageId);
+        if (latch == null)
+        {
+            latches.putIfAbsent(pageId, new OptimisticLatch());
+            latch = latches.get(pageId);
+        }
+        return latch;
+    }
+
+    private void openHeader() throws IOException
+    {
+        latches = new ConcurrentHashMap<Integer,OptimisticLatch>();
+        rootPageId = super.getRootPageId();
+        height = super.getHeight();
+    }
+
+    // Optimistically descends to the leaf covering the entry, checking
+    // each parent after the child's version has been read so that a
+    // child split in between is noticed. Returns the leaf page id and
+    // records its version in the attempt.
+    private int descend(int key, int ridPage, int ridSlot, Attempt attempt)
+        throws IOException
+    {
+        int nodeId = rootPageId;
+        OptimisticLatch nodeLatch = latch(nodeId);
+        long nodeVersion = nodeLatch.readLockOrRestart();
+        if (nodeId != rootPageId)
+            throw OptimisticLatch.RESTART;
+        BTreePage node = attempt.pin(nodeId);
+
+        while (!node.isLeaf())
+        {
+            int childId = node.getChild(node.findChild(key, ridPage,
+                                                       ridSlot));
+            nodeLatch.checkOrRestart(nodeVersion);
+            OptimisticLatch childLatch = latch(childId);
+            long childVersion = childLatch.readLockOrRestart();
+            nodeLatch.checkOrRestart(nodeVersion);
+
+            nodeId = childId;
+            nodeLatch = childLatch;
+            nodeVersion = childVersion;
+            node = attempt.pin(nodeId);
+        }
+        nodeLatch.checkOrRestart(nodeVersion);
+        attempt.leafVersion = nodeVersion;
+        return nodeId;
+    }
+
+    // One attempt at an insert. Returns false after splitting a full
+    // node on the way down, in which case the insert starts over.
+    private boolean tryInsert(int key, int ridPage, int ridSlot, Attempt attempt)
+        throws IOException
+    {
+        int nodeId = rootPageId;
+        OptimisticLatch nodeLatch = latch(nodeId);
+        long nodeVersion = nodeLatch.readLockOrRestart();
+        if (nodeId != rootPageId)
+            throw OptimisticLatch.RESTART;
+        BTreePage node = attempt.pin(nodeId);
+
+        int parentId = BufferManager.INVALID_PAGE;
+        OptimisticLatch parentLatch = null;
+        long parentVersion = 0;
+        BTreePage parent = null;
+
+        while (true)
+        {
+            boolean full = node.getNumKeys() >= node.capacity();
+            boolean leaf = node.isLeaf();
+            nodeLatch.checkOrRestart(nodeVersion);
+
+            if (full)
+            {
+                if (parent != null)
+                    parentLatch.upgradeToWriteLockOrRestart(parentVersion);
+                try
+                {
+                    nodeLatch.upgradeToWriteLockOrRestart(nodeVersion);
+                }
+                catch (OptimisticLatch.RestartException e)
+                {
+                    if (parent != null)
+                        parentLatch.writeUnlock();
+                    throw e;
+                }
+                try
+                {
+                    if (parent == null && nodeId != rootPageId)
+                        throw OptimisticLatch.RESTART;
+                    splitLocked(node, parent);
+                    attempt.markDirty(nodeId);
+                    if (parent != null)
+                        attempt.markDirty(parentId);
+                }
+                finally
+                {
+                    nodeLatch.writeUnlock();
+                    if (parent != null)
+                        parentLatch.writeUnlock();
+                }
+                return false;
+            }
+            if (leaf)
+                break;
+
+            int childId = node.getChild(node.findChild(key, ridPage,
+                                                       ridSlot));
+            nodeLatch.checkOrRestart(nodeVersion);
+            OptimisticLatch childLatch = latch(childId);
+            long childVersion = childLatch.readLockOrRestart();
+            nodeLatch.checkOrRestart(nodeVersion);
+
+            parentId = nodeId;
+            parentLatch = nodeLatch;
+            parentVersion = nodeVersion;
+            parent = node;
+            nodeId = childId;
+            nodeLatch = childLatch;
+            nodeVersion = childVersion;
+            node = attempt.pin(nodeId);
+        }
+
+        // The leaf has room; its version proves it still covers the key.
+        nodeLatch.upgradeToWriteLockOrRestart(nodeVersion);
+        try
+        {
+            int pos = node.lowerBound(key, ridPage, ridSlot);
+            if (pos < node.getNumKeys() &&
+                node.compareEntry(pos, key, ridPage, ridSlot) == 0)
+                throw new DuplicateEntryException();
+            node.insertLeafEntry(pos, key, ridPage, ridSlot);
+            attempt.markDirty(nodeId);
+        }
+        finally
+        {
+            nodeLatch.writeUnlock();
+        }
+        return true;
+    }
+
+    // Splits a full node whose latch, and whose parent's latch, the
+    // caller holds. The parent is known not to be full, since full
+    // nodes are split on the way down. Splitting the root grows the
+    // tree by a level.
+    private void splitLocked(BTreePage node, BTreePage parent)
+        throws IOException
+    {
+        Split up = split(node, node.copyWithRoom());
+        if (parent != null)
+        {
+            int pos = parent.findChild(up.key, up.ridPage, up.ridSlot);
+            parent.insertInternalEntry(pos, up.key, up.ridPage, up.ridSlot,
+                                       up.rightPageId);
+            return;
+        }
+
+        Pair<Integer,Page> fresh = newPage();
+        BTreePage root = new BTreePage(fresh.second, fresh.first);
+        root.init(BTreePage.INTERNAL);
+        root.setChild(0, node.getPageId());
+        root.insertInternalEntry(0, up.key, up.ridPage, up.ridSlot,
+                                 up.rightPageId);
+        unpin(fresh.first, true);
+        height = height + 1;
+        rootPageId = fresh.first;
+        writeHeader(rootPageId, height);
+    }
+}
@@ -0,0 +1,167 @@
+import java.nio.*;
+
+/**
+ * Bucket page of a HashIndexFile. This is a wrapper around a
+ * traditional Page that holds unordered (key, rid page, rid slot)
+ * entries.
+ *
+ * The 12 byte header holds the local depth of the bucket, the number
+ * of entries and the page id of the next overflow page. Overflow pages
+ * are only chained on when splitting a bucket would not make room, and
+ * have the same layout as the bucket page they hang off.
+ * @author Yuen Hsi Chang
+ */
+public class HashBucketPage
+{
+    public static final int SIZE_OF_INT = 4;
+    private static final int LOCAL_DEPTH = 0;
+    private static final int NUM_ENTRIES = 4;
+    private static final int OVERFLOW = 8;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 3 * SIZE_OF_INT;
+
+    /**
+     * Number of entries that fit in a bucket page.
+     */
+    public static final int CAPACITY =
+        (Page.PAGESIZE - HEADER_SIZE) / ENTRY_SIZE;
+
+    private ByteBuffer buf;
+    private int pageId;
+
+    /**
+     * Constructs a bucket by wrapping around a page object already
+     * provided.
+     * @param page the page to be wrapped.
+     * @param pageId the id of the page.
+     */
+    public HashBucketPage(Page page, int pageId)
+    {
+        this.buf = ByteBuffer.wrap(page.data);
+        this.pageId = pageId;
+    }
+
+    /**
+     * Initializes an empty bucket with no overflow page.
+     * @param localDepth the number of hash bits all keys in the bucket
+     * share.
+     */
+    public void init(int localDepth)
+    {
+        buf.putInt(LOCAL_DEPTH, localDepth);
+        buf.putInt(NUM_ENTRIES, 0);
+        buf.putInt(OVERFLOW, BufferManager.INVALID_PAGE);
+    }
+
+    public int getPageId()
+    {
+        return pageId;
+    }
+
+    public int getLocalDepth()
+    {
+        return buf.getInt(LOCAL_DEPTH);
+    }
+
+    public void setLocalDepth(int localDepth)
+    {
+        buf.putInt(LOCAL_DEPTH, localDepth);
+    }
+
+    public int getNumEntries()
+    {
+        return buf.getInt(NUM_ENTRIES);
+    }
+
+    public void setNumEntries(int numEntries)
+    {
+        buf.putInt(NUM_ENTRIES, numEntries);
+    }
+
+    public boolean isFull()
+    {
+        return getNumEntries() >= CAPACITY;
+    }
+
+    public int getOverflowPageId()
+    {
+        return buf.getInt(OVERFLOW);
+    }
+
+    public void setOverflowPageId(int pageId)
+    {
+        buf.putInt(OVERFLOW, pageId);
+    }
+
+    public int getKey(int i)
+    {
+        return buf.getInt(entryOffset(i));
+    }
+
+    public int getRidPage(int i)
+    {
+        return buf.getInt(entryOffset(i) + SIZE_OF_INT);
+    }
+
+    public int getRidSlot(int i)
+    {
+        return buf.getInt(entryOffset(i) + 2 * SIZE_OF_INT);
+    }
+
+    public RID getRid(int i)
+    {
+        return new RID(getRidPage(i), getRidSlot(i));
+    }
+
+    /**
+     * Overwrites the i-th entry.
+     * @param i the entry number.
+     * @param key the key.
+     * @param ridPage the page id of the RID.
+     * @param ridSlot the slot number of the RID.
+     */
+    public void setEntry(int i, int key, int ridPage, int ridSlot)
+    {
+        int offset = entryOffset(i);
+        buf.putInt(offset, key);
+        buf.putInt(offset + SIZE_OF_INT, ridPage);
+        buf.putInt(offset + 2 * SIZE_OF_INT, ridSlot);
+    }
+
+    /**
+     * Adds an entry to the end of a bucket that is not full.
+     * @param key the key.
+     * @param ridPage the page id of the RID.
+     * @param ridSlot the slot number of the RID.
+     */
+    public void appendEntry(int key, int ridPage, int ridSlot)
+    {
+        int n = getNumEntries();
+        setEntry(n, key, ridPage, ridSlot);
+        setNumEntries(n + 1);
+    }
+
+    /**
+     * Finds an entry.
+     * @param key the key.
+     * @param ridPage the page id of the RID.
+     * @param ridSlot the slot number of the RID.
+     * @return the entry number, or -1 if the bucket does not hold it.
+     */
+    public int find(int key, int ridPage, int ridSlot)
+    {
+        int n = getNumEntries();
+        for (int i = 0; i < n; i++)
+            if (getKey(i) == key && getRidPage(i) == ridPage &&
+                getRidSlot(i) == ridSlot)
+                return i;
+        return -1;
+    }
+
+    private int entryOffset(int i)
+    {
+        if (i < 0 || i >= CAPACITY)
+            throw new IndexOutOfBoundsException("entry " + i);
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Disk-resident extendible hash index mapping integer keys to RIDs.
+ * The directory is an array of bucket page ids indexed by the low
+ * global depth bits of a key's hash, spread over directory pages. A
+ * bucket whose keys share only its local depth bits is pointed to by
+ * several directory slots. When a bucket fills up, only that bucket is
+ * split, doubling the directory first if its local depth has caught up
+ * with the global depth; the rest of the index is left alone.
+ *
+ * An equality lookup reads one directory page and one bucket page.
+ * Buckets only grow overflow pages when most of their entries are for
+ * the key being inserted, since splitting cannot separate those, or
+ * when the directory has reached its maximum size. Deletes do not merge buckets.
+ *
+ * An index can keep a BloomFilter of its keys in pages of its file,
+ * so that looking up a key that was never inserted, the common case
+ * for many workloads, reads no directory or bucket page at all. Keys
+ * stay in the filter when deleted.
+ *
+ * The first page of the file is a header page holding the global depth,
+ * the number of directory pages, the first page of the Bloom filter (or
+ * INVALID_PAGE) and the page ids of the directory pages.
+ * @author Yuen Hsi Chang
+ */
+public class HashIndexFile
+{
+    public static class BufferFullException extends RuntimeException {};
+    public static class DuplicateEntryException extends RuntimeException {};
+
+    /**
+     * Page id of the header page.
+     */
+    public static final int HEADER_PAGE = 0;
+
+    public static final int SIZE_OF_INT = 4;
+    private static final int HEADER_DEPTH = 0;
+    private static final int HEADER_NUM_DIR_PAGES = 4;
+    private static final int HEADER_FILTER = 8;
+    private static final int HEADER_DIR_PAGES = 12;
+
+    /**
+     * Number of directory slots held by one directory page.
+     */
+    public static final int DIR_PAGE_SLOTS = Page.PAGESIZE / SIZE_OF_INT;
+
+    private static final int MAX_DIR_PAGES =
+        (Page.PAGESIZE - HEADER_DIR_PAGES) / SIZE_OF_INT;
+
+    /**
+     * Largest global depth whose directory still fits in the header.
+     */
+    public static final int MAX_GLOBAL_DEPTH = maxGlobalDepth();
+
+    private BufferManager bufMgr;
+    private String fileName;
+
+    // Copies of the header, so a lookup does not have to read it.
+    private int globalDepth;
+    private ArrayList<Integer> dirPageIds;
+
+    // Keys ever inserted, or null if the index keeps no filter.
+    private BloomFilter filter;
+
+    /**
+     * Creates a new, empty index backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HashIndexFile(String name, int numPages, BufferManager bufMgr)
+        throws IOException
+    {
+        this(name, numPages, bufMgr, 0);
+    }
+
+    /**
+     * Creates a new, empty index that keeps a Bloom filter of its keys.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param expectedKeys how many distinct keys the filter is sized
+     * for, or 0 to keep no filter.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HashIndexFile(String name, int numPages, BufferManager bufMgr,
+                         int expectedKeys)
+        throws IOException
+    {
+        new DBFile(name, numPages);
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+
+        Pair<Integer,Page> header = newPage();
+        bufMgr.unpinPage(header.first, fileName, true);
+        Pair<Integer,Page> dir = newPage();
+        Pair<Integer,Page> bucket = newPage();
+        new HashBucketPage(bucket.second, bucket.first).init(0);
+        ByteBuffer.wrap(dir.second.data).putInt(0, bucket.first);
+        bufMgr.unpinPage(bucket.first, fileName, true);
+        bufMgr.unpinPage(dir.first, fileName, true);
+
+        globalDepth = 0;
+        dirPageIds = new ArrayList<Integer>();
+        dirPageIds.add(dir.first);
+        if (expectedKeys > 0)
+            filter = BloomFilter.create(bufMgr, fileName, expectedKeys);
+        writeHeader();
+    }
+
+    /**
+     * Opens an existing index.
+     * @param name the name of the database file holding the index.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public HashIndexFile(String name, BufferManager bufMgr)
+        throws IOException
+    {
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+
+        Page page = pinPage(HEADER_PAGE);
+        ByteBuffer buf = ByteBuffer.wrap(page.data);
+        globalDepth = buf.getInt(HEADER_DEPTH);
+        int numDirPages = buf.getInt(HEADER_NUM_DIR_PAGES);
+        dirPageIds = new ArrayList<Integer>();
+        for (int i = 0; i < numDirPages; i++)
+            dirPageIds.add(buf.getInt(HEADER_DIR_PAGES + i * SIZE_OF_INT));
+        int filterPage = buf.getInt(HEADER_FILTER);
+        bufMgr.unpinPage(HEADER_PAGE, fileName, false);
+        if (filterPage != BufferManager.INVALID_PAGE)
+            filter = BloomFilter.open(bufMgr, fileName, filterPage);
+    }
+
+    public synchronized int getGlobalDepth()
+    {
+        return globalDepth;
+    }
+
+    /**
+     * Whether the index may have entries with the given key, answered
+     * from its Bloom filter without reading a page.
+     * @param key the key.
+     * @return false if the key was never inserted; true if it may have
+     * been, or if the index keeps no filter.
+     */
+    public synchronized boolean mightContain(int key)
+    {
+        return filter == null || filter.mightContain(key);
+    }
+
+    /**
+     * Returns the RIDs of all entries with the given key.
+     * @param key the key.
+     * @return the RIDs, in no particular order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized List<RID> search(int key) throws IOException
+    {
+        ArrayList<RID> result = new ArrayList<RID>();
+        if (!mightContain(key))
+            return result;
+        int pageId = getDirEntry(dirIndex(hash(key)));
+        while (pageId != BufferManager.INVALID_PAGE)
+        {
+            HashBucketPage bucket = pin(pageId);
+            int n = bucket.getNumEntries();
+            for (int i = 0; i < n; i++)
+                if (bucket.getKey(i) == key)
+                    result.add(bucket.getRid(i));
+            int next = bucket.getOverflowPageId();
+            bufMgr.unpinPage(pageId, fileName, false);
+            pageId = next;
+        }
+        return result;
+    }
+
+    /**
+     * Inserts an entry into the index.
+     * @param key the key.
+     * @param rid the RID of the record with that key.
+     * @throws DuplicateEntryException if the exact (key, rid) pair is
+     * already indexed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void insert(int key, RID rid) throws IOException
+    {
+        if (filter != null && !filter.mightContain(key))
+            filter.add(key);
+        int h = hash(key);
+        while (true)
+        {
+            int index = dirIndex(h);
+            int bucketId = getDirEntry(index);
+            List<HashBucketPage> chain = pinChain(bucketId);
+            boolean dirty = false;
+            try
+            {
+                HashBucketPage room = null;
+                int total = 0;
+                int sameHash = 0;
+                for (HashBucketPage page : chain)
+                {
+                    if (page.find(key, rid.pageId, rid.slotNum) >= 0)
+                        throw new DuplicateEntryException();
+                    if (room == null && !page.isFull())
+                        room = page;
+                    for (int i = 0; i < page.getNumEntries(); i++)
+                        if (hash(page.getKey(i)) == h)
+                            sameHash++;
+                    total += page.getNumEntries();
+                }
+                if (room != null)
+                {
+                    room.appendEntry(key, rid.pageId, rid.slotNum);
+                    dirty = true;
+                    return;
+                }
+
+                // Splitting cannot separate keys that hash alike, so if
+                // most of the chain is this key's hash it would only
+                // deepen the directory for little room. The directory
+                // also cannot grow past its maximum depth.
+                int localDepth = chain.get(0).getLocalDepth();
+                if (2 * sameHash > total || localDepth >= MAX_GLOBAL_DEPTH)
+                {
+                    HashBucketPage last = chain.get(chain.size() - 1);
+                    Pair<Integer,Page> fresh = newPage();
+                    HashBucketPage overflow =
+                        new HashBucketPage(fresh.second, fresh.first);
+                    overflow.init(localDepth);
+                    overflow.appendEntry(key, rid.pageId, rid.slotNum);
+                    bufMgr.unpinPage(fresh.first, fileName, true);
+                    last.setOverflowPageId(fresh.first);
+                    dirty = true;
+                    return;
+                }
+
+                if (localDepth == globalDepth)
+                    doubleDirectory();
+                splitBucket(chain, index);
+                dirty = true;
+            }
+            finally
+            {
+                for (HashBucketPage page : chain)
+                    bufMgr.unpinPage(page.getPageId(), fileName, dirty);
+            }
+        }
+    }
+
+    /**
+     * Deletes an entry. The hole is filled with the last entry of the
+     * bucket's chain, and an overflow page left empty is freed.
+     * @param key the key.
+     * @param rid the RID the key maps to.
+     * @return true if the entry was deleted, false if it was not found.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean delete(int key, RID rid) throws IOException
+    {
+        List<HashBucketPage> chain =
+            pinChain(getDirEntry(dirIndex(hash(key))));
+        boolean dirty = false;
+        int freed = BufferManager.INVALID_PAGE;
+        try
+        {
+            for (HashBucketPage page : chain)
+            {
+                int pos = page.find(key, rid.pageId, rid.slotNum);
+                if (pos < 0)
+                    continue;
+
+                HashBucketPage last = chain.get(chain.size() - 1);
+                int lastPos = last.getNumEntries() - 1;
+                page.setEntry(pos, last.getKey(lastPos),
+                              last.getRidPage(lastPos),
+                              last.getRidSlot(lastPos));
+                last.setNumEntries(lastPos);
+                if (lastPos == 0 && chain.size() > 1)
+                {
+                    chain.get(chain.size() - 2).setOverflowPageId(
+                        BufferManager.INVALID_PAGE);
+                    freed = last.getPageId();
+                }
+                dirty = true;
+                return true;
+            }
+            return false;
+        }
+        finally
+        {
+            for (HashBucketPage page : chain)
+                bufMgr.unpinPage(page.getPageId(), fileName, dirty);
+            if (freed != BufferManager.INVALID_PAGE)
+                bufMgr.freePage(freed, fileName);
+        }
+    }
+
+    // Splits the full bucket at the head of chain on its next hash bit,
+    // moving the entries with that bit set to a new bucket. index is a
+    // directory slot pointing to the bucket.
+    private void splitBucket(List<HashBucketPage> chain, int index)
+        throws IOException
+    {
+        HashBucketPage bucket = chain.get(0);
+        int depth = bucket.getLocalDepth();
+        int bit = 1 << depth;
+
+        ArrayList<int[]> entries = new ArrayList<int[]>();
+        for (HashBucketPage page : chain)
+            for (int i = 0; i < page.getNumEntries(); i++)
+                entries.add(new int[] { page.getKey(i), page.getRidPage(i),
+                                        page.getRidSlot(i) });
+
+        // The old overflow pages go; a half gets new ones only if its
+        // entries still do not fit in one page.
+        for (HashBucketPage page : chain.subList(1, chain.size()))
+        {
+            bufMgr.unpinPage(page.getPageId(), fileName, false);
+            bufMgr.freePage(page.getPageId(), fileName);
+        }
+        chain.subList(1, chain.size()).clear();
+
+        ArrayList<int[]> stay = new ArrayList<int[]>();
+        ArrayList<int[]> move = new ArrayList<int[]>();
+        for (int[] e : entries)
+            ((hash(e[0]) & bit) != 0 ? move : stay).add(e);
+
+        Pair<Integer,Page> fresh = newPage();
+        HashBucketPage sibling = new HashBucketPage(fresh.second, fresh.first);
+        try
+        {
+            sibling.init(depth + 1);
+            fill(sibling, move);
+        }
+        finally
+        {
+            bufMgr.unpinPage(fresh.first, fileName, true);
+        }
+        bucket.init(depth + 1);
+        fill(bucket, stay);
+
+        int low = index & (bit - 1);
+        for (int i = low | bit; i < (1 << globalDepth); i += 2 * bit)
+            setDirEntry(i, fresh.first);
+    }
+
+    // Writes entries into an empty bucket, chaining on overflow pages
+    // if they do not fit.
+    private void fill(HashBucketPage bucket, List<int[]> entries)
+        throws IOException
+    {
+        HashBucketPage page = bucket;
+        for (int[] e : entries)
+        {
+            if (page.isFull())
+            {
+                Pair<Integer,Page> fresh = newPage();
+                HashBucketPage overflow =
+                    new HashBucketPage(fresh.second, fresh.first);
+                overflow.init(bucket.getLocalDepth());
+                page.setOverflowPageId(fresh.first);
+                if (page != bucket)
+                    bufMgr.unpinPage(page.getPageId(), fileName, true);
+                page = overflow;
+            }
+            page.appendEntry(e[0], e[1], e[2]);
+        }
+        if (page != bucket)
+            bufMgr.unpinPage(page.getPageId(), fileName, true);
+    }
+
+    // Doubles the directory by appending a copy of it, so every new slot
+    // points at the same bucket as the slot it mirrors.
+    private void doubleDirectory() throws IOException
+    {
+        int size = 1 << globalDepth;
+        if (2 * size <= DIR_PAGE_SLOTS)
+        {
+            int pageId = dirPageIds.get(0);
+            Page page = pinPage(pageId);
+            System.arraycopy(page.data, 0, page.data, size * SIZE_OF_INT,
+                             size * SIZE_OF_INT);
+            bufMgr.unpinPage(pageId, fileName, true);
+        }
+        else
+        {
+            int numPages = dirPageIds.size();
+            for (int i = 0; i < numPages; i++)
+            {
+                int srcId = dirPageIds.get(i);
+                Page src = pinPage(srcId);
+                Pair<Integer,Page> fresh;
+                try
+                {
+                    fresh = newPage();
+                }
+                catch (BufferFullException e)
+                {
+                    bufMgr.unpinPage(srcId, fileName, false);
+                    throw e;
+                }
+                System.arraycopy(src.data, 0, fresh.second.data, 0,
+                                 Page.PAGESIZE);
+                bufMgr.unpinPage(fresh.first, fileName, true);
+                bufMgr.unpinPage(srcId, fileName, false);
+                dirPageIds.add(fresh.first);
+            }
+        }
+        globalDepth++;
+        writeHeader();
+    }
+
+    private static int maxGlobalDepth()
+    {
+        int depth = 0;
+        while (((2 << depth) + DIR_PAGE_SLOTS - 1) / DIR_PAGE_SLOTS <=
+               MAX_DIR_PAGES)
+            depth++;
+        return depth;
+    }
+
+    // Scrambles the key so that its low bits depend on all of its bits.
+    private static int hash(int key)
+    {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int dirIndex(int hash)
+    {
+        return hash & ((1 << globalDepth) - 1);
+    }
+
+    private int getDirEntry(int index) throws IOException
+    {
+        int pageId = dirPageIds.get(index / DIR_PAGE_SLOTS);
+        Page page = pinPage(pageId);
+        int bucketId = ByteBuffer.wrap(page.data)
+            .getInt((index % DIR_PAGE_SLOTS) * SIZE_OF_INT);
+        bufMgr.unpinPage(pageId, fileName, false);
+        return bucketId;
+    }
+
+    private void setDirEntry(int index, int bucketId) throws IOException
+    {
+        int pageId = dirPageIds.get(index / DIR_PAGE_SLOTS);
+        Page page = pinPage(pageId);
+        ByteBuffer.wrap(page.data)
+            .putInt((index % DIR_PAGE_SLOTS) * SIZE_OF_INT, bucketId);
+        bufMgr.unpinPage(pageId, fileName, true);
+    }
+
+    // Pins a bucket and all of its overflow pages, unpinning them again
+    // if the buffer pool runs out.
+    private List<HashBucketPage> pinChain(int pageId) throws IOException
+    {
+        ArrayList<HashBucketPage> chain = new ArrayList<HashBucketPage>();
+        try
+        {
+            while (pageId != BufferManager.INVALID_PAGE)
+            {
+                HashBucketPage page = pin(pageId);
+                chain.add(page);
+                pageId = page.getOverflowPageId();
+            }
+        }
+        catch (BufferFullException e)
+        {
+            for (HashBucketPage page : chain)
+                bufMgr.unpinPage(page.getPageId(), fileName, false);
+            throw e;
+        }
+        return chain;
+    }
+
+    private HashBucketPage pin(int pageId) throws IOException
+    {
+        return new HashBucketPage(pinPage(pageId), pageId);
+    }
+
+    private Page pinPage(int pageId) throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, false);
+        if (page == null)
+            throw new BufferFullException();
+        return page;
+    }
+
+    private Pair<Integer,Page> newPage() throws IOException
+    {
+        Pair<Integer,Page> fresh = bufMgr.newPage(1, fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first, 1);
+            throw new BufferFullException();
+        }
+        return fresh;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        Page page = pinPage(HEADER_PAGE);
+        ByteBuffer buf = ByteBuffer.wrap(page.data);
+        buf.putInt(HEADER_DEPTH, globalDepth);
+        buf.putInt(HEADER_NUM_DIR_PAGES, dirPageIds.size());
+        buf.putInt(HEADER_FILTER, filter == null ?
+                   BufferManager.INVALID_PAGE : filter.getFirstPageId());
+        for (int i = 0; i < dirPageIds.size(); i++)
+            buf.putInt(HEADER_DIR_PAGES + i * SIZE_OF_INT, dirPageIds.get(i));
+        bufMgr.unpinPage(HEADER_PAGE, fileName, true);
+    }
+}
@@ -0,0 +1,92 @@
+import java.lang.invoke.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Version latch for optimistic lock coupling. Readers never write to
+ * the latch: they remember the version, read the node, and check that
+ * the version is unchanged afterwards. Writers make the version odd
+ * while they hold the latch and bump it again on release, so any
+ * reader that overlapped a write sees a different version and starts
+ * over.
+ * @author Yuen Hsi Chang
+ */
+public class OptimisticLatch
+{
+    /**
+     * Thrown when an optimistic read or an upgrade has to start over.
+     * A single instance without a stack trace is shared, since
+     * restarts are frequent under contention and carry no information.
+     */
+    public static class RestartException extends RuntimeException
+    {
+        private RestartException()
+        {
+            super(null, null, false, false);
+        }
+    }
+
+    public static final RestartException RESTART = new RestartException();
+
+    private final AtomicLong version = new AtomicLong(0);
+
+    /**
+     * Starts an optimistic read.
+     * @return the version to validate against.
+     * @throws RestartException if a writer holds the latch.
+     */
+    public long readLockOrRestart()
+    {
+        long v = version.get();
+        if ((v & 1) != 0)
+            throw RESTART;
+        return v;
+    }
+
+    /**
+     * Checks that nothing was written since readLockOrRestart returned
+     * the given version, so whatever was read in between is consistent.
+     * @param v the version returned by readLockOrRestart.
+     * @throws RestartException if the node changed.
+     */
+    public void checkOrRestart(long v)
+    {
+        // Keep the reads of the node from moving after the check.
+        VarHandle.acquireFence();
+        if (version.get() != v)
+            throw RESTART;
+    }
+
+    /**
+     * Turns an optimistic read into an exclusive latch, provided that
+     * nothing was written since the given version.
+     * @param v the version returned by readLockOrRestart.
+     * @throws RestartException if the node changed or is latched.
+     */
+    public void upgradeToWriteLockOrRestart(long v)
+    {
+        if (!version.compareAndSet(v, v + 1))
+            throw RESTART;
+    }
+
+    /**
+     * Waits for and takes the exclusive latch.
+     */
+    public void writeLock()
+    {
+        while (true)
+        {
+            long v = version.get();
+            if ((v & 1) == 0 && version.compareAndSet(v, v + 1))
+                return;
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Releases the exclusive latch, publishing a new version.
+     */
+    public void writeUnlock()
+    {
+        version.incrementAndGet();
+    }
+}
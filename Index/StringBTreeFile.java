@@ -0,0 +1,472 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Disk-resident B+-tree index mapping string keys to RIDs. Nodes are
+ * StringBTreePages, which fill up by bytes rather than by key count.
+ * With compression on, each node stores the prefix shared by its keys
+ * only once, and a leaf split pushes up the shortest key that still
+ * separates the two halves instead of a whole key. Both raise the
+ * number of entries per page, so the tree is lower and a lookup reads
+ * fewer pages.
+ *
+ * Keys are compared as their UTF-8 bytes, which orders them by code
+ * point. Deletes remove the entry from its leaf without merging
+ * underfull nodes.
+ *
+ * The first page of the file is a header page holding the root page
+ * id, the height of the tree and whether compression is on.
+ * @author Yuen Hsi Chang
+ */
+public class StringBTreeFile
+{
+    public static class KeyTooLongException extends RuntimeException {};
+
+    /**
+     * Page id of the header page.
+     */
+    public static final int HEADER_PAGE = 0;
+
+    private static final int HEADER_ROOT = 0;
+    private static final int HEADER_HEIGHT = 4;
+    private static final int HEADER_COMPRESS = 8;
+
+    /**
+     * Separator pushed up into the parent when a node splits.
+     */
+    private static class Split
+    {
+        private byte[] key;
+        private int ridPage;
+        private int ridSlot;
+        private int rightPageId;
+
+        public Split(byte[] key, int ridPage, int ridSlot, int rightPageId)
+        {
+            this.key = key;
+            this.ridPage = ridPage;
+            this.ridSlot = ridSlot;
+            this.rightPageId = rightPageId;
+        }
+    }
+
+    private BufferManager bufMgr;
+    private String fileName;
+    private boolean compress;
+
+    /**
+     * Creates a new, empty index backed by a new database file.
+     * @param name the name of the database file to create.
+     * @param numPages maximum number of pages in the database file.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param compress whether to use prefix compression and separator
+     * truncation.
+     * @throws IOException passed through from underlying file system.
+     */
+    public StringBTreeFile(String name, int numPages, BufferManager bufMgr,
+                           boolean compress)
+        throws IOException
+    {
+        new DBFile(name, numPages);
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+        this.compress = compress;
+
+        Pair<Integer,Page> header = newPage();
+        Pair<Integer,Page> root = newPage();
+        new StringBTreePage(root.second, root.first)
+            .init(StringBTreePage.LEAF);
+        bufMgr.unpinPage(root.first, fileName, true);
+        ByteBuffer buf = ByteBuffer.wrap(header.second.data);
+        buf.putInt(HEADER_ROOT, root.first);
+        buf.putInt(HEADER_HEIGHT, 1);
+        buf.putInt(HEADER_COMPRESS, compress ? 1 : 0);
+        bufMgr.unpinPage(header.first, fileName, true);
+    }
+
+    /**
+     * Opens an existing index.
+     * @param name the name of the database file holding the index.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public StringBTreeFile(String name, BufferManager bufMgr)
+        throws IOException
+    {
+        this.fileName = name;
+        this.bufMgr = bufMgr;
+        this.compress = readHeader(HEADER_COMPRESS) != 0;
+    }
+
+    public int getRootPageId() throws IOException
+    {
+        return readHeader(HEADER_ROOT);
+    }
+
+    /**
+     * Returns the number of levels in the tree, which is the number of
+     * pages read by a lookup.
+     * @return the height; a tree holding only a root leaf has height 1.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int getHeight() throws IOException
+    {
+        return readHeader(HEADER_HEIGHT);
+    }
+
+    /**
+     * Counts the leaves by following the sibling links.
+     * @return the number of leaf pages.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int getNumLeaves() throws IOException
+    {
+        int pageId = findLeaf(new byte[0], Integer.MIN_VALUE,
+                              Integer.MIN_VALUE);
+        int count = 0;
+        while (pageId != BufferManager.INVALID_PAGE)
+        {
+            count++;
+            int next = pin(pageId).getNextPageId();
+            bufMgr.unpinPage(pageId, fileName, false);
+            pageId = next;
+        }
+        return count;
+    }
+
+    /**
+     * Inserts an entry into the index.
+     * @param key the key.
+     * @param rid the RID of the record with that key.
+     * @throws KeyTooLongException if the key is longer than
+     * StringBTreePage.MAX_KEY_LENGTH bytes.
+     * @throws BTreeFile.DuplicateEntryException if the exact (key, rid)
+     * pair is already indexed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void insert(String key, RID rid) throws IOException
+    {
+        byte[] bytes = encode(key);
+        if (bytes.length > StringBTreePage.MAX_KEY_LENGTH)
+            throw new KeyTooLongException();
+
+        int rootId = getRootPageId();
+        Split split = insert(rootId, bytes, rid.pageId, rid.slotNum);
+        if (split == null)
+            return;
+
+        // The root split, so the tree grows by one level.
+        Pair<Integer,Page> fresh = newPage();
+        StringBTreePage root = new StringBTreePage(fresh.second, fresh.first);
+        root.init(StringBTreePage.INTERNAL);
+        StringBTreePage.Contents c = new StringBTreePage.Contents();
+        c.children.add(rootId);
+        c.keys.add(split.key);
+        c.ridPages.add(split.ridPage);
+        c.ridSlots.add(split.ridSlot);
+        c.children.add(split.rightPageId);
+        root.write(c, compress);
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        writeHeader(fresh.first, getHeight() + 1);
+    }
+
+    /**
+     * Deletes an entry from its leaf.
+     * @param key the key.
+     * @param rid the RID the key maps to.
+     * @return true if the entry was deleted, false if it was not found.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized boolean delete(String key, RID rid)
+        throws IOException
+    {
+        byte[] bytes = encode(key);
+        int pageId = findLeaf(bytes, rid.pageId, rid.slotNum);
+        StringBTreePage leaf = pin(pageId);
+        int pos = leaf.lowerBound(bytes, rid.pageId, rid.slotNum);
+        if (pos == leaf.getNumKeys() ||
+            leaf.compareEntry(pos, bytes, rid.pageId, rid.slotNum) != 0)
+        {
+            bufMgr.unpinPage(pageId, fileName, false);
+            return false;
+        }
+        StringBTreePage.Contents c = leaf.read();
+        c.keys.remove(pos);
+        c.ridPages.remove(pos);
+        c.ridSlots.remove(pos);
+        leaf.write(c, compress);
+        bufMgr.unpinPage(pageId, fileName, true);
+        return true;
+    }
+
+    /**
+     * Returns the RIDs of all entries with the given key.
+     * @param key the key.
+     * @return the RIDs, in RID order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public List<RID> search(String key) throws IOException
+    {
+        ArrayList<RID> result = new ArrayList<RID>();
+        Iterator<Pair<String,RID>> scan = rangeScan(key, key);
+        while (scan.hasNext())
+            result.add(scan.next().second);
+        return result;
+    }
+
+    /**
+     * Opens a scan over all entries with lowKey <= key <= highKey, in
+     * key order, following the leaf sibling links.
+     * @param lowKey the smallest key returned.
+     * @param highKey the largest key returned.
+     * @return the scan.
+     * @throws IOException passed through from underlying file system.
+     */
+    public StringBTreeScan rangeScan(String lowKey, String highKey)
+        throws IOException
+    {
+        byte[] low = encode(lowKey);
+        return new StringBTreeScan(this, findLeaf(low, Integer.MIN_VALUE,
+                                                  Integer.MIN_VALUE),
+                                   low, encode(highKey));
+    }
+
+    // Copies out the entries of a leaf from low (or from its start when
+    // low is null) up to high, returning the next leaf to read.
+    int readLeaf(int pageId, byte[] low, byte[] high,
+                 List<Pair<String,RID>> out) throws IOException
+    {
+        StringBTreePage leaf = pin(pageId);
+        try
+        {
+            int n = leaf.getNumKeys();
+            int i = low == null ? 0 :
+                leaf.lowerBound(low, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            for (; i < n; i++)
+            {
+                byte[] key = leaf.getKey(i);
+                if (StringBTreePage.compareKeys(key, high) > 0)
+                    return BufferManager.INVALID_PAGE;
+                out.add(new Pair<String,RID>(
+                            new String(key, StandardCharsets.UTF_8),
+                            leaf.getRid(i)));
+            }
+            return leaf.getNextPageId();
+        }
+        finally
+        {
+            bufMgr.unpinPage(pageId, fileName, false);
+        }
+    }
+
+    private int findLeaf(byte[] key, int ridPage, int ridSlot)
+        throws IOException
+    {
+        int pageId = getRootPageId();
+        StringBTreePage node = pin(pageId);
+        while (!node.isLeaf())
+        {
+            int child = node.getChild(node.findChild(key, ridPage, ridSlot));
+            bufMgr.unpinPage(pageId, fileName, false);
+            pageId = child;
+            node = pin(pageId);
+        }
+        bufMgr.unpinPage(pageId, fileName, false);
+        return pageId;
+    }
+
+    // Inserts into the subtree rooted at pageId, returning the
+    // separator for the parent if that node split.
+    private Split insert(int pageId, byte[] key, int ridPage, int ridSlot)
+        throws IOException
+    {
+        StringBTreePage node = pin(pageId);
+        boolean dirty = false;
+        try
+        {
+            StringBTreePage.Contents c;
+            if (node.isLeaf())
+            {
+                int pos = node.lowerBound(key, ridPage, ridSlot);
+                if (pos < node.getNumKeys() &&
+                    node.compareEntry(pos, key, ridPage, ridSlot) == 0)
+                    throw new BTreeFile.DuplicateEntryException();
+                c = node.read();
+                c.keys.add(pos, key);
+                c.ridPages.add(pos, ridPage);
+                c.ridSlots.add(pos, ridSlot);
+            }
+            else
+            {
+                int child = node.findChild(key, ridPage, ridSlot);
+                Split childSplit = insert(node.getChild(child), key, ridPage,
+                                          ridSlot);
+                if (childSplit == null)
+                    return null;
+                c = node.read();
+                c.keys.add(child, childSplit.key);
+                c.ridPages.add(child, childSplit.ridPage);
+                c.ridSlots.add(child, childSplit.ridSlot);
+                c.children.add(child + 1, childSplit.rightPageId);
+            }
+
+            dirty = true;
+            if (StringBTreePage.fits(node.isLeaf(), c, compress))
+            {
+                node.write(c, compress);
+                return null;
+            }
+            return split(node, c);
+        }
+        finally
+        {
+            bufMgr.unpinPage(pageId, fileName, dirty);
+        }
+    }
+
+    // Divides entries that no longer fit in node between node and a new
+    // right sibling.
+    private Split split(StringBTreePage node, StringBTreePage.Contents c)
+        throws IOException
+    {
+        boolean leaf = node.isLeaf();
+        int at = chooseSplit(leaf, c);
+        Pair<Integer,Page> fresh = newPage();
+        StringBTreePage right = new StringBTreePage(fresh.second, fresh.first);
+        right.init(leaf ? StringBTreePage.LEAF : StringBTreePage.INTERNAL);
+        Split up;
+
+        if (leaf)
+        {
+            node.write(c.range(0, at), compress);
+            right.write(c.range(at, c.size()), compress);
+            up = separator(c, at, fresh.first);
+        }
+        else
+        {
+            // The middle key moves up; its children stay on either side.
+            node.write(c.range(0, at), compress);
+            right.write(c.range(at + 1, c.size()), compress);
+            up = new Split(c.keys.get(at), c.ridPages.get(at),
+                           c.ridSlots.get(at), fresh.first);
+        }
+
+        int next = node.getNextPageId();
+        right.setNextPageId(next);
+        right.setPrevPageId(node.getPageId());
+        node.setNextPageId(fresh.first);
+        if (next != BufferManager.INVALID_PAGE)
+        {
+            pin(next).setPrevPageId(fresh.first);
+            bufMgr.unpinPage(next, fileName, true);
+        }
+        bufMgr.unpinPage(fresh.first, fileName, true);
+        return up;
+    }
+
+    // Picks where to split so both halves fit, preferring the middle by
+    // bytes. For a leaf with compression on, any position in a window
+    // around the middle is fine, and the one giving the shortest
+    // separator wins.
+    private int chooseSplit(boolean leaf, StringBTreePage.Contents c)
+    {
+        int n = c.size();
+        int total = 0;
+        for (byte[] key : c.keys)
+            total += key.length;
+        int middle = 1;
+        int bytes = c.keys.get(0).length;
+        while (middle < n - 1 && 2 * bytes < total)
+            bytes += c.keys.get(middle++).length;
+
+        if (!leaf || !compress)
+            return middle;
+
+        int window = Math.max(1, n / 8);
+        int best = middle;
+        int bestLength = Integer.MAX_VALUE;
+        for (int at = Math.max(1, middle - window);
+             at <= Math.min(n - 1, middle + window); at++)
+        {
+            if (!StringBTreePage.fits(true, c.range(0, at), compress) ||
+                !StringBTreePage.fits(true, c.range(at, n), compress))
+                continue;
+            int length = separator(c, at, 0).key.length;
+            if (length < bestLength ||
+                (length == bestLength &&
+                 Math.abs(at - middle) < Math.abs(best - middle)))
+            {
+                best = at;
+                bestLength = length;
+            }
+        }
+        return best;
+    }
+
+    // Separator between leaf entries at-1 and at. With compression on
+    // and differing keys, this is the shortest prefix of the right key
+    // that is greater than the left key, which still routes every key
+    // between the two correctly.
+    private Split separator(StringBTreePage.Contents c, int at,
+                            int rightPageId)
+    {
+        byte[] left = c.keys.get(at - 1);
+        byte[] right = c.keys.get(at);
+        if (!compress || StringBTreePage.compareKeys(left, right) == 0)
+            return new Split(right, c.ridPages.get(at), c.ridSlots.get(at),
+                             rightPageId);
+
+        int i = 0;
+        while (i < left.length && left[i] == right[i])
+            i++;
+        return new Split(Arrays.copyOf(right, i + 1), Integer.MIN_VALUE,
+                         Integer.MIN_VALUE, rightPageId);
+    }
+
+    private static byte[] encode(String key)
+    {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private StringBTreePage pin(int pageId) throws IOException
+    {
+        Page page = bufMgr.pinPage(pageId, fileName, false);
+        if (page == null)
+            throw new BTreeFile.BufferFullException();
+        return new StringBTreePage(page, pageId);
+    }
+
+    private Pair<Integer,Page> newPage() throws IOException
+    {
+        Pair<Integer,Page> fresh = bufMgr.newPage(1, fileName);
+        if (fresh.second == null)
+        {
+            DBFile.open(fileName).deallocatePages(fresh.first, 1);
+            throw new BTreeFile.BufferFullException();
+        }
+        return fresh;
+    }
+
+    private int readHeader(int offset) throws IOException
+    {
+        Page page = bufMgr.pinPage(HEADER_PAGE, fileName, false);
+        if (page == null)
+            throw new BTreeFile.BufferFullException();
+        int value = ByteBuffer.wrap(page.data).getInt(offset);
+        bufMgr.unpinPage(HEADER_PAGE, fileName, false);
+        return value;
+    }
+
+    private void writeHeader(int rootPageId, int height) throws IOException
+    {
+        Page page = bufMgr.pinPage(HEADER_PAGE, fileName, false);
+        if (page == null)
+            throw new BTreeFile.BufferFullException();
+        ByteBuffer buf = ByteBuffer.wrap(page.data);
+        buf.putInt(HEADER_ROOT, rootPageId);
+        buf.putInt(HEADER_HEIGHT, height);
+        bufMgr.unpinPage(HEADER_PAGE, fileName, true);
+    }
+}
@@ -0,0 +1,418 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Node page of a StringBTreeFile. Keys are variable-length byte
+ * strings, so a node holds as many entries as fit in its bytes rather
+ * than a fixed number of keys.
+ *
+ * The page starts with a 28 byte header: node type, number of keys,
+ * next and previous sibling page ids, start of the key area, length of
+ * the common prefix, and (for internal nodes) the leftmost child. A
+ * slot array follows the header and grows towards the end of the
+ * page, while key bytes are packed from the end of the page backwards.
+ * A leaf slot holds the offset and length of the key suffix and a RID;
+ * an internal slot additionally holds the child to the right of the
+ * key. With compression on, the bytes every key on the page starts
+ * with are stored once, at the very end of the page, and only the
+ * remaining suffix of each key is stored in the key area.
+ *
+ * Lookups binary search the page in place. Changes decode the page
+ * into a Contents object and write it back, which recomputes the
+ * common prefix.
+ * @author Yuen Hsi Chang
+ */
+public class StringBTreePage
+{
+    public static final int LEAF = 1;
+    public static final int INTERNAL = 2;
+
+    private static final int TYPE = 0;
+    private static final int NUM_KEYS = 4;
+    private static final int NEXT = 8;
+    private static final int PREV = 12;
+    private static final int KEY_AREA = 16;
+    private static final int PREFIX_LEN = 20;
+    private static final int FIRST_CHILD = 24;
+    private static final int HEADER_SIZE = 28;
+
+    private static final int LEAF_SLOT_SIZE = 12;
+    private static final int INTERNAL_SLOT_SIZE = 16;
+
+    /**
+     * Longest key accepted, chosen so that any node can be split into
+     * two halves that each fit on a page.
+     */
+    public static final int MAX_KEY_LENGTH =
+        (Page.PAGESIZE - HEADER_SIZE) / 4 - INTERNAL_SLOT_SIZE;
+
+    /**
+     * Decoded entries of a node, with full keys.
+     */
+    public static class Contents
+    {
+        public ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        public ArrayList<Integer> ridPages = new ArrayList<Integer>();
+        public ArrayList<Integer> ridSlots = new ArrayList<Integer>();
+
+        /**
+         * Children of an internal node; child i+1 belongs to key i.
+         * Empty for a leaf.
+         */
+        public ArrayList<Integer> children = new ArrayList<Integer>();
+
+        public int size()
+        {
+            return keys.size();
+        }
+
+        /**
+         * Returns entries [from, to) of a leaf, or keys [from, to) of an
+         * internal node together with children [from, to].
+         */
+        public Contents range(int from, int to)
+        {
+            Contents c = new Contents();
+            c.keys.addAll(keys.subList(from, to));
+            c.ridPages.addAll(ridPages.subList(from, to));
+            c.ridSlots.addAll(ridSlots.subList(from, to));
+            if (!children.isEmpty())
+                c.children.addAll(children.subList(from, to + 1));
+            return c;
+        }
+    }
+
+    private byte[] data;
+    private ByteBuffer buf;
+    private int pageId;
+
+    /**
+     * Constructs a node by wrapping around a page object already
+     * provided.
+     * @param page the page to be wrapped.
+     * @param pageId the id of the page.
+     */
+    public StringBTreePage(Page page, int pageId)
+    {
+        this.data = page.data;
+        this.buf = ByteBuffer.wrap(data);
+        this.pageId = pageId;
+    }
+
+    /**
+     * Initializes an empty node of the given type with no siblings.
+     * @param type LEAF or INTERNAL.
+     */
+    public void init(int type)
+    {
+        buf.putInt(TYPE, type);
+        buf.putInt(NUM_KEYS, 0);
+        buf.putInt(NEXT, BufferManager.INVALID_PAGE);
+        buf.putInt(PREV, BufferManager.INVALID_PAGE);
+        buf.putInt(KEY_AREA, Page.PAGESIZE);
+        buf.putInt(PREFIX_LEN, 0);
+        buf.putInt(FIRST_CHILD, BufferManager.INVALID_PAGE);
+    }
+
+    public int getPageId()
+    {
+        return pageId;
+    }
+
+    public boolean isLeaf()
+    {
+        return buf.getInt(TYPE) == LEAF;
+    }
+
+    public int getNumKeys()
+    {
+        return buf.getInt(NUM_KEYS);
+    }
+
+    public int getNextPageId()
+    {
+        return buf.getInt(NEXT);
+    }
+
+    public void setNextPageId(int pageId)
+    {
+        buf.putInt(NEXT, pageId);
+    }
+
+    public int getPrevPageId()
+    {
+        return buf.getInt(PREV);
+    }
+
+    public void setPrevPageId(int pageId)
+    {
+        buf.putInt(PREV, pageId);
+    }
+
+    /**
+     * Returns the length of the prefix shared by every key on the page.
+     * @return the prefix length in bytes.
+     */
+    public int getPrefixLength()
+    {
+        return buf.getInt(PREFIX_LEN);
+    }
+
+    /**
+     * Returns the number of unused bytes between the slot array and
+     * the key area.
+     * @return the free space in bytes.
+     */
+    public int getFreeSpace()
+    {
+        return buf.getInt(KEY_AREA) - slotOffset(getNumKeys());
+    }
+
+    public int getRidPage(int i)
+    {
+        return buf.getInt(slotOffset(i) + 4);
+    }
+
+    public int getRidSlot(int i)
+    {
+        return buf.getInt(slotOffset(i) + 8);
+    }
+
+    public RID getRid(int i)
+    {
+        return new RID(getRidPage(i), getRidSlot(i));
+    }
+
+    /**
+     * Returns the i-th child of an internal node, where child 0 is the
+     * leftmost child and child i (for i > 0) belongs to key i-1.
+     */
+    public int getChild(int i)
+    {
+        if (i == 0)
+            return buf.getInt(FIRST_CHILD);
+        return buf.getInt(slotOffset(i - 1) + 12);
+    }
+
+    /**
+     * Returns a copy of the full key i, prefix included.
+     */
+    public byte[] getKey(int i)
+    {
+        int prefixLen = getPrefixLength();
+        int off = slotOffset(i);
+        int suffixOff = buf.getShort(off) & 0xffff;
+        int suffixLen = buf.getShort(off + 2) & 0xffff;
+        byte[] key = new byte[prefixLen + suffixLen];
+        System.arraycopy(data, Page.PAGESIZE - prefixLen, key, 0, prefixLen);
+        System.arraycopy(data, suffixOff, key, prefixLen, suffixLen);
+        return key;
+    }
+
+    /**
+     * Binary searches for the first entry not less than (key, rid).
+     * @return its position, or getNumKeys() if there is none.
+     */
+    public int lowerBound(byte[] key, int ridPage, int ridSlot)
+    {
+        return search(key, ridPage, ridSlot, false);
+    }
+
+    /**
+     * Binary searches an internal node for the child whose subtree
+     * covers (key, rid).
+     * @return the child index.
+     */
+    public int findChild(byte[] key, int ridPage, int ridSlot)
+    {
+        return search(key, ridPage, ridSlot, true);
+    }
+
+    /**
+     * Compares entry i with (key, rid), ordering by key bytes as
+     * unsigned values and then by RID.
+     */
+    public int compareEntry(int i, byte[] key, int ridPage, int ridSlot)
+    {
+        int prefixLen = getPrefixLength();
+        int c = comparePrefix(key, prefixLen);
+        if (c == 0)
+            c = compareSuffix(i, key, prefixLen);
+        if (c != 0)
+            return c;
+        return BTreePage.compare(0, getRidPage(i), getRidSlot(i),
+                                 0, ridPage, ridSlot);
+    }
+
+    /**
+     * Decodes every entry of the node.
+     * @return the entries, with full keys.
+     */
+    public Contents read()
+    {
+        Contents c = new Contents();
+        int n = getNumKeys();
+        for (int i = 0; i < n; i++)
+        {
+            c.keys.add(getKey(i));
+            c.ridPages.add(getRidPage(i));
+            c.ridSlots.add(getRidSlot(i));
+        }
+        if (!isLeaf())
+            for (int i = 0; i <= n; i++)
+                c.children.add(getChild(i));
+        return c;
+    }
+
+    /**
+     * Computes the number of bytes a node of the given type would take
+     * to hold the given entries.
+     */
+    public static int encodedSize(boolean leaf, Contents c, boolean compress)
+    {
+        int prefixLen = compress ? commonPrefix(c) : 0;
+        int size = HEADER_SIZE + prefixLen;
+        for (byte[] key : c.keys)
+            size += (leaf ? LEAF_SLOT_SIZE : INTERNAL_SLOT_SIZE) +
+                key.length - prefixLen;
+        return size;
+    }
+
+    /**
+     * Whether the given entries fit on one page.
+     */
+    public static boolean fits(boolean leaf, Contents c, boolean compress)
+    {
+        return encodedSize(leaf, c, compress) <= Page.PAGESIZE;
+    }
+
+    /**
+     * Replaces the entries of the node, keeping its type and sibling
+     * links. The caller makes sure they fit.
+     * @param c the new entries.
+     * @param compress whether to store the common prefix once.
+     */
+    public void write(Contents c, boolean compress)
+    {
+        int n = c.size();
+        int prefixLen = compress ? commonPrefix(c) : 0;
+        int keyArea = Page.PAGESIZE - prefixLen;
+        if (prefixLen > 0)
+            System.arraycopy(c.keys.get(0), 0, data, keyArea, prefixLen);
+
+        for (int i = 0; i < n; i++)
+        {
+            byte[] key = c.keys.get(i);
+            int suffixLen = key.length - prefixLen;
+            keyArea -= suffixLen;
+            System.arraycopy(key, prefixLen, data, keyArea, suffixLen);
+            int off = slotOffset(i);
+            buf.putShort(off, (short)keyArea);
+            buf.putShort(off + 2, (short)suffixLen);
+            buf.putInt(off + 4, c.ridPages.get(i));
+            buf.putInt(off + 8, c.ridSlots.get(i));
+            if (!isLeaf())
+                buf.putInt(off + 12, c.children.get(i + 1));
+        }
+        if (!isLeaf())
+            buf.putInt(FIRST_CHILD, c.children.get(0));
+        buf.putInt(NUM_KEYS, n);
+        buf.putInt(KEY_AREA, keyArea);
+        buf.putInt(PREFIX_LEN, prefixLen);
+    }
+
+    /**
+     * Compares two keys as unsigned byte strings.
+     */
+    public static int compareKeys(byte[] a, byte[] b)
+    {
+        int m = Math.min(a.length, b.length);
+        for (int i = 0; i < m; i++)
+        {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    // Keys are sorted, so the prefix shared by the first and last keys
+    // is shared by all of them.
+    private static int commonPrefix(Contents c)
+    {
+        if (c.size() < 2)
+            return 0;
+        byte[] first = c.keys.get(0);
+        byte[] last = c.keys.get(c.size() - 1);
+        int m = Math.min(first.length, last.length);
+        int i = 0;
+        while (i < m && first[i] == last[i])
+            i++;
+        return i;
+    }
+
+    // Compares the page prefix with the start of key. A key that runs
+    // out before the prefix does is smaller than every key on the page.
+    private int comparePrefix(byte[] key, int prefixLen)
+    {
+        int base = Page.PAGESIZE - prefixLen;
+        int m = Math.min(prefixLen, key.length);
+        for (int j = 0; j < m; j++)
+        {
+            int c = (data[base + j] & 0xff) - (key[j] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return key.length < prefixLen ? 1 : 0;
+    }
+
+    // Compares the suffix of entry i with key past the prefix.
+    private int compareSuffix(int i, byte[] key, int prefixLen)
+    {
+        int off = slotOffset(i);
+        int suffixOff = buf.getShort(off) & 0xffff;
+        int suffixLen = buf.getShort(off + 2) & 0xffff;
+        int keyLen = key.length - prefixLen;
+        int m = Math.min(suffixLen, keyLen);
+        for (int j = 0; j < m; j++)
+        {
+            int c = (data[suffixOff + j] & 0xff) - (key[prefixLen + j] & 0xff);
+            if (c != 0)
+                return c;
+        }
+        return suffixLen - keyLen;
+    }
+
+    // Lower bound, or upper bound when upper is set. The prefix is
+    // compared once for the whole search, and only suffixes after that.
+    private int search(byte[] key, int ridPage, int ridSlot, boolean upper)
+    {
+        int n = getNumKeys();
+        int prefixLen = getPrefixLength();
+        int p = comparePrefix(key, prefixLen);
+        if (p != 0)
+            return p > 0 ? 0 : n;
+
+        int lo = 0;
+        int hi = n;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int c = compareSuffix(mid, key, prefixLen);
+            if (c == 0)
+                c = BTreePage.compare(0, getRidPage(mid), getRidSlot(mid),
+                                      0, ridPage, ridSlot);
+            if (c < 0 || (upper && c == 0))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int slotOffset(int i)
+    {
+        return HEADER_SIZE +
+            i * (isLeaf() ? LEAF_SLOT_SIZE : INTERNAL_SLOT_SIZE);
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Scan over a key range of a StringBTreeFile. Entries are read a leaf
+ * at a time, following the sibling links, and a leaf is only pinned
+ * while its entries are being copied out.
+ * @author Yuen Hsi Chang
+ */
+public class StringBTreeScan implements Iterator<Pair<String,RID>>
+{
+    private StringBTreeFile tree;
+    private byte[] lowKey;
+    private byte[] highKey;
+    private int nextLeaf;
+
+    // Entries of the leaf last read that have not been returned yet.
+    private ArrayList<Pair<String,RID>> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a scan starting in a leaf.
+     * @param tree the index being scanned.
+     * @param leafPageId the leaf covering lowKey.
+     * @param lowKey the UTF-8 bytes of the smallest key returned.
+     * @param highKey the UTF-8 bytes of the largest key returned.
+     */
+    public StringBTreeScan(StringBTreeFile tree, int leafPageId,
+                           byte[] lowKey, byte[] highKey)
+    {
+        this.tree = tree;
+        this.lowKey = lowKey;
+        this.highKey = highKey;
+        this.nextLeaf = leafPageId;
+        this.buffered = new ArrayList<Pair<String,RID>>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean hasNext()
+    {
+        while (bufferedPos == buffered.size() &&
+               nextLeaf != BufferManager.INVALID_PAGE)
+            readLeaf();
+        return bufferedPos < buffered.size();
+    }
+
+    public Pair<String,RID> next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.get(bufferedPos++);
+    }
+
+    private void readLeaf()
+    {
+        buffered.clear();
+        bufferedPos = 0;
+        try
+        {
+            // Only the first leaf can hold entries below lowKey.
+            nextLeaf = tree.readLeaf(nextLeaf, lowKey, highKey, buffered);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        lowKey = null;
+    }
+}
@@ -0,0 +1,485 @@
+import java.util.*;
+
+/**
+ * A page of tuples, in the format of TupleEncoder, that stores chosen
+ * variable length columns through a dictionary of their own. Each
+ * distinct value of such a column appears once on the page, and every
+ * record refers to it by a one byte code. The codes of a column are
+ * kept apart from the records, in slot order, as runs of equal codes,
+ * so records sorted or clustered on a column cost a couple of bytes a
+ * run rather than a value a record. Records of low cardinality strings
+ * so take far less room than on a SlottedPage, and an equality
+ * predicate on such a column is checked once per run, against a code,
+ * without decoding anything.
+ *
+ * The page begins with the number of slots, then a slot array giving
+ * the offset and length of what is left of each record (offset 0 for
+ * a deleted one). Each dictionary column follows: the number of
+ * values, each value with its length, the number of runs, and each run
+ * as a code and a count. The rest of each record, with the dictionary
+ * columns null, fills the page from the end. Code 0 stands for null,
+ * and the values are coded from 1. All numbers are 2 bytes, except
+ * codes, run counts and the number of values, which are 1.
+ *
+ * Reads work in place. Inserts and deletes lay the page out afresh,
+ * which for a 1 KB page is cheap next to the I/O they save. Slots are
+ * numbered from 1, as on a SlottedPage, and keep their numbers.
+ * @author Yuen Hsi Chang
+ */
+public class DictionaryPage
+{
+    /**
+     * Most distinct values of a column one page can hold.
+     */
+    public static final int MAX_CODES = 255;
+
+    private static final int MAX_RUN = 255;
+    private static final int HEADER_SIZE = 2;
+    private static final int SLOT_SIZE = 4;
+
+    private byte[] data;
+    private Schema schema;
+    private int[] dictColumns;
+    private boolean[] isDictColumn;
+    private int pageId;
+
+    // Where each dictionary column's values and runs start, and how
+    // many runs it has, worked out when the page is wrapped or changed.
+    private int[] valuesStart;
+    private int[] runsStart;
+    private int[] numRuns;
+
+    private TupleEncoder encoder;
+    private TupleDecoder decoder;
+
+    /**
+     * Wraps a page.
+     * @param page the page to be wrapped.
+     * @param schema the schema of the records.
+     * @param dictColumns the columns stored through dictionaries.
+     * @throws Schema.BadSchemaException if one of dictColumns is not of
+     * variable length.
+     */
+    public DictionaryPage(Page page, Schema schema, int[] dictColumns)
+    {
+        this.data = page.data;
+        this.schema = schema;
+        this.dictColumns = dictColumns.clone();
+        this.isDictColumn = new boolean[schema.getNumColumns()];
+        for (int column : dictColumns)
+        {
+            if (!schema.getType(column).isVariable())
+                throw new Schema.BadSchemaException();
+            isDictColumn[column] = true;
+        }
+        this.valuesStart = new int[dictColumns.length];
+        this.runsStart = new int[dictColumns.length];
+        this.numRuns = new int[dictColumns.length];
+        this.encoder = new TupleEncoder(schema);
+        this.decoder = new TupleDecoder(schema);
+        locate();
+    }
+
+    /**
+     * Makes the page empty.
+     */
+    public void init()
+    {
+        Arrays.fill(data, (byte)0);
+        locate();
+    }
+
+    public void setPageId(int pageId)
+    {
+        this.pageId = pageId;
+    }
+
+    public int getPageId()
+    {
+        return pageId;
+    }
+
+    /**
+     * Returns the number of slots, counting those of deleted records.
+     * Slots are numbered from 1 up to and including this number.
+     * @return the number of slots.
+     */
+    public int getNumSlots()
+    {
+        return getShort(0);
+    }
+
+    /**
+     * Whether a slot holds a record.
+     * @param slotNum the slot.
+     * @return true if the record has not been deleted.
+     */
+    public boolean isLive(int slotNum)
+    {
+        return slotNum >= 1 && slotNum <= getNumSlots() &&
+            getShort(slotPos(slotNum)) != 0;
+    }
+
+    /**
+     * Returns the number of records on the page.
+     * @return the number of live slots.
+     */
+    public int getNumRecords()
+    {
+        int count = 0;
+        for (int slot = 1; slot <= getNumSlots(); slot++)
+            if (isLive(slot))
+                count++;
+        return count;
+    }
+
+    /**
+     * Inserts a record, coding its dictionary columns.
+     * @param tuple the array holding the record.
+     * @param offset where the record starts in tuple.
+     * @return the RID of the new record.
+     * @throws SlottedPage.PageFullException if the record does not fit,
+     * or a column would need more than MAX_CODES values.
+     */
+    public RID insertRecord(byte[] tuple, int offset)
+    {
+        Layout layout = new Layout();
+        decoder.wrap(tuple, offset);
+        int[] codes = new int[dictColumns.length];
+        for (int d = 0; d < dictColumns.length; d++)
+        {
+            if (decoder.isNull(dictColumns[d]))
+                continue;
+            byte[] value = Arrays.copyOfRange(
+                tuple, decoder.getOffset(dictColumns[d]),
+                decoder.getOffset(dictColumns[d]) +
+                decoder.getLength(dictColumns[d]));
+            codes[d] = layout.code(d, value);
+        }
+
+        encoder.reset();
+        for (int c = 0; c < schema.getNumColumns(); c++)
+            if (!isDictColumn[c])
+                copyField(c);
+        layout.records.add(Arrays.copyOf(encoder.getBuffer(),
+                                         encoder.encode()));
+        for (int d = 0; d < dictColumns.length; d++)
+            layout.codes.get(d).add(codes[d]);
+        layout.write();
+        return new RID(pageId, layout.records.size());
+    }
+
+    /**
+     * Deletes a record. Its slot stays, empty, so other records keep
+     * their RIDs, and values only it used stay in the dictionary.
+     * @param rid the RID of the record.
+     * @return true if it was deleted, false if there was no such record.
+     */
+    public boolean deleteRecord(RID rid)
+    {
+        if (rid.pageId != pageId || !isLive(rid.slotNum))
+            return false;
+        Layout layout = new Layout();
+        layout.records.set(rid.slotNum - 1, null);
+        layout.write();
+        return true;
+    }
+
+    /**
+     * Returns a copy of a record, with its dictionary columns decoded.
+     * @param rid the RID of the record.
+     * @return the record, in the format of TupleEncoder.
+     * @throws SlottedPage.BadPageIdException if the RID is of another
+     * page.
+     * @throws SlottedPage.BadSlotIdException if there is no such record.
+     */
+    public byte[] getRecord(RID rid)
+    {
+        if (rid.pageId != pageId)
+            throw new SlottedPage.BadPageIdException();
+        if (!isLive(rid.slotNum))
+            throw new SlottedPage.BadSlotIdException();
+
+        decoder.wrap(data, getShort(slotPos(rid.slotNum)));
+        encoder.reset();
+        for (int c = 0; c < schema.getNumColumns(); c++)
+            if (!isDictColumn[c])
+                copyField(c);
+        for (int d = 0; d < dictColumns.length; d++)
+        {
+            int code = getCode(d, rid.slotNum);
+            if (code != 0)
+            {
+                int pos = valuePos(d, code);
+                encoder.setBytes(dictColumns[d], data, pos + 2,
+                                 getShort(pos));
+            }
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Returns the code a record has for a dictionary column.
+     * @param dict the dictionary column, as an index into dictColumns.
+     * @param slotNum the record's slot.
+     * @return the code, 0 for null.
+     */
+    public int getCode(int dict, int slotNum)
+    {
+        int pos = runsStart[dict];
+        int covered = 0;
+        for (int r = 0; r < numRuns[dict]; r++, pos += 2)
+        {
+            covered += data[pos + 1] & 0xff;
+            if (slotNum <= covered)
+                return data[pos] & 0xff;
+        }
+        throw new SlottedPage.BadSlotIdException();
+    }
+
+    /**
+     * Looks up the code of a value of a dictionary column.
+     * @param dict the dictionary column, as an index into dictColumns.
+     * @param value the value, as UTF-8 for a STRING.
+     * @return the code, or -1 if no record on the page has the value.
+     */
+    public int findCode(int dict, byte[] value)
+    {
+        int pos = valuesStart[dict] + 1;
+        int numValues = data[valuesStart[dict]] & 0xff;
+        for (int code = 1; code <= numValues; code++)
+        {
+            int len = getShort(pos);
+            if (len == value.length &&
+                Arrays.equals(data, pos + 2, pos + 2 + len, value, 0, len))
+                return code;
+            pos += 2 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the records whose dictionary column equals a value. The
+     * value is looked up in the dictionary once, and then compared as
+     * a code, a run at a time.
+     * @param dict the dictionary column, as an index into dictColumns.
+     * @param value the value, as UTF-8 for a STRING.
+     * @param slots array to put the matching slots in, long enough for
+     * every slot on the page.
+     * @return the number of matching records.
+     */
+    public int selectEquals(int dict, byte[] value, int[] slots)
+    {
+        int code = findCode(dict, value);
+        if (code < 0)
+            return 0;
+        int count = 0;
+        int slot = 1;
+        int pos = runsStart[dict];
+        for (int r = 0; r < numRuns[dict]; r++, pos += 2)
+        {
+            int end = slot + (data[pos + 1] & 0xff);
+            if ((data[pos] & 0xff) == code)
+                for (; slot < end; slot++)
+                    if (getShort(slotPos(slot)) != 0)
+                        slots[count++] = slot;
+            slot = end;
+        }
+        return count;
+    }
+
+    /**
+     * Returns how much of the page is in use.
+     * @return the number of bytes holding slots, dictionaries, runs and
+     * records.
+     */
+    public int getUsedSpace()
+    {
+        int used = runsStart.length == 0 ?
+            HEADER_SIZE + getNumSlots() * SLOT_SIZE :
+            runsStart[runsStart.length - 1] +
+            numRuns[runsStart.length - 1] * 2;
+        for (int slot = 1; slot <= getNumSlots(); slot++)
+            used += getShort(slotPos(slot) + 2);
+        return used;
+    }
+
+    // Copies a field from the decoder to the encoder.
+    private void copyField(int column)
+    {
+        if (decoder.isNull(column))
+            return;
+        switch (schema.getType(column))
+        {
+        case INT:
+            encoder.setInt(column, decoder.getInt(column));
+            break;
+        case LONG:
+            encoder.setLong(column, decoder.getLong(column));
+            break;
+        case DOUBLE:
+            encoder.setDouble(column, decoder.getDouble(column));
+            break;
+        default:
+            encoder.setBytes(column, decoder.getData(),
+                             decoder.getOffset(column),
+                             decoder.getLength(column));
+            break;
+        }
+    }
+
+    // Finds where each dictionary column's values and runs start.
+    private void locate()
+    {
+        int pos = HEADER_SIZE + getNumSlots() * SLOT_SIZE;
+        for (int d = 0; d < dictColumns.length; d++)
+        {
+            valuesStart[d] = pos;
+            int numValues = data[pos++] & 0xff;
+            for (int v = 0; v < numValues; v++)
+                pos += 2 + getShort(pos);
+            numRuns[d] = getShort(pos);
+            runsStart[d] = pos + 2;
+            pos = runsStart[d] + numRuns[d] * 2;
+        }
+    }
+
+    // Where a value of a dictionary column starts, at its length.
+    private int valuePos(int dict, int code)
+    {
+        int pos = valuesStart[dict] + 1;
+        for (int v = 1; v < code; v++)
+            pos += 2 + getShort(pos);
+        return pos;
+    }
+
+    private static int slotPos(int slotNum)
+    {
+        return HEADER_SIZE + (slotNum - 1) * SLOT_SIZE;
+    }
+
+    private int getShort(int pos)
+    {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] dest, int pos, int value)
+    {
+        dest[pos] = (byte)(value >> 8);
+        dest[pos + 1] = (byte)value;
+    }
+
+    /**
+     * The page taken apart, to be changed and laid out again.
+     */
+    private class Layout
+    {
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        ArrayList<ArrayList<byte[]>> values =
+            new ArrayList<ArrayList<byte[]>>();
+        ArrayList<ArrayList<Integer>> codes =
+            new ArrayList<ArrayList<Integer>>();
+
+        Layout()
+        {
+            int numSlots = getNumSlots();
+            for (int slot = 1; slot <= numSlots; slot++)
+            {
+                int offset = getShort(slotPos(slot));
+                records.add(offset == 0 ? null : Arrays.copyOfRange(
+                                data, offset,
+                                offset + getShort(slotPos(slot) + 2)));
+            }
+            for (int d = 0; d < dictColumns.length; d++)
+            {
+                ArrayList<byte[]> dict = new ArrayList<byte[]>();
+                int numValues = data[valuesStart[d]] & 0xff;
+                for (int code = 1; code <= numValues; code++)
+                {
+                    int pos = valuePos(d, code);
+                    dict.add(Arrays.copyOfRange(data, pos + 2,
+                                                pos + 2 + getShort(pos)));
+                }
+                values.add(dict);
+                ArrayList<Integer> column = new ArrayList<Integer>();
+                int pos = runsStart[d];
+                for (int r = 0; r < numRuns[d]; r++, pos += 2)
+                    for (int i = 0; i < (data[pos + 1] & 0xff); i++)
+                        column.add(data[pos] & 0xff);
+                codes.add(column);
+            }
+        }
+
+        // Returns the code of a value, adding it to the dictionary.
+        int code(int dict, byte[] value)
+        {
+            ArrayList<byte[]> dictValues = values.get(dict);
+            for (int i = 0; i < dictValues.size(); i++)
+                if (Arrays.equals(dictValues.get(i), value))
+                    return i + 1;
+            if (dictValues.size() == MAX_CODES)
+                throw new SlottedPage.PageFullException();
+            dictValues.add(value);
+            return dictValues.size();
+        }
+
+        // Lays the page out, leaving it as it was if it does not fit.
+        void write()
+        {
+            byte[] image = new byte[Page.PAGESIZE];
+            int pos = HEADER_SIZE + records.size() * SLOT_SIZE;
+            putShort(image, 0, records.size());
+            for (int d = 0; d < dictColumns.length; d++)
+            {
+                check(pos + 1);
+                image[pos++] = (byte)values.get(d).size();
+                for (byte[] value : values.get(d))
+                {
+                    check(pos + 2 + value.length);
+                    putShort(image, pos, value.length);
+                    System.arraycopy(value, 0, image, pos + 2, value.length);
+                    pos += 2 + value.length;
+                }
+                int countPos = pos;
+                pos += 2;
+                int runs = 0;
+                ArrayList<Integer> column = codes.get(d);
+                for (int i = 0; i < column.size(); runs++)
+                {
+                    int run = 1;
+                    while (i + run < column.size() && run < MAX_RUN &&
+                           column.get(i + run).equals(column.get(i)))
+                        run++;
+                    check(pos + 2);
+                    image[pos++] = (byte)(int)column.get(i);
+                    image[pos++] = (byte)run;
+                    i += run;
+                }
+                check(pos);
+                putShort(image, countPos, runs);
+            }
+
+            int end = Page.PAGESIZE;
+            for (int slot = 1; slot <= records.size(); slot++)
+            {
+                byte[] record = records.get(slot - 1);
+                if (record == null)
+                    continue;
+                end -= record.length;
+                if (end < pos)
+                    throw new SlottedPage.PageFullException();
+                System.arraycopy(record, 0, image, end, record.length);
+                putShort(image, slotPos(slot), end);
+                putShort(image, slotPos(slot) + 2, record.length);
+            }
+            System.arraycopy(image, 0, data, 0, Page.PAGESIZE);
+            locate();
+        }
+
+        private void check(int end)
+        {
+            if (end > Page.PAGESIZE)
+                throw new SlottedPage.PageFullException();
+        }
+    }
+}
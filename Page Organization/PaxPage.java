@@ -0,0 +1,209 @@
+/**
+ * A page holding records column by column (PAX). Each column of the
+ * schema has a minipage of its own within the page: a null bitmap with
+ * a bit per row, followed by the column's values for every row, one
+ * after another. Reading one column of every record on the page reads
+ * one contiguous run of bytes, and leaves the other columns alone.
+ *
+ * Minipages are sized for the number of rows that fit, which depends
+ * only on the schema, so every column fills up together. Only fixed
+ * length columns can be stored. Rows are numbered from 0, are only
+ * ever added at the end, and there is no per-row slot.
+ *
+ * The page starts with the number of rows it holds and its capacity.
+ * @author Yuen Hsi Chang
+ */
+public class PaxPage
+{
+    public static class PageFullException extends RuntimeException {};
+
+    // Layout of the header, in bytes.
+    private static final int COUNT = 0;
+    private static final int CAPACITY = 4;
+    private static final int HEADER_SIZE = 8;
+
+    private byte[] data;
+    private Schema schema;
+    private int capacity;
+    private int[] nullStart;
+    private int[] valueStart;
+    private int[] sizes;
+
+    /**
+     * Wraps a page.
+     * @param page the page to be wrapped.
+     * @param schema the schema of the rows.
+     * @throws Schema.BadSchemaException if a column is of variable
+     * length.
+     */
+    public PaxPage(Page page, Schema schema)
+    {
+        this.data = page.data;
+        this.schema = schema;
+        this.capacity = capacityOf(schema);
+        int n = schema.getNumColumns();
+        this.nullStart = new int[n];
+        this.valueStart = new int[n];
+        this.sizes = new int[n];
+        int offset = HEADER_SIZE;
+        for (int c = 0; c < n; c++)
+        {
+            sizes[c] = schema.getType(c).getSize();
+            nullStart[c] = offset;
+            offset += (capacity + 7) / 8;
+            valueStart[c] = offset;
+            offset += capacity * sizes[c];
+        }
+    }
+
+    /**
+     * Returns how many rows of a schema fit on a page.
+     * @param schema the schema.
+     * @return the number of rows.
+     * @throws Schema.BadSchemaException if a column is of variable
+     * length.
+     */
+    public static int capacityOf(Schema schema)
+    {
+        int rowBytes = 0;
+        for (int c = 0; c < schema.getNumColumns(); c++)
+        {
+            if (schema.getType(c).isVariable())
+                throw new Schema.BadSchemaException();
+            rowBytes += schema.getType(c).getSize();
+        }
+        int space = Page.PAGESIZE - HEADER_SIZE;
+        int rows = space * 8 / (rowBytes * 8 + schema.getNumColumns());
+        while (rows * rowBytes + schema.getNumColumns() * ((rows + 7) / 8) >
+               space)
+            rows--;
+        return rows;
+    }
+
+    /**
+     * Makes the page empty.
+     */
+    public void init()
+    {
+        TupleEncoder.putLong(data, COUNT, 0, 4);
+        TupleEncoder.putLong(data, CAPACITY, capacity, 4);
+        for (int c = 0; c < nullStart.length; c++)
+            for (int i = nullStart[c]; i < valueStart[c]; i++)
+                data[i] = 0;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public int getNumRecords()
+    {
+        return (int)TupleDecoder.getLong(data, COUNT, 4);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public boolean isFull()
+    {
+        return getNumRecords() == capacity;
+    }
+
+    /**
+     * Adds a row, copying each field of a tuple in the format of
+     * TupleEncoder into its column's minipage.
+     * @param tuple the array holding the tuple.
+     * @param offset where the tuple starts in the array.
+     * @return the row number of the new row.
+     * @throws PageFullException if the page is full.
+     */
+    public int insert(byte[] tuple, int offset)
+    {
+        int row = getNumRecords();
+        if (row == capacity)
+            throw new PageFullException();
+        for (int c = 0; c < sizes.length; c++)
+        {
+            int bit = nullStart[c] + (row >> 3);
+            if ((tuple[offset + (c >> 3)] & (1 << (c & 7))) != 0)
+                data[bit] |= (byte)(1 << (row & 7));
+            else
+                data[bit] &= (byte)~(1 << (row & 7));
+            System.arraycopy(tuple, offset + schema.getFixedOffset(c), data,
+                             valueStart[c] + row * sizes[c], sizes[c]);
+        }
+        TupleEncoder.putLong(data, COUNT, row + 1, 4);
+        return row;
+    }
+
+    /**
+     * Copies a row into an encoder, ready to be encoded as a tuple.
+     * @param row the row.
+     * @param encoder an encoder for this page's schema.
+     */
+    public void getTuple(int row, TupleEncoder encoder)
+    {
+        encoder.reset();
+        for (int c = 0; c < sizes.length; c++)
+        {
+            if (isNull(row, c))
+                continue;
+            switch (schema.getType(c))
+            {
+            case INT:
+                encoder.setInt(c, getInt(row, c));
+                break;
+            case LONG:
+                encoder.setLong(c, getLong(row, c));
+                break;
+            default:
+                encoder.setDouble(c, getDouble(row, c));
+                break;
+            }
+        }
+    }
+
+    public boolean isNull(int row, int column)
+    {
+        return (data[nullStart[column] + (row >> 3)] & (1 << (row & 7))) != 0;
+    }
+
+    public int getInt(int row, int column)
+    {
+        return (int)TupleDecoder.getLong(data, valueStart[column] + row * 4,
+                                         4);
+    }
+
+    public long getLong(int row, int column)
+    {
+        return TupleDecoder.getLong(data, valueStart[column] + row * 8, 8);
+    }
+
+    public double getDouble(int row, int column)
+    {
+        return Double.longBitsToDouble(getLong(row, column));
+    }
+
+    /**
+     * Reads consecutive values of an INT column, in one pass over its
+     * minipage. Null values read as 0.
+     * @param column the column.
+     * @param fromRow the first row to read.
+     * @param count the number of rows to read.
+     * @param dest the array to read into.
+     * @param destPos where in dest to put the first value.
+     */
+    public void readInts(int column, int fromRow, int count, int[] dest,
+                         int destPos)
+    {
+        int pos = valueStart[column] + fromRow * 4;
+        for (int i = 0; i < count; i++, pos += 4)
+            dest[destPos + i] = (data[pos] << 24) |
+                ((data[pos + 1] & 0xff) << 16) |
+                ((data[pos + 2] & 0xff) << 8) |
+                (data[pos + 3] & 0xff);
+    }
+}
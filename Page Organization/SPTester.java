@@ -176,6 +176,326 @@ public class SPTester
         }
     }
 
+    public static class Test5 implements Testable
+    {
+        public void test() throws Exception
+        {
+            System.out.println("--- Test 5: Typed tuples ---");
+            Schema schema = new Schema(
+                new String[] { "id", "name", "score", "tag", "when" },
+                new Schema.Type[] { Schema.Type.INT, Schema.Type.STRING,
+                                    Schema.Type.DOUBLE, Schema.Type.BYTES,
+                                    Schema.Type.LONG });
+            TupleEncoder encoder = new TupleEncoder(schema);
+            TupleDecoder decoder = new TupleDecoder(schema);
+            String[] names = { "plain", "", "caf\u00e9 \u20ac",
+                               "\ud83d\ude00 pair", null };
+
+            Page page = new Page();
+            SlottedPage sp = new SlottedPage(page);
+            sp.init();
+            sp.setPageId(3);
+            RID[] rids = new RID[names.length];
+            for (int i = 0; i < names.length; i++)
+            {
+                encoder.reset();
+                encoder.setInt(0, -i);
+                if (names[i] != null)
+                    encoder.setString(1, names[i]);
+                if (i != 2)
+                    encoder.setDouble(2, i + 0.5);
+                byte[] tag = new byte[i];
+                encoder.setBytes(3, tag, 0, i);
+                encoder.setLong(4, (long)i << 40);
+                rids[i] = encoder.insert(sp);
+            }
+
+            for (int i = 0; i < names.length; i++)
+            {
+                decoder.wrap(page.data, sp.getRecordOffset(rids[i].slotNum));
+                String name = decoder.getString(1);
+                if (decoder.getInt(0) != -i ||
+                    (name == null ? names[i] != null : !name.equals(names[i])) ||
+                    decoder.isNull(2) != (i == 2) ||
+                    (i != 2 && decoder.getDouble(2) != i + 0.5) ||
+                    decoder.getLength(3) != i ||
+                    decoder.getLong(4) != (long)i << 40)
+                    throw new TestFailedException("Tuple " + i + " wrong");
+            }
+            decoder.wrap(page.data, sp.getRecordOffset(rids[0].slotNum));
+            if (!decoder.equalsBytes(1, "plain".getBytes("UTF-8")) ||
+                decoder.equalsBytes(1, "plan".getBytes("UTF-8")))
+                throw new TestFailedException("Compare without decoding wrong");
+
+            // Fields may be set in any order, and records copied out
+            // decode the same.
+            encoder.reset();
+            encoder.setLong(4, 9);
+            encoder.setBytes(3, new byte[] { 1, 2 }, 0, 2);
+            encoder.setString(1, "late");
+            byte[] record = encoder.toByteArray();
+            decoder.wrap(record, 0);
+            if (!decoder.isNull(0) || !"late".equals(decoder.getString(1)) ||
+                decoder.getData()[decoder.getOffset(3) + 1] != 2 ||
+                decoder.getLong(4) != 9)
+                throw new TestFailedException("Out of order tuple wrong");
+
+            boolean thrown = false;
+            try
+            {
+                encoder.setInt(4, 1);
+            }
+            catch (TupleEncoder.WrongTypeException e)
+            {
+                thrown = true;
+            }
+            if (!thrown)
+                throw new TestFailedException("Wrong type accepted");
+            System.out.println("Typed tuples correct; smallest is " +
+                               schema.getMinLength() + " bytes");
+        }
+    }
+
+    public static class Test6 implements Testable
+    {
+        public void test() throws Exception
+        {
+            System.out.println("--- Test 6: Column pages ---");
+            Schema schema = new Schema(
+                new String[] { "id", "total", "ratio" },
+                new Schema.Type[] { Schema.Type.INT, Schema.Type.LONG,
+                                    Schema.Type.DOUBLE });
+            TupleEncoder encoder = new TupleEncoder(schema);
+            PaxPage pp = new PaxPage(new Page(), schema);
+            pp.init();
+            int capacity = pp.getCapacity();
+            for (int i = 0; i < capacity; i++)
+            {
+                encoder.reset();
+                encoder.setInt(0, i * 3);
+                encoder.setLong(1, (long)i << 33);
+                if (i % 5 != 0)
+                    encoder.setDouble(2, i / 4.0);
+                encoder.encode();
+                if (pp.insert(encoder.getBuffer(), 0) != i)
+                    throw new TestFailedException("Wrong row number");
+            }
+
+            boolean thrown = false;
+            try
+            {
+                pp.insert(encoder.getBuffer(), 0);
+            }
+            catch (PaxPage.PageFullException e)
+            {
+                thrown = true;
+            }
+            if (!thrown || !pp.isFull())
+                throw new TestFailedException("Full page accepted a row");
+
+            int[] ids = new int[capacity];
+            pp.readInts(0, 0, capacity, ids, 0);
+            TupleDecoder decoder = new TupleDecoder(schema);
+            for (int i = 0; i < capacity; i++)
+            {
+                pp.getTuple(i, encoder);
+                encoder.encode();
+                decoder.wrap(encoder.getBuffer(), 0);
+                if (ids[i] != i * 3 || pp.getInt(i, 0) != i * 3 ||
+                    decoder.getLong(1) != (long)i << 33 ||
+                    pp.isNull(i, 2) != (i % 5 == 0) ||
+                    decoder.isNull(2) != (i % 5 == 0) ||
+                    (i % 5 != 0 && pp.getDouble(i, 2) != i / 4.0))
+                    throw new TestFailedException("Row " + i + " wrong");
+            }
+
+            thrown = false;
+            try
+            {
+                new PaxPage(new Page(), new Schema(
+                    new String[] { "name" },
+                    new Schema.Type[] { Schema.Type.STRING }));
+            }
+            catch (Schema.BadSchemaException e)
+            {
+                thrown = true;
+            }
+            if (!thrown)
+                throw new TestFailedException("Variable length column taken");
+            System.out.println(capacity + " rows of " +
+                               schema.getMinLength() + " bytes on a page");
+        }
+    }
+
+    public static class Test7 implements Testable
+    {
+        public void test() throws Exception
+        {
+            System.out.println("--- Test 7: Dictionary pages ---");
+            Schema schema = new Schema(
+                new String[] { "id", "city", "status", "note" },
+                new Schema.Type[] { Schema.Type.INT, Schema.Type.STRING,
+                                    Schema.Type.STRING, Schema.Type.STRING });
+            String[] cities = { "Northfield", "Minneapolis", "Saint Paul" };
+            String[] statuses = { "active", "suspended", "closed" };
+            TupleEncoder encoder = new TupleEncoder(schema);
+
+            SlottedPage sp = new SlottedPage(new Page());
+            sp.init();
+            DictionaryPage dp =
+                new DictionaryPage(new Page(), schema, new int[] { 1, 2 });
+            dp.init();
+            dp.setPageId(7);
+            ArrayList<byte[]> records = new ArrayList<byte[]>();
+            int plain = 0;
+            boolean plainFull = false;
+            try
+            {
+                for (int i = 0; ; i++)
+                {
+                    encoder.reset();
+                    encoder.setInt(0, i);
+                    encoder.setString(1, cities[i / 12 % cities.length]);
+                    if (i % 11 != 0)
+                        encoder.setString(2, statuses[i % 3]);
+                    if (i % 4 == 0)
+                        encoder.setString(3, "n" + i);
+                    byte[] record = encoder.toByteArray();
+                    if (!plainFull)
+                    {
+                        try
+                        {
+                            sp.insertRecord(record);
+                            plain++;
+                        }
+                        catch (SlottedPage.PageFullException e)
+                        {
+                            plainFull = true;
+                        }
+                    }
+                    RID rid = dp.insertRecord(record, 0);
+                    if (rid.slotNum != i + 1)
+                        throw new TestFailedException("Wrong slot");
+                    records.add(record);
+                }
+            }
+            catch (SlottedPage.PageFullException e)
+            {
+            }
+            System.out.println(plain + " records on a slotted page, " +
+                               records.size() + " on a dictionary page");
+            if (records.size() <= plain)
+                throw new TestFailedException("Dictionary page no denser");
+
+            for (int i = 0; i < records.size(); i++)
+                if (!Arrays.equals(dp.getRecord(new RID(7, i + 1)),
+                                   records.get(i)))
+                    throw new TestFailedException("Record " + i + " wrong");
+
+            if (!dp.deleteRecord(new RID(7, 5)) || dp.isLive(5) ||
+                dp.getNumRecords() != records.size() - 1 ||
+                !Arrays.equals(dp.getRecord(new RID(7, 6)), records.get(5)))
+                throw new TestFailedException("Delete wrong");
+
+            int[] slots = new int[dp.getNumSlots()];
+            byte[] active = "active".getBytes("UTF-8");
+            int matches = dp.selectEquals(1, active, slots);
+            int expected = 0;
+            for (int i = 0; i < records.size(); i++)
+                if (i != 4 && i % 11 != 0 && i % 3 == 0)
+                    expected++;
+            if (matches != expected ||
+                dp.selectEquals(0, active, slots) != 0)
+                throw new TestFailedException("Selected " + matches +
+                                              " records, not " + expected);
+            for (int i = 0; i < matches; i++)
+                if (dp.getCode(1, slots[i]) != dp.findCode(1, active))
+                    throw new TestFailedException("Wrong record selected");
+            System.out.println(matches + " records selected on codes");
+        }
+    }
+
+    public static class Test8 implements Testable
+    {
+        public void test() throws Exception
+        {
+            System.out.println("--- Test 8: Updating records in place ---");
+            SlottedPage sp = new SlottedPage(new Page());
+            sp.init();
+            sp.setPageId(3);
+            RID[] rids = new RID[4];
+            for (int i = 0; i < rids.length; i++)
+                rids[i] = sp.insertRecord(new byte[50 * (i + 1)]);
+            byte[] same = new byte[100];
+            same[0] = 1;
+            sp.updateRecord(rids[1], same);
+            byte[] shorter = new byte[20];
+            shorter[0] = 2;
+            sp.updateRecord(rids[2], shorter);
+            byte[] longer = new byte[sp.getAvailableSpace() + 50];
+            longer[0] = 3;
+            sp.updateRecord(rids[0], longer);
+            if (sp.getRecord(rids[1])[0] != 1 ||
+                sp.getRecord(rids[2]).length != 20 ||
+                sp.getRecord(rids[2])[0] != 2 ||
+                sp.getRecord(rids[0]).length != longer.length ||
+                sp.getRecord(rids[0])[0] != 3 ||
+                sp.getRecord(rids[3]).length != 200)
+                throw new TestFailedException("Updated records wrong");
+            try
+            {
+                sp.updateRecord(rids[3],
+                                new byte[200 + sp.getAvailableSpace() +
+                                         2 * SlottedPage.SIZE_OF_INT + 1]);
+                throw new TestFailedException("Oversized update accepted");
+            }
+            catch (SlottedPage.PageFullException e)
+            {
+            }
+            if (sp.getRecord(rids[3]).length != 200 ||
+                sp.getAvailableSpace() != 0)
+                throw new TestFailedException("Failed update changed page");
+            System.out.println("Updates kept their slots");
+        }
+    }
+
+    public static class Test9 implements Testable
+    {
+        public void test() throws Exception
+        {
+            System.out.println("--- Test 9: Growing a record into the " +
+                               "last free bytes ---");
+            SlottedPage sp = new SlottedPage(new Page());
+            sp.init();
+            sp.setPageId(4);
+            RID first = sp.insertRecord(new byte[100]);
+            RID second = sp.insertRecord(new byte[100]);
+
+            // The slot is already there, so the record may also take the
+            // bytes kept back for a new slot.
+            byte[] grown = new byte[100 + sp.getAvailableSpace() +
+                                    2 * SlottedPage.SIZE_OF_INT];
+            grown[grown.length - 1] = 5;
+            sp.updateRecord(second, grown);
+            if (sp.getRecord(second).length != grown.length ||
+                sp.getRecord(second)[grown.length - 1] != 5 ||
+                sp.getRecord(first).length != 100 ||
+                sp.getAvailableSpace() != 0)
+                throw new TestFailedException("Grown record wrong");
+            try
+            {
+                sp.updateRecord(first, new byte[101]);
+                throw new TestFailedException("Update past a full page " +
+                                              "accepted");
+            }
+            catch (SlottedPage.PageFullException e)
+            {
+            }
+            System.out.println("Record of " + grown.length +
+                               " bytes filled the page");
+        }
+    }
+
     public static boolean runTest(Testable testObj)
     {
         boolean success = true;
@@ -202,5 +522,10 @@ public class SPTester
         runTest(new Test2());   
         runTest(new Test3());   
         runTest(new Test4());   
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
+        runTest(new Test9());
     }
 }
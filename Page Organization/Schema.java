@@ -0,0 +1,158 @@
+/**
+ * The types and names of the columns of a record, and where each
+ * column lives in a record encoded by a TupleEncoder.
+ *
+ * An encoded tuple starts with a null bitmap, one bit per column. Then
+ * come the fixed length columns, each at an offset worked out here once
+ * for the schema, and stored even when null. Then comes an offset
+ * table with a 2 byte entry for each variable length column, giving
+ * the offset from the start of the tuple at which its value ends. The
+ * variable length values follow, in column order. Any field can so be
+ * found without looking at the ones before it.
+ * @author Yuen Hsi Chang
+ */
+public class Schema
+{
+    public static class UnknownColumnException extends RuntimeException {};
+    public static class BadSchemaException extends RuntimeException {};
+
+    public static enum Type
+    {
+        INT(4), LONG(8), DOUBLE(8), STRING(-1), BYTES(-1);
+
+        private final int size;
+
+        private Type(int size)
+        {
+            this.size = size;
+        }
+
+        /**
+         * Returns the size of a value of this type.
+         * @return the size in bytes, or -1 for a variable length type.
+         */
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * Whether values of this type vary in length.
+         * @return true for STRING and BYTES.
+         */
+        public boolean isVariable()
+        {
+            return size < 0;
+        }
+    };
+
+    private String[] names;
+    private Type[] types;
+
+    // Where each fixed length column starts, or, for a variable length
+    // column, its position in the offset table.
+    private int[] positions;
+    private int bitmapSize;
+    private int fixedEnd;
+    private int numVariable;
+
+    /**
+     * Creates a schema.
+     * @param names the name of each column.
+     * @param types the type of each column.
+     * @throws BadSchemaException if the two arrays differ in length.
+     */
+    public Schema(String[] names, Type[] types)
+    {
+        if (names.length != types.length)
+            throw new BadSchemaException();
+        this.names = names.clone();
+        this.types = types.clone();
+        this.positions = new int[types.length];
+        this.bitmapSize = (types.length + 7) / 8;
+
+        int offset = bitmapSize;
+        numVariable = 0;
+        for (int c = 0; c < types.length; c++)
+        {
+            if (types[c].isVariable())
+                positions[c] = numVariable++;
+            else
+            {
+                positions[c] = offset;
+                offset += types[c].getSize();
+            }
+        }
+        fixedEnd = offset;
+    }
+
+    public int getNumColumns()
+    {
+        return types.length;
+    }
+
+    public String getName(int column)
+    {
+        return names[column];
+    }
+
+    public Type getType(int column)
+    {
+        return types[column];
+    }
+
+    /**
+     * Finds a column by name.
+     * @param name the column's name.
+     * @return the column's position.
+     * @throws UnknownColumnException if no column has the name.
+     */
+    public int indexOf(String name)
+    {
+        for (int c = 0; c < names.length; c++)
+            if (names[c].equals(name))
+                return c;
+        throw new UnknownColumnException();
+    }
+
+    /**
+     * Returns the length of an encoded tuple with no variable length
+     * data: the smallest any tuple of this schema can be.
+     * @return the length in bytes.
+     */
+    public int getMinLength()
+    {
+        return getVariableStart();
+    }
+
+    int getBitmapSize()
+    {
+        return bitmapSize;
+    }
+
+    // Offset of a fixed length column within a tuple.
+    int getFixedOffset(int column)
+    {
+        return positions[column];
+    }
+
+    // Offset within a tuple of the offset table entry for a variable
+    // length column.
+    int getTableOffset(int column)
+    {
+        return fixedEnd + positions[column] * 2;
+    }
+
+    // Offset within a tuple where the variable length values start.
+    int getVariableStart()
+    {
+        return fixedEnd + numVariable * 2;
+    }
+
+    // Whether a variable length column is the first of its kind, so its
+    // value starts at getVariableStart.
+    boolean isFirstVariable(int column)
+    {
+        return positions[column] == 0;
+    }
+}
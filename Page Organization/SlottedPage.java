@@ -124,6 +124,18 @@ public class SlottedPage
      * @return the amount of available space in bytes
      */
     public int getAvailableSpace()
+    {
+        // The new record also needs a slot of its own, 8 more bytes.
+        int freeSpaceInBytes = getFreeSpace() - 2 * SIZE_OF_INT;
+        if (freeSpaceInBytes < 0) {
+            freeSpaceInBytes = 0;
+        }
+        return freeSpaceInBytes;
+    }
+
+    // Returns the bytes between the end of the slot array and the start
+    // of the records, with no room kept back for a new slot.
+    private int getFreeSpace()
     {
         int numEntries = intBuffer.get(0);
         int emptySlots = 0;
@@ -144,11 +156,7 @@ public class SlottedPage
         // Calculate the int size of the header and multiply by 4 for the byte size
         int slotArraySize = emptySlots + nonEmptySlots;
         int headerSizeInBytes = (slotArraySize + 1) * 2 * 4;
-        int freeSpaceInBytes = intBuffer.get(1) - headerSizeInBytes -7;
-        if (freeSpaceInBytes < 0) {
-            freeSpaceInBytes = 0;
-        }
-        return freeSpaceInBytes;
+        return intBuffer.get(1) - headerSizeInBytes;
     }
         
 
@@ -215,7 +223,21 @@ public class SlottedPage
     */
     public RID insertRecord(byte[] record)
     {
-        int recordLength = record.length;
+        return insertRecord(record, 0, record.length);
+    }
+
+    /**
+     * Inserts a new record onto the page, taken from part of an array,
+     * so callers encoding into a reused buffer need not copy it out.
+     * @param buffer the array holding the record.
+     * @param offset where the record starts in buffer.
+     * @param recordLength the length of the record.
+     * @return the RID of the new record
+     * @throws PageFullException if there is not enough room for the
+     * record on the page.
+     */
+    public RID insertRecord(byte[] buffer, int offset, int recordLength)
+    {
         if (getAvailableSpace() >= recordLength) {
             for (int i = 2; i < 256; i++) {
                 if (intBuffer.get(i) == 0) {
@@ -227,10 +249,9 @@ public class SlottedPage
                     // move the end of free space back by the length of the record
                     intBuffer.put(1, intBuffer.get(1) - recordLength);
 
-                    for (int j = intBuffer.get(1), k = 0; k < recordLength; j++, k++) {
-                        // data refers to free space, whereas record refers to byte data
-                        data[j] = record[k];
-                    }
+                    // copy the record into the start of the free space
+                    System.arraycopy(buffer, offset, data, intBuffer.get(1),
+                                     recordLength);
                     RID result = new RID(this.pageId, i / 2);
                     return result;
                 }
@@ -273,10 +294,13 @@ public class SlottedPage
         intBuffer.put(rid.slotNum * 2, 0);
         intBuffer.put((rid.slotNum * 2) + 1, 0);
 
-        // clear the record
-        for (int i = loc; i < loc + len; i++) {
-            data[i] = 0;
-        }
+        // Slide everything between the end of the free space and the
+        // hole up over it in one move, since records need not be laid
+        // out in slot order once slots are reused, then clear the bytes
+        // freed at the bottom.
+        int freeEnd = intBuffer.get(1);
+        System.arraycopy(data, freeEnd, data, freeEnd + len, loc - freeEnd);
+        Arrays.fill(data, freeEnd, freeEnd + len, (byte)0);
 
         int numEntries = intBuffer.get(0);
         int j = 2;
@@ -287,18 +311,8 @@ public class SlottedPage
             if (curLoc != 0) {
                 i++;
                 if (curLoc < loc) {
-                    // move these records's location, then update the slot array's pointer
-                    int curLen = intBuffer.get(j + 1);
-                    byte[] temp = new byte[curLen];
-                    for(int a = 0, b = curLoc; a < curLen; a++, b++) {
-                        temp[a] = data[b];
-                        data[b] = 0;
-                    }
-                    int newLoc = curLoc + len;
-                    intBuffer.put(j, newLoc);
-                    for (int c = intBuffer.get(j), d = 0; d < curLen; c++, d++) {
-                        data[c] = temp[d];
-                    }   
+                    // the record has moved, so update the slot array's pointer
+                    intBuffer.put(j, curLoc + len);
                 }
             }
             j = j + 2;
@@ -308,6 +322,47 @@ public class SlottedPage
         return true;
     }
 
+    /**
+     * Replaces the record with the given RID, keeping its slot so that
+     * its RID does not change. A record of the same length is
+     * overwritten where it is; otherwise the old record is deleted,
+     * compacting the page, and the new one is placed at the end of the
+     * free space.
+     * @param rid the RID of the record to replace.
+     * @param record the new record.
+     * @throws BadPageIdException if the page id within rid is invalid
+     * @throws BadSlotIdException if the slot id within rid is invalid
+     * @throws PageFullException if the new record does not fit on the
+     * page in place of the old one; the page is then left unchanged.
+     */
+    public void updateRecord(RID rid, byte[] record)
+    {
+        if (rid.pageId != pageId) {
+            throw new BadPageIdException();
+        }
+        int len = getRecordLength(rid.slotNum);
+        if (getRecordOffset(rid.slotNum) == 0) {
+            throw new BadSlotIdException();
+        }
+        if (record.length == len) {
+            System.arraycopy(record, 0, data, getRecordOffset(rid.slotNum),
+                             len);
+            return;
+        }
+        // The slot is reused, so the record may also take the room
+        // getAvailableSpace keeps back for a new one.
+        if (record.length - len > getFreeSpace()) {
+            throw new PageFullException();
+        }
+
+        deleteRecord(rid);
+        intBuffer.put(1, intBuffer.get(1) - record.length);
+        intBuffer.put(rid.slotNum * 2, intBuffer.get(1));
+        intBuffer.put(rid.slotNum * 2 + 1, record.length);
+        intBuffer.put(0, intBuffer.get(0) + 1);
+        System.arraycopy(record, 0, data, intBuffer.get(1), record.length);
+    }
+
     /**
      * Returns RID of first record on page. Remember that some slots may be
      * empty, so you should skip over these.
@@ -399,6 +454,46 @@ public class SlottedPage
         }
     }
 
+    /**
+     * Returns the number of slots in the slot array, counting empty
+     * ones. Slots are numbered from 1 up to and including this number.
+     * @return the number of slots.
+     */
+    public int getNumSlots()
+    {
+        int numEntries = intBuffer.get(0);
+        int nonEmptySlots = 0;
+        int counter = 2;
+        while (nonEmptySlots < numEntries) {
+            if (intBuffer.get(counter) != 0) {
+                nonEmptySlots++;
+            }
+            counter = counter + 2;
+        }
+        return (counter - 2) / 2;
+    }
+
+    /**
+     * Returns where a record starts in the page's data, so callers
+     * can decode fields in place instead of copying the record out.
+     * @param slotNum the slot of the record.
+     * @return the byte offset of the record, or 0 if the slot is empty.
+     */
+    public int getRecordOffset(int slotNum)
+    {
+        return intBuffer.get(slotNum * 2);
+    }
+
+    /**
+     * Returns the length of a record.
+     * @param slotNum the slot of the record.
+     * @return the length in bytes, or 0 if the slot is empty.
+     */
+    public int getRecordLength(int slotNum)
+    {
+        return intBuffer.get(slotNum * 2 + 1);
+    }
+
     /**
      * Whether or not the page is empty.
      * @return true if the page is empty, false otherwise.
@@ -0,0 +1,145 @@
+import java.nio.charset.*;
+
+/**
+ * Reads fields of tuples encoded in the format described by Schema,
+ * in place: a decoder is pointed at a tuple wherever it lies, such as
+ * in a pinned page's data at SlottedPage.getRecordOffset, and each
+ * field is read from there without touching the others. One decoder
+ * is reused for many tuples, and only getString makes an object.
+ *
+ * A null fixed length field reads as 0, and a null variable length
+ * field as empty; isNull tells them apart from real values.
+ * @author Yuen Hsi Chang
+ */
+public class TupleDecoder
+{
+    private Schema schema;
+    private byte[] data;
+    private int base;
+
+    /**
+     * Creates a decoder.
+     * @param schema the schema of the tuples.
+     */
+    public TupleDecoder(Schema schema)
+    {
+        this.schema = schema;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Points the decoder at a tuple.
+     * @param data the array the tuple is in.
+     * @param offset where the tuple starts in data.
+     */
+    public void wrap(byte[] data, int offset)
+    {
+        this.data = data;
+        this.base = offset;
+    }
+
+    public boolean isNull(int column)
+    {
+        return (data[base + (column >> 3)] & (1 << (column & 7))) != 0;
+    }
+
+    public int getInt(int column)
+    {
+        return (int)getLong(data, base + schema.getFixedOffset(column), 4);
+    }
+
+    public long getLong(int column)
+    {
+        return getLong(data, base + schema.getFixedOffset(column), 8);
+    }
+
+    public double getDouble(int column)
+    {
+        return Double.longBitsToDouble(
+            getLong(data, base + schema.getFixedOffset(column), 8));
+    }
+
+    /**
+     * Returns where a variable length field's value starts in the array
+     * the tuple is in.
+     * @param column the field's column.
+     * @return the offset.
+     */
+    public int getOffset(int column)
+    {
+        if (schema.isFirstVariable(column))
+            return base + schema.getVariableStart();
+        return base + (int)getLong(data, base + schema.getTableOffset(column)
+                                   - 2, 2);
+    }
+
+    /**
+     * Returns the length of a variable length field's value.
+     * @param column the field's column.
+     * @return the length in bytes.
+     */
+    public int getLength(int column)
+    {
+        int end = base + (int)getLong(data, base +
+                                      schema.getTableOffset(column), 2);
+        return end - getOffset(column);
+    }
+
+    /**
+     * Returns the array the tuple is in, for reading variable length
+     * values found with getOffset and getLength.
+     * @return the array.
+     */
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Decodes a STRING field.
+     * @param column the field's column.
+     * @return the value, or null if the field is null.
+     */
+    public String getString(int column)
+    {
+        if (isNull(column))
+            return null;
+        return new String(data, getOffset(column), getLength(column),
+                          StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares a variable length field to a value without decoding it.
+     * @param column the field's column.
+     * @param value the value, as UTF-8 for a STRING.
+     * @return whether they are equal; never for a null field.
+     */
+    public boolean equalsBytes(int column, byte[] value)
+    {
+        if (isNull(column))
+            return false;
+        int offset = getOffset(column);
+        int len = getLength(column);
+        if (len != value.length)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (data[offset + i] != value[i])
+                return false;
+        return true;
+    }
+
+    // Reads size bytes as a big-endian value, sign extending ints.
+    static long getLong(byte[] data, int offset, int size)
+    {
+        long value = 0;
+        for (int i = 0; i < size; i++)
+            value = (value << 8) | (data[offset + i] & 0xff);
+        if (size == 4)
+            value = (int)value;
+        return value;
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Builds tuples of a schema, in the format described by Schema. One
+ * encoder is reused for many tuples: fixed length fields are written
+ * straight into its buffer, and variable length ones into a second
+ * buffer, in the order they are set, to be laid out in column order
+ * when the tuple is finished. Setting a field allocates nothing, and
+ * strings are encoded as UTF-8 a character at a time.
+ * @author Yuen Hsi Chang
+ */
+public class TupleEncoder
+{
+    public static class WrongTypeException extends RuntimeException {};
+    public static class TupleTooLongException extends RuntimeException {};
+
+    /**
+     * Longest tuple, the most its 2 byte offsets can address.
+     */
+    public static final int MAX_LENGTH = 0xffff;
+
+    private Schema schema;
+    private byte[] buffer;
+
+    // Variable length values set so far, and where each column's is.
+    private byte[] values;
+    private int valuesEnd;
+    private int[] valueStart;
+    private int[] valueLength;
+
+    /**
+     * Creates an encoder, ready for the first tuple.
+     * @param schema the schema of the tuples.
+     */
+    public TupleEncoder(Schema schema)
+    {
+        this.schema = schema;
+        this.buffer = new byte[Math.max(64, schema.getMinLength() * 2)];
+        this.values = new byte[64];
+        this.valueStart = new int[schema.getNumColumns()];
+        this.valueLength = new int[schema.getNumColumns()];
+        reset();
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Starts a new tuple, with every field null.
+     */
+    public void reset()
+    {
+        int fixedEnd = schema.getMinLength();
+        for (int i = 0; i < fixedEnd; i++)
+            buffer[i] = 0;
+        for (int c = 0; c < schema.getNumColumns(); c++)
+            buffer[c >> 3] |= (byte)(1 << (c & 7));
+        valuesEnd = 0;
+        for (int c = 0; c < valueLength.length; c++)
+            valueLength[c] = 0;
+    }
+
+    /**
+     * Sets a field to null.
+     * @param column the field's column.
+     */
+    public void setNull(int column)
+    {
+        buffer[column >> 3] |= (byte)(1 << (column & 7));
+        valueLength[column] = 0;
+        if (!schema.getType(column).isVariable())
+            putLong(buffer, schema.getFixedOffset(column), 0,
+                    schema.getType(column).getSize());
+    }
+
+    /**
+     * @throws WrongTypeException if the column is not an INT.
+     */
+    public void setInt(int column, int value)
+    {
+        check(column, Schema.Type.INT);
+        putLong(buffer, schema.getFixedOffset(column), value, 4);
+    }
+
+    /**
+     * @throws WrongTypeException if the column is not a LONG.
+     */
+    public void setLong(int column, long value)
+    {
+        check(column, Schema.Type.LONG);
+        putLong(buffer, schema.getFixedOffset(column), value, 8);
+    }
+
+    /**
+     * @throws WrongTypeException if the column is not a DOUBLE.
+     */
+    public void setDouble(int column, double value)
+    {
+        check(column, Schema.Type.DOUBLE);
+        putLong(buffer, schema.getFixedOffset(column),
+                Double.doubleToRawLongBits(value), 8);
+    }
+
+    /**
+     * Sets a STRING field, stored as UTF-8.
+     * @param column the field's column.
+     * @param value the value.
+     * @throws WrongTypeException if the column is not a STRING.
+     */
+    public void setString(int column, CharSequence value)
+    {
+        check(column, Schema.Type.STRING);
+        int start = valuesEnd;
+        for (int i = 0; i < value.length(); i++)
+        {
+            ensureValues(4);
+            char ch = value.charAt(i);
+            if (ch < 0x80)
+                values[valuesEnd++] = (byte)ch;
+            else if (ch < 0x800)
+            {
+                values[valuesEnd++] = (byte)(0xc0 | (ch >> 6));
+                values[valuesEnd++] = (byte)(0x80 | (ch & 0x3f));
+            }
+            else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+                     && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(ch, value.charAt(++i));
+                values[valuesEnd++] = (byte)(0xf0 | (cp >> 18));
+                values[valuesEnd++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                values[valuesEnd++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                values[valuesEnd++] = (byte)(0x80 | (cp & 0x3f));
+            }
+            else
+            {
+                values[valuesEnd++] = (byte)(0xe0 | (ch >> 12));
+                values[valuesEnd++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+                values[valuesEnd++] = (byte)(0x80 | (ch & 0x3f));
+            }
+        }
+        setVariable(column, start);
+    }
+
+    /**
+     * Sets a BYTES field, or a STRING field to bytes already in UTF-8.
+     * @param column the field's column.
+     * @param src array holding the value.
+     * @param offset where the value starts in src.
+     * @param len length of the value.
+     * @throws WrongTypeException if the column is not variable length.
+     */
+    public void setBytes(int column, byte[] src, int offset, int len)
+    {
+        if (!schema.getType(column).isVariable())
+            throw new WrongTypeException();
+        ensureValues(len);
+        System.arraycopy(src, offset, values, valuesEnd, len);
+        int start = valuesEnd;
+        valuesEnd += len;
+        setVariable(column, start);
+    }
+
+    /**
+     * Finishes the tuple, laying out its variable length values. The
+     * tuple is then in getBuffer, until the next reset.
+     * @return the length of the tuple.
+     * @throws TupleTooLongException if the tuple is longer than
+     * MAX_LENGTH.
+     */
+    public int encode()
+    {
+        int end = schema.getVariableStart();
+        for (int c = 0; c < valueLength.length; c++)
+            if (schema.getType(c).isVariable())
+                end += valueLength[c];
+        if (end > MAX_LENGTH)
+            throw new TupleTooLongException();
+        if (end > buffer.length)
+        {
+            byte[] bigger = new byte[Math.max(end, buffer.length * 2)];
+            System.arraycopy(buffer, 0, bigger, 0, schema.getMinLength());
+            buffer = bigger;
+        }
+
+        int pos = schema.getVariableStart();
+        for (int c = 0; c < valueLength.length; c++)
+        {
+            if (!schema.getType(c).isVariable())
+                continue;
+            System.arraycopy(values, valueStart[c], buffer, pos,
+                             valueLength[c]);
+            pos += valueLength[c];
+            putLong(buffer, schema.getTableOffset(c), pos, 2);
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the buffer holding the tuple last finished by encode. The
+     * tuple starts at offset 0.
+     * @return the buffer.
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Finishes the tuple and returns a copy of it.
+     * @return the tuple.
+     */
+    public byte[] toByteArray()
+    {
+        int len = encode();
+        byte[] tuple = new byte[len];
+        System.arraycopy(buffer, 0, tuple, 0, len);
+        return tuple;
+    }
+
+    /**
+     * Finishes the tuple and inserts it onto a page, copying it there
+     * straight from the encoder's buffer.
+     * @param page the page.
+     * @return the RID of the new record.
+     * @throws SlottedPage.PageFullException if it does not fit.
+     */
+    public RID insert(SlottedPage page)
+    {
+        int len = encode();
+        return page.insertRecord(buffer, 0, len);
+    }
+
+    private void check(int column, Schema.Type type)
+    {
+        if (schema.getType(column) != type)
+            throw new WrongTypeException();
+        buffer[column >> 3] &= (byte)~(1 << (column & 7));
+    }
+
+    private void setVariable(int column, int start)
+    {
+        buffer[column >> 3] &= (byte)~(1 << (column & 7));
+        valueStart[column] = start;
+        valueLength[column] = valuesEnd - start;
+    }
+
+    private void ensureValues(int more)
+    {
+        if (valuesEnd + more > values.length)
+        {
+            byte[] bigger = new byte[Math.max(valuesEnd + more,
+                                              values.length * 2)];
+            System.arraycopy(values, 0, bigger, 0, valuesEnd);
+            values = bigger;
+        }
+    }
+
+    // Writes the low size bytes of a value, big-endian.
+    static void putLong(byte[] data, int offset, long value, int size)
+    {
+        for (int i = size - 1; i >= 0; i--)
+        {
+            data[offset + i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+}
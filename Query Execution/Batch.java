@@ -0,0 +1,122 @@
+/**
+ * A batch of rows passed between query operators, stored a column at
+ * a time. Each column is an array of int values, one per row, along
+ * with the RID each row was read from. Rows that are still wanted are
+ * listed in the selection vector, in increasing order, so a filter
+ * drops rows by shortening that list rather than moving values.
+ *
+ * An operator fills the same batch on every call, so a batch is only
+ * valid until the next call that produced it.
+ * @author Yuen Hsi Chang
+ */
+public class Batch
+{
+    /**
+     * Maximum number of rows in a batch.
+     */
+    public static final int CAPACITY = 1024;
+
+    /**
+     * Column values, indexed by column and then by row.
+     */
+    public int[][] columns;
+
+    /**
+     * Page id and slot number of the record each row came from.
+     */
+    public int[] ridPages;
+    public int[] ridSlots;
+
+    /**
+     * Number of rows filled in, selected or not.
+     */
+    public int size;
+
+    /**
+     * Row numbers of the selected rows, in increasing order, and how
+     * many of them there are.
+     */
+    public int[] selection;
+    public int numSelected;
+
+    /**
+     * Creates an empty batch with its own arrays.
+     * @param numColumns the number of columns.
+     */
+    public Batch(int numColumns)
+    {
+        columns = new int[numColumns][CAPACITY];
+        ridPages = new int[CAPACITY];
+        ridSlots = new int[CAPACITY];
+        selection = new int[CAPACITY];
+        size = 0;
+        numSelected = 0;
+    }
+
+    private Batch()
+    {
+    }
+
+    /**
+     * Creates a batch with no arrays of its own, for operators that
+     * only change which arrays of another batch it refers to.
+     * @param numColumns the number of columns.
+     * @return the batch.
+     */
+    static Batch view(int numColumns)
+    {
+        Batch batch = new Batch();
+        batch.columns = new int[numColumns][];
+        return batch;
+    }
+
+    /**
+     * Returns the number of columns.
+     * @return the number of columns.
+     */
+    public int getNumColumns()
+    {
+        return columns.length;
+    }
+
+    /**
+     * Empties the batch.
+     */
+    public void clear()
+    {
+        size = 0;
+        numSelected = 0;
+    }
+
+    /**
+     * Selects every row filled in.
+     */
+    public void selectAll()
+    {
+        for (int i = 0; i < size; i++)
+            selection[i] = i;
+        numSelected = size;
+    }
+
+    /**
+     * Returns a value of a selected row.
+     * @param column the column.
+     * @param i the position of the row in the selection vector.
+     * @return the value.
+     */
+    public int get(int column, int i)
+    {
+        return columns[column][selection[i]];
+    }
+
+    /**
+     * Returns the RID of a selected row.
+     * @param i the position of the row in the selection vector.
+     * @return the RID.
+     */
+    public RID getRid(int i)
+    {
+        int row = selection[i];
+        return new RID(ridPages[row], ridSlots[row]);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.*;
+
+/**
+ * Keeps the rows whose value in one column compares true against a
+ * constant. The comparison is fixed when the filter is built, so each
+ * batch is refined by a tight loop over the selection vector with no
+ * call per row. The loop writes every row into the selection vector
+ * and only advances past it if it passes, so it has no branch that
+ * depends on the data. Filters stack to make a conjunction.
+ * @author Yuen Hsi Chang
+ */
+public class BatchFilter implements BatchOperator
+{
+    public static enum Comparison { EQ, NE, LT, LE, GT, GE };
+
+    private BatchOperator child;
+    private int column;
+    private Comparison op;
+    private int value;
+
+    /**
+     * Creates a filter keeping rows where (column op value).
+     * @param child the operator producing the rows.
+     * @param column the column to compare.
+     * @param op the comparison.
+     * @param value the constant to compare against.
+     */
+    public BatchFilter(BatchOperator child, int column, Comparison op,
+                       int value)
+    {
+        this.child = child;
+        this.column = column;
+        this.op = op;
+        this.value = value;
+    }
+
+    public void open() throws IOException
+    {
+        child.open();
+    }
+
+    public Batch next() throws IOException
+    {
+        Batch batch;
+        while ((batch = child.next()) != null)
+        {
+            refine(batch);
+            if (batch.numSelected > 0)
+                return batch;
+        }
+        return null;
+    }
+
+    public void close() throws IOException
+    {
+        child.close();
+    }
+
+    public int getNumColumns()
+    {
+        return child.getNumColumns();
+    }
+
+    private void refine(Batch batch)
+    {
+        int[] values = batch.columns[column];
+        int[] sel = batch.selection;
+        int n = batch.numSelected;
+        int v = value;
+        int out = 0;
+        switch (op)
+        {
+        case EQ:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] == v ? 1 : 0;
+            }
+            break;
+        case NE:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] != v ? 1 : 0;
+            }
+            break;
+        case LT:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] < v ? 1 : 0;
+            }
+            break;
+        case LE:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] <= v ? 1 : 0;
+            }
+            break;
+        case GT:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] > v ? 1 : 0;
+            }
+            break;
+        case GE:
+            for (int i = 0; i < n; i++)
+            {
+                int row = sel[i];
+                sel[out] = row;
+                out += values[row] >= v ? 1 : 0;
+            }
+            break;
+        }
+        batch.numSelected = out;
+    }
+}
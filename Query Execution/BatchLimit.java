@@ -0,0 +1,53 @@
+import java.io.*;
+
+/**
+ * Passes on at most a given number of rows, and stops asking its
+ * input for more once it has them.
+ * @author Yuen Hsi Chang
+ */
+public class BatchLimit implements BatchOperator
+{
+    private BatchOperator child;
+    private long limit;
+    private long remaining;
+
+    /**
+     * Creates a limit.
+     * @param child the operator producing the rows.
+     * @param limit the number of rows to pass on.
+     */
+    public BatchLimit(BatchOperator child, long limit)
+    {
+        this.child = child;
+        this.limit = limit;
+    }
+
+    public void open() throws IOException
+    {
+        child.open();
+        remaining = limit;
+    }
+
+    public Batch next() throws IOException
+    {
+        if (remaining <= 0)
+            return null;
+        Batch batch = child.next();
+        if (batch == null)
+            return null;
+        if (batch.numSelected > remaining)
+            batch.numSelected = (int)remaining;
+        remaining -= batch.numSelected;
+        return batch;
+    }
+
+    public void close() throws IOException
+    {
+        child.close();
+    }
+
+    public int getNumColumns()
+    {
+        return child.getNumColumns();
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.*;
+
+/**
+ * A query operator that produces its output a batch of rows at a
+ * time. Operators are chained into a tree, each pulling batches from
+ * its children, so the cost of a call is spread over up to
+ * Batch.CAPACITY rows instead of being paid once per row.
+ * @author Yuen Hsi Chang
+ */
+public interface BatchOperator
+{
+    /**
+     * Prepares the operator, and its children, to produce rows.
+     * @throws IOException passed through from underlying file system.
+     */
+    void open() throws IOException;
+
+    /**
+     * Produces the next batch. The batch returned is reused by later
+     * calls, and always has at least one selected row.
+     * @return the next batch, or null when there are no more rows.
+     * @throws IOException passed through from underlying file system.
+     */
+    Batch next() throws IOException;
+
+    /**
+     * Releases what the operator, and its children, hold. An operator
+     * may be closed before all its rows have been read.
+     * @throws IOException passed through from underlying file system.
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns the number of columns in each batch produced.
+     * @return the number of columns.
+     */
+    int getNumColumns();
+}
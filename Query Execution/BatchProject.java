@@ -0,0 +1,58 @@
+import java.io.*;
+
+/**
+ * Keeps some of the columns of its input, in a given order. No values
+ * are copied: the output batch refers to the input's column arrays
+ * and shares its selection vector.
+ * @author Yuen Hsi Chang
+ */
+public class BatchProject implements BatchOperator
+{
+    private BatchOperator child;
+    private int[] columns;
+    private Batch batch;
+
+    /**
+     * Creates a projection.
+     * @param child the operator producing the rows.
+     * @param columns the input column to use for each output column. A
+     * column may be used more than once.
+     */
+    public BatchProject(BatchOperator child, int[] columns)
+    {
+        this.child = child;
+        this.columns = columns.clone();
+    }
+
+    public void open() throws IOException
+    {
+        child.open();
+        batch = Batch.view(columns.length);
+    }
+
+    public Batch next() throws IOException
+    {
+        Batch input = child.next();
+        if (input == null)
+            return null;
+        for (int c = 0; c < columns.length; c++)
+            batch.columns[c] = input.columns[columns[c]];
+        batch.ridPages = input.ridPages;
+        batch.ridSlots = input.ridSlots;
+        batch.size = input.size;
+        batch.selection = input.selection;
+        batch.numSelected = input.numSelected;
+        return batch;
+    }
+
+    public void close() throws IOException
+    {
+        child.close();
+        batch = null;
+    }
+
+    public int getNumColumns()
+    {
+        return columns.length;
+    }
+}
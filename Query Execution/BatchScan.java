@@ -0,0 +1,173 @@
+import java.io.*;
+
+/**
+ * Reads int fields of every record of a heap file into batches. The
+ * fields are decoded straight from the pinned page, so no record is
+ * copied out, and each field is decoded for a whole batch in one loop.
+ * A page is only pinned while rows are being read from it. A scan can
+ * be limited to the pages whose zone maps show they may hold a range
+ * of values, leaving the rows themselves to a filter above it.
+ * @author Yuen Hsi Chang
+ */
+public class BatchScan implements BatchOperator
+{
+    public static class RecordTooShortException extends RuntimeException {};
+
+    private HeapFile file;
+    private int[] offsets;
+    private int minLength;
+
+    // Zone column and range limiting the pages read, if zone >= 0.
+    private int zone;
+    private int low;
+    private int high;
+
+    private Batch batch;
+    private int[] pageIds;
+    private int pageIndex;
+
+    // Next slot to read on the current page.
+    private int nextSlot;
+
+    // Where each row of the batch being filled starts in its page.
+    private int[] rowOffsets;
+
+    /**
+     * Creates a scan.
+     * @param file the heap file to scan.
+     * @param offsets byte offset within each record of the 4 byte int
+     * that makes each column.
+     */
+    public BatchScan(HeapFile file, int[] offsets)
+    {
+        this(file, offsets, -1, 0, 0);
+    }
+
+    /**
+     * Creates a scan of the pages that may hold a value of a zone
+     * column in a range.
+     * @param file the heap file to scan.
+     * @param offsets byte offset within each record of the 4 byte int
+     * that makes each column.
+     * @param zone the zone column of the file, or -1 to read every page.
+     * @param low the smallest value in the range.
+     * @param high the largest value in the range.
+     */
+    public BatchScan(HeapFile file, int[] offsets, int zone, int low,
+                     int high)
+    {
+        this.file = file;
+        this.offsets = offsets.clone();
+        this.minLength = 0;
+        for (int offset : offsets)
+            minLength = Math.max(minLength, offset + 4);
+        this.zone = zone;
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Returns how many pages the scan reads, while it is open.
+     * @return the number of pages.
+     */
+    public int getNumPages()
+    {
+        return pageIds.length;
+    }
+
+    public void open() throws IOException
+    {
+        batch = new Batch(offsets.length);
+        rowOffsets = new int[Batch.CAPACITY];
+        pageIds = zone < 0 ? file.getPageIds() :
+            file.getPageIds(zone, low, high);
+        pageIndex = 0;
+        nextSlot = 1;
+    }
+
+    /**
+     * @throws RecordTooShortException if a record does not hold every
+     * column.
+     */
+    public Batch next() throws IOException
+    {
+        batch.clear();
+        while (batch.size < Batch.CAPACITY && pageIndex < pageIds.length)
+        {
+            if (!readPage(pageIds[pageIndex]))
+            {
+                pageIndex++;
+                nextSlot = 1;
+            }
+        }
+        if (batch.size == 0)
+            return null;
+        batch.selectAll();
+        return batch;
+    }
+
+    public void close()
+    {
+        batch = null;
+        rowOffsets = null;
+        pageIds = null;
+    }
+
+    public int getNumColumns()
+    {
+        return offsets.length;
+    }
+
+    // Adds rows from a page until the batch is full, and returns
+    // whether the page has slots left to read.
+    private boolean readPage(int pageId) throws IOException
+    {
+        Page page = file.pin(pageId);
+        try
+        {
+            SlottedPage sp = HeapFile.wrap(page, pageId);
+            int numSlots = sp.getNumSlots();
+            int start = batch.size;
+            int row = start;
+            while (row < Batch.CAPACITY && nextSlot <= numSlots)
+            {
+                int offset = sp.getRecordOffset(nextSlot);
+                if (offset != 0)
+                {
+                    if (sp.getRecordLength(nextSlot) < minLength)
+                        throw new RecordTooShortException();
+                    rowOffsets[row] = offset;
+                    batch.ridPages[row] = pageId;
+                    batch.ridSlots[row] = nextSlot;
+                    row++;
+                }
+                nextSlot++;
+            }
+
+            byte[] data = page.data;
+            for (int c = 0; c < offsets.length; c++)
+            {
+                int[] column = batch.columns[c];
+                int field = offsets[c];
+                for (int r = start; r < row; r++)
+                    column[r] = getInt(data, rowOffsets[r] + field);
+            }
+            batch.size = row;
+            return nextSlot <= numSlots;
+        }
+        finally
+        {
+            file.getBufferManager().unpinPage(pageId, file.getFileName(),
+                                              false);
+        }
+    }
+
+    // Decodes a big-endian int, as written by ByteBuffer.
+    static int getInt(byte[] data, int offset)
+    {
+        return (data[offset] << 24) |
+            ((data[offset + 1] & 0xff) << 16) |
+            ((data[offset + 2] & 0xff) << 8) |
+            (data[offset + 3] & 0xff);
+    }
+}
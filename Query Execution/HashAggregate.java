@@ -0,0 +1,472 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Groups the rows of an input by an int column and computes aggregate
+ * functions of other int columns for each group. Groups are found in
+ * an open addressing hash table with linear probing, and the running
+ * values of the functions are kept in one long array per function,
+ * indexed by group, so no object is made per group or per row. Each
+ * batch is handled in two passes: the first finds the group of every
+ * row, the second updates the accumulators a function at a time.
+ *
+ * Memory is a number of pages' worth of bytes, by default the frames
+ * of the buffer pool not pinned when the aggregation is opened. Once
+ * the table holds as many groups as fit, no new group is added: rows
+ * of groups already in the table are still aggregated in memory, and
+ * rows of other groups are spilled, split into partitions by their
+ * hash, to a database file. Each partition is then aggregated by an
+ * aggregation one level down, using a different hash, which may spill
+ * again. No group is both in memory and spilled, so every group's
+ * result comes out exactly once.
+ *
+ * Results are read like a cursor: next moves to a group, and its key
+ * and values are read with getGroup, getLong and getDouble. Groups come
+ * out in no particular order.
+ * @author Yuen Hsi Chang
+ */
+public class HashAggregate
+{
+    public static class NoGroupException extends RuntimeException {};
+
+    public static enum Function { COUNT, SUM, MIN, MAX, AVG };
+
+    /**
+     * Smallest memory, in pages, an aggregation can run in.
+     */
+    public static final int MIN_MEMORY_PAGES = 4;
+
+    /**
+     * Most partitions made when spilling.
+     */
+    public static final int MAX_FANOUT = 32;
+
+    /**
+     * Deepest level of partitioning. At this level all groups are kept
+     * in memory.
+     */
+    public static final int MAX_LEVEL = 3;
+
+    private BatchOperator input;
+    private int groupColumn;
+    private Function[] functions;
+    private int[] columns;
+    private BufferManager bufMgr;
+    private String spillFileName;
+    private int spillFilePages;
+    private int memoryPages;
+    private int level;
+    private int maxLevel;
+
+    // The groups in memory, and the table of slots pointing at them.
+    // A slot holds a group's position plus one, or 0 if it is empty.
+    private int[] groupKeys;
+    private long[] counts;
+    private long[][] values;
+    private int numGroups;
+    private int maxGroups;
+    private int[] slots;
+    private int mask;
+
+    // Spilled partitions, and the aggregation of the one being read.
+    private int fanout;
+    private boolean spilled;
+    private boolean spillFileCreated;
+    private RunWriter[] writers;
+    private SortedRun[] runs;
+    private int nextPartition;
+    private HashAggregate sub;
+
+    // The group of each selected row of the batch being added.
+    private int[] rowGroups;
+
+    // The group the cursor is on, in memory, or -1 if it is in sub.
+    private int current;
+
+    /**
+     * Creates an aggregation using the unpinned frames of the buffer
+     * pool, as counted when it is opened, for its memory.
+     * @param input the operator producing the rows.
+     * @param groupColumn the column to group by.
+     * @param functions the functions to compute.
+     * @param columns the column each function is applied to. It is not
+     * used for COUNT.
+     * @param bufMgr the buffer manager to spill through.
+     * @param spillFileName name of the database file to create for
+     * spilled partitions, if any.
+     * @param spillFilePages maximum number of pages in the spill file.
+     */
+    public HashAggregate(BatchOperator input, int groupColumn,
+                         Function[] functions, int[] columns,
+                         BufferManager bufMgr, String spillFileName,
+                         int spillFilePages)
+    {
+        this(input, groupColumn, functions, columns, bufMgr, spillFileName,
+             spillFilePages, 0);
+    }
+
+    /**
+     * Creates an aggregation.
+     * @param input the operator producing the rows.
+     * @param groupColumn the column to group by.
+     * @param functions the functions to compute.
+     * @param columns the column each function is applied to. It is not
+     * used for COUNT.
+     * @param bufMgr the buffer manager to spill through.
+     * @param spillFileName name of the database file to create for
+     * spilled partitions, if any.
+     * @param spillFilePages maximum number of pages in the spill file.
+     * @param memoryPages pages' worth of memory to use, or 0 to use the
+     * unpinned frames of the buffer pool.
+     */
+    public HashAggregate(BatchOperator input, int groupColumn,
+                         Function[] functions, int[] columns,
+                         BufferManager bufMgr, String spillFileName,
+                         int spillFilePages, int memoryPages)
+    {
+        this.input = input;
+        this.groupColumn = groupColumn;
+        this.functions = functions.clone();
+        this.columns = columns.clone();
+        this.bufMgr = bufMgr;
+        this.spillFileName = spillFileName;
+        this.spillFilePages = spillFilePages;
+        this.memoryPages = memoryPages;
+        this.level = 0;
+    }
+
+    // Creates the aggregation of a spilled partition.
+    private HashAggregate(HashAggregate parent, SortedRun run)
+    {
+        this(new SpillScan(parent.bufMgr, run, parent.input.getNumColumns()),
+             parent.groupColumn, parent.functions, parent.columns,
+             parent.bufMgr, parent.spillFileName, parent.spillFilePages,
+             parent.memoryPages);
+        this.level = parent.level + 1;
+        this.spillFileCreated = true;
+    }
+
+    /**
+     * Returns the deepest level of partitioning used so far; 0 if all
+     * the groups fitted in memory.
+     * @return the level.
+     */
+    public int getMaxLevel()
+    {
+        return maxLevel;
+    }
+
+    /**
+     * Reads the whole input, aggregating what fits in memory and
+     * spilling the rest. The cursor is left before the first group.
+     * @throws ExternalSort.BufferFullException if the memory is less
+     * than MIN_MEMORY_PAGES.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void open() throws IOException
+    {
+        int pages = memoryPages > 0 ? memoryPages : bufMgr.getNumUnpinned();
+        if (pages < MIN_MEMORY_PAGES)
+            throw new ExternalSort.BufferFullException();
+        fanout = Math.max(2, Math.min(MAX_FANOUT, pages / 2));
+        // A group costs its key, two slots, its count and a value for
+        // each function.
+        int groupBytes = 12 + 8 * (functions.length + 1);
+        maxGroups = level >= MAX_LEVEL ? Integer.MAX_VALUE / 4
+            : (int)Math.min(Integer.MAX_VALUE / 4,
+                            (long)(pages - fanout) * Page.PAGESIZE /
+                            groupBytes);
+        maxLevel = level;
+
+        int capacity = 64;
+        groupKeys = new int[capacity / 2];
+        counts = new long[capacity / 2];
+        values = new long[functions.length][capacity / 2];
+        slots = new int[capacity];
+        mask = capacity - 1;
+        numGroups = 0;
+        spilled = false;
+        nextPartition = 0;
+        sub = null;
+        rowGroups = new int[Batch.CAPACITY];
+        current = -1;
+
+        input.open();
+        Batch batch;
+        while ((batch = input.next()) != null)
+            add(batch);
+        if (spilled)
+        {
+            runs = new SortedRun[fanout];
+            for (int p = 0; p < fanout; p++)
+                runs[p] = writers[p].finish();
+            writers = null;
+        }
+    }
+
+    /**
+     * Moves the cursor to the next group.
+     * @return false if there are no more groups.
+     * @throws IOException passed through from underlying file system.
+     */
+    public boolean next() throws IOException
+    {
+        if (sub == null && current + 1 < numGroups)
+        {
+            current++;
+            return true;
+        }
+        current = numGroups;
+        while (true)
+        {
+            if (sub != null)
+            {
+                if (sub.next())
+                    return true;
+                maxLevel = Math.max(maxLevel, sub.getMaxLevel());
+                sub.close();
+                sub = null;
+            }
+            if (!spilled || nextPartition == fanout)
+                return false;
+            SortedRun run = runs[nextPartition++];
+            if (run.getNumRecords() == 0)
+                continue;
+            sub = new HashAggregate(this, run);
+            sub.open();
+        }
+    }
+
+    /**
+     * Returns the key of the group the cursor is on.
+     * @return the key.
+     * @throws NoGroupException if the cursor is not on a group.
+     */
+    public int getGroup()
+    {
+        if (sub != null)
+            return sub.getGroup();
+        return groupKeys[group()];
+    }
+
+    /**
+     * Returns the value of a function for the group the cursor is on.
+     * The average is rounded towards zero.
+     * @param i the position of the function.
+     * @return the value.
+     * @throws NoGroupException if the cursor is not on a group.
+     */
+    public long getLong(int i)
+    {
+        if (sub != null)
+            return sub.getLong(i);
+        int g = group();
+        switch (functions[i])
+        {
+        case COUNT:
+            return counts[g];
+        case AVG:
+            return values[i][g] / counts[g];
+        default:
+            return values[i][g];
+        }
+    }
+
+    /**
+     * Returns the value of a function for the group the cursor is on,
+     * as a double, which keeps the fraction of an average.
+     * @param i the position of the function.
+     * @return the value.
+     * @throws NoGroupException if the cursor is not on a group.
+     */
+    public double getDouble(int i)
+    {
+        if (sub != null)
+            return sub.getDouble(i);
+        if (functions[i] == Function.AVG)
+        {
+            int g = group();
+            return (double)values[i][g] / counts[g];
+        }
+        return getLong(i);
+    }
+
+    /**
+     * Frees any spilled rows not aggregated yet, closes the input, and
+     * erases the spill file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        if (sub != null)
+            sub.close();
+        sub = null;
+        if (writers != null)
+        {
+            runs = new SortedRun[fanout];
+            for (int p = 0; p < fanout; p++)
+                runs[p] = writers[p].finish();
+            writers = null;
+        }
+        for (int p = nextPartition; spilled && p < fanout; p++)
+            runs[p].free(bufMgr);
+        nextPartition = fanout;
+        input.close();
+        groupKeys = null;
+        counts = null;
+        values = null;
+        slots = null;
+        if (level == 0 && spillFileCreated)
+        {
+            DBFile.erase(spillFileName);
+            spillFileCreated = false;
+        }
+    }
+
+    private int group()
+    {
+        if (current < 0 || current >= numGroups)
+            throw new NoGroupException();
+        return current;
+    }
+
+    // Aggregates a batch: finds each row's group, spilling rows whose
+    // group is not in memory and cannot be added, then updates the
+    // accumulators one function at a time.
+    private void add(Batch batch) throws IOException
+    {
+        int[] keys = batch.columns[groupColumn];
+        int[] sel = batch.selection;
+        int n = batch.numSelected;
+        for (int i = 0; i < n; i++)
+        {
+            int row = sel[i];
+            int g = find(keys[row]);
+            if (g < 0)
+                spill(batch, row);
+            rowGroups[i] = g;
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            int g = rowGroups[i];
+            if (g >= 0)
+                counts[g]++;
+        }
+        for (int f = 0; f < functions.length; f++)
+        {
+            if (functions[f] == Function.COUNT)
+                continue;
+            int[] column = batch.columns[columns[f]];
+            long[] acc = values[f];
+            switch (functions[f])
+            {
+            case SUM:
+            case AVG:
+                for (int i = 0; i < n; i++)
+                {
+                    int g = rowGroups[i];
+                    if (g >= 0)
+                        acc[g] += column[sel[i]];
+                }
+                break;
+            case MIN:
+                for (int i = 0; i < n; i++)
+                {
+                    int g = rowGroups[i];
+                    if (g >= 0)
+                        acc[g] = Math.min(acc[g], column[sel[i]]);
+                }
+                break;
+            case MAX:
+                for (int i = 0; i < n; i++)
+                {
+                    int g = rowGroups[i];
+                    if (g >= 0)
+                        acc[g] = Math.max(acc[g], column[sel[i]]);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    // Returns the position of a key's group, adding the group if there
+    // is room, or -1 if it is not in memory and there is no room.
+    private int find(int key)
+    {
+        int slot = HashJoin.hash(key, level) & mask;
+        while (true)
+        {
+            int g = slots[slot] - 1;
+            if (g < 0)
+                break;
+            if (groupKeys[g] == key)
+                return g;
+            slot = (slot + 1) & mask;
+        }
+        if (numGroups == maxGroups)
+            return -1;
+
+        int g = numGroups++;
+        if (g == groupKeys.length)
+        {
+            int size = g * 2;
+            groupKeys = Arrays.copyOf(groupKeys, size);
+            counts = Arrays.copyOf(counts, size);
+            for (int f = 0; f < functions.length; f++)
+                values[f] = Arrays.copyOf(values[f], size);
+        }
+        groupKeys[g] = key;
+        counts[g] = 0;
+        for (int f = 0; f < functions.length; f++)
+        {
+            if (functions[f] == Function.MIN)
+                values[f][g] = Integer.MAX_VALUE;
+            else if (functions[f] == Function.MAX)
+                values[f][g] = Integer.MIN_VALUE;
+            else
+                values[f][g] = 0;
+        }
+        slots[slot] = g + 1;
+        if (numGroups * 2 > slots.length)
+            rehash();
+        return g;
+    }
+
+    // Doubles the table, keeping it at most half full.
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++)
+        {
+            int slot = HashJoin.hash(groupKeys[g], level) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = g + 1;
+        }
+    }
+
+    private void spill(Batch batch, int row) throws IOException
+    {
+        if (!spilled)
+        {
+            if (!spillFileCreated)
+            {
+                new DBFile(spillFileName, spillFilePages);
+                spillFileCreated = true;
+            }
+            spilled = true;
+            writers = new RunWriter[fanout];
+            for (int p = 0; p < fanout; p++)
+                writers[p] = new RunWriter(bufMgr, spillFileName,
+                                           ExternalSort.DEFAULT_EXTENT_SIZE);
+        }
+        int h = HashJoin.hash(batch.columns[groupColumn][row], level);
+        writers[HashJoin.partition(h, fanout)].add(
+            SpillScan.encode(batch.columns, row, batch.ridPages[row],
+                             batch.ridSlots[row]));
+    }
+}
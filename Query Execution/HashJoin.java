@@ -0,0 +1,520 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Equi-join of two inputs on an int column of each, by hashing. The
+ * build input, which should be the smaller one, is read into a hash
+ * table held in int arrays: the rows a column at a time, and chains
+ * of row numbers hanging off a power of two array of buckets, so no
+ * object is made per row. The probe input is then read a batch at a
+ * time, hashing the whole batch before looking up each row.
+ *
+ * Memory is a number of pages' worth of bytes, by default the frames
+ * of the buffer pool not pinned when the join is opened. If the build
+ * input outgrows it, the join becomes a hybrid hash join: rows are
+ * split into partitions by their hash, partition 0 stays in memory and
+ * the others are spilled as runs to a database file. If partition 0
+ * outgrows what is left, it is spilled too. Probe rows of spilled
+ * partitions are spilled alongside, and each pair of spilled
+ * partitions is then joined by a join one level down, using a
+ * different hash, which may partition again. At MAX_LEVEL the build
+ * side is kept in memory whatever its size, since only many rows with
+ * equal keys get that far and partitioning cannot split them.
+ *
+ * While reading the build input, the join also fills a BloomFilter
+ * with every build key, spilled or not, and pushes it down into a
+ * RuntimeFilter over the probe input before reading any probe row. A
+ * probe row that cannot match is so dropped before it is hashed, and
+ * is never spilled. The filter takes an eighth of the join's memory;
+ * a build input with more keys than it is sized for only makes it let
+ * more rows through.
+ *
+ * Each output row is the build row's columns followed by the probe
+ * row's, with the probe row's RID.
+ * @author Yuen Hsi Chang
+ */
+public class HashJoin implements BatchOperator
+{
+    /**
+     * Smallest memory, in pages, a join can run in.
+     */
+    public static final int MIN_MEMORY_PAGES = 4;
+
+    /**
+     * Most partitions made when spilling.
+     */
+    public static final int MAX_FANOUT = 32;
+
+    /**
+     * Deepest level of partitioning.
+     */
+    public static final int MAX_LEVEL = 3;
+
+    private BatchOperator build;
+    private RuntimeFilter probe;
+    private BloomFilter filter;
+    private int filterBytes;
+    private int buildKey;
+    private int probeKey;
+    private BufferManager bufMgr;
+    private String spillFileName;
+    private int spillFilePages;
+    private int memoryPages;
+    private int budgetPages;
+    private int level;
+    private int maxLevel;
+
+    // The build rows held in memory, and the hash table over them.
+    private int[][] rows;
+    private int numRows;
+    private int maxRows;
+    private int[] heads;
+    private int[] chain;
+    private int mask;
+
+    // Spilled partitions, and the join of the one being worked on.
+    private int fanout;
+    private boolean spilled;
+    private boolean spilledAll;
+    private boolean spillFileCreated;
+    private RunWriter[] buildWriters;
+    private RunWriter[] probeWriters;
+    private SortedRun[] buildRuns;
+    private SortedRun[] probeRuns;
+    private int nextPartition;
+    private HashJoin sub;
+
+    // Where probing has got to: a probe row, and its next match.
+    private Batch out;
+    private Batch probeBatch;
+    private int probePos;
+    private int[] hashes;
+    private int probeRow;
+    private int match;
+    private boolean probeDone;
+
+    /**
+     * Creates a join using the unpinned frames of the buffer pool, as
+     * counted when it is opened, for its memory.
+     * @param build the smaller input.
+     * @param buildKey the build input's join column.
+     * @param probe the larger input.
+     * @param probeKey the probe input's join column.
+     * @param bufMgr the buffer manager to spill through.
+     * @param spillFileName name of the database file to create for
+     * spilled partitions, if any.
+     * @param spillFilePages maximum number of pages in the spill file.
+     */
+    public HashJoin(BatchOperator build, int buildKey, BatchOperator probe,
+                    int probeKey, BufferManager bufMgr, String spillFileName,
+                    int spillFilePages)
+    {
+        this(build, buildKey, probe, probeKey, bufMgr, spillFileName,
+             spillFilePages, 0);
+    }
+
+    /**
+     * Creates a join.
+     * @param build the smaller input.
+     * @param buildKey the build input's join column.
+     * @param probe the larger input.
+     * @param probeKey the probe input's join column.
+     * @param bufMgr the buffer manager to spill through.
+     * @param spillFileName name of the database file to create for
+     * spilled partitions, if any.
+     * @param spillFilePages maximum number of pages in the spill file.
+     * @param memoryPages pages' worth of memory to use, or 0 to use the
+     * unpinned frames of the buffer pool.
+     */
+    public HashJoin(BatchOperator build, int buildKey, BatchOperator probe,
+                    int probeKey, BufferManager bufMgr, String spillFileName,
+                    int spillFilePages, int memoryPages)
+    {
+        this.build = build;
+        this.buildKey = buildKey;
+        this.probe = new RuntimeFilter(probe, probeKey);
+        this.probeKey = probeKey;
+        this.bufMgr = bufMgr;
+        this.spillFileName = spillFileName;
+        this.spillFilePages = spillFilePages;
+        this.memoryPages = memoryPages;
+        this.level = 0;
+    }
+
+    // Creates the join of a pair of spilled partitions.
+    private HashJoin(HashJoin parent, SortedRun buildRun, SortedRun probeRun)
+    {
+        this(new SpillScan(parent.bufMgr, buildRun,
+                           parent.build.getNumColumns()),
+             parent.buildKey,
+             new SpillScan(parent.bufMgr, probeRun,
+                           parent.probe.getNumColumns()),
+             parent.probeKey, parent.bufMgr, parent.spillFileName,
+             parent.spillFilePages, parent.memoryPages);
+        this.level = parent.level + 1;
+        this.spillFileCreated = true;
+    }
+
+    /**
+     * Returns the deepest level of partitioning used so far; 0 if the
+     * build input fitted in memory.
+     * @return the level.
+     */
+    public int getMaxLevel()
+    {
+        return maxLevel;
+    }
+
+    /**
+     * Returns how many probe rows the join's Bloom filter has dropped
+     * since it was opened.
+     * @return the number of rows.
+     */
+    public long getNumFiltered()
+    {
+        return probe.getNumDropped();
+    }
+
+    /**
+     * @throws ExternalSort.BufferFullException if the memory is less
+     * than MIN_MEMORY_PAGES.
+     */
+    public void open() throws IOException
+    {
+        budgetPages = memoryPages > 0 ? memoryPages
+            : bufMgr.getNumUnpinned();
+        if (budgetPages < MIN_MEMORY_PAGES)
+            throw new ExternalSort.BufferFullException();
+        fanout = Math.max(2, Math.min(MAX_FANOUT, budgetPages / 2));
+        filterBytes = level == 0 ? budgetPages * Page.PAGESIZE / 8 : 0;
+        maxRows = maxRows(budgetPages);
+        maxLevel = level;
+        rows = new int[build.getNumColumns()][16];
+        numRows = 0;
+        spilled = false;
+        spilledAll = false;
+        nextPartition = 0;
+        sub = null;
+        out = new Batch(getNumColumns());
+        hashes = new int[Batch.CAPACITY];
+        probeBatch = null;
+        probePos = 0;
+        match = -1;
+        filter = level == 0 ? new BloomFilter(
+            filterBytes * 8 / BloomFilter.DEFAULT_BITS_PER_KEY) : null;
+        probe.setFilter(null);
+
+        build.open();
+        probe.open();
+        readBuild();
+        probe.setFilter(filter);
+        buildTable();
+        if (spilled)
+        {
+            buildRuns = finish(buildWriters);
+            buildWriters = null;
+            probeWriters = newWriters();
+        }
+        probeDone = numRows == 0 && !spilled;
+    }
+
+    public Batch next() throws IOException
+    {
+        if (!probeDone)
+        {
+            out.clear();
+            if (probeBatches())
+            {
+                probeDone = true;
+                if (spilled)
+                {
+                    probeRuns = finish(probeWriters);
+                    probeWriters = null;
+                }
+            }
+            if (out.size > 0)
+            {
+                out.selectAll();
+                return out;
+            }
+        }
+
+        while (true)
+        {
+            if (sub != null)
+            {
+                Batch batch = sub.next();
+                if (batch != null)
+                    return batch;
+                maxLevel = Math.max(maxLevel, sub.getMaxLevel());
+                sub.close();
+                sub = null;
+            }
+            if (!spilled || nextPartition == fanout)
+                return null;
+
+            int p = nextPartition++;
+            if (buildRuns[p].getNumRecords() == 0 ||
+                probeRuns[p].getNumRecords() == 0)
+            {
+                buildRuns[p].free(bufMgr);
+                probeRuns[p].free(bufMgr);
+                continue;
+            }
+            sub = new HashJoin(this, buildRuns[p], probeRuns[p]);
+            sub.open();
+        }
+    }
+
+    /**
+     * Frees any spilled rows not joined yet, closes both inputs, and
+     * erases the spill file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        if (sub != null)
+            sub.close();
+        sub = null;
+        if (buildWriters != null)
+            buildRuns = finish(buildWriters);
+        if (probeWriters != null)
+            probeRuns = finish(probeWriters);
+        buildWriters = null;
+        probeWriters = null;
+        for (int p = nextPartition; spilled && p < fanout; p++)
+        {
+            if (buildRuns != null)
+                buildRuns[p].free(bufMgr);
+            if (probeRuns != null)
+                probeRuns[p].free(bufMgr);
+        }
+        nextPartition = fanout;
+        build.close();
+        probe.close();
+        rows = null;
+        heads = null;
+        chain = null;
+        out = null;
+        filter = null;
+        if (level == 0 && spillFileCreated)
+        {
+            DBFile.erase(spillFileName);
+            spillFileCreated = false;
+        }
+    }
+
+    public int getNumColumns()
+    {
+        return build.getNumColumns() + probe.getNumColumns();
+    }
+
+    // Build rows that fit in the given number of pages, less the Bloom
+    // filter, counting the row's columns, its chain entry and about two
+    // buckets.
+    private int maxRows(int pages)
+    {
+        int rowBytes = (build.getNumColumns() + 3) * 4;
+        return (int)Math.min(Integer.MAX_VALUE / 2,
+                             ((long)pages * Page.PAGESIZE - filterBytes) /
+                             rowBytes);
+    }
+
+    // A hash of a key that is different at each level of partitioning.
+    static int hash(int key, int level)
+    {
+        int h = key + level * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int partition(int h)
+    {
+        return partition(h, fanout);
+    }
+
+    // The partition of a hash, from its high bits, since the low bits
+    // pick the bucket.
+    static int partition(int h, int fanout)
+    {
+        return (int)(((h & 0xffffffffL) * fanout) >>> 32);
+    }
+
+    private boolean spills(int h)
+    {
+        return spilled && (spilledAll || partition(h) != 0);
+    }
+
+    private void readBuild() throws IOException
+    {
+        Batch batch;
+        while ((batch = build.next()) != null)
+        {
+            int[] keys = batch.columns[buildKey];
+            for (int i = 0; i < batch.numSelected; i++)
+            {
+                int row = batch.selection[i];
+                int h = hash(keys[row], level);
+                if (filter != null)
+                    filter.set(keys[row]);
+                if (!spills(h) && numRows == maxRows)
+                    overflow();
+                if (spills(h))
+                {
+                    buildWriters[partition(h)].add(
+                        SpillScan.encode(batch.columns, row,
+                                         SlottedPage.INVALID_PAGE, 0));
+                    continue;
+                }
+                if (numRows == rows[0].length)
+                    for (int c = 0; c < rows.length; c++)
+                        rows[c] = Arrays.copyOf(rows[c], numRows * 2);
+                for (int c = 0; c < rows.length; c++)
+                    rows[c][numRows] = batch.columns[c][row];
+                numRows++;
+            }
+        }
+    }
+
+    // Makes room in memory: the first time by spilling every partition
+    // but 0, and after that by spilling partition 0 as well.
+    private void overflow() throws IOException
+    {
+        if (level >= MAX_LEVEL)
+        {
+            maxRows = Integer.MAX_VALUE / 2;
+            return;
+        }
+        if (!spilled)
+        {
+            if (!spillFileCreated)
+            {
+                new DBFile(spillFileName, spillFilePages);
+                spillFileCreated = true;
+            }
+            spilled = true;
+            buildWriters = newWriters();
+            maxRows = maxRows(budgetPages - fanout);
+        }
+        else
+            spilledAll = true;
+
+        int kept = 0;
+        for (int r = 0; r < numRows; r++)
+        {
+            int h = hash(rows[buildKey][r], level);
+            if (spills(h))
+                buildWriters[partition(h)].add(
+                    SpillScan.encode(rows, r, SlottedPage.INVALID_PAGE, 0));
+            else
+            {
+                for (int c = 0; c < rows.length; c++)
+                    rows[c][kept] = rows[c][r];
+                kept++;
+            }
+        }
+        numRows = kept;
+        if (numRows >= maxRows)
+            overflow();
+    }
+
+    // Chains the rows in memory into buckets. Rows are added last to
+    // first so each chain lists its rows in the order they were read.
+    private void buildTable()
+    {
+        int size = 2;
+        while (size < numRows * 2)
+            size <<= 1;
+        heads = new int[size];
+        Arrays.fill(heads, -1);
+        chain = new int[Math.max(1, numRows)];
+        mask = size - 1;
+        int[] keys = rows[buildKey];
+        for (int r = numRows - 1; r >= 0; r--)
+        {
+            int b = hash(keys[r], level) & mask;
+            chain[r] = heads[b];
+            heads[b] = r;
+        }
+    }
+
+    // Fills the output batch from the probe input, spilling probe rows
+    // of spilled partitions. Returns whether the probe input is used up.
+    private boolean probeBatches() throws IOException
+    {
+        int numBuild = rows.length;
+        int[][] outColumns = out.columns;
+        while (out.size < Batch.CAPACITY)
+        {
+            if (match >= 0)
+            {
+                int o = out.size++;
+                for (int c = 0; c < numBuild; c++)
+                    outColumns[c][o] = rows[c][match];
+                int[][] probeColumns = probeBatch.columns;
+                for (int c = 0; c < probeColumns.length; c++)
+                    outColumns[numBuild + c][o] = probeColumns[c][probeRow];
+                out.ridPages[o] = probeBatch.ridPages[probeRow];
+                out.ridSlots[o] = probeBatch.ridSlots[probeRow];
+                match = find(chain[match], probeColumns[probeKey][probeRow]);
+                continue;
+            }
+
+            if (probeBatch == null || probePos == probeBatch.numSelected)
+            {
+                probeBatch = probe.next();
+                probePos = 0;
+                if (probeBatch == null)
+                    return true;
+                int[] keys = probeBatch.columns[probeKey];
+                int[] sel = probeBatch.selection;
+                for (int i = 0; i < probeBatch.numSelected; i++)
+                    hashes[i] = hash(keys[sel[i]], level);
+            }
+
+            int h = hashes[probePos];
+            int row = probeBatch.selection[probePos++];
+            if (spills(h))
+            {
+                probeWriters[partition(h)].add(
+                    SpillScan.encode(probeBatch.columns, row,
+                                     probeBatch.ridPages[row],
+                                     probeBatch.ridSlots[row]));
+                continue;
+            }
+            probeRow = row;
+            match = find(heads[h & mask], probeBatch.columns[probeKey][row]);
+        }
+        return false;
+    }
+
+    // Follows a chain from a row to the first row with the given key.
+    private int find(int r, int key)
+    {
+        int[] keys = rows[buildKey];
+        while (r >= 0 && keys[r] != key)
+            r = chain[r];
+        return r;
+    }
+
+    private RunWriter[] newWriters()
+    {
+        RunWriter[] writers = new RunWriter[fanout];
+        for (int p = 0; p < fanout; p++)
+            writers[p] = new RunWriter(bufMgr, spillFileName,
+                                       ExternalSort.DEFAULT_EXTENT_SIZE);
+        return writers;
+    }
+
+    private static SortedRun[] finish(RunWriter[] writers) throws IOException
+    {
+        SortedRun[] runs = new SortedRun[writers.length];
+        for (int p = 0; p < writers.length; p++)
+            runs[p] = writers[p].finish();
+        return runs;
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Equi-join of an outer input with the records of a heap file, found
+ * by looking up each outer row's key in a B+-tree over the heap file.
+ * The RIDs found for a whole batch of outer rows are sorted by page
+ * and slot before any record is read, so each heap page is pinned once
+ * per output batch however many of its records match, and the pages
+ * are visited in file order. The inner record's fields are decoded in
+ * place from the pinned page.
+ *
+ * Each output row is the outer row's columns followed by the inner
+ * record's, with the inner record's RID. Within the matches of one
+ * outer batch, rows come out in RID order.
+ * @author Yuen Hsi Chang
+ */
+public class IndexNestedLoopJoin implements BatchOperator
+{
+    // Bits of a match's sort key holding the outer row's position.
+    private static final int ROW_BITS = 11;
+
+    private BatchOperator outer;
+    private int outerKey;
+    private BTreeFile index;
+    private HeapFile inner;
+    private int[] innerOffsets;
+    private int minLength;
+
+    // Matches of the current outer batch, each the inner RID's page id,
+    // slot number and the outer row, packed so they sort by RID; and
+    // the next to output.
+    private Batch outerBatch;
+    private long[] matches;
+    private int numMatches;
+    private int nextMatch;
+
+    private Batch out;
+    private int numPins;
+
+    /**
+     * Creates a join.
+     * @param outer the outer input.
+     * @param outerKey the outer input's join column.
+     * @param index a B+-tree over the inner heap file's join field.
+     * @param inner the inner heap file.
+     * @param innerOffsets byte offset within each inner record of the
+     * 4 byte int that makes each of its columns.
+     */
+    public IndexNestedLoopJoin(BatchOperator outer, int outerKey,
+                               BTreeFile index, HeapFile inner,
+                               int[] innerOffsets)
+    {
+        this.outer = outer;
+        this.outerKey = outerKey;
+        this.index = index;
+        this.inner = inner;
+        this.innerOffsets = innerOffsets.clone();
+        this.minLength = 0;
+        for (int offset : innerOffsets)
+            minLength = Math.max(minLength, offset + 4);
+    }
+
+    /**
+     * Returns the number of times a heap page has been pinned so far.
+     * @return the number of pins.
+     */
+    public int getNumPins()
+    {
+        return numPins;
+    }
+
+    public void open() throws IOException
+    {
+        outer.open();
+        out = new Batch(getNumColumns());
+        matches = new long[Batch.CAPACITY];
+        numMatches = 0;
+        nextMatch = 0;
+        numPins = 0;
+    }
+
+    /**
+     * @throws BatchScan.RecordTooShortException if an inner record does
+     * not hold every column.
+     */
+    public Batch next() throws IOException
+    {
+        while (nextMatch == numMatches)
+        {
+            outerBatch = outer.next();
+            if (outerBatch == null)
+                return null;
+            lookUp();
+        }
+        out.clear();
+        fetch();
+        out.selectAll();
+        return out;
+    }
+
+    public void close() throws IOException
+    {
+        outer.close();
+        out = null;
+        matches = null;
+    }
+
+    public int getNumColumns()
+    {
+        return outer.getNumColumns() + innerOffsets.length;
+    }
+
+    // Looks up every row of the outer batch, and sorts the matches by
+    // RID.
+    private void lookUp() throws IOException
+    {
+        numMatches = 0;
+        nextMatch = 0;
+        int[] keys = outerBatch.columns[outerKey];
+        for (int i = 0; i < outerBatch.numSelected; i++)
+        {
+            int row = outerBatch.selection[i];
+            for (RID rid : index.search(keys[row]))
+            {
+                if (numMatches == matches.length)
+                    matches = Arrays.copyOf(matches, numMatches * 2);
+                matches[numMatches++] = ((long)rid.pageId << 32) |
+                    ((long)rid.slotNum << ROW_BITS) | row;
+            }
+        }
+        Arrays.sort(matches, 0, numMatches);
+    }
+
+    // Outputs up to a batch of matches, pinning each page once.
+    private void fetch() throws IOException
+    {
+        int numOuter = outerBatch.getNumColumns();
+        int end = Math.min(numMatches, nextMatch + Batch.CAPACITY);
+        while (nextMatch < end)
+        {
+            int pageId = (int)(matches[nextMatch] >>> 32);
+            Page page = inner.pin(pageId);
+            numPins++;
+            try
+            {
+                SlottedPage sp = HeapFile.wrap(page, pageId);
+                byte[] data = page.data;
+                for (; nextMatch < end &&
+                         (int)(matches[nextMatch] >>> 32) == pageId;
+                     nextMatch++)
+                {
+                    long m = matches[nextMatch];
+                    int slot = (int)(m >>> ROW_BITS) & 0x1fffff;
+                    int row = (int)m & ((1 << ROW_BITS) - 1);
+                    int offset = sp.getRecordOffset(slot);
+                    if (sp.getRecordLength(slot) < minLength)
+                        throw new BatchScan.RecordTooShortException();
+
+                    int o = out.size++;
+                    for (int c = 0; c < numOuter; c++)
+                        out.columns[c][o] = outerBatch.columns[c][row];
+                    for (int c = 0; c < innerOffsets.length; c++)
+                        out.columns[numOuter + c][o] =
+                            BatchScan.getInt(data, offset + innerOffsets[c]);
+                    out.ridPages[o] = pageId;
+                    out.ridSlots[o] = slot;
+                }
+            }
+            finally
+            {
+                inner.getBufferManager().unpinPage(pageId, inner.getFileName(),
+                                                   false);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares scanning a few columns of a wide table stored as tuples on
+ * slotted pages, with BatchScan, against the same table stored column
+ * by column on PaxPages, with PaxScan. Both filter on one column and
+ * sum another. The buffer pool is large enough to hold both files, so
+ * after a warm-up pass the scans are CPU and memory bound.
+ * Usage: java LayoutBenchmark [numRecords] [numColumns]
+ */
+public class LayoutBenchmark
+{
+    public static final String FILENAME = "__layoutbench";
+    public static final int REPEATS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int numColumns = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        String[] names = new String[numColumns];
+        Schema.Type[] types = new Schema.Type[numColumns];
+        for (int c = 0; c < numColumns; c++)
+        {
+            names[c] = "c" + c;
+            types[c] = Schema.Type.INT;
+        }
+        Schema schema = new Schema(names, types);
+
+        // Slotted pages also spend a slot on each record.
+        int numPages = numRecords / (Page.PAGESIZE /
+                                     (schema.getMinLength() + 8)) + 100;
+        DBFile.erase(FILENAME + ".rows");
+        DBFile.erase(FILENAME + ".cols");
+        BufferManager bufMgr = new BufferManager(numPages * 2);
+        HeapFile hf = new HeapFile(FILENAME + ".rows", numPages, bufMgr);
+        PaxFile pf = new PaxFile(FILENAME + ".cols", numPages, schema,
+                                 bufMgr);
+        TupleEncoder encoder = new TupleEncoder(schema);
+        Random random = new Random(39);
+        for (int i = 0; i < numRecords; i++)
+        {
+            encoder.reset();
+            for (int c = 0; c < numColumns; c++)
+                encoder.setInt(c, random.nextInt(1000));
+            hf.insertRecord(encoder.toByteArray());
+            pf.insertRecord(encoder);
+        }
+        System.out.println(numRecords + " records of " + numColumns +
+                           " ints: " + hf.getPageIds().length +
+                           " slotted pages, " + pf.getPageIds().length +
+                           " column pages");
+
+        int filterColumn = numColumns / 2;
+        int sumColumn = numColumns - 1;
+        BatchOperator rows = new BatchScan(hf, new int[] {
+                schema.getFixedOffset(filterColumn),
+                schema.getFixedOffset(sumColumn) });
+        BatchOperator cols =
+            new PaxScan(pf, new int[] { filterColumn, sumColumn });
+
+        long expected = sum(rows);
+        if (sum(cols) != expected)
+            throw new IllegalStateException("Scan results differ");
+        double rowMs = time(rows, expected);
+        double colMs = time(cols, expected);
+        System.out.printf("slotted: %8.2f ms%n", rowMs);
+        System.out.printf("columns: %8.2f ms  speed-up %.2fx%n", colMs,
+                          rowMs / colMs);
+
+        DBFile.erase(FILENAME + ".rows");
+        DBFile.erase(FILENAME + ".cols");
+    }
+
+    // Returns the best of REPEATS runs of a scan, in milliseconds.
+    private static double time(BatchOperator scan, long expected)
+        throws IOException
+    {
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < REPEATS; r++)
+        {
+            long start = System.nanoTime();
+            long result = sum(scan);
+            best = Math.min(best, System.nanoTime() - start);
+            if (result != expected)
+                throw new IllegalStateException("Scan result differs");
+        }
+        return best / 1e6;
+    }
+
+    // Sums the second column of the rows whose first is under 100.
+    private static long sum(BatchOperator scan) throws IOException
+    {
+        BatchOperator plan = new BatchFilter(scan, 0,
+                                             BatchFilter.Comparison.LT, 100);
+        long total = 0;
+        plan.open();
+        Batch batch;
+        while ((batch = plan.next()) != null)
+            for (int i = 0; i < batch.numSelected; i++)
+                total += batch.get(1, i);
+        plan.close();
+        return total;
+    }
+}
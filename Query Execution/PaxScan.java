@@ -0,0 +1,101 @@
+import java.io.*;
+
+/**
+ * Reads INT columns of every record of a PaxFile into batches. Only
+ * the minipages of the requested columns are read, each in one pass
+ * over contiguous values, so a scan of a few columns of a wide table
+ * touches a small part of each page. Null values read as 0.
+ * @author Yuen Hsi Chang
+ */
+public class PaxScan implements BatchOperator
+{
+    private PaxFile file;
+    private int[] columns;
+
+    private Batch batch;
+    private int[] pageIds;
+    private int pageIndex;
+
+    // Next row to read on the current page.
+    private int nextRow;
+
+    /**
+     * Creates a scan.
+     * @param file the file to scan.
+     * @param columns the schema columns making each batch column.
+     * @throws TupleEncoder.WrongTypeException if a column is not an INT.
+     */
+    public PaxScan(PaxFile file, int[] columns)
+    {
+        for (int column : columns)
+            if (file.getSchema().getType(column) != Schema.Type.INT)
+                throw new TupleEncoder.WrongTypeException();
+        this.file = file;
+        this.columns = columns.clone();
+    }
+
+    public void open() throws IOException
+    {
+        batch = new Batch(columns.length);
+        pageIds = file.getPageIds();
+        pageIndex = 0;
+        nextRow = 0;
+    }
+
+    public Batch next() throws IOException
+    {
+        batch.clear();
+        while (batch.size < Batch.CAPACITY && pageIndex < pageIds.length)
+        {
+            if (!readPage(pageIds[pageIndex]))
+            {
+                pageIndex++;
+                nextRow = 0;
+            }
+        }
+        if (batch.size == 0)
+            return null;
+        batch.selectAll();
+        return batch;
+    }
+
+    public void close()
+    {
+        batch = null;
+        pageIds = null;
+    }
+
+    public int getNumColumns()
+    {
+        return columns.length;
+    }
+
+    // Adds rows from a page until the batch is full, and returns
+    // whether the page has rows left to read.
+    private boolean readPage(int pageId) throws IOException
+    {
+        PaxPage pp = new PaxPage(file.pin(pageId), file.getSchema());
+        try
+        {
+            int numRows = pp.getNumRecords();
+            int count = Math.min(numRows - nextRow,
+                                 Batch.CAPACITY - batch.size);
+            for (int c = 0; c < columns.length; c++)
+                pp.readInts(columns[c], nextRow, count, batch.columns[c],
+                            batch.size);
+            for (int i = 0; i < count; i++)
+            {
+                batch.ridPages[batch.size + i] = pageId;
+                batch.ridSlots[batch.size + i] = nextRow + i;
+            }
+            batch.size += count;
+            nextRow += count;
+            return nextRow < numRows;
+        }
+        finally
+        {
+            file.getBufferManager().unpinPage(pageId, file.getFileName(),
+                                              false);
+        }
+    }
+}
@@ -0,0 +1,937 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class QETester
+{
+    public static interface Testable
+    {
+        void test(BufferManager bufMgr, String filename) throws Exception;
+    }
+
+    public static class TestFailedException extends RuntimeException
+    {
+        public TestFailedException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    // Makes a record of consecutive int fields, padded with zeros.
+    public static byte[] makeRecord(int length, int... fields)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int field : fields)
+            buf.putInt(field);
+        return buf.array();
+    }
+
+    // Reads every selected row of an operator, as one int[] per row.
+    public static ArrayList<int[]> collect(BatchOperator op)
+        throws IOException
+    {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        op.open();
+        Batch batch;
+        while ((batch = op.next()) != null)
+        {
+            if (batch.numSelected == 0 || batch.numSelected > Batch.CAPACITY)
+                throw new TestFailedException("Bad batch size " +
+                                              batch.numSelected);
+            for (int i = 0; i < batch.numSelected; i++)
+            {
+                int[] row = new int[op.getNumColumns()];
+                for (int c = 0; c < row.length; c++)
+                    row[c] = batch.get(c, i);
+                rows.add(row);
+            }
+        }
+        op.close();
+        return rows;
+    }
+
+    // Fills a heap file with records of three fields (id, id % 100,
+    // random) and returns the records in insertion order.
+    public static ArrayList<int[]> fill(HeapFile hf, int numRecords,
+                                        long seed)
+        throws IOException
+    {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        Random random = new Random(seed);
+        for (int i = 0; i < numRecords; i++)
+        {
+            int[] row = { i, i % 100, random.nextInt() };
+            hf.insertRecord(makeRecord(12 + i % 17, row[0], row[1], row[2]));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    //----------------------------------------------------
+    // test 1
+    //      Scan every record into batches, and check values
+    //      and RIDs against a record at a time scan
+    //----------------------------------------------------
+    public static class Test1 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 1 -------");
+            int numRecords = 5000;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            fill(hf, numRecords, 1);
+
+            BatchScan scan = new BatchScan(hf, new int[] { 8, 0 });
+            Iterator<Pair<RID,byte[]>> expected = hf.scan();
+            scan.open();
+            int count = 0;
+            int batches = 0;
+            Batch batch;
+            while ((batch = scan.next()) != null)
+            {
+                batches++;
+                for (int i = 0; i < batch.numSelected; i++)
+                {
+                    Pair<RID,byte[]> e = expected.next();
+                    ByteBuffer buf = ByteBuffer.wrap(e.second);
+                    RID rid = batch.getRid(i);
+                    if (batch.get(0, i) != buf.getInt(8) ||
+                        batch.get(1, i) != buf.getInt(0) ||
+                        rid.pageId != e.first.pageId ||
+                        rid.slotNum != e.first.slotNum)
+                        throw new TestFailedException("Row " + count +
+                                                      " wrong");
+                    count++;
+                }
+            }
+            scan.close();
+            if (count != numRecords || expected.hasNext())
+                throw new TestFailedException("Scanned " + count + " rows");
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Scan left pages pinned");
+            System.out.println("Scanned " + count + " rows in " + batches +
+                               " batches");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 2
+    //      Every comparison, stacked filters and projection
+    //      agree with filtering the rows one at a time; rows
+    //      deleted from the file are not seen
+    //----------------------------------------------------
+    public static class Test2 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 2 -------");
+            int numRecords = 8000;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            ArrayList<int[]> all = fill(hf, numRecords, 2);
+            HashSet<Integer> deleted = new HashSet<Integer>();
+            Iterator<Pair<RID,byte[]>> it = hf.scan();
+            ArrayList<RID> rids = new ArrayList<RID>();
+            while (it.hasNext())
+                rids.add(it.next().first);
+            for (int i = 0; i < rids.size(); i += 3)
+            {
+                hf.deleteRecord(rids.get(i));
+                deleted.add(i);
+            }
+            ArrayList<int[]> live = new ArrayList<int[]>();
+            for (int i = 0; i < all.size(); i++)
+                if (!deleted.contains(i))
+                    live.add(all.get(i));
+
+            int[] offsets = { 0, 4, 8 };
+            for (BatchFilter.Comparison op : BatchFilter.Comparison.values())
+            {
+                BatchOperator plan =
+                    new BatchFilter(new BatchScan(hf, offsets), 1, op, 42);
+                int expected = 0;
+                for (int[] row : live)
+                    if (compare(row[1], op, 42))
+                        expected++;
+                int actual = collect(plan).size();
+                if (actual != expected)
+                    throw new TestFailedException(op + " kept " + actual +
+                                                  ", not " + expected);
+            }
+
+            // id >= 1000 and id < 6000 and mod != 7, keeping (mod, id)
+            BatchOperator plan =
+                new BatchProject(
+                    new BatchFilter(
+                        new BatchFilter(
+                            new BatchFilter(new BatchScan(hf, offsets), 0,
+                                            BatchFilter.Comparison.GE, 1000),
+                            0, BatchFilter.Comparison.LT, 6000),
+                        1, BatchFilter.Comparison.NE, 7),
+                    new int[] { 1, 0 });
+            ArrayList<int[]> rows = collect(plan);
+            int i = 0;
+            for (int[] row : live)
+            {
+                if (row[0] < 1000 || row[0] >= 6000 || row[1] == 7)
+                    continue;
+                int[] got = rows.get(i++);
+                if (got.length != 2 || got[0] != row[1] || got[1] != row[0])
+                    throw new TestFailedException("Wrong row for id " +
+                                                  row[0]);
+            }
+            if (i != rows.size())
+                throw new TestFailedException("Too many rows");
+
+            // A filter nothing passes skips every batch.
+            plan = new BatchFilter(new BatchScan(hf, offsets), 1,
+                                   BatchFilter.Comparison.GT, 100);
+            if (collect(plan).size() != 0)
+                throw new TestFailedException("Empty filter returned rows");
+            System.out.println("Filters and projection correct over " +
+                               live.size() + " live rows");
+        }
+
+        private static boolean compare(int a, BatchFilter.Comparison op,
+                                       int b)
+        {
+            switch (op)
+            {
+            case EQ: return a == b;
+            case NE: return a != b;
+            case LT: return a < b;
+            case LE: return a <= b;
+            case GT: return a > b;
+            default: return a >= b;
+            }
+        }
+    }
+
+    //----------------------------------------------------
+    // test 3
+    //      Limits cut batches short and stop reading the
+    //      input; records missing a column are rejected
+    //----------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            int numRecords = 3000;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            fill(hf, numRecords, 3);
+
+            int[] offsets = { 0, 4 };
+            long[] limits = { 0, 1, Batch.CAPACITY, Batch.CAPACITY + 5,
+                              numRecords, numRecords * 2 };
+            for (long limit : limits)
+            {
+                ArrayList<int[]> rows =
+                    collect(new BatchLimit(new BatchScan(hf, offsets), limit));
+                if (rows.size() != Math.min(limit, numRecords))
+                    throw new TestFailedException("Limit " + limit +
+                                                  " gave " + rows.size());
+                for (int i = 0; i < rows.size(); i++)
+                    if (rows.get(i)[0] != i)
+                        throw new TestFailedException("Limit reordered rows");
+            }
+
+            // Filter on mod == 3 then take the first 5: ids 3, 103, ...
+            ArrayList<int[]> rows =
+                collect(new BatchLimit(
+                            new BatchFilter(new BatchScan(hf, offsets), 1,
+                                            BatchFilter.Comparison.EQ, 3),
+                            5));
+            for (int i = 0; i < 5; i++)
+                if (rows.get(i)[0] != 3 + 100 * i)
+                    throw new TestFailedException("Filtered limit wrong");
+
+            hf.insertRecord(makeRecord(6, 1));
+            boolean thrown = false;
+            try
+            {
+                collect(new BatchScan(hf, offsets));
+            }
+            catch (BatchScan.RecordTooShortException e)
+            {
+                thrown = true;
+            }
+            if (!thrown)
+                throw new TestFailedException("Short record not rejected");
+            System.out.println("Limits correct");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 4
+    //      Time a selective filter over the vectorized scan
+    //      against the same filter over a record stream, with
+    //      the whole file in the buffer pool
+    //----------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            int numRecords = 100000;
+            bufMgr = new BufferManager(NUMPAGES * 2);
+            HeapFile hf = new HeapFile(filename, NUMPAGES * 2, bufMgr);
+            fill(hf, numRecords, 4);
+
+            long vectorized = 0;
+            long streamed = 0;
+            long start = System.nanoTime();
+            for (int round = 0; round < 5; round++)
+            {
+                BatchOperator plan =
+                    new BatchFilter(new BatchScan(hf, new int[] { 0, 4 }), 1,
+                                    BatchFilter.Comparison.LT, 10);
+                plan.open();
+                Batch batch;
+                while ((batch = plan.next()) != null)
+                    vectorized += batch.numSelected;
+                plan.close();
+            }
+            long vectorizedTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int round = 0; round < 5; round++)
+                streamed += hf.stream()
+                    .filter(r -> ByteBuffer.wrap(r).getInt(4) < 10).count();
+            long streamedTime = System.nanoTime() - start;
+
+            if (vectorized != streamed || vectorized != 5L * numRecords / 10)
+                throw new TestFailedException("Counts differ: " + vectorized +
+                                              " and " + streamed);
+            System.out.println("Vectorized " + vectorizedTime / 1000000 +
+                               " ms, record stream " +
+                               streamedTime / 1000000 + " ms");
+        }
+    }
+
+    // Joins rows on one column of each by nested loops, as the rows a
+    // join of them should give, build columns first, in sorted order.
+    public static ArrayList<int[]> expectedJoin(ArrayList<int[]> build,
+                                                int buildKey,
+                                                ArrayList<int[]> probe,
+                                                int probeKey)
+    {
+        HashMap<Integer,ArrayList<int[]>> byKey =
+            new HashMap<Integer,ArrayList<int[]>>();
+        for (int[] row : build)
+            byKey.computeIfAbsent(row[buildKey],
+                                  k -> new ArrayList<int[]>()).add(row);
+        ArrayList<int[]> result = new ArrayList<int[]>();
+        for (int[] p : probe)
+            for (int[] b : byKey.getOrDefault(p[probeKey],
+                                              new ArrayList<int[]>()))
+            {
+                int[] row = Arrays.copyOf(b, b.length + p.length);
+                System.arraycopy(p, 0, row, b.length, p.length);
+                result.add(row);
+            }
+        result.sort(Arrays::compare);
+        return result;
+    }
+
+    // Checks that an operator gives the expected rows in any order.
+    public static void checkRows(ArrayList<int[]> actual,
+                                 ArrayList<int[]> expected)
+    {
+        actual.sort(Arrays::compare);
+        if (actual.size() != expected.size())
+            throw new TestFailedException("Got " + actual.size() +
+                                          " rows, not " + expected.size());
+        for (int i = 0; i < actual.size(); i++)
+            if (!Arrays.equals(actual.get(i), expected.get(i)))
+                throw new TestFailedException("Row " + i + " differs");
+    }
+
+    // Fills a heap file with records of two fields (key, payload) for
+    // keys drawn from [0, keyRange).
+    public static ArrayList<int[]> fillKeys(HeapFile hf, int numRecords,
+                                            int keyRange, long seed)
+        throws IOException
+    {
+        ArrayList<int[]> rows = new ArrayList<int[]>();
+        Random random = new Random(seed);
+        for (int i = 0; i < numRecords; i++)
+        {
+            int[] row = { random.nextInt(keyRange), i };
+            hf.insertRecord(makeRecord(8, row[0], row[1]));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    //----------------------------------------------------
+    // test 5
+    //      Hash join whose build side fits in memory, with
+    //      duplicate keys on both sides and a filtered probe
+    //----------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            HeapFile small = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            HeapFile large = new HeapFile(filename + ".s", NUMPAGES, bufMgr);
+            ArrayList<int[]> r = fillKeys(small, 500, 400, 5);
+            ArrayList<int[]> s = fillKeys(large, 6000, 1000, 55);
+            int[] offsets = { 0, 4 };
+
+            HashJoin join =
+                new HashJoin(new BatchScan(small, offsets), 0,
+                             new BatchScan(large, offsets), 0, bufMgr,
+                             filename + ".spill", NUMPAGES);
+            checkRows(collect(join), expectedJoin(r, 0, s, 0));
+            if (join.getMaxLevel() != 0)
+                throw new TestFailedException("Small build side spilled");
+
+            ArrayList<int[]> filtered = new ArrayList<int[]>();
+            for (int[] row : s)
+                if (row[1] % 2 == 0 && row[0] < 200)
+                    filtered.add(row);
+            join = new HashJoin(new BatchScan(small, offsets), 0,
+                                new BatchFilter(
+                                    new BatchScan(large, new int[] { 0, 4 }),
+                                    0, BatchFilter.Comparison.LT, 200),
+                                0, bufMgr, filename + ".spill", NUMPAGES);
+            ArrayList<int[]> rows = collect(join);
+            rows.removeIf(row -> row[3] % 2 != 0);
+            checkRows(rows, expectedJoin(r, 0, filtered, 0));
+
+            join = new HashJoin(new BatchFilter(new BatchScan(small, offsets),
+                                                0, BatchFilter.Comparison.LT,
+                                                0),
+                                0, new BatchScan(large, offsets), 0, bufMgr,
+                                filename + ".spill", NUMPAGES);
+            if (collect(join).size() != 0)
+                throw new TestFailedException("Empty build side joined");
+            System.out.println("In-memory hash join correct");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".s");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 6
+    //      Build side many times the memory spills partitions
+    //      and joins them recursively; skewed keys reach the
+    //      deepest level; everything spilled is cleaned up
+    //----------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 6 -------");
+            HeapFile r = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            HeapFile s = new HeapFile(filename + ".s", NUMPAGES, bufMgr);
+            ArrayList<int[]> rRows = fillKeys(r, 20000, 15000, 6);
+            ArrayList<int[]> sRows = fillKeys(s, 30000, 15000, 66);
+            int[] offsets = { 0, 4 };
+            String spill = filename + ".spill";
+
+            HashJoin join = new HashJoin(new BatchScan(r, offsets), 0,
+                                         new BatchScan(s, offsets), 0,
+                                         bufMgr, spill, NUMPAGES * 4, 8);
+            checkRows(collect(join), expectedJoin(rRows, 0, sRows, 0));
+            System.out.println("Spilling join went " + join.getMaxLevel() +
+                               " levels deep");
+            if (join.getMaxLevel() < 1)
+                throw new TestFailedException("Join did not spill");
+            if (new File(spill).exists())
+                throw new TestFailedException("Spill file left behind");
+
+            // Half of the build side has one key.
+            HeapFile skew = new HeapFile(filename + ".k", NUMPAGES, bufMgr);
+            ArrayList<int[]> skewRows = new ArrayList<int[]>();
+            for (int i = 0; i < 6000; i++)
+            {
+                int[] row = { i % 2 == 0 ? 77 : i, i };
+                skew.insertRecord(makeRecord(8, row[0], row[1]));
+                skewRows.add(row);
+            }
+            ArrayList<int[]> probeRows = new ArrayList<int[]>();
+            for (int[] row : sRows)
+                if (row[0] < 100)
+                    probeRows.add(row);
+            join = new HashJoin(new BatchScan(skew, offsets), 0,
+                                new BatchFilter(new BatchScan(s, offsets), 0,
+                                                BatchFilter.Comparison.LT,
+                                                100),
+                                0, bufMgr, spill, NUMPAGES * 4, 4);
+            checkRows(collect(join), expectedJoin(skewRows, 0, probeRows, 0));
+            if (join.getMaxLevel() != HashJoin.MAX_LEVEL)
+                throw new TestFailedException("Skewed key stopped at level " +
+                                              join.getMaxLevel());
+
+            // Abandoning a spilled join part way frees what it spilled.
+            join = new HashJoin(new BatchScan(r, offsets), 0,
+                                new BatchScan(s, offsets), 0, bufMgr, spill,
+                                NUMPAGES * 4, 8);
+            join.open();
+            for (int i = 0; i < 3; i++)
+                join.next();
+            join.close();
+            if (new File(spill).exists() ||
+                bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Abandoned join not cleaned up");
+            System.out.println("Spilling hash join correct");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".s");
+            DBFile.erase(filename + ".k");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 7
+    //      Sort-merge join with runs on both sides and long
+    //      groups of equal keys agrees with a hash join
+    //----------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+            HeapFile r = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            HeapFile s = new HeapFile(filename + ".s", NUMPAGES, bufMgr);
+            ArrayList<int[]> rRows = fillKeys(r, 8000, 3000, 7);
+            ArrayList<int[]> sRows = fillKeys(s, 12000, 2000, 77);
+            for (int i = 0; i < 300; i++)
+            {
+                int[] row = { 1500, -i };
+                s.insertRecord(makeRecord(8, row[0], row[1]));
+                sRows.add(row);
+            }
+            int[] offsets = { 0, 4 };
+            String runs = filename + ".runs";
+
+            SortMergeJoin join =
+                new SortMergeJoin(new BatchScan(r, offsets), 0,
+                                  new BatchScan(s, offsets), 0, bufMgr,
+                                  runs, NUMPAGES, 8);
+            ArrayList<int[]> rows = collect(join);
+            for (int i = 1; i < rows.size(); i++)
+                if (rows.get(i)[0] < rows.get(i - 1)[0])
+                    throw new TestFailedException("Output not in key order");
+            checkRows(rows, expectedJoin(rRows, 0, sRows, 0));
+
+            // Join on the payload column, which only some keys match.
+            join = new SortMergeJoin(new BatchScan(s, offsets), 1,
+                                     new BatchScan(r, offsets), 0, bufMgr,
+                                     runs, NUMPAGES);
+            checkRows(collect(join), expectedJoin(sRows, 1, rRows, 0));
+            if (new File(runs + ".left").exists() ||
+                new File(runs + ".right").exists())
+                throw new TestFailedException("Run files left behind");
+            System.out.println("Sort-merge join correct");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".s");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 8
+    //      Index nested loop join fetches matches a page at a
+    //      time, and agrees with a hash join
+    //----------------------------------------------------
+    public static class Test8 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 8 -------");
+            HeapFile outer = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            HeapFile inner = new HeapFile(filename + ".s", NUMPAGES, bufMgr);
+            BTreeFile index = new BTreeFile(filename + ".idx", NUMPAGES,
+                                            bufMgr);
+            ArrayList<int[]> outerRows = fillKeys(outer, 3000, 5000, 8);
+            ArrayList<int[]> innerRows = new ArrayList<int[]>();
+            Random random = new Random(88);
+            for (int i = 0; i < 10000; i++)
+            {
+                int[] row = { i, random.nextInt(5000) };
+                RID rid = inner.insertRecord(makeRecord(12, row[0], row[1]));
+                index.insert(row[1], rid);
+                innerRows.add(row);
+            }
+
+            IndexNestedLoopJoin join =
+                new IndexNestedLoopJoin(new BatchScan(outer,
+                                                      new int[] { 0, 4 }),
+                                        0, index, inner, new int[] { 4, 0 });
+            ArrayList<int[]> rows = collect(join);
+            ArrayList<int[]> swapped = new ArrayList<int[]>();
+            for (int[] row : innerRows)
+                swapped.add(new int[] { row[1], row[0] });
+            checkRows(rows, expectedJoin(outerRows, 0, swapped, 0));
+            System.out.println(rows.size() + " matches took " +
+                               join.getNumPins() + " page pins");
+            if (join.getNumPins() >= rows.size())
+                throw new TestFailedException("Pages pinned per match");
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Join left pages pinned");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".s");
+            DBFile.erase(filename + ".idx");
+        }
+    }
+
+    // Checks every group of an aggregation of (key, payload) rows by
+    // key, computing COUNT, SUM, MIN, MAX and AVG of the payload.
+    public static void checkAggregate(HashAggregate agg,
+                                      ArrayList<int[]> rows)
+        throws IOException
+    {
+        HashMap<Integer,long[]> expected = new HashMap<Integer,long[]>();
+        for (int[] row : rows)
+        {
+            long[] e = expected.computeIfAbsent(
+                row[0], k -> new long[] { 0, 0, Long.MAX_VALUE,
+                                          Long.MIN_VALUE });
+            e[0]++;
+            e[1] += row[1];
+            e[2] = Math.min(e[2], row[1]);
+            e[3] = Math.max(e[3], row[1]);
+        }
+
+        agg.open();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        while (agg.next())
+        {
+            long[] e = expected.get(agg.getGroup());
+            if (e == null || !seen.add(agg.getGroup()))
+                throw new TestFailedException("Unexpected group " +
+                                              agg.getGroup());
+            if (agg.getLong(0) != e[0] || agg.getLong(1) != e[1] ||
+                agg.getLong(2) != e[2] || agg.getLong(3) != e[3] ||
+                agg.getLong(4) != e[1] / e[0] ||
+                agg.getDouble(4) != (double)e[1] / e[0])
+                throw new TestFailedException("Wrong values for group " +
+                                              agg.getGroup());
+        }
+        agg.close();
+        if (seen.size() != expected.size())
+            throw new TestFailedException(seen.size() + " groups, not " +
+                                          expected.size());
+    }
+
+    public static final HashAggregate.Function[] ALL_FUNCTIONS = {
+        HashAggregate.Function.COUNT, HashAggregate.Function.SUM,
+        HashAggregate.Function.MIN, HashAggregate.Function.MAX,
+        HashAggregate.Function.AVG
+    };
+
+    //----------------------------------------------------
+    // test 9
+    //      Aggregation whose groups fit in memory, over a
+    //      filtered input, and over an empty one
+    //----------------------------------------------------
+    public static class Test9 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 9 -------");
+            HeapFile hf = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            ArrayList<int[]> rows = new ArrayList<int[]>();
+            Random random = new Random(9);
+            for (int i = 0; i < 20000; i++)
+            {
+                int[] row = { random.nextInt(100) - 50,
+                              random.nextInt() >> 4 };
+                hf.insertRecord(makeRecord(8, row[0], row[1]));
+                rows.add(row);
+            }
+            int[] offsets = { 0, 4 };
+            int[] columns = { 1, 1, 1, 1, 1 };
+            String spill = filename + ".spill";
+
+            HashAggregate agg =
+                new HashAggregate(new BatchScan(hf, offsets), 0,
+                                  ALL_FUNCTIONS, columns, bufMgr, spill,
+                                  NUMPAGES);
+            checkAggregate(agg, rows);
+            if (agg.getMaxLevel() != 0)
+                throw new TestFailedException("Small aggregation spilled");
+
+            ArrayList<int[]> positive = new ArrayList<int[]>();
+            for (int[] row : rows)
+                if (row[1] > 0)
+                    positive.add(row);
+            checkAggregate(new HashAggregate(
+                               new BatchFilter(new BatchScan(hf, offsets), 1,
+                                               BatchFilter.Comparison.GT, 0),
+                               0, ALL_FUNCTIONS, columns, bufMgr, spill,
+                               NUMPAGES),
+                           positive);
+            checkAggregate(new HashAggregate(
+                               new BatchLimit(new BatchScan(hf, offsets), 0),
+                               0, ALL_FUNCTIONS, columns, bufMgr, spill,
+                               NUMPAGES),
+                           new ArrayList<int[]>());
+            System.out.println("In-memory aggregation correct");
+            DBFile.erase(filename + ".r");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 10
+    //      Many more groups than fit in memory spill and are
+    //      aggregated partition by partition
+    //----------------------------------------------------
+    public static class Test10 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 10 -------");
+            HeapFile hf = new HeapFile(filename + ".r", NUMPAGES * 2, bufMgr);
+            ArrayList<int[]> rows = fillKeys(hf, 40000, 25000, 10);
+            int[] offsets = { 0, 4 };
+            int[] columns = { 1, 1, 1, 1, 1 };
+            String spill = filename + ".spill";
+
+            HashAggregate agg =
+                new HashAggregate(new BatchScan(hf, offsets), 0,
+                                  ALL_FUNCTIONS, columns, bufMgr, spill,
+                                  NUMPAGES * 4, 8);
+            checkAggregate(agg, rows);
+            System.out.println("Spilling aggregation went " +
+                               agg.getMaxLevel() + " levels deep");
+            if (agg.getMaxLevel() < 1)
+                throw new TestFailedException("Aggregation did not spill");
+            if (new File(spill).exists())
+                throw new TestFailedException("Spill file left behind");
+
+            agg = new HashAggregate(new BatchScan(hf, offsets), 0,
+                                    ALL_FUNCTIONS, columns, bufMgr, spill,
+                                    NUMPAGES * 4, 8);
+            agg.open();
+            for (int i = 0; i < 10; i++)
+                agg.next();
+            agg.close();
+            if (new File(spill).exists() ||
+                bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Abandoned aggregation " +
+                                              "not cleaned up");
+            System.out.println("Spilling aggregation correct");
+            DBFile.erase(filename + ".r");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 11
+    //      Scanning some columns of a file stored column by
+    //      column gives the rows and RIDs a scan of the same
+    //      tuples on slotted pages gives
+    //----------------------------------------------------
+    public static class Test11 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 11 -------");
+            int numRecords = 20000;
+            Schema schema = new Schema(
+                new String[] { "id", "total", "group", "value" },
+                new Schema.Type[] { Schema.Type.INT, Schema.Type.LONG,
+                                    Schema.Type.INT, Schema.Type.INT });
+            TupleEncoder encoder = new TupleEncoder(schema);
+            HeapFile hf = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            PaxFile pf = new PaxFile(filename + ".p", NUMPAGES, schema,
+                                     bufMgr);
+            Random random = new Random(11);
+            for (int i = 0; i < numRecords; i++)
+            {
+                encoder.reset();
+                encoder.setInt(0, i);
+                encoder.setLong(1, random.nextLong());
+                encoder.setInt(2, i % 100);
+                encoder.setInt(3, random.nextInt());
+                hf.insertRecord(encoder.toByteArray());
+                pf.insertRecord(encoder);
+            }
+            System.out.println(hf.getPageIds().length + " slotted pages, " +
+                               pf.getPageIds().length + " column pages");
+
+            int[] offsets = { schema.getFixedOffset(3),
+                              schema.getFixedOffset(2) };
+            ArrayList<int[]> rows = collect(new BatchScan(hf, offsets));
+            rows.sort(Arrays::compare);
+            checkRows(collect(new PaxScan(pf, new int[] { 3, 2 })), rows);
+            ArrayList<int[]> filtered =
+                collect(new BatchFilter(new PaxScan(pf, new int[] { 0, 2 }),
+                                        1, BatchFilter.Comparison.LT, 10));
+            if (filtered.size() != numRecords / 10)
+                throw new TestFailedException("Filtered " + filtered.size() +
+                                              " rows");
+
+            PaxScan scan = new PaxScan(pf, new int[] { 0 });
+            scan.open();
+            Batch batch;
+            TupleDecoder decoder = new TupleDecoder(schema);
+            while ((batch = scan.next()) != null)
+                for (int i = 0; i < batch.numSelected; i += 97)
+                {
+                    pf.getRecord(batch.getRid(i), encoder);
+                    encoder.encode();
+                    decoder.wrap(encoder.getBuffer(), 0);
+                    if (decoder.getInt(0) != batch.get(0, i))
+                        throw new TestFailedException("Wrong RID for row");
+                }
+            scan.close();
+            if (bufMgr.getNumUnpinned() != NUMBUF)
+                throw new TestFailedException("Pages left pinned");
+            System.out.println("Column scan correct");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".p");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 12
+    //      A scan limited by zone maps reads fewer pages and,
+    //      under a filter, gives the same rows as a full scan
+    //----------------------------------------------------
+    public static class Test12 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 12 -------");
+            HeapFile hf = new HeapFile(filename + ".r", NUMPAGES, bufMgr,
+                                       new int[] { 0 });
+            fill(hf, 20000, 12);
+            int[] offsets = { 0, 8 };
+            BatchScan full = new BatchScan(hf, offsets);
+            BatchScan zoned = new BatchScan(hf, offsets, 0, 5000, 5999);
+            ArrayList<int[]> expected =
+                collect(new BatchFilter(new BatchFilter(
+                            full, 0, BatchFilter.Comparison.GE, 5000),
+                        0, BatchFilter.Comparison.LE, 5999));
+            zoned.open();
+            int fullPages = hf.getPageIds().length;
+            int zonedPages = zoned.getNumPages();
+            zoned.close();
+            checkRows(collect(new BatchFilter(new BatchFilter(
+                                  zoned, 0, BatchFilter.Comparison.GE, 5000),
+                              0, BatchFilter.Comparison.LE, 5999)), expected);
+            System.out.println("Zoned scan read " + zonedPages + " of " +
+                               fullPages + " pages");
+            if (expected.size() != 1000 || zonedPages * 10 > fullPages)
+                throw new TestFailedException("Zone maps skipped too little");
+            DBFile.erase(filename + ".r");
+        }
+    }
+
+
+    //----------------------------------------------------
+    // test 13
+    //      A hash join's Bloom filter drops probe rows that
+    //      cannot match, in memory and when spilling, without
+    //      changing the result
+    //----------------------------------------------------
+    public static class Test13 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 13 -------");
+            HeapFile r = new HeapFile(filename + ".r", NUMPAGES, bufMgr);
+            HeapFile s = new HeapFile(filename + ".s", NUMPAGES, bufMgr);
+            ArrayList<int[]> small = fillKeys(r, 500, 100000, 13);
+            ArrayList<int[]> large = fillKeys(s, 20000, 100000, 14);
+            int[] offsets = { 0, 4 };
+            String spill = filename + ".spill";
+            ArrayList<int[]> expected = expectedJoin(small, 0, large, 0);
+
+            HashJoin join = new HashJoin(new BatchScan(r, offsets), 0,
+                                         new BatchScan(s, offsets), 0,
+                                         bufMgr, spill, NUMPAGES);
+            checkRows(collect(join), expected);
+            System.out.println("In-memory join dropped " +
+                               join.getNumFiltered() + " of 20000 probe rows");
+            if (join.getNumFiltered() < 19000)
+                throw new TestFailedException("Filter dropped too few");
+
+            HeapFile big = new HeapFile(filename + ".k", NUMPAGES, bufMgr);
+            ArrayList<int[]> bigBuild = fillKeys(big, 5000, 100000, 15);
+            join = new HashJoin(new BatchScan(big, offsets), 0,
+                                new BatchScan(s, offsets), 0, bufMgr, spill,
+                                NUMPAGES * 4, 8);
+            checkRows(collect(join), expectedJoin(bigBuild, 0, large, 0));
+            System.out.println("Spilling join went " + join.getMaxLevel() +
+                               " levels deep and dropped " +
+                               join.getNumFiltered() + " probe rows");
+            if (join.getMaxLevel() < 1 || join.getNumFiltered() == 0)
+                throw new TestFailedException("Spilling join not filtered");
+            DBFile.erase(filename + ".r");
+            DBFile.erase(filename + ".s");
+            DBFile.erase(filename + ".k");
+        }
+    }
+
+
+    public static final String FILENAME = "__testing";
+    public static final int NUMBUF = 20;
+    public static final int NUMPAGES = 3000;
+
+
+    public static boolean runTest(Testable testObj)
+    {
+        boolean success = true;
+        try
+        {
+            BufferManager bufMgr = new BufferManager(NUMBUF);
+            testObj.test(bufMgr,FILENAME);
+        }
+        catch (Exception e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+
+        return success;
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running query execution tests.");
+
+        DBFile.erase(FILENAME);
+
+        // Run the tests.
+        runTest(new Test1());
+        runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
+        runTest(new Test9());
+        runTest(new Test10());
+        runTest(new Test11());
+        runTest(new Test12());
+        runTest(new Test13());
+
+        // Clean up
+        DBFile.erase(FILENAME);
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.*;
+
+/**
+ * Drops rows whose key a Bloom filter shows cannot match, for a join
+ * to push down from its build side into its probe input once the
+ * build side has been read. Until a filter is set, rows pass through.
+ * Rows are dropped by refining the selection, as BatchFilter does, so
+ * nothing is copied, and batches left with no row are skipped.
+ * @author Yuen Hsi Chang
+ */
+public class RuntimeFilter implements BatchOperator
+{
+    private BatchOperator child;
+    private int column;
+    private BloomFilter filter;
+    private long numDropped;
+
+    /**
+     * Creates a filter with nothing to filter on yet.
+     * @param child the input.
+     * @param column the column holding the key.
+     */
+    public RuntimeFilter(BatchOperator child, int column)
+    {
+        this.child = child;
+        this.column = column;
+    }
+
+    /**
+     * Sets the filter rows are checked against from the next batch on.
+     * @param filter the filter, or null to let every row through.
+     */
+    public void setFilter(BloomFilter filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns how many rows the filter has dropped since opened.
+     * @return the number of rows.
+     */
+    public long getNumDropped()
+    {
+        return numDropped;
+    }
+
+    public void open() throws IOException
+    {
+        numDropped = 0;
+        child.open();
+    }
+
+    public Batch next() throws IOException
+    {
+        Batch batch;
+        while ((batch = child.next()) != null)
+        {
+            if (filter == null)
+                return batch;
+            int[] keys = batch.columns[column];
+            int[] sel = batch.selection;
+            int n = 0;
+            for (int i = 0; i < batch.numSelected; i++)
+            {
+                int row = sel[i];
+                sel[n] = row;
+                n += filter.mightContain(keys[row]) ? 1 : 0;
+            }
+            numDropped += batch.numSelected - n;
+            batch.numSelected = n;
+            if (n > 0)
+                return batch;
+        }
+        return null;
+    }
+
+    public void close() throws IOException
+    {
+        child.close();
+    }
+
+    public int getNumColumns()
+    {
+        return child.getNumColumns();
+    }
+}
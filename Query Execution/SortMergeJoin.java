@@ -0,0 +1,260 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Equi-join of two inputs on an int column of each, by sorting both
+ * inputs on the join column with an external sort and merging the
+ * sorted outputs. Rows of the right input with the key the merge is
+ * at are held in memory, in int arrays, and joined with each left row
+ * with that key, so only one key's worth of right rows is ever held.
+ *
+ * The two sorts each get half of the memory, and their runs go to two
+ * database files named after the one given, with ".left" and ".right"
+ * added.
+ *
+ * Each output row is the left row's columns followed by the right
+ * row's, with the right row's RID.
+ * @author Yuen Hsi Chang
+ */
+public class SortMergeJoin implements BatchOperator
+{
+    private BatchOperator left;
+    private BatchOperator right;
+    private int leftKey;
+    private int rightKey;
+    private BufferManager bufMgr;
+    private String runFileName;
+    private int runFilePages;
+    private int memoryPages;
+
+    private ExternalSort leftSort;
+    private ExternalSort rightSort;
+    private Iterator<byte[]> leftRows;
+    private Iterator<byte[]> rightRows;
+
+    // The left row the merge is at, decoded into leftValues, or null at
+    // the end.
+    private int[] leftRow;
+    private int[] leftValues;
+
+    // The next right row not in the group yet, or null at the end.
+    private byte[] rightRow;
+
+    // Right rows with the key groupKey, and the next to join with the
+    // current left row.
+    private int[][] group;
+    private int[] groupRidPages;
+    private int[] groupRidSlots;
+    private int groupSize;
+    private int groupKey;
+    private int groupPos;
+
+    private Batch out;
+
+    /**
+     * Creates a join that sorts with the unpinned frames of the buffer
+     * pool, as counted when it is opened.
+     * @param left the left input.
+     * @param leftKey the left input's join column.
+     * @param right the right input.
+     * @param rightKey the right input's join column.
+     * @param bufMgr the buffer manager to sort through.
+     * @param runFileName name the sort run files are made from.
+     * @param runFilePages maximum number of pages in each run file.
+     */
+    public SortMergeJoin(BatchOperator left, int leftKey,
+                         BatchOperator right, int rightKey,
+                         BufferManager bufMgr, String runFileName,
+                         int runFilePages)
+    {
+        this(left, leftKey, right, rightKey, bufMgr, runFileName,
+             runFilePages, 0);
+    }
+
+    /**
+     * Creates a join.
+     * @param left the left input.
+     * @param leftKey the left input's join column.
+     * @param right the right input.
+     * @param rightKey the right input's join column.
+     * @param bufMgr the buffer manager to sort through.
+     * @param runFileName name the sort run files are made from.
+     * @param runFilePages maximum number of pages in each run file.
+     * @param memoryPages frames' worth of memory for both sorts, or 0
+     * to use the unpinned frames of the buffer pool.
+     */
+    public SortMergeJoin(BatchOperator left, int leftKey,
+                         BatchOperator right, int rightKey,
+                         BufferManager bufMgr, String runFileName,
+                         int runFilePages, int memoryPages)
+    {
+        this.left = left;
+        this.leftKey = leftKey;
+        this.right = right;
+        this.rightKey = rightKey;
+        this.bufMgr = bufMgr;
+        this.runFileName = runFileName;
+        this.runFilePages = runFilePages;
+        this.memoryPages = memoryPages;
+    }
+
+    public void open() throws IOException
+    {
+        int pages = memoryPages > 0 ? memoryPages : bufMgr.getNumUnpinned();
+        leftSort = new ExternalSort(bufMgr,
+                                    ExternalSort.intKeyOrder(leftKey * 4),
+                                    runFileName + ".left", runFilePages,
+                                    pages / 2,
+                                    ExternalSort.DEFAULT_EXTENT_SIZE);
+        rightSort = new ExternalSort(bufMgr,
+                                     ExternalSort.intKeyOrder(rightKey * 4),
+                                     runFileName + ".right", runFilePages,
+                                     pages - pages / 2,
+                                     ExternalSort.DEFAULT_EXTENT_SIZE);
+        leftRows = sort(left, leftSort);
+        rightRows = sort(right, rightSort);
+
+        int numRight = right.getNumColumns();
+        group = new int[numRight][16];
+        groupRidPages = new int[16];
+        groupRidSlots = new int[16];
+        groupSize = 0;
+        groupPos = 0;
+        out = new Batch(getNumColumns());
+        leftValues = new int[left.getNumColumns()];
+        leftRow = nextLeft();
+        rightRow = rightRows.hasNext() ? rightRows.next() : null;
+    }
+
+    public Batch next() throws IOException
+    {
+        out.clear();
+        merge();
+        if (out.size == 0)
+            return null;
+        out.selectAll();
+        return out;
+    }
+
+    /**
+     * Closes both inputs, and both sorts, erasing their run files.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        left.close();
+        right.close();
+        if (leftSort != null)
+            leftSort.close();
+        if (rightSort != null)
+            rightSort.close();
+        leftSort = null;
+        rightSort = null;
+        group = null;
+        out = null;
+    }
+
+    public int getNumColumns()
+    {
+        return left.getNumColumns() + right.getNumColumns();
+    }
+
+    // Reads an input to the end, encoded as spilled rows, into a sort.
+    private static Iterator<byte[]> sort(BatchOperator input,
+                                         ExternalSort sort)
+        throws IOException
+    {
+        input.open();
+        Batch batch;
+        while ((batch = input.next()) != null)
+            for (int i = 0; i < batch.numSelected; i++)
+            {
+                int row = batch.selection[i];
+                sort.add(SpillScan.encode(batch.columns, row,
+                                          batch.ridPages[row],
+                                          batch.ridSlots[row]));
+            }
+        return sort.sorted();
+    }
+
+    private int[] nextLeft()
+    {
+        if (!leftRows.hasNext())
+            return null;
+        byte[] record = leftRows.next();
+        for (int c = 0; c < leftValues.length; c++)
+            leftValues[c] = BatchScan.getInt(record, c * 4);
+        return leftValues;
+    }
+
+    // Fills the output batch, stopping when it is full or either input
+    // has run out.
+    private void merge()
+    {
+        int numLeft = leftRow == null ? 0 : leftRow.length;
+        while (out.size < Batch.CAPACITY && leftRow != null)
+        {
+            int key = leftRow[leftKey];
+            if (groupSize > 0 && key == groupKey)
+            {
+                if (groupPos == groupSize)
+                {
+                    leftRow = nextLeft();
+                    groupPos = 0;
+                    continue;
+                }
+                int o = out.size++;
+                for (int c = 0; c < numLeft; c++)
+                    out.columns[c][o] = leftRow[c];
+                for (int c = 0; c < group.length; c++)
+                    out.columns[numLeft + c][o] = group[c][groupPos];
+                out.ridPages[o] = groupRidPages[groupPos];
+                out.ridSlots[o] = groupRidSlots[groupPos];
+                groupPos++;
+                continue;
+            }
+
+            groupSize = 0;
+            while (rightRow != null && keyOf(rightRow) < key)
+                rightRow = rightRows.hasNext() ? rightRows.next() : null;
+            if (rightRow == null)
+                return;
+            if (keyOf(rightRow) > key)
+            {
+                leftRow = nextLeft();
+                continue;
+            }
+            loadGroup(key);
+        }
+    }
+
+    private int keyOf(byte[] rightRecord)
+    {
+        return BatchScan.getInt(rightRecord, rightKey * 4);
+    }
+
+    // Reads every right row with the given key into the group.
+    private void loadGroup(int key)
+    {
+        int numRight = group.length;
+        groupKey = key;
+        groupPos = 0;
+        while (rightRow != null && keyOf(rightRow) == key)
+        {
+            if (groupSize == groupRidPages.length)
+            {
+                for (int c = 0; c < numRight; c++)
+                    group[c] = Arrays.copyOf(group[c], groupSize * 2);
+                groupRidPages = Arrays.copyOf(groupRidPages, groupSize * 2);
+                groupRidSlots = Arrays.copyOf(groupRidSlots, groupSize * 2);
+            }
+            for (int c = 0; c < numRight; c++)
+                group[c][groupSize] = BatchScan.getInt(rightRow, c * 4);
+            groupRidPages[groupSize] = BatchScan.getInt(rightRow, numRight * 4);
+            groupRidSlots[groupSize] =
+                BatchScan.getInt(rightRow, numRight * 4 + 4);
+            groupSize++;
+            rightRow = rightRows.hasNext() ? rightRows.next() : null;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Reads back rows that an operator spilled to a run, as batches. A
+ * spilled row is a record of its column values followed by the page
+ * id and slot number of its RID. The run's pages are freed as they are
+ * read, so a spilled run can only be scanned once.
+ * @author Yuen Hsi Chang
+ */
+public class SpillScan implements BatchOperator
+{
+    private BufferManager bufMgr;
+    private SortedRun run;
+    private int numColumns;
+
+    private RunReader reader;
+    private Batch batch;
+
+    /**
+     * Creates a scan of a spilled run.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param run the run.
+     * @param numColumns the number of columns of each row.
+     */
+    public SpillScan(BufferManager bufMgr, SortedRun run, int numColumns)
+    {
+        this.bufMgr = bufMgr;
+        this.run = run;
+        this.numColumns = numColumns;
+    }
+
+    /**
+     * Encodes a row for spilling.
+     * @param columns column values, indexed by column and then by row.
+     * @param row the row.
+     * @param ridPage the page id of the row's RID.
+     * @param ridSlot the slot number of the row's RID.
+     * @return the spilled record.
+     */
+    public static byte[] encode(int[][] columns, int row, int ridPage,
+                                int ridSlot)
+    {
+        ByteBuffer buf = ByteBuffer.allocate((columns.length + 2) * 4);
+        for (int c = 0; c < columns.length; c++)
+            buf.putInt(columns[c][row]);
+        buf.putInt(ridPage);
+        buf.putInt(ridSlot);
+        return buf.array();
+    }
+
+    public void open()
+    {
+        reader = new RunReader(bufMgr, run, true);
+        batch = new Batch(numColumns);
+    }
+
+    public Batch next()
+    {
+        batch.clear();
+        while (batch.size < Batch.CAPACITY && reader.hasNext())
+        {
+            byte[] record = reader.next();
+            int row = batch.size++;
+            for (int c = 0; c < numColumns; c++)
+                batch.columns[c][row] = BatchScan.getInt(record, c * 4);
+            batch.ridPages[row] = BatchScan.getInt(record, numColumns * 4);
+            batch.ridSlots[row] = BatchScan.getInt(record, numColumns * 4 + 4);
+        }
+        if (batch.size == 0)
+            return null;
+        batch.selectAll();
+        return batch;
+    }
+
+    /**
+     * Frees the pages of the run not read yet.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        run.free(bufMgr);
+        reader = null;
+        batch = null;
+    }
+
+    public int getNumColumns()
+    {
+        return numColumns;
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * External merge sort of records that need not fit in memory. Records
+ * are added one at a time and kept in a priority queue holding at most
+ * a workspace of pages' worth of bytes. Run generation uses replacement
+ * selection: whenever the workspace is full, the smallest record that
+ * can still extend the current run is written out, and a new record
+ * smaller than the last one written is held back for the next run. On
+ * random input this makes runs about twice as long as the workspace,
+ * and already sorted input comes out as a single run.
+ *
+ * Runs are written to slotted pages of a run file, in contiguous
+ * extents. They are then merged with a loser tree, as many at a time
+ * as there are frames to read them through; if there are more runs
+ * than that, intermediate passes merge the oldest runs into longer
+ * ones first. The last merge is not written out but handed back as an
+ * iterator, and pages are freed as soon as they have been read. Input
+ * that fits in the workspace is sorted in memory without any I/O.
+ *
+ * The run file is created on the first spill and erased once the
+ * sorted output has been read to the end, or by close().
+ * @author Yuen Hsi Chang
+ */
+public class ExternalSort
+{
+    public static class BufferFullException extends RuntimeException {};
+
+    /**
+     * Number of contiguous pages requested for a run at a time.
+     */
+    public static final int DEFAULT_EXTENT_SIZE = 16;
+
+    /**
+     * Fewest frames a sort can work with: two runs to merge and one
+     * page to write to.
+     */
+    public static final int MIN_MEMORY_PAGES = 3;
+
+    /**
+     * Order of index entries built by makeEntry: by key, then by RID.
+     */
+    public static final Comparator<byte[]> ENTRY_ORDER =
+        new Comparator<byte[]>()
+        {
+            public int compare(byte[] a, byte[] b)
+            {
+                ByteBuffer x = ByteBuffer.wrap(a);
+                ByteBuffer y = ByteBuffer.wrap(b);
+                for (int offset = 0; offset < 12; offset += 4)
+                {
+                    int c = Integer.compare(x.getInt(offset),
+                                            y.getInt(offset));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        };
+
+    // Slot array space each record takes on a run page.
+    private static final int RECORD_OVERHEAD = 2 * SlottedPage.SIZE_OF_INT;
+
+    /**
+     * Record held in the workspace, with the run it will go to.
+     */
+    private static class Tagged
+    {
+        private int run;
+        private byte[] record;
+
+        private Tagged(int run, byte[] record)
+        {
+            this.run = run;
+            this.record = record;
+        }
+    }
+
+    private BufferManager bufMgr;
+    private Comparator<byte[]> order;
+    private String runFileName;
+    private int runFilePages;
+    private int memoryPages;
+    private int extentSize;
+
+    private PriorityQueue<Tagged> workspace;
+    private long workspaceBytes;
+    private int currentRun;
+    private byte[] lastWritten;
+    private RunWriter writer;
+    private ArrayList<SortedRun> runs;
+    private boolean runFileCreated;
+    private int numInitialRuns;
+    private int numMergePasses;
+
+    /**
+     * Creates a sort that may use every frame currently unpinned.
+     * @param bufMgr the buffer manager to pin run pages through.
+     * @param order the order to sort records into.
+     * @param runFileName name of the database file to hold the runs.
+     * @param runFilePages maximum number of pages in the run file.
+     */
+    public ExternalSort(BufferManager bufMgr, Comparator<byte[]> order,
+                        String runFileName, int runFilePages)
+    {
+        this(bufMgr, order, runFileName, runFilePages,
+             bufMgr.getNumUnpinned(), DEFAULT_EXTENT_SIZE);
+    }
+
+    /**
+     * Creates a sort.
+     * @param bufMgr the buffer manager to pin run pages through.
+     * @param order the order to sort records into.
+     * @param runFileName name of the database file to hold the runs.
+     * @param runFilePages maximum number of pages in the run file.
+     * @param memoryPages number of frames' worth of memory the sort
+     * may use, at least MIN_MEMORY_PAGES. One is kept for writing runs
+     * and the rest hold records during run generation, or one page of
+     * each run during a merge.
+     * @param extentSize number of contiguous pages requested for a run
+     * at a time.
+     */
+    public ExternalSort(BufferManager bufMgr, Comparator<byte[]> order,
+                        String runFileName, int runFilePages,
+                        int memoryPages, int extentSize)
+    {
+        this.bufMgr = bufMgr;
+        this.order = order;
+        this.runFileName = runFileName;
+        this.runFilePages = runFilePages;
+        this.memoryPages = Math.max(MIN_MEMORY_PAGES, memoryPages);
+        this.extentSize = extentSize;
+
+        this.workspace = new PriorityQueue<Tagged>(
+            new Comparator<Tagged>()
+            {
+                public int compare(Tagged a, Tagged b)
+                {
+                    if (a.run != b.run)
+                        return Integer.compare(a.run, b.run);
+                    return ExternalSort.this.order.compare(a.record,
+                                                           b.record);
+                }
+            });
+        this.workspaceBytes = 0;
+        this.currentRun = 0;
+        this.lastWritten = null;
+        this.writer = null;
+        this.runs = new ArrayList<SortedRun>();
+        this.runFileCreated = false;
+        this.numInitialRuns = 0;
+        this.numMergePasses = 0;
+    }
+
+    /**
+     * Returns the number of runs written by run generation.
+     * @return the number of runs, or 0 if the input was sorted in
+     * memory.
+     */
+    public int getNumInitialRuns()
+    {
+        return numInitialRuns;
+    }
+
+    /**
+     * Returns the number of merge passes that wrote their output to
+     * the run file, not counting the final merge.
+     * @return the number of intermediate passes.
+     */
+    public int getNumMergePasses()
+    {
+        return numMergePasses;
+    }
+
+    /**
+     * Adds a record to be sorted.
+     * @param record the record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void add(byte[] record) throws IOException
+    {
+        long budget = (long)(memoryPages - 1) * Page.PAGESIZE;
+        while (!workspace.isEmpty() &&
+               workspaceBytes + size(record) > budget)
+            writeSmallest();
+
+        // A record smaller than the last one written cannot go in the
+        // current run any more.
+        int run = currentRun;
+        if (lastWritten != null && order.compare(record, lastWritten) < 0)
+            run = currentRun + 1;
+        workspace.add(new Tagged(run, record));
+        workspaceBytes += size(record);
+    }
+
+    /**
+     * Adds every record of an iterator and returns them sorted.
+     * @param input the records.
+     * @return the sorted records.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Iterator<byte[]> sort(Iterator<byte[]> input) throws IOException
+    {
+        while (input.hasNext())
+            add(input.next());
+        return sorted();
+    }
+
+    /**
+     * Ends the input and returns all records added, in sorted order.
+     * @return the sorted records.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Iterator<byte[]> sorted() throws IOException
+    {
+        if (writer == null && runs.isEmpty())
+        {
+            ArrayList<byte[]> inMemory = new ArrayList<byte[]>();
+            while (!workspace.isEmpty())
+                inMemory.add(workspace.poll().record);
+            workspaceBytes = 0;
+            return inMemory.iterator();
+        }
+
+        while (!workspace.isEmpty())
+            writeSmallest();
+        runs.add(writer.finish());
+        writer = null;
+        numInitialRuns = runs.size();
+
+        int fanIn = memoryPages - 1;
+        while (runs.size() > fanIn)
+        {
+            List<SortedRun> group = runs.subList(0, fanIn);
+            Iterator<byte[]> merged = merge(group);
+            RunWriter out = new RunWriter(bufMgr, runFileName, extentSize);
+            while (merged.hasNext())
+                out.add(merged.next());
+            group.clear();
+            runs.add(out.finish());
+            numMergePasses++;
+        }
+
+        final Iterator<byte[]> merged = merge(runs);
+        return new Iterator<byte[]>()
+        {
+            public boolean hasNext()
+            {
+                if (merged.hasNext())
+                    return true;
+                try
+                {
+                    close();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                return false;
+            }
+
+            public byte[] next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return merged.next();
+            }
+        };
+    }
+
+    /**
+     * Frees every run page not read yet and erases the run file. Only
+     * needed if the sorted output is abandoned before its end.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        if (!runFileCreated)
+            return;
+        if (writer != null)
+            runs.add(writer.finish());
+        writer = null;
+        for (SortedRun run : runs)
+            run.free(bufMgr);
+        runs.clear();
+        DBFile.erase(runFileName);
+        runFileCreated = false;
+    }
+
+    /**
+     * Returns an order on records by the int stored at an offset.
+     * @param offset byte offset of the key in each record.
+     * @return the order.
+     */
+    public static Comparator<byte[]> intKeyOrder(final int offset)
+    {
+        return new Comparator<byte[]>()
+        {
+            public int compare(byte[] a, byte[] b)
+            {
+                return Integer.compare(ByteBuffer.wrap(a).getInt(offset),
+                                       ByteBuffer.wrap(b).getInt(offset));
+            }
+        };
+    }
+
+    /**
+     * Builds the 12 byte index entry (key, rid page, rid slot) that
+     * ENTRY_ORDER sorts.
+     * @param key the key.
+     * @param rid the RID.
+     * @return the entry.
+     */
+    public static byte[] makeEntry(int key, RID rid)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putInt(key).putInt(rid.pageId).putInt(rid.slotNum);
+        return buf.array();
+    }
+
+    /**
+     * Sorts (key, RID) pairs for every record of a heap file, in the
+     * order BTreeBulkLoader.load expects.
+     * @param file the heap file to index.
+     * @param key extracts the key from a record.
+     * @param runFileName name of the database file to hold the runs.
+     * @param runFilePages maximum number of pages in the run file.
+     * @return the entries in increasing (key, RID) order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public static Iterator<Pair<Integer,RID>> sortIndexEntries(
+        HeapFile file, ToIntFunction<byte[]> key, String runFileName,
+        int runFilePages)
+        throws IOException
+    {
+        ExternalSort sort = new ExternalSort(file.getBufferManager(),
+                                             ENTRY_ORDER, runFileName,
+                                             runFilePages);
+        HeapFileScan scan = file.scan();
+        while (scan.hasNext())
+        {
+            Pair<RID,byte[]> record = scan.next();
+            sort.add(makeEntry(key.applyAsInt(record.second), record.first));
+        }
+
+        final Iterator<byte[]> entries = sort.sorted();
+        return new Iterator<Pair<Integer,RID>>()
+        {
+            public boolean hasNext()
+            {
+                return entries.hasNext();
+            }
+
+            public Pair<Integer,RID> next()
+            {
+                ByteBuffer buf = ByteBuffer.wrap(entries.next());
+                return new Pair<Integer,RID>(
+                    buf.getInt(0), new RID(buf.getInt(4), buf.getInt(8)));
+            }
+        };
+    }
+
+    // Writes the smallest record of the workspace to the current run,
+    // first starting a new run if no record can extend this one.
+    private void writeSmallest() throws IOException
+    {
+        Tagged smallest = workspace.poll();
+        workspaceBytes -= size(smallest.record);
+        if (writer == null || smallest.run != currentRun)
+        {
+            if (writer != null)
+                runs.add(writer.finish());
+            else if (!runFileCreated)
+            {
+                new DBFile(runFileName, runFilePages);
+                runFileCreated = true;
+            }
+            currentRun = smallest.run;
+            writer = new RunWriter(bufMgr, runFileName, extentSize);
+        }
+        writer.add(smallest.record);
+        lastWritten = smallest.record;
+    }
+
+    private Iterator<byte[]> merge(List<SortedRun> group)
+    {
+        ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        for (SortedRun run : group)
+            readers.add(new RunReader(bufMgr, run, true));
+        return new LoserTree<byte[]>(readers, order);
+    }
+
+    private static long size(byte[] record)
+    {
+        return record.length + RECORD_OVERHEAD;
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.*;
+
+/**
+ * Merges k sorted inputs into one sorted sequence using a tree of
+ * losers. Each internal node remembers the input that lost the match
+ * played there, and the overall winner is kept above the root. After
+ * the winner is taken, only the matches on the path from its leaf to
+ * the root are replayed, against the losers stored there, so each
+ * element costs about log2(k) comparisons, and unlike a binary heap
+ * each level needs one comparison rather than two.
+ *
+ * Ties go to the input with the smaller index.
+ * @author Yuen Hsi Chang
+ */
+public class LoserTree<T> implements Iterator<T>
+{
+    private List<? extends Iterator<T>> inputs;
+    private Comparator<? super T> order;
+    private int k;
+
+    // Current element of each input, or null once it is exhausted.
+    private ArrayList<T> heads;
+
+    // tree[0] is the winner; tree[1..k-1] are the losers.
+    private int[] tree;
+
+    /**
+     * Creates a merge of the given inputs.
+     * @param inputs iterators, each returning non-null elements in order.
+     * @param order the order of the inputs and of the merged output.
+     */
+    public LoserTree(List<? extends Iterator<T>> inputs,
+                     Comparator<? super T> order)
+    {
+        this.inputs = inputs;
+        this.order = order;
+        this.k = inputs.size();
+        this.heads = new ArrayList<T>(k);
+        for (Iterator<T> input : inputs)
+            heads.add(input.hasNext() ? input.next() : null);
+
+        // Start with every node holding k, a virtual input smaller than
+        // everything, and let each real input play its way up.
+        this.tree = new int[Math.max(1, k)];
+        Arrays.fill(tree, k);
+        for (int i = k - 1; i >= 0; i--)
+            replay(i);
+    }
+
+    public boolean hasNext()
+    {
+        return k > 0 && heads.get(tree[0]) != null;
+    }
+
+    public T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int winner = tree[0];
+        T result = heads.get(winner);
+        Iterator<T> input = inputs.get(winner);
+        heads.set(winner, input.hasNext() ? input.next() : null);
+        replay(winner);
+        return result;
+    }
+
+    // Plays input i up from its leaf, leaving the loser of each match
+    // at the node and carrying the winner on.
+    private void replay(int i)
+    {
+        int winner = i;
+        for (int node = (i + k) / 2; node > 0; node /= 2)
+        {
+            if (beats(tree[node], winner))
+            {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private boolean beats(int a, int b)
+    {
+        if (a == k)
+            return true;
+        if (b == k)
+            return false;
+        T x = heads.get(a);
+        T y = heads.get(b);
+        if (y == null)
+            return x != null || a < b;
+        if (x == null)
+            return false;
+        int c = order.compare(x, y);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
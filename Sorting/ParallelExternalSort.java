@@ -0,0 +1,569 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * External sort of a heap file by an int key, using several threads
+ * in both phases. Records are sorted by key and then by RID, so the
+ * order is total and the result is the same however the work is split.
+ *
+ * Run generation splits the data pages of the file into one range per
+ * worker. Each worker collects the keys, RIDs and records of its pages
+ * until its own share of memory is full, sorts them, and writes a run.
+ * The in-memory sort works on a long per record, holding the key in
+ * its high half and the record's position in its low half, so it is a
+ * parallel sort of primitives; only records with equal keys are then
+ * put in RID order. Workers also keep every few sort keys as samples,
+ * and remember the first sort key on each run page.
+ *
+ * The merge is split by ranges of sort keys, using splitters picked
+ * from the samples. Each merge worker starts every run at the page
+ * holding its lowest sort key, found from the remembered first keys,
+ * and writes its range of the output as one run. Reading the output
+ * runs in order gives the whole file sorted.
+ *
+ * Run records hold the 12 byte sort key (key, rid page, rid slot) in
+ * front of the record, or alone when only index entries are wanted.
+ * @author Yuen Hsi Chang
+ */
+public class ParallelExternalSort
+{
+    /**
+     * Number of sort keys written between two samples.
+     */
+    public static final int SAMPLE_RATE = 64;
+
+    // Length of the sort key in front of each run record.
+    private static final int ENTRY_SIZE = 12;
+
+    /**
+     * A run written by a worker, with the first sort key on each page.
+     */
+    private static class Run
+    {
+        private SortedRun run;
+        private ArrayList<byte[]> firstKeys = new ArrayList<byte[]>();
+    }
+
+    private BufferManager bufMgr;
+    private String runFileName;
+    private int runFilePages;
+    private int numThreads;
+    private int memoryPages;
+    private int extentSize;
+
+    private ArrayList<Run> runs;
+    private ArrayList<byte[]> samples;
+    private ArrayList<SortedRun> output;
+    private boolean runFileCreated;
+
+    /**
+     * Creates a sort.
+     * @param bufMgr the buffer manager to pin pages through. It needs
+     * at least two frames per thread: one to read from, one to write.
+     * @param runFileName name of the database file to hold the runs.
+     * @param runFilePages maximum number of pages in the run file. Up
+     * to twice the size of the data sorted is needed at once.
+     * @param numThreads number of worker threads.
+     * @param memoryPages number of pages' worth of records each worker
+     * holds in memory while generating runs.
+     */
+    public ParallelExternalSort(BufferManager bufMgr, String runFileName,
+                                int runFilePages, int numThreads,
+                                int memoryPages)
+    {
+        this.bufMgr = bufMgr;
+        this.runFileName = runFileName;
+        this.runFilePages = runFilePages;
+        this.numThreads = Math.max(1, numThreads);
+        this.memoryPages = Math.max(1, memoryPages);
+        this.extentSize = ExternalSort.DEFAULT_EXTENT_SIZE;
+        this.runs = new ArrayList<Run>();
+        this.samples = new ArrayList<byte[]>();
+        this.output = new ArrayList<SortedRun>();
+        this.runFileCreated = false;
+    }
+
+    /**
+     * Sorts the records of a heap file by key, and then by RID.
+     * @param file the heap file.
+     * @param key extracts the key from a record.
+     * @return copies of the records in sorted order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Iterator<byte[]> sort(HeapFile file, ToIntFunction<byte[]> key)
+        throws IOException
+    {
+        final Iterator<byte[]> entries = sortEntries(file, key, true);
+        return new Iterator<byte[]>()
+        {
+            public boolean hasNext()
+            {
+                return entries.hasNext();
+            }
+
+            public byte[] next()
+            {
+                byte[] entry = entries.next();
+                return Arrays.copyOfRange(entry, ENTRY_SIZE, entry.length);
+            }
+        };
+    }
+
+    /**
+     * Sorts (key, RID) pairs for every record of a heap file, in the
+     * order BTreeBulkLoader.load expects.
+     * @param file the heap file to index.
+     * @param key extracts the key from a record.
+     * @return the entries in increasing (key, RID) order.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Iterator<Pair<Integer,RID>> sortIndexEntries(
+        HeapFile file, ToIntFunction<byte[]> key)
+        throws IOException
+    {
+        final Iterator<byte[]> entries = sortEntries(file, key, false);
+        return new Iterator<Pair<Integer,RID>>()
+        {
+            public boolean hasNext()
+            {
+                return entries.hasNext();
+            }
+
+            public Pair<Integer,RID> next()
+            {
+                ByteBuffer buf = ByteBuffer.wrap(entries.next());
+                return new Pair<Integer,RID>(
+                    buf.getInt(0), new RID(buf.getInt(4), buf.getInt(8)));
+            }
+        };
+    }
+
+    /**
+     * Frees every run page not read yet and erases the run file. Only
+     * needed if the sorted output is abandoned before its end.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        if (!runFileCreated)
+            return;
+        for (Run run : runs)
+            run.run.free(bufMgr);
+        for (SortedRun run : output)
+            run.free(bufMgr);
+        runs.clear();
+        output.clear();
+        DBFile.erase(runFileName);
+        runFileCreated = false;
+    }
+
+    private Iterator<byte[]> sortEntries(HeapFile file,
+                                         ToIntFunction<byte[]> key,
+                                         boolean withRecords)
+        throws IOException
+    {
+        new DBFile(runFileName, runFilePages);
+        runFileCreated = true;
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try
+        {
+            generateRuns(pool, file, key, withRecords);
+            mergeRuns(pool);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        ArrayList<RunReader> readers = new ArrayList<RunReader>();
+        for (SortedRun run : output)
+            readers.add(new RunReader(bufMgr, run, true));
+        final Iterator<RunReader> parts = readers.iterator();
+        return new Iterator<byte[]>()
+        {
+            private Iterator<byte[]> current = Collections.emptyIterator();
+
+            public boolean hasNext()
+            {
+                while (!current.hasNext() && parts.hasNext())
+                    current = parts.next();
+                if (current.hasNext())
+                    return true;
+                try
+                {
+                    close();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                return false;
+            }
+
+            public byte[] next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    // Gives each worker a contiguous range of data pages and waits for
+    // them all to write their runs.
+    private void generateRuns(ExecutorService pool, final HeapFile file,
+                              final ToIntFunction<byte[]> key,
+                              final boolean withRecords)
+        throws IOException
+    {
+        final int[] pageIds = file.getPageIds();
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int w = 0; w < numThreads; w++)
+        {
+            final int from = (int)((long)pageIds.length * w / numThreads);
+            final int to = (int)((long)pageIds.length * (w + 1) / numThreads);
+            tasks.add(pool.submit(new Callable<Void>()
+                {
+                    public Void call() throws IOException
+                    {
+                        int[] range = Arrays.copyOfRange(pageIds, from, to);
+                        new RunGenerator(withRecords)
+                            .generate(new HeapFileScan(file, range), key);
+                        return null;
+                    }
+                }));
+        }
+        waitFor(tasks);
+    }
+
+    // Merges each range between two splitters into its own output run,
+    // one range per worker, then frees the runs merged.
+    private void mergeRuns(ExecutorService pool) throws IOException
+    {
+        Collections.sort(samples, ExternalSort.ENTRY_ORDER);
+        ArrayList<byte[]> splitters = new ArrayList<byte[]>();
+        for (int p = 1; p < numThreads && !samples.isEmpty(); p++)
+        {
+            byte[] splitter = samples.get(samples.size() * p / numThreads);
+            if (splitters.isEmpty() ||
+                ExternalSort.ENTRY_ORDER.compare(
+                    splitters.get(splitters.size() - 1), splitter) < 0)
+                splitters.add(splitter);
+        }
+
+        ArrayList<Future<SortedRun>> tasks = new ArrayList<Future<SortedRun>>();
+        for (int p = 0; p <= splitters.size(); p++)
+        {
+            final byte[] low = p == 0 ? null : splitters.get(p - 1);
+            final byte[] high = p == splitters.size() ? null :
+                splitters.get(p);
+            tasks.add(pool.submit(new Callable<SortedRun>()
+                {
+                    public SortedRun call() throws IOException
+                    {
+                        return mergeRange(low, high);
+                    }
+                }));
+        }
+        waitFor(tasks);
+        for (Future<SortedRun> task : tasks)
+            output.add(getResult(task));
+
+        for (Run run : runs)
+            run.run.free(bufMgr);
+        runs.clear();
+    }
+
+    // Merges the entries with low <= sort key < high from every run,
+    // where a null bound means no bound.
+    private SortedRun mergeRange(final byte[] low, final byte[] high)
+        throws IOException
+    {
+        ArrayList<Iterator<byte[]>> inputs = new ArrayList<Iterator<byte[]>>();
+        for (Run run : runs)
+        {
+            // The last page starting at or before low holds the first
+            // entry wanted.
+            int first = 0;
+            if (low != null)
+            {
+                int lo = 0;
+                int hi = run.firstKeys.size() - 1;
+                while (lo < hi)
+                {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (ExternalSort.ENTRY_ORDER.compare(
+                            run.firstKeys.get(mid), low) <= 0)
+                        lo = mid;
+                    else
+                        hi = mid - 1;
+                }
+                first = lo;
+            }
+            inputs.add(new RangeReader(
+                           new RunReader(bufMgr, run.run, first, false),
+                           low, high));
+        }
+
+        Iterator<byte[]> merged =
+            new LoserTree<byte[]>(inputs, ExternalSort.ENTRY_ORDER);
+        RunWriter writer = new RunWriter(bufMgr, runFileName, extentSize);
+        try
+        {
+            while (merged.hasNext())
+                writer.add(merged.next());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            writer.finish().free(bufMgr);
+            throw e;
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Entries of a run from a lower bound up to an upper bound.
+     */
+    private static class RangeReader implements Iterator<byte[]>
+    {
+        private Iterator<byte[]> input;
+        private byte[] high;
+        private byte[] head;
+
+        private RangeReader(Iterator<byte[]> input, byte[] low, byte[] high)
+        {
+            this.input = input;
+            this.high = high;
+            this.head = null;
+            while (input.hasNext())
+            {
+                byte[] entry = input.next();
+                if (low == null ||
+                    ExternalSort.ENTRY_ORDER.compare(entry, low) >= 0)
+                {
+                    head = entry;
+                    break;
+                }
+            }
+            checkHigh();
+        }
+
+        public boolean hasNext()
+        {
+            return head != null;
+        }
+
+        public byte[] next()
+        {
+            if (head == null)
+                throw new NoSuchElementException();
+            byte[] result = head;
+            head = input.hasNext() ? input.next() : null;
+            checkHigh();
+            return result;
+        }
+
+        private void checkHigh()
+        {
+            if (head != null && high != null &&
+                ExternalSort.ENTRY_ORDER.compare(head, high) >= 0)
+                head = null;
+        }
+    }
+
+    /**
+     * Run generation for one worker's range of pages.
+     */
+    private class RunGenerator
+    {
+        private boolean withRecords;
+        private long budget;
+
+        private int[] keys = new int[1024];
+        private int[] ridPages = new int[1024];
+        private int[] ridSlots = new int[1024];
+        private ArrayList<byte[]> records = new ArrayList<byte[]>();
+        private int count = 0;
+        private long bytes = 0;
+
+        private ArrayList<Run> myRuns = new ArrayList<Run>();
+        private ArrayList<byte[]> mySamples = new ArrayList<byte[]>();
+
+        private RunGenerator(boolean withRecords)
+        {
+            this.withRecords = withRecords;
+            this.budget = (long)memoryPages * Page.PAGESIZE;
+        }
+
+        private void generate(HeapFileScan scan, ToIntFunction<byte[]> key)
+            throws IOException
+        {
+            while (scan.hasNext())
+            {
+                Pair<RID,byte[]> record = scan.next();
+                add(key.applyAsInt(record.second), record.first,
+                    record.second);
+            }
+            if (count > 0)
+                writeRun();
+            synchronized (ParallelExternalSort.this)
+            {
+                runs.addAll(myRuns);
+                samples.addAll(mySamples);
+            }
+        }
+
+        private void add(int key, RID rid, byte[] record) throws IOException
+        {
+            long size = ENTRY_SIZE + 2 * SlottedPage.SIZE_OF_INT +
+                (withRecords ? record.length : 0);
+            if (count > 0 && bytes + size > budget)
+                writeRun();
+            if (count == keys.length)
+            {
+                keys = Arrays.copyOf(keys, 2 * count);
+                ridPages = Arrays.copyOf(ridPages, 2 * count);
+                ridSlots = Arrays.copyOf(ridSlots, 2 * count);
+            }
+            keys[count] = key;
+            ridPages[count] = rid.pageId;
+            ridSlots[count] = rid.slotNum;
+            if (withRecords)
+                records.add(record);
+            count++;
+            bytes += size;
+        }
+
+        // Sorts what has been collected and writes it as a run.
+        private void writeRun() throws IOException
+        {
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++)
+                order[i] = ((long)keys[i] << 32) | i;
+            Arrays.parallelSort(order);
+
+            // Records with equal keys go in RID order.
+            for (int i = 0; i < count; )
+            {
+                int j = i + 1;
+                while (j < count && (order[j] >>> 32) == (order[i] >>> 32))
+                    j++;
+                if (j - i > 1)
+                    sortByRid(order, i, j);
+                i = j;
+            }
+
+            Run run = new Run();
+            RunWriter writer = new RunWriter(bufMgr, runFileName, extentSize);
+            for (int i = 0; i < count; i++)
+            {
+                int index = (int)order[i];
+                byte[] record = withRecords ? records.get(index) : null;
+                ByteBuffer entry = ByteBuffer.allocate(
+                    ENTRY_SIZE + (record == null ? 0 : record.length));
+                entry.putInt(keys[index]).putInt(ridPages[index])
+                    .putInt(ridSlots[index]);
+                if (record != null)
+                    entry.put(record);
+
+                int pages = writer.getNumPages();
+                writer.add(entry.array());
+                if (writer.getNumPages() > pages)
+                    run.firstKeys.add(Arrays.copyOf(entry.array(),
+                                                    ENTRY_SIZE));
+                if (i % SAMPLE_RATE == 0)
+                    mySamples.add(Arrays.copyOf(entry.array(), ENTRY_SIZE));
+            }
+            run.run = writer.finish();
+            myRuns.add(run);
+
+            records.clear();
+            count = 0;
+            bytes = 0;
+        }
+
+        private void sortByRid(long[] order, int from, int to)
+        {
+            Long[] group = new Long[to - from];
+            for (int i = from; i < to; i++)
+                group[i - from] = order[i];
+            Arrays.sort(group, new Comparator<Long>()
+                {
+                    public int compare(Long a, Long b)
+                    {
+                        int x = (int)(long)a;
+                        int y = (int)(long)b;
+                        if (ridPages[x] != ridPages[y])
+                            return Integer.compare(ridPages[x], ridPages[y]);
+                        return Integer.compare(ridSlots[x], ridSlots[y]);
+                    }
+                });
+            for (int i = from; i < to; i++)
+                order[i] = group[i - from];
+        }
+    }
+
+    // Waits for every task, even after one has failed, so that nothing
+    // is still using the run file when it is cleaned up. Then throws
+    // the first failure.
+    private static void waitFor(List<? extends Future<?>> tasks)
+        throws IOException
+    {
+        ExecutionException failure = null;
+        for (Future<?> task : tasks)
+        {
+            try
+            {
+                task.get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            rethrow(failure);
+    }
+
+    private static <T> T getResult(Future<T> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            rethrow(e);
+            return null;
+        }
+    }
+
+    private static void rethrow(ExecutionException e) throws IOException
+    {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException)
+            throw (IOException)cause;
+        if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+        if (cause instanceof Error)
+            throw (Error)cause;
+        throw new IOException(cause);
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads the records of a sorted run back in order. Records are copied
+ * out a page at a time, and a page is only pinned while that happens.
+ * A run that is only read once can have its pages freed as soon as
+ * they have been read, so a merge gives back space as it goes.
+ * @author Yuen Hsi Chang
+ */
+public class RunReader implements Iterator<byte[]>
+{
+    private BufferManager bufMgr;
+    private SortedRun run;
+    private boolean freePages;
+    private int nextPage;
+
+    // Records of the page last read that have not been returned yet.
+    private ArrayList<byte[]> buffered;
+    private int bufferedPos;
+
+    /**
+     * Creates a reader positioned at the start of a run.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param run the run to read.
+     * @param freePages whether to free each page once it has been read.
+     */
+    public RunReader(BufferManager bufMgr, SortedRun run, boolean freePages)
+    {
+        this(bufMgr, run, 0, freePages);
+    }
+
+    /**
+     * Creates a reader positioned at the start of a page of a run.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param run the run to read.
+     * @param firstPage the position within the run of the first page
+     * to read.
+     * @param freePages whether to free each page once it has been read,
+     * along with any earlier pages of the run.
+     */
+    public RunReader(BufferManager bufMgr, SortedRun run, int firstPage,
+                     boolean freePages)
+    {
+        this.bufMgr = bufMgr;
+        this.run = run;
+        this.freePages = freePages;
+        this.nextPage = firstPage;
+        this.buffered = new ArrayList<byte[]>();
+        this.bufferedPos = 0;
+    }
+
+    public boolean hasNext()
+    {
+        while (bufferedPos == buffered.size() &&
+               nextPage < run.getNumPages())
+            readPage();
+        return bufferedPos < buffered.size();
+    }
+
+    public byte[] next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.get(bufferedPos++);
+    }
+
+    private void readPage()
+    {
+        buffered.clear();
+        bufferedPos = 0;
+        int pageId = run.getPageId(nextPage++);
+        try
+        {
+            Page page = bufMgr.pinPage(pageId, run.getFileName(), false);
+            if (page == null)
+                throw new ExternalSort.BufferFullException();
+            try
+            {
+                SlottedPage sp = new SlottedPage(page);
+                sp.setPageId(pageId);
+                for (RID rid = sp.firstRecord(); rid != null;
+                     rid = sp.nextRecord(rid))
+                    buffered.add(sp.getRecord(rid));
+            }
+            finally
+            {
+                bufMgr.unpinPage(pageId, run.getFileName(), false);
+            }
+            if (freePages)
+                run.freeBefore(bufMgr, nextPage);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes records, in the order given, to slotted pages of a run file.
+ * Pages are requested from the database an extent of contiguous pages
+ * at a time, so a run is laid out sequentially on disk. Only the page
+ * being filled is pinned.
+ * @author Yuen Hsi Chang
+ */
+public class RunWriter
+{
+    private BufferManager bufMgr;
+    private String fileName;
+    private int extentSize;
+
+    private ArrayList<Integer> pageIds;
+    private long numRecords;
+    private SlottedPage current;
+
+    // Unused pages left in the current extent.
+    private int extentNext;
+    private int extentEnd;
+
+    /**
+     * Starts a new run.
+     * @param bufMgr the buffer manager to pin pages through.
+     * @param fileName the run file, which must already exist.
+     * @param extentSize number of contiguous pages to allocate at a time.
+     */
+    public RunWriter(BufferManager bufMgr, String fileName, int extentSize)
+    {
+        this.bufMgr = bufMgr;
+        this.fileName = fileName;
+        this.extentSize = Math.max(1, extentSize);
+        this.pageIds = new ArrayList<Integer>();
+        this.numRecords = 0;
+        this.current = null;
+        this.extentNext = 0;
+        this.extentEnd = 0;
+    }
+
+    /**
+     * Returns the number of pages written to so far, counting the one
+     * being filled.
+     * @return the number of pages.
+     */
+    public int getNumPages()
+    {
+        return pageIds.size();
+    }
+
+    /**
+     * Appends a record to the run.
+     * @param record the record.
+     * @throws SlottedPage.PageFullException if the record does not fit
+     * even on an empty page.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void add(byte[] record) throws IOException
+    {
+        if (current == null || current.getAvailableSpace() < record.length)
+        {
+            nextPage();
+            if (current.getAvailableSpace() < record.length)
+                throw new SlottedPage.PageFullException();
+        }
+        current.insertRecord(record);
+        numRecords++;
+    }
+
+    /**
+     * Finishes the run, giving back the unused end of the last extent.
+     * @return the run written.
+     * @throws IOException passed through from underlying file system.
+     */
+    public SortedRun finish() throws IOException
+    {
+        if (current != null)
+            bufMgr.unpinPage(current.getPageId(), fileName, true);
+        current = null;
+        if (extentNext < extentEnd)
+            deallocate(extentNext, extentEnd - extentNext);
+        extentNext = extentEnd;
+        return new SortedRun(fileName, pageIds, numRecords);
+    }
+
+    // Unpins the full page and pins the next page of the extent,
+    // requesting a new extent when this one is used up. Falls back to
+    // shorter extents when the file has no free run of the full size.
+    private void nextPage() throws IOException
+    {
+        if (current != null)
+            bufMgr.unpinPage(current.getPageId(), fileName, true);
+        current = null;
+
+        int pageId;
+        Page page;
+        if (extentNext == extentEnd)
+        {
+            int size = extentSize;
+            Pair<Integer,Page> fresh;
+            while (true)
+            {
+                try
+                {
+                    fresh = bufMgr.newPage(size, fileName);
+                    break;
+                }
+                catch (DBFile.FileFullException e)
+                {
+                    if (size == 1)
+                        throw e;
+                    size = size / 2;
+                }
+            }
+            if (fresh.second == null)
+            {
+                deallocate(fresh.first, size);
+                throw new ExternalSort.BufferFullException();
+            }
+            pageId = fresh.first;
+            page = fresh.second;
+            extentNext = fresh.first + 1;
+            extentEnd = fresh.first + size;
+        }
+        else
+        {
+            pageId = extentNext;
+            page = bufMgr.pinPage(pageId, fileName, true);
+            if (page == null)
+                throw new ExternalSort.BufferFullException();
+            extentNext++;
+        }
+
+        current = new SlottedPage(page);
+        current.init();
+        current.setPageId(pageId);
+        pageIds.add(pageId);
+    }
+
+    // Gives pages back to the database. DBFile keeps this from updating
+    // the space map at the same time as writers on other threads
+    // allocating pages.
+    private void deallocate(int startPageId, int numPages)
+        throws IOException
+    {
+        DBFile.open(fileName).deallocatePages(startPageId, numPages);
+    }
+}
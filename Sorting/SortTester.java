@@ -0,0 +1,378 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.util.*;
+
+public class SortTester
+{
+    public static interface Testable
+    {
+        void test(BufferManager bufMgr, String filename) throws Exception;
+    }
+
+    public static class TestFailedException extends RuntimeException
+    {
+        public TestFailedException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    // Reads sorted output to the end, checking its order, and returns
+    // the sum of its keys.
+    public static long checkSorted(Iterator<byte[]> sorted, int expected)
+    {
+        int count = 0;
+        long sum = 0;
+        int prev = Integer.MIN_VALUE;
+        while (sorted.hasNext())
+        {
+            int key = HFTester.keyOf(sorted.next());
+            if (key < prev)
+                throw new TestFailedException("Output out of order");
+            prev = key;
+            sum += key;
+            count++;
+        }
+        if (count != expected)
+            throw new TestFailedException("Output has " + count +
+                                          " records, not " + expected);
+        return sum;
+    }
+
+    //----------------------------------------------------
+    // test 1
+    //      Sort a heap file many times larger than the memory
+    //      given to the sort
+    //----------------------------------------------------
+    public static class Test1 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 1 -------");
+            int numRecords = 20000;
+            int memoryPages = 10;
+            HeapFile hf = new HeapFile(filename, NUMPAGES, bufMgr);
+            Random random = new Random(1);
+            long sum = 0;
+            for (int i = 0; i < numRecords; i++)
+            {
+                int key = random.nextInt(1000000);
+                hf.insertRecord(HFTester.makeRecord(key, 40));
+                sum += key;
+            }
+
+            String runFile = filename + ".runs";
+            ExternalSort sort =
+                new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                 runFile, NUMPAGES, memoryPages,
+                                 ExternalSort.DEFAULT_EXTENT_SIZE);
+            Iterator<byte[]> sorted = sort.sort(hf.stream().iterator());
+            if (checkSorted(sorted, numRecords) != sum)
+                throw new TestFailedException("Output has wrong records");
+
+            // Without replacement selection each run would hold one
+            // workspace of records.
+            int perWorkspace = (memoryPages - 1) * Page.PAGESIZE / 48;
+            int plainRuns = (numRecords + perWorkspace - 1) / perWorkspace;
+            System.out.println(sort.getNumInitialRuns() + " initial runs " +
+                               "(" + plainRuns + " without replacement " +
+                               "selection), " + sort.getNumMergePasses() +
+                               " intermediate merges");
+            if (sort.getNumInitialRuns() > plainRuns * 2 / 3)
+                throw new TestFailedException("Runs are too short");
+            if (new File(runFile).exists())
+                throw new TestFailedException("Run file left behind");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 2
+    //      Sorted input makes one run, reversed input makes
+    //      runs of one workspace each
+    //----------------------------------------------------
+    public static class Test2 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 2 -------");
+            int numRecords = 5000;
+            ArrayList<byte[]> ascending = new ArrayList<byte[]>();
+            for (int i = 0; i < numRecords; i++)
+                ascending.add(HFTester.makeRecord(i, 20));
+            ArrayList<byte[]> descending = new ArrayList<byte[]>(ascending);
+            Collections.reverse(descending);
+
+            ExternalSort sort =
+                new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                 filename, NUMPAGES, 5, 4);
+            checkSorted(sort.sort(ascending.iterator()), numRecords);
+            if (sort.getNumInitialRuns() != 1)
+                throw new TestFailedException("Sorted input made " +
+                                              sort.getNumInitialRuns() +
+                                              " runs");
+
+            sort = new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                    filename, NUMPAGES, 5, 4);
+            checkSorted(sort.sort(descending.iterator()), numRecords);
+            int perWorkspace = 4 * Page.PAGESIZE / 28;
+            int expected = (numRecords + perWorkspace - 1) / perWorkspace;
+            System.out.println("Reversed input made " +
+                               sort.getNumInitialRuns() + " runs and " +
+                               sort.getNumMergePasses() +
+                               " intermediate merges");
+            if (Math.abs(sort.getNumInitialRuns() - expected) > 1)
+                throw new TestFailedException("Expected about " + expected +
+                                              " runs");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 3
+    //      Smallest memory forces many two-way merge passes;
+    //      duplicate keys survive them
+    //----------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            int numRecords = 4000;
+            ExternalSort sort =
+                new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                 filename, NUMPAGES,
+                                 ExternalSort.MIN_MEMORY_PAGES, 2);
+            Random random = new Random(3);
+            long sum = 0;
+            for (int i = 0; i < numRecords; i++)
+            {
+                int key = random.nextInt(100);
+                sort.add(HFTester.makeRecord(key, 10 + i % 30));
+                sum += key;
+            }
+            if (checkSorted(sort.sorted(), numRecords) != sum)
+                throw new TestFailedException("Output has wrong records");
+            System.out.println(sort.getNumInitialRuns() + " runs took " +
+                               sort.getNumMergePasses() +
+                               " intermediate merges");
+            if (sort.getNumMergePasses() != sort.getNumInitialRuns() - 2)
+                throw new TestFailedException("Wrong number of merges");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 4
+    //      Input that fits in memory is sorted without a run
+    //      file, and abandoned output is cleaned up by close
+    //----------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            ExternalSort sort =
+                new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                 filename, NUMPAGES);
+            for (int i = 0; i < 100; i++)
+                sort.add(HFTester.makeRecord((i * 37) % 100, 16));
+            checkSorted(sort.sorted(), 100);
+            if (sort.getNumInitialRuns() != 0 || new File(filename).exists())
+                throw new TestFailedException("Small input was spilled");
+
+            sort = new ExternalSort(bufMgr, ExternalSort.intKeyOrder(0),
+                                    filename, NUMPAGES, 4, 4);
+            for (int i = 0; i < 2000; i++)
+                sort.add(HFTester.makeRecord(-i, 16));
+            Iterator<byte[]> sorted = sort.sorted();
+            sorted.next();
+            sort.close();
+            if (new File(filename).exists())
+                throw new TestFailedException("Run file left behind");
+            System.out.println("In-memory sort and early close correct");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 5
+    //      Bulk load a B+-tree from the sorted entries of a
+    //      heap file
+    //----------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            int numRecords = 10000;
+            String heapName = filename + ".heap";
+            String runFile = filename + ".runs";
+            HeapFile hf = new HeapFile(heapName, NUMPAGES, bufMgr);
+            HashMap<Integer,RID> rids = new HashMap<Integer,RID>();
+            for (int i = 0; i < numRecords; i++)
+            {
+                int key = (i * 7919) % numRecords;
+                rids.put(key, hf.insertRecord(HFTester.makeRecord(key, 30)));
+            }
+
+            Iterator<Pair<Integer,RID>> entries =
+                ExternalSort.sortIndexEntries(hf, HFTester::keyOf, runFile,
+                                              NUMPAGES);
+            BTreeFile tree = new BTreeBulkLoader(bufMgr, 1.0)
+                .load(filename, NUMPAGES, entries);
+            for (int key = 0; key < numRecords; key += 13)
+            {
+                List<RID> found = tree.search(key);
+                if (found.size() != 1 ||
+                    found.get(0).pageId != rids.get(key).pageId ||
+                    found.get(0).slotNum != rids.get(key).slotNum)
+                    throw new TestFailedException("Index wrong for " + key);
+            }
+            System.out.println("Bulk loaded " + numRecords +
+                               " sorted entries, height " + tree.getHeight());
+            DBFile.erase(heapName);
+            DBFile.erase(runFile);
+        }
+    }
+
+    //----------------------------------------------------
+    // test 6
+    //      Parallel sort of a heap file with many duplicate
+    //      keys gives the same (key, RID) order as the
+    //      sequential sort
+    //----------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 6 -------");
+            int numRecords = 20000;
+            String heapName = filename + ".heap";
+            HeapFile hf = new HeapFile(heapName, NUMPAGES, bufMgr);
+            Random random = new Random(6);
+            for (int i = 0; i < numRecords; i++)
+            {
+                int key = random.nextInt(2000) - 1000;
+                hf.insertRecord(HFTester.makeRecord(key, 20 + i % 20));
+            }
+
+            Iterator<Pair<Integer,RID>> expected =
+                ExternalSort.sortIndexEntries(hf, HFTester::keyOf,
+                                              filename + ".runs", NUMPAGES);
+            ParallelExternalSort sort =
+                new ParallelExternalSort(bufMgr, filename, NUMPAGES, 4, 4);
+            Iterator<Pair<Integer,RID>> actual =
+                sort.sortIndexEntries(hf, HFTester::keyOf);
+            int count = 0;
+            while (expected.hasNext())
+            {
+                Pair<Integer,RID> e = expected.next();
+                if (!actual.hasNext())
+                    throw new TestFailedException("Parallel sort ended early");
+                Pair<Integer,RID> a = actual.next();
+                if ((int)e.first != (int)a.first ||
+                    e.second.pageId != a.second.pageId ||
+                    e.second.slotNum != a.second.slotNum)
+                    throw new TestFailedException("Parallel sort differs at " +
+                                                  count);
+                count++;
+            }
+            if (actual.hasNext() || count != numRecords)
+                throw new TestFailedException("Parallel sort count wrong");
+            System.out.println("Parallel index entries match sequential sort");
+            DBFile.erase(heapName);
+        }
+    }
+
+    //----------------------------------------------------
+    // test 7
+    //      Parallel sort of whole records, with more threads
+    //      than needed for a tiny file
+    //----------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+            int numRecords = 10000;
+            String heapName = filename + ".heap";
+            HeapFile hf = new HeapFile(heapName, NUMPAGES, bufMgr);
+            Random random = new Random(7);
+            long sum = 0;
+            for (int i = 0; i < numRecords; i++)
+            {
+                int key = random.nextInt();
+                hf.insertRecord(HFTester.makeRecord(key, 30));
+                sum += key;
+            }
+            ParallelExternalSort sort =
+                new ParallelExternalSort(bufMgr, filename, NUMPAGES, 3, 8);
+            Iterator<byte[]> sorted = sort.sort(hf, HFTester::keyOf);
+            if (checkSorted(sorted, numRecords) != sum)
+                throw new TestFailedException("Output has wrong records");
+            if (new File(filename).exists())
+                throw new TestFailedException("Run file left behind");
+
+            HeapFile tiny = new HeapFile(filename + ".tiny", NUMPAGES, bufMgr);
+            tiny.insertRecord(HFTester.makeRecord(5, 8));
+            tiny.insertRecord(HFTester.makeRecord(2, 8));
+            sort = new ParallelExternalSort(bufMgr, filename, NUMPAGES, 4, 2);
+            if (checkSorted(sort.sort(tiny, HFTester::keyOf), 2) != 7)
+                throw new TestFailedException("Tiny file sorted wrong");
+            System.out.println("Parallel record sort correct");
+            DBFile.erase(heapName);
+            DBFile.erase(filename + ".tiny");
+        }
+    }
+
+
+    public static final String FILENAME = "__testing";
+    public static final int NUMBUF = 20;
+    public static final int NUMPAGES = 3000;
+
+
+    public static boolean runTest(Testable testObj)
+    {
+        boolean success = true;
+        try
+        {
+            BufferManager bufMgr = new BufferManager(NUMBUF);
+            testObj.test(bufMgr,FILENAME);
+        }
+        catch (Exception e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+
+        return success;
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running external sort tests.");
+
+        DBFile.erase(FILENAME);
+
+        // Run the tests.
+        runTest(new Test1());
+        runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test6());
+        runTest(new Test7());
+
+        // Clean up
+        DBFile.erase(FILENAME);
+    }
+}
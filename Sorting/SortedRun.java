@@ -0,0 +1,69 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A sorted run: the pages of a run file holding a sequence of records
+ * in sorted order, as written by a RunWriter. The pages were allocated
+ * in contiguous extents, so reading a run is mostly sequential I/O.
+ * @author Yuen Hsi Chang
+ */
+public class SortedRun
+{
+    private String fileName;
+    private ArrayList<Integer> pageIds;
+    private long numRecords;
+
+    // Pages before this one have already been read and freed.
+    private int firstLive;
+
+    public SortedRun(String fileName, ArrayList<Integer> pageIds,
+                     long numRecords)
+    {
+        this.fileName = fileName;
+        this.pageIds = pageIds;
+        this.numRecords = numRecords;
+        this.firstLive = 0;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public int getNumPages()
+    {
+        return pageIds.size();
+    }
+
+    public int getPageId(int i)
+    {
+        return pageIds.get(i);
+    }
+
+    public long getNumRecords()
+    {
+        return numRecords;
+    }
+
+    /**
+     * Frees the pages of the run up to, but not including, page i.
+     * @param bufMgr the buffer manager the run's pages go through.
+     * @param i the first page to keep.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void freeBefore(BufferManager bufMgr, int i) throws IOException
+    {
+        for (; firstLive < i; firstLive++)
+            bufMgr.freePage(pageIds.get(firstLive), fileName);
+    }
+
+    /**
+     * Frees every page of the run that has not been freed yet.
+     * @param bufMgr the buffer manager the run's pages go through.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void free(BufferManager bufMgr) throws IOException
+    {
+        freeBefore(bufMgr, pageIds.size());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures transaction throughput of the lock manager as threads are
+ * added, with the lock table in one shard behind a single monitor and
+ * split into DEFAULT_SHARDS shards. Each transaction locks a few
+ * records chosen at random, mostly shared and some exclusive, then
+ * releases them all. A small table gives heavy contention and
+ * deadlocks, broken by the background detector and retried; a large
+ * one leaves the lock table itself as the only contention.
+ * Usage: java LockBenchmark [maxThreads] [millis]
+ */
+public class LockBenchmark
+{
+    public static final String FILENAME = "__lockbench";
+    public static final int LOCKS_PER_TRANSACTION = 4;
+    public static final int RECORDS_PER_PAGE = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int millis = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        for (int numRecords : new int[] { 64, 100000 })
+        {
+            System.out.println(numRecords + " records:");
+            System.out.println("threads   1 shard txn/s  " +
+                               LockManager.DEFAULT_SHARDS +
+                               " shards txn/s  deadlocks");
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                long[] single = run(new LockManager(1,
+                    LockManager.DEFAULT_ESCALATION_THRESHOLD),
+                                    numRecords, threads, millis);
+                long[] sharded = run(new LockManager(), numRecords,
+                                     threads, millis);
+                System.out.printf("%7d %17d %18d %10d%n", threads,
+                                  single[0] * 1000 / millis,
+                                  sharded[0] * 1000 / millis, sharded[1]);
+            }
+        }
+    }
+
+    // Runs transactions on the given number of threads for a while, and
+    // returns how many committed and how many were deadlock victims.
+    private static long[] run(LockManager lm, int numRecords, int threads,
+                              int millis)
+        throws InterruptedException
+    {
+        AtomicLong committed = new AtomicLong(0);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        lm.startDetector(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                    long done = 0;
+                    while (!stop.get())
+                    {
+                        Transaction txn = lm.begin();
+                        try
+                        {
+                            for (int i = 0; i < LOCKS_PER_TRANSACTION; i++)
+                            {
+                                int record = random.nextInt(numRecords);
+                                lm.lockRecord(txn, FILENAME,
+                                    new RID(record / RECORDS_PER_PAGE,
+                                            record % RECORDS_PER_PAGE + 1),
+                                    random.nextInt(4) == 0 ?
+                                    LockManager.Mode.X : LockManager.Mode.S);
+                            }
+                            done++;
+                        }
+                        catch (LockManager.DeadlockException e)
+                        {
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                        finally
+                        {
+                            lm.releaseAll(txn);
+                        }
+                    }
+                    committed.addAndGet(done);
+                });
+            workers[t].start();
+        }
+        Thread.sleep(millis);
+        stop.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        lm.stopDetector();
+        return new long[] { committed.get(), lm.getNumDeadlocks() };
+    }
+}
@@ -0,0 +1,719 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock manager for transactions over heap files, locking files, their
+ * pages and the records on them, by RID. Locks are taken in the usual
+ * multiple granularity modes: shared and exclusive, and the intention
+ * modes a transaction takes on a file and page before locking what is
+ * inside them. lockRecord and lockPage take the intention locks on the
+ * way down themselves.
+ *
+ * The lock table is split into shards by resource, each with its own
+ * monitor, so transactions locking different resources seldom contend.
+ * Each locked resource has a queue of requests in arrival order. A
+ * request is granted when its mode is compatible with every granted
+ * mode and nothing is waiting ahead of it, so a stream of readers
+ * cannot starve a writer; a transaction strengthening a lock it holds
+ * waits only for the other holders.
+ *
+ * A transaction that holds more than the escalation threshold of
+ * record locks on one page trades them for a single lock on the page,
+ * shared or exclusive as the records were.
+ *
+ * Waiting transactions are not timed out. Instead, detectDeadlocks,
+ * called by hand or from a background thread, builds the graph of which
+ * transactions wait for which, holding every shard's monitor while it
+ * does, and breaks each cycle by aborting the youngest transaction in
+ * it, whose lock call then throws DeadlockException. An aborted
+ * transaction must release its locks and can be started again.
+ * @author Yuen Hsi Chang
+ */
+public class LockManager
+{
+    public static class DeadlockException extends RuntimeException {};
+
+    /**
+     * Number of shards the lock table is split into by default.
+     */
+    public static final int DEFAULT_SHARDS = 64;
+
+    /**
+     * Record locks a transaction may hold on one page before they are
+     * escalated to a lock on the page, by default.
+     */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 32;
+
+    /**
+     * Lock modes, from weakest to strongest: intention shared, intention
+     * exclusive, shared, shared with intention exclusive, exclusive.
+     */
+    public enum Mode
+    {
+        IS, IX, S, SIX, X;
+
+        // Which modes may be held together, by ordinal.
+        private static final boolean[][] COMPATIBLE = {
+            { true,  true,  true,  true,  false },
+            { true,  true,  false, false, false },
+            { true,  false, true,  false, false },
+            { true,  false, false, false, false },
+            { false, false, false, false, false } };
+
+        /**
+         * Whether a lock in this mode can be granted while another
+         * transaction holds one in the given mode.
+         * @param other the other mode.
+         * @return true if they are compatible.
+         */
+        public boolean isCompatible(Mode other)
+        {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * Returns the weakest mode at least as strong as both.
+         * @param other the other mode.
+         * @return the combined mode.
+         */
+        public Mode join(Mode other)
+        {
+            if (this == other || other == IS)
+                return this;
+            if (this == IS)
+                return other;
+            if ((this == IX && other == S) || (this == S && other == IX))
+                return SIX;
+            return ordinal() > other.ordinal() ? this : other;
+        }
+
+        /**
+         * Whether holding this mode grants everything the given one does.
+         * @param other the other mode.
+         * @return true if it does.
+         */
+        public boolean covers(Mode other)
+        {
+            return join(other) == this;
+        }
+
+        /**
+         * Returns the mode to take on the file and page above a resource
+         * locked in this mode.
+         * @return the intention mode.
+         */
+        public Mode intention()
+        {
+            return this == IS || this == S ? IS : IX;
+        }
+
+        /**
+         * Returns the mode this mode grants on everything inside the
+         * resource it is held on.
+         * @return the mode, or null if it grants nothing.
+         */
+        public Mode implied()
+        {
+            return this == S || this == SIX ? S : this == X ? X : null;
+        }
+    }
+
+    /**
+     * Something that can be locked: a file, a page of a file, or a record
+     * on a page.
+     */
+    public static final class Resource
+    {
+        private final String fileName;
+        private final int pageId;
+        private final int slotNum;
+        private final int hash;
+
+        private Resource(String fileName, int pageId, int slotNum)
+        {
+            this.fileName = fileName;
+            this.pageId = pageId;
+            this.slotNum = slotNum;
+            this.hash = (fileName.hashCode() * 31 + pageId) * 31 + slotNum;
+        }
+
+        public static Resource file(String fileName)
+        {
+            return new Resource(fileName, SlottedPage.INVALID_PAGE, 0);
+        }
+
+        public static Resource page(String fileName, int pageId)
+        {
+            return new Resource(fileName, pageId, 0);
+        }
+
+        public static Resource record(String fileName, RID rid)
+        {
+            return new Resource(fileName, rid.pageId, rid.slotNum);
+        }
+
+        /**
+         * Returns the resource this one is inside.
+         * @return the page of a record, the file of a page, or null for
+         * a file.
+         */
+        public Resource getParent()
+        {
+            if (slotNum != 0)
+                return page(fileName, pageId);
+            if (pageId != SlottedPage.INVALID_PAGE)
+                return file(fileName);
+            return null;
+        }
+
+        public boolean isRecord()
+        {
+            return slotNum != 0;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Resource))
+                return false;
+            Resource other = (Resource)o;
+            return pageId == other.pageId && slotNum == other.slotNum &&
+                fileName.equals(other.fileName);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public String toString()
+        {
+            return fileName + (pageId == SlottedPage.INVALID_PAGE ? "" :
+                               "/" + pageId + (slotNum == 0 ? "" :
+                                               "/" + slotNum));
+        }
+    }
+
+    // A transaction's request for a resource. Once granted, it may ask
+    // to be converted to a stronger mode.
+    private static class Request
+    {
+        Transaction txn;
+        Mode mode;
+        Mode converting;
+        boolean granted;
+
+        Request(Transaction txn, Mode mode)
+        {
+            this.txn = txn;
+            this.mode = mode;
+        }
+    }
+
+    // Request queues of the resources in one part of the lock table,
+    // whose monitor guards them and is waited on by their waiters.
+    private static class Shard
+    {
+        HashMap<Resource,ArrayList<Request>> queues =
+            new HashMap<Resource,ArrayList<Request>>();
+    }
+
+    private Shard[] shards;
+    private int escalationThreshold;
+    private AtomicLong nextId;
+    private AtomicLong numDeadlocks;
+    private AtomicLong numEscalations;
+    private Thread detectorThread;
+
+    /**
+     * Creates a lock manager with DEFAULT_SHARDS shards and the default
+     * escalation threshold.
+     */
+    public LockManager()
+    {
+        this(DEFAULT_SHARDS, DEFAULT_ESCALATION_THRESHOLD);
+    }
+
+    /**
+     * Creates a lock manager.
+     * @param numShards how many shards to split the lock table into; 1
+     * puts the whole table behind one monitor.
+     * @param escalationThreshold how many record locks a transaction may
+     * hold on one page before they are escalated.
+     */
+    public LockManager(int numShards, int escalationThreshold)
+    {
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard();
+        this.escalationThreshold = escalationThreshold;
+        this.nextId = new AtomicLong(0);
+        this.numDeadlocks = new AtomicLong(0);
+        this.numEscalations = new AtomicLong(0);
+    }
+
+    /**
+     * Starts a transaction.
+     * @return the transaction.
+     */
+    public Transaction begin()
+    {
+        return new Transaction(nextId.incrementAndGet());
+    }
+
+    /**
+     * Locks a whole file.
+     * @param txn the transaction.
+     * @param fileName the file.
+     * @param mode the mode to lock it in.
+     * @throws DeadlockException if the transaction is, or while waiting
+     * becomes, a deadlock victim.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void lockFile(Transaction txn, String fileName, Mode mode)
+        throws InterruptedException
+    {
+        lock(txn, Resource.file(fileName), mode);
+    }
+
+    /**
+     * Locks a page, taking the intention lock on its file first.
+     * @param txn the transaction.
+     * @param fileName the file.
+     * @param pageId the page.
+     * @param mode the mode to lock it in.
+     * @throws DeadlockException if the transaction is, or while waiting
+     * becomes, a deadlock victim.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void lockPage(Transaction txn, String fileName, int pageId,
+                         Mode mode)
+        throws InterruptedException
+    {
+        Resource page = Resource.page(fileName, pageId);
+        if (covered(txn, page, mode))
+            return;
+        lock(txn, page.getParent(), mode.intention());
+        lock(txn, page, mode);
+    }
+
+    /**
+     * Locks a record, taking intention locks on its file and page
+     * first, unless a lock held on either already covers it. The
+     * transaction's record locks on the page are escalated to a page
+     * lock once there are more than the escalation threshold.
+     * @param txn the transaction.
+     * @param fileName the file.
+     * @param rid the record.
+     * @param mode the mode to lock it in, S or X.
+     * @throws DeadlockException if the transaction is, or while waiting
+     * becomes, a deadlock victim.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void lockRecord(Transaction txn, String fileName, RID rid,
+                           Mode mode)
+        throws InterruptedException
+    {
+        Resource record = Resource.record(fileName, rid);
+        if (covered(txn, record, mode))
+            return;
+        Resource page = record.getParent();
+        lock(txn, page.getParent(), mode.intention());
+        lock(txn, page, mode.intention());
+        boolean fresh = !txn.held.containsKey(record);
+        lock(txn, record, mode);
+        if (fresh && txn.recordsPerPage.merge(page, 1, Integer::sum) >
+            escalationThreshold)
+            escalate(txn, page);
+    }
+
+    /**
+     * Locks a resource, waiting until the lock can be granted. If the
+     * transaction holds a weaker lock on it, that lock is strengthened.
+     * No intention locks are taken.
+     * @param txn the transaction.
+     * @param resource the resource.
+     * @param mode the mode to lock it in.
+     * @throws DeadlockException if the transaction is, or while waiting
+     * becomes, a deadlock victim.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void lock(Transaction txn, Resource resource, Mode mode)
+        throws InterruptedException
+    {
+        if (txn.aborted)
+            throw new DeadlockException();
+        Mode held = txn.held.get(resource);
+        if (held != null && held.covers(mode))
+            return;
+
+        Shard shard = shard(resource);
+        synchronized (shard)
+        {
+            ArrayList<Request> queue = shard.queues.get(resource);
+            Request request;
+            if (held != null)
+            {
+                request = find(queue, txn);
+                request.converting = held.join(mode);
+            }
+            else
+            {
+                if (queue == null)
+                {
+                    queue = new ArrayList<Request>();
+                    shard.queues.put(resource, queue);
+                }
+                request = new Request(txn, mode);
+                queue.add(request);
+            }
+
+            if (!grant(queue, request))
+            {
+                txn.waitingFor = resource;
+                boolean granted = false;
+                try
+                {
+                    while (!txn.aborted && !(granted = grant(queue, request)))
+                        shard.wait();
+                }
+                finally
+                {
+                    txn.waitingFor = null;
+                    if (!granted)
+                        withdraw(shard, resource, queue, request);
+                }
+                if (!granted)
+                    throw new DeadlockException();
+                // Requests queued behind this one may be compatible
+                // with it, and no longer wait for it.
+                shard.notifyAll();
+            }
+            txn.held.put(resource, request.mode);
+        }
+    }
+
+    /**
+     * Releases one lock early. Under strict two-phase locking, only
+     * locks that a stronger lock held above already covers should be
+     * released before the transaction ends.
+     * @param txn the transaction.
+     * @param resource the resource.
+     */
+    public void unlock(Transaction txn, Resource resource)
+    {
+        if (txn.held.remove(resource) == null)
+            return;
+        Shard shard = shard(resource);
+        synchronized (shard)
+        {
+            ArrayList<Request> queue = shard.queues.get(resource);
+            queue.remove(find(queue, txn));
+            if (queue.isEmpty())
+                shard.queues.remove(resource);
+            shard.notifyAll();
+        }
+    }
+
+    /**
+     * Releases every lock a transaction holds, when it commits or
+     * aborts.
+     * @param txn the transaction.
+     */
+    public void releaseAll(Transaction txn)
+    {
+        for (Resource resource :
+                 new ArrayList<Resource>(txn.held.keySet()))
+            unlock(txn, resource);
+        txn.recordsPerPage.clear();
+    }
+
+    /**
+     * Finds cycles of transactions waiting for each other, and aborts
+     * the youngest transaction of each.
+     * @return the number of transactions aborted.
+     */
+    public int detectDeadlocks()
+    {
+        HashMap<Transaction,HashSet<Transaction>> waitsFor =
+            new HashMap<Transaction,HashSet<Transaction>>();
+        addEdges(0, waitsFor);
+
+        int victims = 0;
+        List<Transaction> cycle;
+        while ((cycle = findCycle(waitsFor)) != null)
+        {
+            Transaction victim = cycle.get(0);
+            for (Transaction txn : cycle)
+                if (txn.getId() > victim.getId())
+                    victim = txn;
+            waitsFor.remove(victim);
+            for (HashSet<Transaction> edges : waitsFor.values())
+                edges.remove(victim);
+            abort(victim);
+            victims++;
+        }
+        return victims;
+    }
+
+    /**
+     * Starts looking for deadlocks on a background thread, repeatedly,
+     * until stopDetector is called.
+     * @param periodMillis how long to wait between looks.
+     */
+    public synchronized void startDetector(long periodMillis)
+    {
+        if (detectorThread != null)
+            return;
+        detectorThread = new Thread(() -> {
+                try
+                {
+                    while (true)
+                    {
+                        Thread.sleep(periodMillis);
+                        detectDeadlocks();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }, "deadlock detector");
+        detectorThread.setDaemon(true);
+        detectorThread.start();
+    }
+
+    /**
+     * Stops looking for deadlocks in the background.
+     * @throws InterruptedException if interrupted while waiting for the
+     * detector to stop.
+     */
+    public void stopDetector() throws InterruptedException
+    {
+        Thread thread;
+        synchronized (this)
+        {
+            thread = detectorThread;
+            detectorThread = null;
+        }
+        if (thread == null)
+            return;
+        thread.interrupt();
+        thread.join();
+    }
+
+    /**
+     * Returns how many transactions have been aborted to break
+     * deadlocks.
+     * @return the number of transactions.
+     */
+    public long getNumDeadlocks()
+    {
+        return numDeadlocks.get();
+    }
+
+    /**
+     * Returns how many times record locks have been escalated to a page
+     * lock.
+     * @return the number of escalations.
+     */
+    public long getNumEscalations()
+    {
+        return numEscalations.get();
+    }
+
+    // Whether the transaction already holds a lock on a resource, or on
+    // the page or file it is in, that covers the mode.
+    private boolean covered(Transaction txn, Resource resource, Mode mode)
+    {
+        Mode held = txn.held.get(resource);
+        if (held != null && held.covers(mode))
+            return true;
+        for (Resource r = resource.getParent(); r != null; r = r.getParent())
+        {
+            held = txn.held.get(r);
+            if (held != null && held.implied() != null &&
+                held.implied().covers(mode))
+                return true;
+        }
+        return false;
+    }
+
+    // Trades a transaction's record locks on a page for a lock on the
+    // page strong enough to cover them all.
+    private void escalate(Transaction txn, Resource page)
+        throws InterruptedException
+    {
+        Mode mode = Mode.S;
+        ArrayList<Resource> records = new ArrayList<Resource>();
+        for (Map.Entry<Resource,Mode> entry : txn.held.entrySet())
+            if (entry.getKey().isRecord() &&
+                entry.getKey().getParent().equals(page))
+            {
+                records.add(entry.getKey());
+                if (entry.getValue() == Mode.X)
+                    mode = Mode.X;
+            }
+        lock(txn, page, mode);
+        for (Resource record : records)
+            unlock(txn, record);
+        txn.recordsPerPage.remove(page);
+        numEscalations.incrementAndGet();
+    }
+
+    // Grants a request if nothing stands in its way.
+    private static boolean grant(ArrayList<Request> queue, Request request)
+    {
+        for (Request other : queue)
+            if (other != request && blocks(other, request, queue))
+                return false;
+        if (request.granted)
+        {
+            request.mode = request.converting;
+            request.converting = null;
+        }
+        request.granted = true;
+        return true;
+    }
+
+    // Whether one request keeps another waiting: a granted request in
+    // an incompatible mode does, and so, for a new request, does any
+    // request ahead of it still waiting or converting.
+    private static boolean blocks(Request other, Request waiter,
+                                  ArrayList<Request> queue)
+    {
+        Mode wanted = waiter.granted ? waiter.converting : waiter.mode;
+        if (other.granted && !wanted.isCompatible(other.mode))
+            return true;
+        if (waiter.granted)
+            return false;
+        return (!other.granted || other.converting != null) &&
+            queue.indexOf(other) < queue.indexOf(waiter);
+    }
+
+    // Builds the wait-for graph holding the monitors of shard first and
+    // of every shard after it, taken in order, so that the graph is of
+    // the whole table at one moment. Built a shard at a time, it could
+    // join edges from before and after a lock was granted into a cycle
+    // that never existed.
+    private void addEdges(int first,
+                          HashMap<Transaction,HashSet<Transaction>> waitsFor)
+    {
+        if (first == shards.length)
+        {
+            for (Shard shard : shards)
+                for (ArrayList<Request> queue : shard.queues.values())
+                    for (Request waiter : queue)
+                        addEdges(queue, waiter, waitsFor);
+            return;
+        }
+        synchronized (shards[first])
+        {
+            addEdges(first + 1, waitsFor);
+        }
+    }
+
+    private static void addEdges(ArrayList<Request> queue, Request waiter,
+                                 HashMap<Transaction,HashSet<Transaction>>
+                                 waitsFor)
+    {
+        // A victim already aborted is on its way out of the queue.
+        if ((waiter.granted && waiter.converting == null) ||
+            waiter.txn.aborted)
+            return;
+        for (Request other : queue)
+            if (other != waiter && blocks(other, waiter, queue))
+            {
+                HashSet<Transaction> edges = waitsFor.get(waiter.txn);
+                if (edges == null)
+                {
+                    edges = new HashSet<Transaction>();
+                    waitsFor.put(waiter.txn, edges);
+                }
+                edges.add(other.txn);
+            }
+    }
+
+    // Returns the transactions of some cycle in the graph, or null.
+    private static List<Transaction> findCycle(
+        HashMap<Transaction,HashSet<Transaction>> waitsFor)
+    {
+        HashSet<Transaction> done = new HashSet<Transaction>();
+        for (Transaction start : waitsFor.keySet())
+        {
+            ArrayList<Transaction> path = new ArrayList<Transaction>();
+            List<Transaction> cycle = findCycle(start, waitsFor, path, done);
+            if (cycle != null)
+                return cycle;
+        }
+        return null;
+    }
+
+    private static List<Transaction> findCycle(
+        Transaction txn, HashMap<Transaction,HashSet<Transaction>> waitsFor,
+        ArrayList<Transaction> path, HashSet<Transaction> done)
+    {
+        int onPath = path.indexOf(txn);
+        if (onPath >= 0)
+            return path.subList(onPath, path.size());
+        if (done.contains(txn))
+            return null;
+        path.add(txn);
+        HashSet<Transaction> edges = waitsFor.get(txn);
+        if (edges != null)
+            for (Transaction next : edges)
+            {
+                List<Transaction> cycle =
+                    findCycle(next, waitsFor, path, done);
+                if (cycle != null)
+                    return cycle;
+            }
+        path.remove(path.size() - 1);
+        done.add(txn);
+        return null;
+    }
+
+    // Marks a transaction as a deadlock victim and wakes it.
+    private void abort(Transaction victim)
+    {
+        victim.aborted = true;
+        numDeadlocks.incrementAndGet();
+        Resource resource = victim.waitingFor;
+        if (resource == null)
+            return;
+        Shard shard = shard(resource);
+        synchronized (shard)
+        {
+            shard.notifyAll();
+        }
+    }
+
+    // Takes back a request that will not be granted: a conversion goes
+    // back to the mode held, and a new request leaves the queue.
+    private static void withdraw(Shard shard, Resource resource,
+                                 ArrayList<Request> queue, Request request)
+    {
+        if (request.granted)
+            request.converting = null;
+        else
+        {
+            queue.remove(request);
+            if (queue.isEmpty())
+                shard.queues.remove(resource);
+        }
+        shard.notifyAll();
+    }
+
+    private static Request find(ArrayList<Request> queue, Transaction txn)
+    {
+        for (Request request : queue)
+            if (request.txn == txn)
+                return request;
+        throw new IllegalStateException("No request by " + txn);
+    }
+
+    private Shard shard(Resource resource)
+    {
+        int h = resource.hashCode();
+        h ^= h >>> 16;
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+}
@@ -0,0 +1,424 @@
+/**
+ * @author Yuen Hsi Chang
+ */
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+public class TXTester
+{
+    public static interface Testable
+    {
+        void test(BufferManager bufMgr, String filename) throws Exception;
+    }
+
+    public static class TestFailedException extends RuntimeException
+    {
+        public TestFailedException(String explanation)
+        {
+            super(explanation);
+        }
+    }
+
+    // A lock call to run on a thread of its own.
+    private static interface LockCall
+    {
+        void run() throws InterruptedException;
+    }
+
+    // Runs a lock call on a thread of its own and waits until it is
+    // either done or blocked, so tests can see which requests wait.
+    private static class Locker extends Thread
+    {
+        private LockCall call;
+        volatile boolean granted;
+        volatile boolean deadlocked;
+
+        Locker(LockCall call)
+        {
+            this.call = call;
+            setDaemon(true);
+            start();
+            while (isAlive() && getState() != Thread.State.WAITING)
+                Thread.onSpinWait();
+        }
+
+        public void run()
+        {
+            try
+            {
+                call.run();
+                granted = true;
+            }
+            catch (LockManager.DeadlockException e)
+            {
+                deadlocked = true;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+
+        void finish() throws InterruptedException
+        {
+            join(10000);
+            if (isAlive())
+                throw new TestFailedException("Lock still waiting");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 1
+    //      Lock modes combine and conflict as the granularity
+    //      hierarchy needs
+    //----------------------------------------------------
+    public static class Test1 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 1 -------");
+            LockManager.Mode[] modes = LockManager.Mode.values();
+            for (LockManager.Mode a : modes)
+                for (LockManager.Mode b : modes)
+                {
+                    if (a.isCompatible(b) != b.isCompatible(a))
+                        throw new TestFailedException("Matrix not symmetric");
+                    LockManager.Mode j = a.join(b);
+                    if (j != b.join(a) || !j.covers(a) || !j.covers(b))
+                        throw new TestFailedException("Bad join of " + a +
+                                                      " and " + b);
+                }
+            if (LockManager.Mode.IX.join(LockManager.Mode.S) !=
+                LockManager.Mode.SIX ||
+                !LockManager.Mode.IS.isCompatible(LockManager.Mode.SIX) ||
+                LockManager.Mode.IX.isCompatible(LockManager.Mode.S))
+                throw new TestFailedException("Wrong modes");
+            System.out.println("Modes correct");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 2
+    //      Requests queue in arrival order, intention locks are
+    //      taken on the way down, and locks are granted as others
+    //      are released
+    //----------------------------------------------------
+    public static class Test2 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 2 -------");
+            LockManager lm = new LockManager();
+            RID rid = new RID(3, 1);
+            LockManager.Resource record =
+                LockManager.Resource.record(filename, rid);
+            Transaction t1 = lm.begin();
+            Transaction t2 = lm.begin();
+            lm.lockRecord(t1, filename, rid, LockManager.Mode.S);
+            lm.lockRecord(t2, filename, rid, LockManager.Mode.S);
+            if (t1.getMode(LockManager.Resource.file(filename)) !=
+                LockManager.Mode.IS ||
+                t1.getMode(record.getParent()) != LockManager.Mode.IS ||
+                t1.getNumLocks() != 3)
+                throw new TestFailedException("Intention locks missing");
+
+            Transaction t3 = lm.begin();
+            Locker writer =
+                new Locker(() -> lm.lock(t3, record, LockManager.Mode.X));
+            Transaction t4 = lm.begin();
+            Locker reader =
+                new Locker(() -> lm.lock(t4, record, LockManager.Mode.S));
+            if (writer.granted || reader.granted)
+                throw new TestFailedException("Reader jumped the queue");
+
+            lm.releaseAll(t1);
+            if (writer.granted)
+                throw new TestFailedException("Writer granted too early");
+            lm.releaseAll(t2);
+            writer.finish();
+            if (!writer.granted || reader.granted)
+                throw new TestFailedException("Writer not granted");
+            lm.releaseAll(t3);
+            reader.finish();
+            if (!reader.granted)
+                throw new TestFailedException("Reader not granted");
+            lm.releaseAll(t4);
+
+            // A page lock covers the records on it.
+            Transaction t5 = lm.begin();
+            lm.lockPage(t5, filename, 3, LockManager.Mode.X);
+            lm.lockRecord(t5, filename, rid, LockManager.Mode.X);
+            if (t5.getMode(record) != null || t5.getNumLocks() != 2)
+                throw new TestFailedException("Covered record locked");
+            lm.releaseAll(t5);
+            System.out.println("Queued requests granted in order");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 3
+    //      Deadlocks between two upgrades, and around two records,
+    //      are found and broken by aborting the younger transaction
+    //----------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+            LockManager lm = new LockManager();
+            LockManager.Resource a = LockManager.Resource.page(filename, 1);
+            LockManager.Resource b = LockManager.Resource.page(filename, 2);
+
+            Transaction t1 = lm.begin();
+            Transaction t2 = lm.begin();
+            lm.lock(t1, a, LockManager.Mode.S);
+            lm.lock(t2, a, LockManager.Mode.S);
+            Locker first =
+                new Locker(() -> lm.lock(t1, a, LockManager.Mode.X));
+            Locker second =
+                new Locker(() -> lm.lock(t2, a, LockManager.Mode.X));
+            if (lm.detectDeadlocks() != 1)
+                throw new TestFailedException("Upgrade deadlock missed");
+            second.finish();
+            if (!second.deadlocked || !t2.isAborted())
+                throw new TestFailedException("Wrong victim");
+            lm.releaseAll(t2);
+            first.finish();
+            if (!first.granted || t1.getMode(a) != LockManager.Mode.X)
+                throw new TestFailedException("Upgrade not granted");
+            lm.releaseAll(t1);
+
+            lm.startDetector(5);
+            Transaction t3 = lm.begin();
+            Transaction t4 = lm.begin();
+            lm.lock(t3, a, LockManager.Mode.X);
+            lm.lock(t4, b, LockManager.Mode.X);
+            Locker third =
+                new Locker(() -> lm.lock(t3, b, LockManager.Mode.X));
+            Locker fourth =
+                new Locker(() -> lm.lock(t4, a, LockManager.Mode.X));
+            fourth.finish();
+            lm.releaseAll(t4);
+            third.finish();
+            lm.stopDetector();
+            if (!fourth.deadlocked || !third.granted ||
+                lm.getNumDeadlocks() != 2)
+                throw new TestFailedException("Background detector failed");
+            lm.releaseAll(t3);
+            if (lm.detectDeadlocks() != 0)
+                throw new TestFailedException("Deadlock left behind");
+            System.out.println("Deadlocks broken");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 4
+    //      Record locks past the threshold escalate to a page lock
+    //----------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+            LockManager lm = new LockManager(LockManager.DEFAULT_SHARDS, 4);
+            LockManager.Resource page = LockManager.Resource.page(filename, 5);
+            Transaction t1 = lm.begin();
+            for (int slot = 1; slot <= 4; slot++)
+                lm.lockRecord(t1, filename, new RID(5, slot),
+                              LockManager.Mode.S);
+            if (t1.getNumLocks() != 6 || lm.getNumEscalations() != 0)
+                throw new TestFailedException("Escalated too early");
+            lm.lockRecord(t1, filename, new RID(5, 5), LockManager.Mode.X);
+            if (t1.getNumLocks() != 2 ||
+                t1.getMode(page) != LockManager.Mode.X ||
+                lm.getNumEscalations() != 1)
+                throw new TestFailedException("Not escalated to page X");
+            lm.lockRecord(t1, filename, new RID(5, 9), LockManager.Mode.X);
+            if (t1.getNumLocks() != 2)
+                throw new TestFailedException("Escalated page not used");
+
+            Transaction t2 = lm.begin();
+            Locker blocked = new Locker(() -> lm.lockRecord(
+                t2, filename, new RID(5, 7), LockManager.Mode.S));
+            Transaction t3 = lm.begin();
+            lm.lockRecord(t3, filename, new RID(6, 1), LockManager.Mode.X);
+            if (blocked.granted)
+                throw new TestFailedException("Escalated page not locked");
+            lm.releaseAll(t1);
+            blocked.finish();
+            lm.releaseAll(t2);
+            lm.releaseAll(t3);
+            System.out.println("Record locks escalated");
+        }
+    }
+
+    //----------------------------------------------------
+    // test 5
+    //      Concurrent transfers between accounts stored in a
+    //      versioned heap file keep the total, with deadlock victims
+    //      retried
+    //----------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+            int numAccounts = 20;
+            int numThreads = 4;
+            int transfers = 300;
+            VersionedHeapFile vf =
+                new VersionedHeapFile(filename, NUMPAGES, bufMgr);
+            RID[] rids = new RID[numAccounts];
+            for (int i = 0; i < numAccounts; i++)
+                rids[i] = vf.insertRecord(account(100));
+
+            LockManager lm = new LockManager();
+            lm.startDetector(2);
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++)
+            {
+                Random random = new Random(t);
+                threads[t] = new Thread(() -> {
+                        try
+                        {
+                            for (int n = 0; n < transfers; n++)
+                                transfer(lm, vf, rids,
+                                         random.nextInt(numAccounts),
+                                         random.nextInt(numAccounts),
+                                         random.nextInt(10));
+                        }
+                        catch (Exception e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            lm.stopDetector();
+
+            Snapshot snapshot = vf.snapshot();
+            int total = 0;
+            for (RID rid : rids)
+                total += balance(vf.getRecord(snapshot, rid));
+            snapshot.release();
+            System.out.println(numThreads * transfers + " transfers, " +
+                               lm.getNumDeadlocks() + " deadlocks broken");
+            if (total != numAccounts * 100)
+                throw new TestFailedException("Total is " + total);
+            System.out.println("Transfers kept the total");
+        }
+
+        // Moves an amount between two accounts, locking them in the
+        // order given, so transfers the other way can deadlock.
+        private static void transfer(LockManager lm, VersionedHeapFile vf,
+                                     RID[] rids, int from, int to,
+                                     int amount)
+            throws Exception
+        {
+            while (true)
+            {
+                Transaction txn = lm.begin();
+                try
+                {
+                    lm.lockRecord(txn, vf.getFileName(), rids[from],
+                                  LockManager.Mode.X);
+                    int fromBalance = read(vf, rids[from]);
+                    Thread.yield();
+                    lm.lockRecord(txn, vf.getFileName(), rids[to],
+                                  LockManager.Mode.X);
+                    int toBalance = read(vf, rids[to]);
+                    if (from != to)
+                    {
+                        vf.updateRecord(rids[from],
+                                        account(fromBalance - amount));
+                        vf.updateRecord(rids[to], account(toBalance + amount));
+                    }
+                    return;
+                }
+                catch (LockManager.DeadlockException e)
+                {
+                }
+                finally
+                {
+                    lm.releaseAll(txn);
+                }
+            }
+        }
+
+        private static int read(VersionedHeapFile vf, RID rid)
+            throws IOException
+        {
+            Snapshot snapshot = vf.snapshot();
+            try
+            {
+                return balance(vf.getRecord(snapshot, rid));
+            }
+            finally
+            {
+                snapshot.release();
+            }
+        }
+
+        private static byte[] account(int balance)
+        {
+            byte[] record = new byte[8];
+            ByteBuffer.wrap(record).putInt(4, balance);
+            return record;
+        }
+
+        private static int balance(byte[] record)
+        {
+            return ByteBuffer.wrap(record).getInt(4);
+        }
+    }
+
+
+    public static final String FILENAME = "__testing";
+    public static final int NUMBUF = 50;
+    public static final int NUMPAGES = 1000;
+
+
+    public static boolean runTest(Testable testObj)
+    {
+        boolean success = true;
+        try
+        {
+            BufferManager bufMgr = new BufferManager(NUMBUF);
+            testObj.test(bufMgr,FILENAME);
+        }
+        catch (Exception e)
+        {
+            success = false;
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+
+        return success;
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running transaction tests.");
+
+        DBFile.erase(FILENAME);
+
+        // Run the tests.
+        runTest(new Test1());
+        runTest(new Test2());
+        runTest(new Test3());
+        runTest(new Test4());
+        runTest(new Test5());
+
+        // Clean up
+        DBFile.erase(FILENAME);
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.*;
+
+/**
+ * A transaction, as the lock manager knows it: an id, the locks it
+ * holds, and what it is waiting for. Locks are kept until the
+ * transaction ends (strict two-phase locking), when they are all given
+ * up together with LockManager.releaseAll. A transaction is used by
+ * one thread at a time.
+ * @author Yuen Hsi Chang
+ */
+public class Transaction
+{
+    private long id;
+
+    // Locks held, each with the strongest mode held on it.
+    HashMap<LockManager.Resource,LockManager.Mode> held;
+
+    // Record locks held under each page, for escalation.
+    HashMap<LockManager.Resource,Integer> recordsPerPage;
+
+    // The resource the transaction is blocked on, if any, and whether
+    // the deadlock detector has chosen it to give way.
+    volatile LockManager.Resource waitingFor;
+    volatile boolean aborted;
+
+    Transaction(long id)
+    {
+        this.id = id;
+        this.held = new HashMap<LockManager.Resource,LockManager.Mode>();
+        this.recordsPerPage = new HashMap<LockManager.Resource,Integer>();
+    }
+
+    /**
+     * Returns the transaction's id. Later transactions have larger ids.
+     * @return the id.
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the mode the transaction holds a resource in.
+     * @param resource the resource.
+     * @return the mode, or null if it holds no lock on it.
+     */
+    public LockManager.Mode getMode(LockManager.Resource resource)
+    {
+        return held.get(resource);
+    }
+
+    /**
+     * Returns how many locks the transaction holds.
+     * @return the number of locks.
+     */
+    public int getNumLocks()
+    {
+        return held.size();
+    }
+
+    /**
+     * Whether the transaction was chosen as a deadlock victim. It can
+     * take no more locks, and must release the ones it has.
+     * @return true if it was.
+     */
+    public boolean isAborted()
+    {
+        return aborted;
+    }
+
+    public String toString()
+    {
+        return "T" + id;
+    }
+}